@@ -11,17 +11,31 @@ import java.awt.Insets;
 import javax.swing.JPanel;
 import javax.swing.border.EmptyBorder;
 
+import com.sugen.util.ArrayDistanceMatrix;
+import com.sugen.util.DistanceMatrix;
+import com.sugen.util.FeatureMatrix;
+
 /** 
- * A heatmap.
+ * A heatmap, either of a square distance matrix, where close is hot, or of
+ * a rectangular feature matrix, such as genes by conditions, where the
+ * highest values are hot. A feature matrix is shown through a permutation
+ * of its rows and one of its columns, such as the orders from 
+ * TwoWayCluster, without copying it.
  * @author Jonathan Bingham
+ * @see com.sugen.util.TwoWayCluster
  */
 public class HeatMap extends JPanel {
 	private int squareSize = 12;
 	private int labelLength;
 	private int labelPadding = 6;
 	private double max;
-	private double[][] distances;
+	private double min;
+	private DistanceMatrix distances;
 	private String[] labels;
+	private FeatureMatrix features;
+	private int[] rowOrder;
+	private int[] columnOrder;
+	private String[] columnLabels; // in order; labels holds the row labels
 	private Color hotColor = Color.GREEN;
 	private Color coldColor = Color.BLACK;
 
@@ -44,35 +58,148 @@ public class HeatMap extends JPanel {
 	 * or matrix is not square, or labels array is of wrong length 
 	 */
 	public HeatMap(double[][] distances, String[] labels, double max) {
+		this(distances == null ? null : new ArrayDistanceMatrix(distances), labels, max);
+	}
+
+	/**
+	 * Constructor.
+	 * @param distances square matrix, with labels
+	 * @throws IllegalArgumentException if distances or labels are null
+	 */
+	public HeatMap(DistanceMatrix distances) {
+		this(distances, distances.getLabels(), 0d);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param distances square matrix
+	 * @param labels row and column labels
+	 * @throws IllegalArgumentException if distances or labels not null,
+	 * or labels array is of wrong length 
+	 */
+	public HeatMap(DistanceMatrix distances, String[] labels) {
+		this(distances, labels, 0d);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param distances square matrix
+	 * @param labels row and column labels
+	 * @throws IllegalArgumentException if distances or labels not null,
+	 * or labels array is of wrong length 
+	 */
+	public HeatMap(DistanceMatrix distances, String[] labels, double max) {
 		if(labels == null || labels.length == 0)
 			throw new IllegalArgumentException("Labels cannot be null");
-		if(distances == null || distances.length == 0)
+		if(distances == null || distances.size() == 0)
 			throw new IllegalArgumentException("Distance matrix cannot be null");
-		if(labels.length != distances.length)
+		if(labels.length != distances.size())
 			throw new IllegalArgumentException(
 					"Distance matrix and labels must have same number of elements");
-		if(distances[0].length != distances.length)
-			throw new IllegalArgumentException(
-					"Distance matrix is not square");
 		
 		this.distances = distances;
 		this.labels = labels;	
 		this.max = max;
 		
+		int n = distances.size();
 		if(this.max == 0) {
-			for(int row = 0; row < distances.length; ++row) {
-				for(int col = 0; col < distances.length; ++col) {
-					if(distances[row][col] > this.max)
-						this.max = distances[row][col];
+			for(int row = 0; row < n; ++row) {
+				for(int col = 0; col < n; ++col) {
+					double d = distances.get(row, col);
+					if(d > this.max)
+						this.max = d;
 				}
 			}
 		}
+		init();
+	}
+	
+	/**
+	 * Constructor.
+	 * @param features a rectangular matrix, with row and column labels
+	 * @param rowOrder the rows of the matrix in the order to show them
+	 * @param columnOrder the columns of the matrix in the order to show them
+	 * @throws IllegalArgumentException if the matrix is empty or has no
+	 * labels, or an order is not a permutation of the rows or columns
+	 */
+	public HeatMap(FeatureMatrix features, int[] rowOrder, int[] columnOrder) {
+		this(features, features.getRowLabels(), features.getColumnLabels(), 
+				rowOrder, columnOrder);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param features a rectangular matrix
+	 * @param rowLabels labels of the rows of the matrix, in matrix order
+	 * @param columnLabels labels of the columns of the matrix, in matrix order
+	 * @param rowOrder the rows of the matrix in the order to show them
+	 * @param columnOrder the columns of the matrix in the order to show them
+	 * @throws IllegalArgumentException if the matrix is empty or labels are
+	 * missing, or an order is not a permutation of the rows or columns
+	 */
+	public HeatMap(FeatureMatrix features, String[] rowLabels, 
+			String[] columnLabels, int[] rowOrder, int[] columnOrder) {
+		if(features == null || features.getRowCount() == 0 
+				|| features.getColumnCount() == 0)
+			throw new IllegalArgumentException("Matrix cannot be empty");
+		if(rowLabels == null || columnLabels == null)
+			throw new IllegalArgumentException("Labels cannot be null");
+		if(rowLabels.length != features.getRowCount() 
+				|| columnLabels.length != features.getColumnCount())
+			throw new IllegalArgumentException(
+					"Matrix and labels must have same number of elements");
+		checkPermutation(rowOrder, features.getRowCount());
+		checkPermutation(columnOrder, features.getColumnCount());
+		
+		this.features = features;
+		this.rowOrder = rowOrder;
+		this.columnOrder = columnOrder;
+		labels = new String[rowOrder.length];
+		for(int i = 0; i < rowOrder.length; ++i)
+			labels[i] = rowLabels[rowOrder[i]];
+		this.columnLabels = new String[columnOrder.length];
+		for(int j = 0; j < columnOrder.length; ++j)
+			this.columnLabels[j] = columnLabels[columnOrder[j]];
+		
+		float[] data = features.getData();
+		min = max = data[0];
+		for(int i = 1; i < data.length; ++i) {
+			if(data[i] > max)
+				max = data[i];
+			else if(data[i] < min)
+				min = data[i];
+		}
+		init();
+	}
+	
+	private static void checkPermutation(int[] order, int size) {
+		if(order == null || order.length != size)
+			throw new IllegalArgumentException("Expected an order of " + size);
+		boolean[] isSeen = new boolean[size];
+		for(int i = 0; i < size; ++i) {
+			if(order[i] < 0 || order[i] >= size || isSeen[order[i]])
+				throw new IllegalArgumentException("Not a permutation: " + order[i]);
+			isSeen[order[i]] = true;
+		}
+	}
+	
+	private void init() {
+		if(columnLabels == null)
+			columnLabels = labels;
 		int w = 10;
 		setBorder(new EmptyBorder(w, w, w, w));
 		setBackground(Color.WHITE);
 		setOpaque(true);
 	}
 	
+	private int getRowCount() {
+		return labels.length;
+	}
+	
+	private int getColumnCount() {
+		return columnLabels.length;
+	}
+	
 	/**
 	 * Size of heatmap plus labels plus margins/borders.
 	 */
@@ -81,8 +208,8 @@ public class HeatMap extends JPanel {
 			setFont(getFont());
 		
 		Dimension dim = super.getPreferredSize();
-		dim.height += squareSize * distances.length + labelLength + labelPadding;
-		dim.width  += squareSize * distances.length + labelLength + labelPadding;
+		dim.height += squareSize * getRowCount() + labelLength + labelPadding;
+		dim.width  += squareSize * getColumnCount() + labelLength + labelPadding;
 		return dim;
 	}
 	
@@ -99,6 +226,12 @@ public class HeatMap extends JPanel {
 				if(w > labelLength)
 					labelLength = w;
 			}
+		if(columnLabels != null && columnLabels != labels)
+			for(int j = 0; j < columnLabels.length; ++j) {
+				int w = metrics.stringWidth(columnLabels[j]);
+				if(w > labelLength)
+					labelLength = w;
+			}
 	}
 	
 	protected void paintComponent(Graphics g) {
@@ -126,19 +259,20 @@ public class HeatMap extends JPanel {
 		Insets insets = getInsets();
 		FontMetrics metrics = getFontMetrics(getFont()); 
 
-		// Paint each label
+		// Paint row labels along left edge, right-aligned
 		for(int i = 0; i < labels.length; ++i) {
-			// Paint labels along left edge, right-aligned
 			g.drawString(labels[i], 
 					insets.left + labelLength - metrics.stringWidth(labels[i]), 
 					insets.top + labelLength + labelPadding + (i + 1) * squareSize);
+		}
 			
-			// Paint labels along top, rotated vertically
-			int x = insets.left + labelLength + labelPadding + (i + 1) * squareSize;
+		// Paint column labels along top, rotated vertically
+		for(int j = 0; j < columnLabels.length; ++j) {
+			int x = insets.left + labelLength + labelPadding + (j + 1) * squareSize;
 			int y = insets.top + labelLength;
 			g.translate(x,y);
 			g.rotate(-Math.PI / 2);
-			g.drawString(labels[i],	0, 0); 
+			g.drawString(columnLabels[j], 0, 0); 
 			g.rotate(Math.PI / 2);
 			g.translate(-x, -y);
 		}
@@ -150,11 +284,13 @@ public class HeatMap extends JPanel {
 		int y = x;
 		Color originalColor = g.getColor();
 		g.setColor(coldColor);
-		g.fillRect(x, y, squareSize * distances.length, squareSize * distances.length);
+		int rows = getRowCount();
+		int columns = getColumnCount();
+		g.fillRect(x, y, squareSize * columns, squareSize * rows);
 		
-		for(int row = 0; row < distances.length; ++row) {
-			for(int col = 0; col < distances.length; ++col) {
-				g.setColor(color(distances[row][col]));
+		for(int row = 0; row < rows; ++row) {
+			for(int col = 0; col < columns; ++col) {
+				g.setColor(color(heat(row, col)));
 				g.fillRect(x + col * squareSize, y + row * squareSize, 
 						squareSize, squareSize);
 			}
@@ -162,17 +298,30 @@ public class HeatMap extends JPanel {
 		g.setColor(originalColor);
 	}
 	
+	/**
+	 * @return in [0,1]: 1 for a distance of zero or the highest feature 
+	 * value, 0 for the greatest distance or the lowest feature value
+	 */
+	private double heat(int row, int col) {
+		if(features == null) {
+			double d = distances.get(row, col);
+			if(d > max)
+				d = max;
+			if(d < 0)
+				d = 0;
+			return (max - d) / max;
+		}
+		double v = features.get(rowOrder[row], columnOrder[col]);
+		return max == min ? 1 : (v - min) / (max - min);
+	}
+	
 	/**
 	 * Make heatmap color.
-	 * @param d in [0,1]
+	 * @param heat in [0,1]
 	 * @return alpha-adjusted color, derived from hotColor.
 	 */
-	private Color color(double d) {
-		if(d > max)
-			d = max;
-		if(d < 0)
-			d = 0;
-		int alpha = (int)(255d * ((max - d) / max));
+	private Color color(double heat) {
+		int alpha = (int)(255d * heat);
 		return new Color(hotColor.getRed(), hotColor.getGreen(), hotColor.getBlue(), alpha);
 	}
 
@@ -7,13 +7,13 @@ import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageWriter;
@@ -26,14 +26,28 @@ import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JWindow;
+import javax.swing.filechooser.FileFilter;
 
 import com.sugen.app.HyperTree;
 import com.sugen.gui.AppBean;
 import com.sugen.gui.Icons;
 import com.sugen.gui.SwingWorker;
 import com.sugen.gui.io.ReaderUI;
+import com.sugen.io.BinaryMatrixReader;
+import com.sugen.io.BinaryMatrixWriter;
+import com.sugen.io.DistanceMatrixReader;
+import com.sugen.io.FeatureMatrixReader;
+import com.sugen.util.ArrayDistanceMatrix;
 import com.sugen.util.Clade;
+import com.sugen.util.ClusterCache;
+import com.sugen.util.DistanceCalculator;
+import com.sugen.util.DistanceMatrix;
+import com.sugen.util.FeatureMatrix;
+import com.sugen.util.FloatDistanceMatrix;
 import com.sugen.util.HierarchicalCluster;
+import com.sugen.util.PackedDistanceMatrix;
+import com.sugen.util.ParallelLoop;
+import com.sugen.util.TwoWayCluster;
 import com.sun.imageio.plugins.png.PNGImageWriter;
 import com.sun.imageio.plugins.png.PNGImageWriterSpi;
 
@@ -59,6 +73,37 @@ public class HierarchicalClusterer implements AppBean {
 			}.start();
 		}
 	};
+	public final Action importFeatureMatrix = new AbstractAction(
+			"Import Feature Matrix...", Icons.get("emptyIcon24.gif")) {
+		{
+			putValue(KEY_MENU, FILE_MENU);
+			putValue(KEY_LOCATION, VALUE_MENU_ONLY);
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			new SwingWorker() {
+				public Object construct() {
+					importFeatureMatrix();
+					return null;
+				}
+			}.start();
+		}
+	};
+	public final Action cancelClustering = new AbstractAction(
+			"Cancel Clustering", Icons.get("emptyIcon24.gif")) {
+		{
+			putValue(KEY_MENU, FILE_MENU);
+			putValue(KEY_LOCATION, VALUE_MENU_ONLY);
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			TwoWayCluster twoWay = twoWayCluster;
+			if (isClustering && twoWay != null)
+				twoWay.cancel();
+			else if (isClustering && cluster != null)
+				cluster.cancel();
+		}
+	};
 	public final Action viewHeatMap = new AbstractAction(
 			"View Heatmap...", Icons.get("emptyIcon24.gif")) {
 		{
@@ -75,10 +120,37 @@ public class HierarchicalClusterer implements AppBean {
 			}.start();
 		}
 	};
+	public final Action viewTwoWayHeatMap = new AbstractAction(
+			"View Two-Way Heatmap...", Icons.get("emptyIcon24.gif")) {
+		{
+			putValue(KEY_MENU, VIEW_MENU);
+			putValue(KEY_LOCATION, VALUE_MENU_ONLY);
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			new SwingWorker() {
+				public Object construct() {
+					viewTwoWayHeatMap();
+					return null;
+				}
+			}.start();
+		}
+	};
 	private HyperTree hypertree;
 	private Properties properties;
 	private HierarchicalCluster cluster;
 	private Clade root; // currently open
+	private FeatureMatrix features; // last imported, if any
+	private String metric; // of the features
+	private volatile TwoWayCluster twoWayCluster;
+	private ExecutorService executor;
+	private volatile boolean isClustering;
+	private ClusterCache cache;
+	
+	/**
+	 * Milliseconds between updates of the tree while clustering.
+	 */
+	private final static long PARTIAL_TREE_INTERVAL = 5000;
 
 	/**
 	 * Constructor.
@@ -86,19 +158,29 @@ public class HierarchicalClusterer implements AppBean {
 	 * @param hypertree
 	 */
 	public HierarchicalClusterer(HyperTree hypertree) {
-		this(hypertree, null, null);
+		this(hypertree, (DistanceMatrix)null, null);
 	}
 	
 	public HierarchicalClusterer(HyperTree hypertree, double[][] distances, String[] labels) {
+		this(hypertree, distances == null ? null : new ArrayDistanceMatrix(distances), labels);
+	}
+	
+	public HierarchicalClusterer(HyperTree hypertree, DistanceMatrix distances, String[] labels) {
 		this.hypertree = hypertree;
 		if(distances != null && labels != null)
-			cluster = new HierarchicalCluster(distances, labels);
+			cluster = new HierarchicalCluster(distances, labels, HierarchicalCluster.AVERAGE);
 		properties = hypertree.getMainWindow().getProperties();
+		
+		// Results take about 40 bytes per leaf; use up to a tenth of the heap
+		cache = new ClusterCache((int)Math.min(Integer.MAX_VALUE, 
+				Runtime.getRuntime().maxMemory() / 400));
+		cache.setSpillDirectory(new File(System.getProperty("java.io.tmpdir")));
 		updateActions();
 	}
 
 	public Action[] getActions() {
-		return new Action[] { importDistanceMatrix, viewHeatMap };
+		return new Action[] { importDistanceMatrix, importFeatureMatrix, 
+				cancelClustering, viewHeatMap, viewTwoWayHeatMap };
 	}
 
 	/**
@@ -119,26 +201,64 @@ public class HierarchicalClusterer implements AppBean {
 			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
             	"Loading file");
 
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			String[] labels = null;
-			String line = br.readLine();
-			if (line == null)
-				throw new IOException("File is empty");
-
-			line = line.substring(1); // skip first tab
-			labels = line.split("\t");
-			double[][] matrix = new double[labels.length][labels.length];
-
-			int row = 0;
-			while ((line = br.readLine()) != null) {
-				String[] data = line.split("\t");
-				for (int col = 1; col < data.length; ++col) {
-					matrix[row][col - 1] = Double.parseDouble(data[col]);
-				}
-				++row;
+			DistanceMatrix matrix;
+			if (BinaryMatrixReader.isBinaryMatrix(file)) {
+				matrix = new BinaryMatrixReader().read(file);
+			} else {
+				DistanceMatrixReader reader = new DistanceMatrixReader();
+				reader.setExecutor(getExecutor());
+				matrix = reader.read(file);
 			}
+			String[] labels = matrix.getLabels();
 			root = cluster(matrix, labels);
-			hypertree.setTree(root);
+			if (root != null)
+				hypertree.setTree(root);
+			updateActions();
+		} catch (Exception ex) {
+			JOptionPane.showMessageDialog(null, "File parsing error: "
+					+ ex.getLocalizedMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Import raw profiles, one per row, compute the distances between them,
+	 * cluster them, and display the tree. Let user choose distance metric.
+	 */
+	private void importFeatureMatrix() {
+		JFileChooser fileChooser = new JFileChooser(properties
+				.getProperty(ReaderUI.PROPERTY_PATH));
+		int reply = fileChooser.showOpenDialog(hypertree.getMainWindow());
+		if (reply != JFileChooser.APPROVE_OPTION)
+			return;
+		Object metric = JOptionPane.showInputDialog(hypertree.getMainWindow(), 
+				"Distance", "Select Distance Metric", JOptionPane.OK_CANCEL_OPTION, 
+				null, DistanceCalculator.METRICS, DistanceCalculator.PEARSON);
+		if (metric == null)
+			return;
+
+		try {
+			File file = fileChooser.getSelectedFile();
+			properties.setProperty(ReaderUI.PROPERTY_PATH, file
+					.getAbsolutePath());
+
+			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+            	"Loading file");
+			FeatureMatrixReader reader = new FeatureMatrixReader();
+			reader.setExecutor(getExecutor());
+			features = reader.read(file);
+			this.metric = (String)metric;
+
+			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+            	"Computing distances");
+			DistanceCalculator calculator = new DistanceCalculator(features, 
+					(String)metric);
+			calculator.setExecutor(getExecutor());
+			FloatDistanceMatrix matrix = calculator.compute();
+
+			root = cluster(matrix, matrix.getLabels());
+			if (root != null)
+				hypertree.setTree(root);
 			updateActions();
 		} catch (Exception ex) {
 			JOptionPane.showMessageDialog(null, "File parsing error: "
@@ -160,11 +280,16 @@ public class HierarchicalClusterer implements AppBean {
 		if(result == null)
 			return;
 		
-		cluster = new HierarchicalCluster(cluster.getDistanceMatrix(), cluster.getLeafLabels());
-		cluster.setLinkageMethod((String)result);
+		cluster = new HierarchicalCluster(cluster.getDistanceMatrix(), 
+				cluster.getLeafLabels(), (String)result);
+		cluster.setExecutor(getExecutor());
+		cluster.setCache(cache);
+		cluster.setLeafOrderOptimized(true);
+		propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+				"Clustering and ordering leaves");
 		root = cluster.cluster();
 		String[] labels = cluster.getReorderedLabels(root);
-		double[][] distances = cluster.getReorderedMatrix(labels);
+		DistanceMatrix distances = cluster.getReorderedMatrix(labels);
 		JComponent heatmap = new HeatMap(distances, labels);
 		JScrollPane scrollpane = new JScrollPane(heatmap);
 		scrollpane.setPreferredSize(new Dimension(600,600));
@@ -178,22 +303,87 @@ public class HierarchicalClusterer implements AppBean {
 		
 		// Save image...
 		if(result.equals(new Integer(0)))
-			saveHeatMap(new HeatMap(distances, labels));
+			saveHeatMap(heatmap);
 		else if(result.equals(new Integer(1)))
 			saveMatrix(distances, labels);
 	}
 	
-	private void saveMatrix(double[][] distances, String[] labels) {
+	/**
+	 * Display a heatmap of the last imported feature matrix, with both the
+	 * rows and the columns clustered. Let user choose linkage method.
+	 */
+	public void viewTwoWayHeatMap() {
+		Object result = JOptionPane.showInputDialog(hypertree.getMainWindow(), "Linkage",
+				"Select Linkage Method", JOptionPane.OK_CANCEL_OPTION, null,
+				HierarchicalCluster.LINKAGE_METHODS, HierarchicalCluster.COMPLETE);
+		if(result == null)
+			return;
+		
+		TwoWayCluster twoWay = new TwoWayCluster(features);
+		twoWay.setRowMetric(metric);
+		twoWay.setColumnMetric(metric);
+		twoWay.setLinkageMethod((String)result);
+		twoWay.setLeafOrderOptimized(true);
+		twoWay.setExecutor(getExecutor());
+		twoWay.setCache(cache);
+		propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+				"Clustering rows and columns");
+		twoWayCluster = twoWay;
+		isClustering = true;
+		updateActions();
+		String status = "Ready";
+		try {
+			twoWay.cluster();
+		} catch (CancellationException ex) {
+			status = "Clustering cancelled";
+			return;
+		} finally {
+			twoWayCluster = null;
+			isClustering = false;
+			updateActions();
+			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+					status);
+		}
+		
+		JComponent heatmap = new HeatMap(features, twoWay.getRowLabels(), 
+				twoWay.getColumnLabels(), twoWay.getRowOrder(), 
+				twoWay.getColumnOrder());
+		JScrollPane scrollpane = new JScrollPane(heatmap);
+		scrollpane.setPreferredSize(new Dimension(600,600));
+		
+		String[] options = new String[]{"Save Image...", "OK", "Cancel"};		
+		result = JOptionPane.showOptionDialog(hypertree.getMainWindow(), scrollpane, 
+				"Two-Way Heat Map", JOptionPane.DEFAULT_OPTION, 
+				JOptionPane.PLAIN_MESSAGE, null, options, "OK");
+		if(result != null && result.equals(Integer.valueOf(0)))
+			saveHeatMap(heatmap);
+	}
+	
+	/**
+	 * Save the matrix as tab-separated text or in the binary format,
+	 * which can be reopened without parsing.
+	 */
+	private void saveMatrix(DistanceMatrix distances, String[] labels) {
 		JFileChooser fileChooser = new JFileChooser(properties
 				.getProperty(ReaderUI.PROPERTY_PATH));
+		FileFilter textFilter = new ExtensionFilter(".txt", 
+				"Tab-separated text (*.txt)");
+		FileFilter binaryFilter = new ExtensionFilter(BinaryMatrixReader.EXTENSION,
+				"Binary matrix (*" + BinaryMatrixReader.EXTENSION + ")");
+		fileChooser.addChoosableFileFilter(textFilter);
+		fileChooser.addChoosableFileFilter(binaryFilter);
+		fileChooser.setFileFilter(textFilter);
 		int reply = fileChooser.showSaveDialog(hypertree.getMainWindow());
 		if (reply != JFileChooser.APPROVE_OPTION)
 			return;
 
 		try {
 			File file = fileChooser.getSelectedFile();
-			if(!file.toString().toLowerCase().endsWith(".txt"))
-				file = new File(file.toString() + ".txt");
+			boolean isBinary = fileChooser.getFileFilter() == binaryFilter
+				|| file.toString().toLowerCase().endsWith(BinaryMatrixReader.EXTENSION);
+			String extension = isBinary ? BinaryMatrixReader.EXTENSION : ".txt";
+			if(!file.toString().toLowerCase().endsWith(extension))
+				file = new File(file.toString() + extension);
 			
 			if(file.exists()) {
 	            int confirm = JOptionPane.showConfirmDialog(hypertree.getMainWindow(),
@@ -210,15 +400,26 @@ public class HierarchicalClusterer implements AppBean {
 			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
         		"Saving matrix");
 			
+			if (isBinary) {
+				if (distances.getLabels() != labels) {
+					distances = new FloatDistanceMatrix(distances);
+					((FloatDistanceMatrix)distances).setLabels(labels);
+				}
+				new BinaryMatrixWriter().write(distances, file);
+				propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+        			"Matrix saved");
+				return;
+			}
+			
 			FileWriter writer = new FileWriter(file);
 			for(int i = 0; i < labels.length; ++i) {
 				writer.write("\t" + labels[i]);
 			}
 			writer.write("\n");
-			for(int row = 0; row < distances.length; ++row) {
+			for(int row = 0; row < distances.size(); ++row) {
 				writer.write(labels[row]);
-				for(int col = 0; col < distances.length; ++col) {
-					writer.write("\t" + distances[row][col]);
+				for(int col = 0; col < distances.size(); ++col) {
+					writer.write("\t" + distances.get(row, col));
 				}
 				writer.write("\n");
 			}
@@ -308,6 +509,17 @@ public class HierarchicalClusterer implements AppBean {
 	 * @param labels a label for each row/column in the distance matrix
 	 */
 	public Clade cluster(double[][] distances, String[] labels) {
+		return cluster(new ArrayDistanceMatrix(distances), labels);
+	}
+
+	/**
+	 * Display a tree for the distance matrix. Prompt the user to choose a
+	 * linkage method.
+	 * 
+	 * @param distances square matrix
+	 * @param labels a label for each row/column in the distance matrix
+	 */
+	public Clade cluster(DistanceMatrix distances, String[] labels) {
 		Object result = JOptionPane.showInputDialog(hypertree.getMainWindow(), "Linkage",
 				"Select Linkage Method", JOptionPane.OK_CANCEL_OPTION, null,
 				HierarchicalCluster.LINKAGE_METHODS, HierarchicalCluster.AVERAGE);
@@ -322,9 +534,9 @@ public class HierarchicalClusterer implements AppBean {
 	 * 
 	 * @param distances square matrix
 	 * @param labels a label for each row/column in the distance matrix
-	 * @param linkage AVERAGE, COMPLETE or SINGLE
+	 * @param linkage one of HierarchicalCluster.LINKAGE_METHODS
 	 */
-	private Clade clusterAndDisplay(double[][] distances,
+	private Clade clusterAndDisplay(DistanceMatrix distances,
 			String[] labels, String linkage) {
 		return cluster(distances, labels, linkage);
 	}
@@ -334,24 +546,74 @@ public class HierarchicalClusterer implements AppBean {
 	 * 
 	 * @param distances square matrix
 	 * @param labels a label for each row/column in the distance matrix
-	 * @param linkage AVERAGE, COMPLETE or SINGLE
+	 * @param linkage one of HierarchicalCluster.LINKAGE_METHODS
 	 */
 	public Clade cluster(double[][] distances, 
 			String[] labels, String linkage) {
+		return cluster(new ArrayDistanceMatrix(distances), labels, linkage);
+	}
+
+	/**
+	 * Set the distance matrix and cluster it. Partial trees are displayed
+	 * while clustering, which can be cancelled.
+	 * 
+	 * @param distances square matrix
+	 * @param labels a label for each row/column in the distance matrix
+	 * @param linkage one of HierarchicalCluster.LINKAGE_METHODS
+	 * @return the tree, or null if cancelled
+	 */
+	public Clade cluster(DistanceMatrix distances, 
+			String[] labels, String linkage) {
 		propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
         		"Clustering");
 
 		cluster = new HierarchicalCluster(distances, labels, linkage);
+		cluster.setExecutor(getExecutor());
+		cluster.setCache(cache);
+		if (isTooLargeForHeap(distances))
+			cluster.setScratchDirectory(new File(System.getProperty("java.io.tmpdir")));
+		cluster.setPartialTreeInterval(PARTIAL_TREE_INTERVAL);
+		cluster.addPropertyChangeListener(this);
+		isClustering = true;
+		updateActions();
+		String status = "Ready";
 		try {
 			root = cluster.cluster();
-			updateActions();
 			return root; 
+		} catch (CancellationException ex) {
+			status = "Clustering cancelled";
+			root = null;
+			return null;
 		} finally {
+			isClustering = false;
+			cluster.removePropertyChangeListener(this);
+			updateActions();
 			propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
-    			"Ready");
+    			status);
 		}
 	}
 
+	/**
+	 * Whether the working copy of a matrix should go to disk: if it cannot 
+	 * be indexed as an array, or would take more than half the heap.
+	 */
+	private static boolean isTooLargeForHeap(DistanceMatrix distances) {
+		int n = distances.size();
+		int width = PackedDistanceMatrix.isSinglePrecision(distances) ? 4 : 8;
+		return n > PackedDistanceMatrix.MAX_SIZE 
+			|| ((long)n * (n + 1) / 2) * width > Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Thread pool for clustering, with a thread per processor.
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			executor = ParallelLoop.newExecutor(
+					Runtime.getRuntime().availableProcessors());
+		return executor;
+	}
+
 	/**
 	 * Convert a similarity matrix to a distance matrix.
 	 * 
@@ -388,10 +650,57 @@ public class HierarchicalClusterer implements AppBean {
         	cluster = null;
             updateActions();
         }
+        //As fired by HierarchicalCluster
+        else if(HierarchicalCluster.PROPERTY_PROGRESS.equals(name)) {
+        	HierarchicalCluster source = (HierarchicalCluster)e.getSource();
+        	String message = "Clustering: " + e.getNewValue() + "%";
+        	long remaining = source.getTimeRemaining();
+        	if (remaining >= 0)
+        		message += ", " + formatTime(remaining) + " left";
+        	propertySupport.firePropertyChange(PROPERTY_STATUS_MESSAGE, null,
+        		message);
+        }
+        else if(HierarchicalCluster.PROPERTY_PARTIAL_TREE.equals(name)) {
+        	hypertree.setTree((Clade)e.getNewValue());
+        }
+	}
+	
+	private static String formatTime(long millis) {
+		long seconds = (millis + 999) / 1000;
+		if (seconds < 60)
+			return seconds + " s";
+		if (seconds < 3600)
+			return (seconds + 30) / 60 + " min";
+		return seconds / 3600 + " h " + seconds % 3600 / 60 + " min";
 	}
 	
     protected void updateActions() {
-    	importDistanceMatrix.setEnabled(true);
-    	viewHeatMap.setEnabled(root != null);
+    	importDistanceMatrix.setEnabled(!isClustering);
+    	importFeatureMatrix.setEnabled(!isClustering);
+    	cancelClustering.setEnabled(isClustering);
+    	viewHeatMap.setEnabled(root != null && !isClustering);
+    	viewTwoWayHeatMap.setEnabled(features != null && !isClustering);
     }
+
+	/**
+	 * Show directories and files with one extension.
+	 */
+	private static class ExtensionFilter extends FileFilter {
+		private String extension;
+		private String description;
+		
+		public ExtensionFilter(String extension, String description) {
+			this.extension = extension;
+			this.description = description;
+		}
+		
+		public boolean accept(File file) {
+			return file.isDirectory() 
+				|| file.getName().toLowerCase().endsWith(extension);
+		}
+		
+		public String getDescription() {
+			return description;
+		}
+	}
 }
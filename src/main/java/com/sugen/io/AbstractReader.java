@@ -1,11 +1,19 @@
 package com.sugen.io;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
  * Basic implementation of an InputReader designed to work with ASCII files.
  * Defaults to reading stdin.
+ * <p>
+ * Text is decoded as UTF-8, which includes ASCII, straight from the bytes.
+ * A file is opened once, as a FileChannel, and by default memory-mapped a
+ * window at a time, so that large files are parsed without first being
+ * copied onto the heap. Files and streams compressed with gzip, zip or
+ * bzip2 are recognized by their first bytes and decompressed as they are
+ * read.
  *
  * @author Jonathan Bingham
  */
@@ -15,6 +23,7 @@ abstract public class AbstractReader implements InputReader {
     protected InputStream inputStream; 
     protected BufferedReader reader;
     protected Object input;
+    private boolean isMapped = true;
 
     /**
      * Last line unread from the input stream.
@@ -27,7 +36,7 @@ abstract public class AbstractReader implements InputReader {
      */
     public AbstractReader() {
     	inputStream = System.in;
-        reader = new BufferedReader(new InputStreamReader(System.in));
+        reader = new BufferedReader(new Utf8Reader(System.in));
     }
 
     /**
@@ -48,8 +57,13 @@ abstract public class AbstractReader implements InputReader {
     }
 
     public void setInput(InputStream is) {
-    	inputStream = is;
-        reader = new BufferedReader(new InputStreamReader(is));
+        try {
+            inputStream = Decompressor.open(is);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        reader = new BufferedReader(new Utf8Reader(inputStream));
         input = null;
     }
 
@@ -61,16 +75,55 @@ abstract public class AbstractReader implements InputReader {
     }
 
     public void setInput(File file) throws FileNotFoundException {
-        if(file != null) {
-            reader = new BufferedReader(new FileReader(file));
-            inputStream = new FileInputStream(file);
-        } else {
-            reader = new BufferedReader(new InputStreamReader(System.in));
+        if(file != null)
+            setInput(new FileInputStream(file), file);
+        else {
+            reader = new BufferedReader(new Utf8Reader(System.in));
             inputStream = System.in;
+            input = null;
+        }
+    }
+
+    /**
+     * Read a file already opened, mapped unless it is compressed.
+     * @param fis at the start of the file; closed if it cannot be read
+     * @throws IllegalStateException if the file cannot be read, or not
+     * decompressed
+     */
+    void setInput(FileInputStream fis, File file) {
+        inputStream = fis;
+        FileChannel channel = fis.getChannel();
+        try {
+            if(Decompressor.getFormat(channel) != null) {
+                inputStream = Decompressor.open(fis);
+                reader = new BufferedReader(new Utf8Reader(inputStream));
+            }
+            else
+                reader = new BufferedReader(new Utf8Reader(channel, isMapped));
+        }
+        catch(IOException e) {
+            try {
+                fis.close();
+            }
+            catch(IOException ignored) {}
+            throw new IllegalStateException(file + ": " + e.getMessage(), e);
         }
         input = file;
     }
 
+    public boolean isMapped() {
+        return isMapped;
+    }
+
+    /**
+     * Whether to memory-map files, a window at a time, rather than read
+     * them through a buffer; true by default. Takes effect the next time
+     * a file is set or opened.
+     */
+    public void setMapped(boolean isMapped) {
+        this.isMapped = isMapped;
+    }
+
     /**
      * New parser on a String.
      */
@@ -81,7 +134,12 @@ abstract public class AbstractReader implements InputReader {
     public void setInput(String in) {
         reader = new BufferedReader(new StringReader(in));
         input = in;
-        inputStream = new ByteArrayInputStream(in.getBytes());
+        try {
+            inputStream = new ByteArrayInputStream(in.getBytes("UTF-8"));
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); //every JVM has UTF-8
+        }
     }
 
     public String readLine() {
@@ -0,0 +1,402 @@
+package com.sugen.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompress a bzip2 stream, or several concatenated, as written by bzip2
+ * and pbzip2. Each block is Huffman-decoded, undoing the move-to-front and
+ * run-length coding of its symbols, into one int per byte; the
+ * Burrows-Wheeler transform is then undone in the same array, by linking
+ * each byte to the next, and the bytes are read out along the links,
+ * expanding the runs of the first run-length coding on the way. Block and
+ * stream checksums are checked.
+ *
+ * @see Decompressor
+ */
+class BZip2InputStream extends InputStream {
+	private final static long BLOCK_MAGIC = 0x314159265359L;
+	private final static long END_MAGIC = 0x177245385090L;
+	private final static int RUNA = 0;
+	private final static int RUNB = 1;
+	private final static int GROUP_SIZE = 50;
+	private final static int MAX_GROUPS = 6;
+	private final static int MAX_SELECTORS = 18002;
+	private final static int MAX_CODE_LENGTH = 20;
+	private final static int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i << 24;
+			for (int k = 0; k < 8; k++)
+				c = c < 0 ? c << 1 ^ 0x04c11db7 : c << 1;
+			CRC_TABLE[i] = c;
+		}
+	}
+
+	private InputStream in;
+	private byte[] input = new byte[1 << 16];
+	private int inputPosition;
+	private int inputLimit;
+	private long bits;
+	private int bitCount;
+
+	private int blockSize;
+	private int streamCrc;
+	private boolean isEnd;
+
+	// The block being read out
+	private int[] tt;
+	private boolean hasBlock;
+	private int position; // of the next byte in tt
+	private int remaining; // bytes left in tt
+	private int last = -1;
+	private int runLength;
+	private int repeat; // copies of last still to be read
+	private int crc;
+	private int expectedCrc;
+
+	// Decoding tables, reused from block to block
+	private int[] byteCount = new int[256];
+	private byte[] seqToUnseq = new byte[256];
+	private byte[] mtf = new byte[256];
+	private byte[] selectors = new byte[MAX_SELECTORS];
+	private byte[][] lengths = new byte[MAX_GROUPS][258];
+	private int[][] limits = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+	private int[][] bases = new int[MAX_GROUPS][MAX_CODE_LENGTH + 2];
+	private int[][] perms = new int[MAX_GROUPS][258];
+	private int[] minLengths = new int[MAX_GROUPS];
+	private int alphabetSize;
+
+	/**
+	 * @param in starting with the "BZh" signature
+	 * @throws IOException if the stream is not bzip2
+	 */
+	BZip2InputStream(InputStream in) throws IOException {
+		this.in = in;
+		if (!readStreamHeader())
+			throw new IOException("Not in bzip2 format");
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int end = off + len;
+		int k = off;
+		while (k < end) {
+			if (repeat > 0) {
+				int n = Math.min(repeat, end - k);
+				for (int i = 0; i < n; i++) {
+					b[k++] = (byte)last;
+					crc = crc << 8 ^ CRC_TABLE[(crc >>> 24) ^ last];
+				}
+				repeat -= n;
+				continue;
+			}
+			if (remaining == 0) {
+				if (hasBlock)
+					endBlock();
+				if (isEnd || !readBlock())
+					break;
+				continue;
+			}
+
+			// After four equal bytes, the next is a count of more copies
+			int current = tt[position];
+			position = current >>> 8;
+			current &= 0xff;
+			remaining--;
+			if (runLength == 4) {
+				repeat = current;
+				runLength = 0;
+				continue;
+			}
+			if (current == last) {
+				runLength++;
+			} else {
+				last = current;
+				runLength = 1;
+			}
+			b[k++] = (byte)current;
+			crc = crc << 8 ^ CRC_TABLE[(crc >>> 24) ^ current];
+		}
+		return k == off ? -1 : k - off;
+	}
+
+	private void endBlock() throws IOException {
+		crc = ~crc;
+		if (crc != expectedCrc)
+			throw new IOException("bzip2 block checksum error");
+		streamCrc = (streamCrc << 1 | streamCrc >>> 31) ^ crc;
+		hasBlock = false;
+	}
+
+	/**
+	 * @return true if there is a stream, false at the end of the input or
+	 * of the bzip2 data
+	 */
+	private boolean readStreamHeader() throws IOException {
+		bitCount -= bitCount % 8;
+		int b = nextByte();
+		if (b < 0)
+			return false;
+		if (b != 'B' || nextByte() != 'Z' || nextByte() != 'h')
+			return false;
+		int level = nextByte();
+		if (level < '1' || level > '9')
+			return false;
+		blockSize = (level - '0') * 100000;
+		streamCrc = 0;
+		return true;
+	}
+
+	/**
+	 * Decode the next block, moving on to the next stream if there is one.
+	 * @return false at the end
+	 */
+	private boolean readBlock() throws IOException {
+		while (true) {
+			long magic = (long)readBits(24) << 24 | readBits(24);
+			if (magic == BLOCK_MAGIC)
+				break;
+			if (magic != END_MAGIC)
+				throw new IOException("Bad bzip2 block header");
+			if (readBits(32) != streamCrc)
+				throw new IOException("bzip2 stream checksum error");
+			if (!readStreamHeader()) {
+				isEnd = true;
+				return false;
+			}
+		}
+		expectedCrc = readBits(32);
+		if (readBits(1) != 0)
+			throw new IOException("Randomized bzip2 blocks are not supported");
+		int origin = readBits(24);
+
+		// The bytes in use
+		int inUse = 0;
+		int groupsInUse = readBits(16);
+		for (int i = 0; i < 16; i++) {
+			if ((groupsInUse & 0x8000 >>> i) == 0)
+				continue;
+			int used = readBits(16);
+			for (int j = 0; j < 16; j++)
+				if ((used & 0x8000 >>> j) != 0)
+					seqToUnseq[inUse++] = (byte)(i * 16 + j);
+		}
+		if (inUse == 0)
+			throw new IOException("Bad bzip2 block");
+		alphabetSize = inUse + 2;
+
+		// The Huffman table of each group of symbols
+		int tables = readBits(3);
+		int selectorCount = readBits(15);
+		if (tables < 2 || tables > MAX_GROUPS || selectorCount < 1)
+			throw new IOException("Bad bzip2 block");
+		for (int i = 0; i < MAX_GROUPS; i++)
+			mtf[i] = (byte)i;
+		for (int i = 0; i < selectorCount; i++) {
+			int j = 0;
+			while (readBits(1) != 0)
+				if (++j >= tables)
+					throw new IOException("Bad bzip2 selector");
+			byte value = mtf[j];
+			for (; j > 0; j--)
+				mtf[j] = mtf[j - 1];
+			mtf[0] = value;
+			if (i < MAX_SELECTORS)
+				selectors[i] = value;
+		}
+		selectorCount = Math.min(selectorCount, MAX_SELECTORS);
+		for (int t = 0; t < tables; t++) {
+			int length = readBits(5);
+			for (int s = 0; s < alphabetSize; s++) {
+				while (readBits(1) != 0)
+					length += readBits(1) == 0 ? 1 : -1;
+				if (length < 1 || length > MAX_CODE_LENGTH)
+					throw new IOException("Bad bzip2 code length");
+				lengths[t][s] = (byte)length;
+			}
+			makeTable(t);
+		}
+
+		// Symbols to bytes, undoing the move-to-front and runs
+		if (tt == null || tt.length < blockSize)
+			tt = new int[blockSize];
+		for (int i = 0; i < 256; i++) {
+			mtf[i] = (byte)i;
+			byteCount[i] = 0;
+		}
+		int endOfBlock = inUse + 1;
+		int count = 0;
+		int group = -1;
+		int groupRemaining = 0;
+		int table = 0;
+		int run = 0;
+		int runWeight = 0;
+		while (true) {
+			if (groupRemaining == 0) {
+				if (++group >= selectorCount)
+					throw new IOException("Bad bzip2 block");
+				table = selectors[group];
+				groupRemaining = GROUP_SIZE;
+			}
+			groupRemaining--;
+			int symbol = decodeSymbol(table);
+
+			if (symbol <= RUNB) {
+				if (runWeight == 0) {
+					runWeight = 1;
+					run = 0;
+				}
+				run += runWeight << symbol;
+				runWeight <<= 1;
+				if (run > blockSize)
+					throw new IOException("Bad bzip2 run");
+				continue;
+			}
+			if (runWeight != 0) {
+				if (count + run > blockSize)
+					throw new IOException("Bad bzip2 block size");
+				int b = seqToUnseq[mtf[0] & 0xff] & 0xff;
+				byteCount[b] += run;
+				for (int i = 0; i < run; i++)
+					tt[count++] = b;
+				runWeight = 0;
+			}
+			if (symbol == endOfBlock)
+				break;
+
+			if (count >= blockSize)
+				throw new IOException("Bad bzip2 block size");
+			int index = symbol - 1;
+			byte value = mtf[index];
+			System.arraycopy(mtf, 0, mtf, 1, index);
+			mtf[0] = value;
+			int b = seqToUnseq[value & 0xff] & 0xff;
+			byteCount[b]++;
+			tt[count++] = b;
+		}
+		if (origin >= count)
+			throw new IOException("Bad bzip2 block origin");
+
+		// Link each byte to the next
+		int sum = 0;
+		for (int i = 0; i < 256; i++) {
+			int c = byteCount[i];
+			byteCount[i] = sum;
+			sum += c;
+		}
+		for (int i = 0; i < count; i++)
+			tt[byteCount[tt[i] & 0xff]++] |= i << 8;
+
+		position = tt[origin] >>> 8;
+		remaining = count;
+		last = -1;
+		runLength = 0;
+		crc = -1;
+		hasBlock = true;
+		return true;
+	}
+
+	/**
+	 * Canonical Huffman decoding tables from the code lengths.
+	 */
+	private void makeTable(int t) {
+		byte[] length = lengths[t];
+		int[] limit = limits[t];
+		int[] base = bases[t];
+		int[] perm = perms[t];
+		int min = MAX_CODE_LENGTH;
+		int max = 0;
+		for (int s = 0; s < alphabetSize; s++) {
+			min = Math.min(min, length[s]);
+			max = Math.max(max, length[s]);
+		}
+		int p = 0;
+		for (int n = min; n <= max; n++)
+			for (int s = 0; s < alphabetSize; s++)
+				if (length[s] == n)
+					perm[p++] = s;
+		int code = 0;
+		p = 0;
+		for (int n = 1; n <= MAX_CODE_LENGTH; n++) {
+			int count = 0;
+			for (int s = 0; s < alphabetSize; s++)
+				if (length[s] == n)
+					count++;
+			base[n] = code - p;
+			code += count;
+			p += count;
+			limit[n] = code - 1;
+			code <<= 1;
+		}
+		minLengths[t] = min;
+	}
+
+	private int decodeSymbol(int t) throws IOException {
+		int[] limit = limits[t];
+		int n = minLengths[t];
+		int code = readBits(n);
+		while (code > limit[n]) {
+			if (++n > MAX_CODE_LENGTH)
+				throw new IOException("Bad bzip2 Huffman code");
+			code = code << 1 | readBits(1);
+		}
+		int index = code - bases[t][n];
+		if (index < 0 || index >= alphabetSize)
+			throw new IOException("Bad bzip2 Huffman code");
+		return perms[t][index];
+	}
+
+	/**
+	 * @param n up to 32
+	 */
+	private int readBits(int n) throws IOException {
+		while (bitCount < n) {
+			int b = readByte();
+			if (b < 0)
+				throw new IOException("Unexpected end of bzip2 data");
+			bits = bits << 8 | b;
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (int)(bits >>> bitCount) & (int)((1L << n) - 1);
+	}
+
+	/**
+	 * The next whole byte, after any bits left over, or -1 at the end.
+	 */
+	private int nextByte() throws IOException {
+		if (bitCount >= 8) {
+			bitCount -= 8;
+			return (int)(bits >>> bitCount) & 0xff;
+		}
+		return readByte();
+	}
+
+	/**
+	 * The next byte of the input, or -1 at the end.
+	 */
+	private int readByte() throws IOException {
+		if (inputPosition == inputLimit) {
+			inputLimit = in.read(input, 0, input.length);
+			inputPosition = 0;
+			if (inputLimit <= 0) {
+				inputLimit = 0;
+				return -1;
+			}
+		}
+		return input[inputPosition++] & 0xff;
+	}
+
+	public void close() throws IOException {
+		tt = null;
+		isEnd = true;
+		in.close();
+	}
+}
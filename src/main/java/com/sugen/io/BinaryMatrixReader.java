@@ -0,0 +1,114 @@
+package com.sugen.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sugen.util.MappedDistanceMatrix;
+
+/**
+ * Map a binary distance matrix file into memory. The distances stay in the
+ * file and are paged in by the operating system as they are read, so even
+ * very large matrices open immediately.
+ * <p>
+ * The format, all big-endian:
+ * <pre>
+ * 0   magic "HTDM"
+ * 4   int version, 1
+ * 8   int number of rows and columns, n
+ * 12  int bytes per distance, 4 for float or 8 for double
+ * 16  long offset of the labels
+ * 24  8 reserved bytes
+ * 32  packed lower triangle, including the diagonal, row by row
+ *     (see PackedDistanceMatrix)
+ * ... int number of labels, 0 or n, then for each label an int byte
+ *     count and the UTF-8 bytes
+ * </pre>
+ *
+ * @see BinaryMatrixWriter
+ */
+public class BinaryMatrixReader {
+	public final static String EXTENSION = ".dmat";
+	final static byte[] MAGIC = { 'H', 'T', 'D', 'M' };
+	final static int VERSION = 1;
+	final static int HEADER_LENGTH = 32;
+
+	public BinaryMatrixReader() {}
+
+	/**
+	 * Whether the file starts with the binary matrix signature.
+	 */
+	public static boolean isBinaryMatrix(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			for (int i = 0; i < MAGIC.length; i++)
+				if (fis.read() != MAGIC[i])
+					return false;
+			return true;
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Map a matrix file read-only.
+	 */
+	public MappedDistanceMatrix read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			for (int i = 0; i < MAGIC.length; i++)
+				if (raf.read() != MAGIC[i])
+					throw new IOException("Not a binary distance matrix: " + file);
+			int version = raf.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported matrix version: " + version);
+			int size = raf.readInt();
+			int width = raf.readInt();
+			long labelsOffset = raf.readLong();
+			if (size < 0 || size == Integer.MAX_VALUE)
+				throw new IOException("Invalid matrix size: " + size);
+			if (width != 4 && width != 8)
+				throw new IOException("Invalid distance width: " + width);
+			long dataLength = MappedDistanceMatrix.longLength(size) * width;
+			if (labelsOffset != HEADER_LENGTH + dataLength
+					|| labelsOffset + 4 > raf.length())
+				throw new IOException("File is truncated: " + file);
+
+			// Mappings stay valid after the file is closed
+			FileChannel channel = raf.getChannel();
+			int segments = MappedDistanceMatrix.segmentCount(size);
+			ByteBuffer[] buffers = new ByteBuffer[segments];
+			for (int i = 0; i < segments; i++) {
+				long offset = HEADER_LENGTH
+					+ ((long)i << MappedDistanceMatrix.SEGMENT_SHIFT) * width;
+				buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+						(long)MappedDistanceMatrix.segmentLength(size, i) * width);
+			}
+			MappedDistanceMatrix matrix = new MappedDistanceMatrix(size,
+					width == 4, buffers);
+
+			raf.seek(labelsOffset);
+			int count = raf.readInt();
+			if (count != 0 && count != size)
+				throw new IOException("Invalid number of labels: " + count);
+			if (count > 0) {
+				String[] labels = new String[count];
+				for (int i = 0; i < count; i++) {
+					int length = raf.readInt();
+					if (length < 0 || length > raf.length() - raf.getFilePointer())
+						throw new IOException("Invalid label length: " + length);
+					byte[] bytes = new byte[length];
+					raf.readFully(bytes);
+					labels[i] = new String(bytes, "UTF-8");
+				}
+				matrix.setLabels(labels);
+			}
+			return matrix;
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.sugen.io;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import com.sugen.util.DistanceMatrix;
+import com.sugen.util.MappedDistanceMatrix;
+import com.sugen.util.PackedDistanceMatrix;
+
+/**
+ * Write a distance matrix in the binary format read by BinaryMatrixReader.
+ *
+ * @see BinaryMatrixReader
+ */
+public class BinaryMatrixWriter {
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	private boolean isSinglePrecision = true;
+
+	public BinaryMatrixWriter() {}
+
+	/**
+	 * Store floats, the default, or doubles.
+	 */
+	public void setSinglePrecision(boolean isSinglePrecision) {
+		this.isSinglePrecision = isSinglePrecision;
+	}
+
+	public boolean isSinglePrecision() {
+		return isSinglePrecision;
+	}
+
+	/**
+	 * Write the lower triangle and the labels of a matrix to a file.
+	 */
+	public void write(DistanceMatrix matrix, File file) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		try {
+			write(matrix, os);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Write the lower triangle and the labels of a matrix. The stream is not
+	 * closed.
+	 */
+	public void write(DistanceMatrix matrix, OutputStream os) throws IOException {
+		int n = matrix.size();
+		int width = isSinglePrecision ? 4 : 8;
+		DataOutputStream out = new DataOutputStream(os);
+		out.write(BinaryMatrixReader.MAGIC);
+		out.writeInt(BinaryMatrixReader.VERSION);
+		out.writeInt(n);
+		out.writeInt(width);
+		out.writeLong(BinaryMatrixReader.HEADER_LENGTH
+				+ MappedDistanceMatrix.longLength(n) * width);
+		out.writeLong(0);
+		out.flush();
+
+		// Distances go through a buffer, a row at a time
+		WritableByteChannel channel = Channels.newChannel(os);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		double[] row = new double[n];
+		int perBuffer = BUFFER_SIZE / width;
+		for (int i = 0; i < n; i++) {
+			if (matrix instanceof PackedDistanceMatrix) {
+				((PackedDistanceMatrix)matrix).getRow(i, row, 0, i + 1);
+			} else {
+				for (int j = 0; j <= i; j++)
+					row[j] = matrix.get(i, j);
+			}
+			for (int j = 0; j <= i; ) {
+				int count = Math.min(i + 1 - j, perBuffer - buffer.position() / width);
+				if (isSinglePrecision) {
+					for (int end = j + count; j < end; j++)
+						buffer.putFloat((float)row[j]);
+				} else {
+					for (int end = j + count; j < end; j++)
+						buffer.putDouble(row[j]);
+				}
+				if (!buffer.hasRemaining())
+					flush(buffer, channel);
+			}
+		}
+		flush(buffer, channel);
+
+		String[] labels = matrix.getLabels();
+		if (labels == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(labels.length);
+			for (int i = 0; i < labels.length; i++) {
+				byte[] bytes = (labels[i] == null ? "" : labels[i]).getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		out.flush();
+	}
+
+	private static void flush(ByteBuffer buffer, WritableByteChannel channel)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
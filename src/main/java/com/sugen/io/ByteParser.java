@@ -0,0 +1,271 @@
+package com.sugen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+import com.sugen.util.ParallelLoop;
+
+/**
+ * Tokenize text files of numbers straight from their bytes, without
+ * creating a String per token. Positions are offsets into a buffer, and
+ * the buffer is only read with absolute gets, so several threads can parse
+ * different parts of it at once.
+ */
+class ByteParser {
+	final static double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private ByteParser() {}
+
+	/**
+	 * Map a file into memory, or decompress it if it is compressed.
+	 * @see Decompressor
+	 */
+	static ByteBuffer read(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = fis.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File is too large: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			fis.close();
+		}
+
+		if (Decompressor.getFormat(buffer) != null) {
+			InputStream is = Decompressor.open(new FileInputStream(file));
+			try {
+				buffer = readFully(is);
+			} finally {
+				is.close();
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Read a stream to the end, decompressing it if it is compressed.
+	 * The stream is not closed.
+	 */
+	static ByteBuffer read(InputStream is) throws IOException {
+		ByteBuffer buffer = readFully(is);
+		if (Decompressor.getFormat(buffer) != null) {
+			InputStream decompressed = Decompressor.open(new ByteArrayInputStream(
+					buffer.array(), 0, buffer.limit()));
+			try {
+				buffer = readFully(decompressed);
+			} finally {
+				decompressed.close();
+			}
+		}
+		return buffer;
+	}
+
+	private static ByteBuffer readFully(InputStream is) throws IOException {
+		byte[] bytes = new byte[1 << 16];
+		int length = 0;
+		int count;
+		while ((count = is.read(bytes, length, bytes.length - length)) >= 0) {
+			length += count;
+			if (length == bytes.length) {
+				if (length == Integer.MAX_VALUE)
+					throw new IOException("Input is too large");
+				byte[] larger = new byte[(int)Math.min(Integer.MAX_VALUE, 2L * length)];
+				System.arraycopy(bytes, 0, larger, 0, length);
+				bytes = larger;
+			}
+		}
+		return ByteBuffer.wrap(bytes, 0, length);
+	}
+
+	/**
+	 * Find the non-blank lines, counting the line breaks in parallel.
+	 * @return start and end offsets of each line, without the line break
+	 */
+	static int[][] findLines(final ByteBuffer buffer,
+			ExecutorService executor, int chunks) {
+		final int end = buffer.limit();
+		int[] bounds = ParallelLoop.split(0, end, chunks);
+		final int[] counts = new int[bounds.length];
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				int count = 0;
+				for (int i = from; i < to; i++)
+					if (buffer.get(i) == '\n')
+						count++;
+				counts[chunk + 1] = count;
+			}
+		});
+
+		// Line k + 1 starts after the k-th line break
+		for (int c = 1; c < counts.length; c++)
+			counts[c] += counts[c - 1];
+		final int[] breaks = new int[counts[counts.length - 1] + 1];
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				int k = counts[chunk] + 1;
+				for (int i = from; i < to; i++)
+					if (buffer.get(i) == '\n')
+						breaks[k++] = i + 1;
+			}
+		});
+
+		int[] starts = new int[breaks.length];
+		int[] ends = new int[breaks.length];
+		int lineCount = 0;
+		for (int k = 0; k < breaks.length; k++) {
+			int from = breaks[k];
+			int to = k + 1 < breaks.length ? breaks[k + 1] - 1 : end;
+			if (to > from && buffer.get(to - 1) == '\r')
+				to--;
+			if (skipSpace(buffer, from, to) == to)
+				continue; // blank
+			starts[lineCount] = from;
+			ends[lineCount] = to;
+			lineCount++;
+		}
+
+		int[] trimmedStarts = new int[lineCount];
+		int[] trimmedEnds = new int[lineCount];
+		System.arraycopy(starts, 0, trimmedStarts, 0, lineCount);
+		System.arraycopy(ends, 0, trimmedEnds, 0, lineCount);
+		return new int[][] { trimmedStarts, trimmedEnds };
+	}
+
+	/**
+	 * Parse a decimal number without creating a String. Numbers that are
+	 * not plain decimals, such as NaN or Infinity, and those that would not
+	 * be rounded correctly from a long and a power of ten, are left to
+	 * Double.parseDouble().
+	 * @param row for error messages; -1 for the header
+	 */
+	static double parseNumber(ByteBuffer buffer, int from, int to, int row) {
+		from = skipSpace(buffer, from, to);
+		while (to > from && isSpace(buffer.get(to - 1)))
+			to--;
+
+		int i = from;
+		boolean isNegative = false;
+		if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+			isNegative = buffer.get(i++) == '-';
+		long mantissa = 0;
+		int digits = 0; // significant digits in the mantissa
+		int exponent = 0;
+		boolean hasDigits = false;
+		byte c;
+		for (; i < to && (c = buffer.get(i)) >= '0' && c <= '9'; i++) {
+			hasDigits = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0)
+					digits++;
+			} else {
+				exponent++;
+			}
+		}
+		if (i < to && buffer.get(i) == '.') {
+			for (i++; i < to && (c = buffer.get(i)) >= '0' && c <= '9'; i++) {
+				hasDigits = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				}
+			}
+		}
+		if (hasDigits && i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			i++;
+			boolean isNegativeExponent = false;
+			if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+				isNegativeExponent = buffer.get(i++) == '-';
+			int power = 0;
+			boolean hasPower = false;
+			for (; i < to && (c = buffer.get(i)) >= '0' && c <= '9'; i++) {
+				hasPower = true;
+				if (power < 10000)
+					power = power * 10 + (c - '0');
+			}
+			if (!hasPower)
+				hasDigits = false;
+			exponent += isNegativeExponent ? -power : power;
+		}
+		// Exact, and so correctly rounded, only when the mantissa and the
+		// power of ten are both exact doubles; otherwise the slow way
+		if (!hasDigits || i != to || mantissa > 1L << 53 || exponent < -22
+				|| exponent > 22) {
+			String token = decode(buffer, from, to);
+			try {
+				return Double.parseDouble(token);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException((row < 0 ? "Header" : "Row "
+						+ (row + 1)) + ": not a number: \"" + token + "\"");
+			}
+		}
+
+		double value = mantissa;
+		if (exponent < 0)
+			value /= POWERS_OF_TEN[-exponent];
+		else if (exponent > 0)
+			value *= POWERS_OF_TEN[exponent];
+		return isNegative ? -value : value;
+	}
+
+	static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	static int skipSpace(ByteBuffer buffer, int pos, int end) {
+		while (pos < end && isSpace(buffer.get(pos)))
+			pos++;
+		return pos;
+	}
+
+	static int tokenEnd(ByteBuffer buffer, int pos, int end) {
+		while (pos < end && !isSpace(buffer.get(pos)))
+			pos++;
+		return pos;
+	}
+
+	static long countTokens(ByteBuffer buffer, int pos, int end) {
+		long count = 0;
+		while ((pos = skipSpace(buffer, pos, end)) < end) {
+			pos = tokenEnd(buffer, pos, end);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return offset of the byte, or end if not found
+	 */
+	static int indexOf(ByteBuffer buffer, char b, int pos, int end) {
+		while (pos < end && buffer.get(pos) != b)
+			pos++;
+		return pos;
+	}
+
+	static String decode(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = from; i < to; i++)
+			bytes[i - from] = buffer.get(i);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.sugen.io;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Decompress gzip, zip and bzip2 input on the fly, recognized by its first
+ * bytes rather than its name, so readers take compressed and plain input
+ * alike. A zip archive is read as its first file. With more than one
+ * processor, input is decompressed on a thread of its own, ahead of the
+ * reader.
+ *
+ * @see AbstractReader#setInput(java.io.File)
+ */
+class Decompressor {
+	final static String GZIP = "gzip";
+	final static String ZIP = "zip";
+	final static String BZIP2 = "bzip2";
+	private final static int BUFFER = 1 << 16;
+
+	private Decompressor() {}
+
+	/**
+	 * @param magic the first bytes of the input
+	 * @param length number of them, up to 4 needed
+	 * @return GZIP, ZIP, BZIP2, or null if the input is not compressed
+	 */
+	static String getFormat(byte[] magic, int length) {
+		if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return GZIP;
+		if (length >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3
+				&& magic[3] == 4)
+			return ZIP;
+		if (length >= 4 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h'
+				&& magic[3] >= '1' && magic[3] <= '9')
+			return BZIP2;
+		return null;
+	}
+
+	/**
+	 * The format of the bytes at the start of a buffer.
+	 */
+	static String getFormat(ByteBuffer buffer) {
+		byte[] magic = new byte[4];
+		int length = Math.min(magic.length, buffer.limit());
+		for (int i = 0; i < length; i++)
+			magic[i] = buffer.get(i);
+		return getFormat(magic, length);
+	}
+
+	/**
+	 * The format of a file, read without moving the channel's position.
+	 */
+	static String getFormat(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		while (magic.hasRemaining()
+				&& channel.read(magic, magic.position()) > 0);
+		magic.flip();
+		return getFormat(magic);
+	}
+
+	/**
+	 * The bytes of a stream, decompressed if it is compressed.
+	 * @return a stream that supports mark()
+	 */
+	static InputStream open(InputStream is) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(is, BUFFER);
+		buffered.mark(4);
+		byte[] magic = new byte[4];
+		int length = 0;
+		int count;
+		while (length < magic.length
+				&& (count = buffered.read(magic, length, magic.length - length)) >= 0)
+			length += count;
+		buffered.reset();
+		String format = getFormat(magic, length);
+		if (format == null)
+			return buffered;
+
+		InputStream decompressed;
+		if (format == GZIP) {
+			decompressed = new GZIPInputStream(buffered, BUFFER);
+		} else if (format == ZIP) {
+			ZipInputStream zip = new ZipInputStream(buffered);
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null && entry.isDirectory());
+			decompressed = zip;
+		} else {
+			decompressed = new BZip2InputStream(buffered);
+		}
+		if (Runtime.getRuntime().availableProcessors() > 1)
+			decompressed = new ReadAheadInputStream(decompressed);
+		return new BufferedInputStream(decompressed, BUFFER);
+	}
+}
@@ -0,0 +1,253 @@
+package com.sugen.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+
+import com.sugen.util.FloatDistanceMatrix;
+import com.sugen.util.ParallelLoop;
+
+/**
+ * Read a distance matrix into packed single-precision storage, ready to be
+ * clustered. Three layouts are recognized automatically:
+ * <ul>
+ * <li>Tab-separated square matrix: a header line of labels, starting with
+ * a tab, and one line per row starting with the row label.
+ * <li>PHYLIP square matrix: the number of taxa on the first line, then
+ * one row per taxon, starting with the taxon name.
+ * <li>PHYLIP lower-triangular matrix, with or without the diagonal.
+ * </ul>
+ * PHYLIP names are separated from the distances by whitespace, as in
+ * relaxed PHYLIP, and rows may be continued on several lines.
+ * Input compressed with gzip, zip or bzip2 is detected from its first
+ * bytes.
+ * <p>
+ * Files are memory-mapped and parsed directly from the bytes, without
+ * creating a String per number. Rows are parsed in parallel chunks when an
+ * executor is set. Only the lower triangle of a square matrix is read,
+ * since the matrix is assumed to be symmetric.
+ */
+public class DistanceMatrixReader {
+	public final static String TAB_SEPARATED = "Tab-separated";
+	public final static String PHYLIP_SQUARE = "PHYLIP square";
+	public final static String PHYLIP_LOWER_TRIANGLE = "PHYLIP lower-triangular";
+
+	// Minimum bytes of input per parallel task
+	private final static int PARALLEL_GRAIN = 1 << 20;
+
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private String layout;
+
+	public DistanceMatrixReader() {}
+
+	/**
+	 * Parse rows on this executor. If null, the default, everything runs
+	 * in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Layout of the last matrix read: TAB_SEPARATED, PHYLIP_SQUARE or
+	 * PHYLIP_LOWER_TRIANGLE.
+	 */
+	public String getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Read a matrix from a file, mapping it into memory unless compressed.
+	 */
+	public FloatDistanceMatrix read(File file) throws IOException {
+		return parse(ByteParser.read(file));
+	}
+
+	/**
+	 * Read a matrix from a stream. The stream is read to the end but not
+	 * closed.
+	 */
+	public FloatDistanceMatrix read(InputStream is) throws IOException {
+		return parse(ByteParser.read(is));
+	}
+
+	private FloatDistanceMatrix parse(ByteBuffer buffer) throws IOException {
+		try {
+			int[][] lines = ByteParser.findLines(buffer, executor,
+					chunks(buffer.limit()));
+			int[] starts = lines[0];
+			int[] ends = lines[1];
+			if (starts.length == 0)
+				throw new IOException("File is empty");
+
+			if (buffer.get(starts[0]) == '\t')
+				return parseTabSeparated(buffer, starts, ends);
+			else
+				return parsePhylip(buffer, starts, ends);
+		} catch (IllegalArgumentException e) {
+			IOException ex = new IOException(e.getMessage());
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+
+	private FloatDistanceMatrix parseTabSeparated(final ByteBuffer buffer,
+			final int[] starts, final int[] ends) {
+		layout = TAB_SEPARATED;
+
+		// Header: skip the first tab
+		int headerEnd = ends[0];
+		int count = 0;
+		for (int i = starts[0]; i < headerEnd; i++)
+			if (buffer.get(i) == '\t')
+				count++;
+		String[] labels = new String[count];
+		for (int pos = starts[0] + 1, k = 0; k < count; k++) {
+			int to = ByteParser.indexOf(buffer, '\t', pos, headerEnd);
+			labels[k] = ByteParser.decode(buffer, pos, to).trim();
+			pos = to + 1;
+		}
+		final int n = labels.length;
+		if (starts.length - 1 != n)
+			throw new IllegalArgumentException("Expected " + n + " rows but found "
+					+ (starts.length - 1));
+
+		final FloatDistanceMatrix matrix = new FloatDistanceMatrix(n);
+		matrix.setLabels(labels);
+		parseRows(n, buffer.limit(), new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double[] values = new double[n];
+				for (int row = from; row < to; row++) {
+					int end = ends[row + 1];
+					int pos = ByteParser.indexOf(buffer, '\t', starts[row + 1], end); // skip label
+					for (int col = 0; col <= row; col++) {
+						if (pos == end)
+							throw new IllegalArgumentException("Row " + (row + 1)
+									+ " has only " + col + " distances");
+						int next = ByteParser.indexOf(buffer, '\t', pos + 1, end);
+						values[col] = ByteParser.parseNumber(buffer, pos + 1, next, row);
+						pos = next;
+					}
+					matrix.setRow(row, values, 0, row + 1);
+				}
+			}
+		});
+		return matrix;
+	}
+
+	private FloatDistanceMatrix parsePhylip(final ByteBuffer buffer,
+			final int[] starts, final int[] ends) {
+		int headerEnd = ends[0];
+		int pos = ByteParser.skipSpace(buffer, starts[0], headerEnd);
+		int to = ByteParser.tokenEnd(buffer, pos, headerEnd);
+		if (ByteParser.skipSpace(buffer, to, headerEnd) != headerEnd)
+			throw new IllegalArgumentException("Unrecognized distance matrix layout");
+		double size = ByteParser.parseNumber(buffer, pos, to, -1);
+		if (size != (int)size || size < 1)
+			throw new IllegalArgumentException("Bad number of taxa: "
+					+ ByteParser.decode(buffer, pos, to));
+		final int n = (int)size;
+		final FloatDistanceMatrix matrix = new FloatDistanceMatrix(n);
+		final String[] labels = new String[n];
+
+		// Count the distances on the first row to tell the layouts apart
+		boolean isOneRowPerLine = starts.length - 1 == n;
+		long tokens = 0;
+		if (isOneRowPerLine) {
+			tokens = ByteParser.countTokens(buffer, starts[1], ends[1]) - 1;
+		} else {
+			tokens = ByteParser.countTokens(buffer, starts[1], buffer.limit()) - n;
+			if (tokens == (long)n * n)
+				tokens = n;
+			else if (tokens == (long)n * (n - 1) / 2)
+				tokens = 0;
+			else if (tokens == (long)n * (n + 1) / 2)
+				tokens = 1;
+		}
+		final boolean isSquare = tokens == n;
+		final boolean hasDiagonal = tokens != 0;
+		if (tokens != n && tokens != 0 && tokens != 1)
+			throw new IllegalArgumentException("Unrecognized distance matrix layout");
+		layout = isSquare ? PHYLIP_SQUARE : PHYLIP_LOWER_TRIANGLE;
+
+		if (isOneRowPerLine) {
+			parseRows(n, buffer.limit(), new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					double[] values = new double[n];
+					for (int row = from; row < to; row++) {
+						int consumed = isSquare ? row + 1 : hasDiagonal ? row + 1 : row;
+						parsePhylipRow(buffer, starts[row + 1], ends[row + 1], row,
+								consumed, values, labels);
+						matrix.setRow(row, values, 0, row + 1);
+					}
+				}
+			});
+		} else {
+			// Rows continue across lines, so the row boundaries are unknown
+			double[] values = new double[n];
+			pos = starts[1];
+			for (int row = 0; row < n; row++) {
+				int consumed = isSquare ? n : hasDiagonal ? row + 1 : row;
+				pos = parsePhylipRow(buffer, pos, buffer.limit(), row, consumed,
+						values, labels);
+				matrix.setRow(row, values, 0, row + 1);
+			}
+		}
+		matrix.setLabels(labels);
+		return matrix;
+	}
+
+	/**
+	 * Parse one row of a PHYLIP matrix: a name and some distances.
+	 * @param consumed number of distances in the row; only the first
+	 * row + 1 are kept, and the diagonal is zero if missing
+	 * @return offset after the last distance
+	 */
+	private static int parsePhylipRow(ByteBuffer buffer, int pos, int end,
+			int row, int consumed, double[] values, String[] labels) {
+		pos = ByteParser.skipSpace(buffer, pos, end);
+		int to = ByteParser.tokenEnd(buffer, pos, end);
+		labels[row] = ByteParser.decode(buffer, pos, to);
+		pos = to;
+		values[row] = 0;
+		for (int col = 0; col < consumed; col++) {
+			pos = ByteParser.skipSpace(buffer, pos, end);
+			if (pos == end)
+				throw new IllegalArgumentException("Row " + (row + 1)
+						+ " has only " + col + " distances");
+			to = ByteParser.tokenEnd(buffer, pos, end);
+			if (col <= row)
+				values[col] = ByteParser.parseNumber(buffer, pos, to, row);
+			pos = to;
+		}
+		return pos;
+	}
+
+	/**
+	 * Run the body over all rows, in parallel if the input is large enough.
+	 * Row i holds i + 1 distances, so chunks are balanced by area.
+	 */
+	private void parseRows(int n, int bytes, ParallelLoop.Body body) {
+		ParallelLoop.run(executor, ParallelLoop.splitTriangle(0, n, chunks(bytes)),
+				body);
+	}
+
+	private int chunks(int bytes) {
+		if (executor == null)
+			return 1;
+		return Math.max(1, Math.min(parallelism, bytes / PARALLEL_GRAIN));
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.sugen.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+
+import com.sugen.util.FeatureMatrix;
+import com.sugen.util.ParallelLoop;
+
+/**
+ * Read a tab-separated matrix of raw feature values, such as gene
+ * expression profiles. The first line holds the column labels, after a
+ * first field that is ignored. Every other line holds a row label and one
+ * value per column. Input compressed with gzip, zip or bzip2 is detected
+ * from its first bytes.
+ * <p>
+ * Like DistanceMatrixReader, the file is memory-mapped and rows are parsed
+ * in parallel chunks when an executor is set.
+ *
+ * @see com.sugen.util.DistanceCalculator
+ */
+public class FeatureMatrixReader {
+	// Minimum bytes of input per parallel task
+	private final static int PARALLEL_GRAIN = 1 << 20;
+
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	public FeatureMatrixReader() {}
+
+	/**
+	 * Parse rows on this executor. If null, the default, everything runs
+	 * in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	public FeatureMatrix read(File file) throws IOException {
+		return parse(ByteParser.read(file));
+	}
+
+	/**
+	 * Read a matrix from a stream. The stream is read to the end but not
+	 * closed.
+	 */
+	public FeatureMatrix read(InputStream is) throws IOException {
+		return parse(ByteParser.read(is));
+	}
+
+	private FeatureMatrix parse(final ByteBuffer buffer) throws IOException {
+		try {
+			int[][] lines = ByteParser.findLines(buffer, executor,
+					chunks(buffer.limit()));
+			final int[] starts = lines[0];
+			final int[] ends = lines[1];
+			if (starts.length == 0)
+				throw new IOException("File is empty");
+
+			// Header: skip the first field
+			int headerEnd = ends[0];
+			int pos = ByteParser.indexOf(buffer, '\t', starts[0], headerEnd);
+			int count = 0;
+			for (int i = pos; i < headerEnd; i++)
+				if (buffer.get(i) == '\t')
+					count++;
+			String[] columnLabels = new String[count];
+			for (int k = 0; k < count; k++) {
+				int to = ByteParser.indexOf(buffer, '\t', pos + 1, headerEnd);
+				columnLabels[k] = ByteParser.decode(buffer, pos + 1, to).trim();
+				pos = to;
+			}
+
+			final int m = columnLabels.length;
+			final int n = starts.length - 1;
+			final FeatureMatrix matrix = new FeatureMatrix(n, m);
+			final String[] rowLabels = new String[n];
+			final float[] data = matrix.getData();
+			ParallelLoop.run(executor, ParallelLoop.split(0, n,
+					chunks(buffer.limit())), new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					for (int row = from; row < to; row++) {
+						int end = ends[row + 1];
+						int pos = ByteParser.indexOf(buffer, '\t', starts[row + 1], end);
+						rowLabels[row] = ByteParser.decode(buffer, starts[row + 1],
+								pos).trim();
+						for (int col = 0; col < m; col++) {
+							if (pos == end)
+								throw new IllegalArgumentException("Row " + (row + 1)
+										+ " has only " + col + " values");
+							int next = ByteParser.indexOf(buffer, '\t', pos + 1, end);
+							data[row * m + col] = (float)ByteParser.parseNumber(buffer,
+									pos + 1, next, row);
+							pos = next;
+						}
+					}
+				}
+			});
+			matrix.setRowLabels(rowLabels);
+			matrix.setColumnLabels(columnLabels);
+			return matrix;
+		} catch (IllegalArgumentException e) {
+			IOException ex = new IOException(e.getMessage());
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+
+	private int chunks(int bytes) {
+		if (executor == null)
+			return 1;
+		return Math.max(1, Math.min(parallelism, bytes / PARALLEL_GRAIN));
+	}
+}
@@ -1,10 +1,19 @@
 package com.sugen.io;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * Read Newick or phyloXML trees, whichever the input is: it is phyloXML
+ * if it starts with '<', once decompressed if it is compressed.
+ */
 public class MultiTreeReader extends TreeReader {
+	private final static int SNIFF = 1 << 12; // bytes looked at
 	private TreeReader treeReader = new PhylipReader();
 	
 	public MultiTreeReader() {}
@@ -16,20 +25,101 @@ public class MultiTreeReader extends TreeReader {
 	public Object next() {
 		return treeReader.next();
 	}
+
+	/**
+	 * Skip trees, without parsing them if they are Newick.
+	 * @return number of trees skipped
+	 * @see PhylipReader#skip(int)
+	 */
+	public int skip(int count) {
+		if (treeReader instanceof PhylipReader)
+			return ((PhylipReader)treeReader).skip(count);
+		int skipped = 0;
+		for (; skipped < count && treeReader.hasNext(); skipped++)
+			treeReader.next();
+		return skipped;
+	}
 	
 	public void setInput(InputStream is) {
+		try {
+			is = Decompressor.open(is);
+			treeReader = isXml(is) ? new PhyloXmlReader() : new PhylipReader();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
 		treeReader.setInput(is);
 	}
 	
 	public void setInput(String s) {
-		if (s.startsWith("<"))
-			treeReader = new PhyloXmlReader();		
+		treeReader = s.trim().startsWith("<") ? new PhyloXmlReader()
+			: new PhylipReader();
 		treeReader.setInput(s);
 	}
 
 	public void setInput(File file) throws FileNotFoundException {
-		if (file.getName().toLowerCase().endsWith("xml"))
-			treeReader = new PhyloXmlReader();
-		treeReader.setInput(file);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			// Opened and decompressed once, for the sniffing and the reading
+			FileChannel channel = fis.getChannel();
+			if (Decompressor.getFormat(channel) == null) {
+				// Read in place, so that the file is still mapped
+				ByteBuffer start = ByteBuffer.allocate(SNIFF);
+				while (start.hasRemaining()
+						&& channel.read(start, start.position()) > 0);
+				treeReader = isXml(start.array(), start.position()) 
+					? new PhyloXmlReader() : new PhylipReader();
+				treeReader.setInput(fis, file);
+			} else {
+				InputStream is = Decompressor.open(fis);
+				treeReader = isXml(is) ? new PhyloXmlReader() : new PhylipReader();
+				treeReader.setInput(is);
+			}
+		} catch (IOException e) {
+			try {
+				fis.close();
+			} catch (IOException ignored) {}
+			throw new IllegalStateException(file + ": " + e.getMessage(), e);
+		}
+		input = file;
+	}
+
+	/**
+	 * Close the input of the reader delegated to.
+	 */
+	public void close() throws IOException {
+		treeReader.close();
+	}
+
+	/**
+	 * Whether the stream is XML. The stream is reset.
+	 * @param is a stream that supports mark()
+	 */
+	private static boolean isXml(InputStream is) throws IOException {
+		is.mark(SNIFF);
+		try {
+			byte[] start = new byte[SNIFF];
+			int length = 0;
+			int count;
+			while (length < SNIFF
+					&& (count = is.read(start, length, SNIFF - length)) >= 0)
+				length += count;
+			return isXml(start, length);
+		} finally {
+			is.reset();
+		}
+	}
+
+	/**
+	 * Whether the first character after blanks, and any byte order mark,
+	 * is '<'.
+	 */
+	private static boolean isXml(byte[] start, int length) {
+		for (int i = 0; i < length; i++) {
+			int b = start[i] & 0xff;
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n'
+					&& b != 0xef && b != 0xbb && b != 0xbf)
+				return b == '<';
+		}
+		return false;
 	}
 }
@@ -0,0 +1,356 @@
+package com.sugen.io;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Split Newick trees into tokens in a single pass over a Reader, one
+ * character at a time, through a buffer that only grows to hold the
+ * longest token. Branch lengths are parsed straight from the buffer,
+ * without creating a String, so parse time is proportional to the length
+ * of the input.
+ * <p>
+ * Labels end at any of "(),:;[" and may contain blanks, but not at either
+ * end. Quoted labels, in single quotes, may contain anything, with a quote
+ * written as two quotes. Comments are in square brackets.
+ *
+ * @see PhylipReader
+ */
+class NewickTokenizer {
+	/**
+	 * Returned by peek() at the end of the input.
+	 */
+	final static int END = -1;
+
+	private Reader reader;
+	private char[] buffer;
+	private int position;
+	private int limit;
+	private long offset; // characters before the buffer
+	private boolean isEnd;
+	private StringBuilder text = new StringBuilder();
+
+	/**
+	 * @param reader input, read from its current position
+	 * @param pending characters to read before the reader, or null
+	 */
+	NewickTokenizer(Reader reader, String pending) {
+		this.reader = reader;
+		buffer = new char[1 << 16];
+		if (pending != null) {
+			int length = pending.length();
+			if (length >= buffer.length)
+				buffer = new char[length + buffer.length];
+			pending.getChars(0, length, buffer, 0);
+			limit = length;
+		}
+	}
+
+	/**
+	 * @param text all the input
+	 * @param offset characters before the text, for error messages
+	 */
+	NewickTokenizer(char[] text, long offset) {
+		buffer = text;
+		limit = text.length;
+		this.offset = offset;
+		isEnd = true;
+	}
+
+	/**
+	 * Skip blanks.
+	 * @return the next character, without reading it, or END
+	 */
+	int peek() {
+		while (true) {
+			if (position == limit && fill() == 0)
+				return END;
+			char c = buffer[position];
+			if (!isSpace(c))
+				return c;
+			position++;
+		}
+	}
+
+	/**
+	 * Read the character returned by peek().
+	 */
+	void skip() {
+		position++;
+	}
+
+	/**
+	 * Read a label, quoted or not, after any blanks.
+	 * @return the label, or null if there is none
+	 */
+	String readLabel() {
+		int c = peek();
+		if (c == '\'')
+			return readQuoted();
+		if (c == END || isDelimiter((char)c))
+			return null;
+		int length = tokenLength(true);
+		int end = position + length;
+		while (isSpace(buffer[end - 1]))
+			end--;
+		String label = new String(buffer, position, end - position);
+		position += length;
+		return label;
+	}
+
+	private String readQuoted() {
+		position++;
+		text.setLength(0);
+		while (true) {
+			if (position == limit && fill() == 0)
+				throw error("Unterminated quoted label");
+			char c = buffer[position++];
+			if (c == '\'') {
+				if (position == limit && fill() == 0 || buffer[position] != '\'')
+					return text.toString();
+				position++;
+			}
+			text.append(c);
+		}
+	}
+
+	/**
+	 * Read a number, after any blanks.
+	 * @throws IllegalArgumentException if there is no number
+	 */
+	double readNumber() {
+		int c = peek();
+		if (c == END || isDelimiter((char)c))
+			throw error("Expected a number");
+		int length = tokenLength(false);
+		try {
+			double value = parseNumber(position, position + length);
+			position += length;
+			return value;
+		} catch (NumberFormatException e) {
+			throw error("Not a number: \"" + new String(buffer, position, length)
+					+ "\"");
+		}
+	}
+
+	/**
+	 * Read a comment, from '[' to ']'.
+	 * @return the comment as a number, such as the replicate count of a
+	 * bootstrap tree, or NaN if it is not a number
+	 */
+	double readComment() {
+		position++;
+		int length = 0;
+		while (true) {
+			if (position + length == limit && fill() == 0)
+				throw error("Unterminated comment");
+			if (buffer[position + length] == ']')
+				break;
+			length++;
+		}
+		double value;
+		try {
+			value = length == 0 ? Double.NaN
+				: parseNumber(position, position + length);
+		} catch (NumberFormatException e) {
+			value = Double.NaN;
+		}
+		position += length + 1;
+		return value;
+	}
+
+	/**
+	 * Skip to just after the next ';' that is not in a quoted label or a
+	 * comment, or to the end of the input.
+	 */
+	void skipTree() {
+		boolean isQuoted = false;
+		boolean isComment = false;
+		while (true) {
+			if (position == limit && fill() == 0)
+				return;
+			char c = buffer[position++];
+			if (isQuoted)
+				isQuoted = c != '\'';
+			else if (isComment)
+				isComment = c != ']';
+			else if (c == '\'')
+				isQuoted = true;
+			else if (c == '[')
+				isComment = true;
+			else if (c == ';')
+				return;
+		}
+	}
+
+	/**
+	 * Read the text of the next tree, up to and including the ';' that
+	 * ends it, as skipTree() would skip it.
+	 * @return a tokenizer of just that text, which gives positions in
+	 * errors from the start of the input
+	 */
+	NewickTokenizer readTree() {
+		boolean isQuoted = false;
+		boolean isComment = false;
+		int length = 0;
+		while (position + length < limit || fill() > 0) {
+			char c = buffer[position + length++];
+			if (isQuoted)
+				isQuoted = c != '\'';
+			else if (isComment)
+				isComment = c != ']';
+			else if (c == '\'')
+				isQuoted = true;
+			else if (c == '[')
+				isComment = true;
+			else if (c == ';')
+				break;
+		}
+		char[] text = new char[length];
+		System.arraycopy(buffer, position, text, 0, length);
+		NewickTokenizer tree = new NewickTokenizer(text, offset + position);
+		position += length;
+		return tree;
+	}
+
+	/**
+	 * Make sure that the token at the position is all in the buffer.
+	 * @param isLabel if true, the token may contain blanks
+	 * @return its length
+	 */
+	private int tokenLength(boolean isLabel) {
+		int length = 0;
+		while (true) {
+			if (position + length == limit && fill() == 0)
+				return length;
+			char c = buffer[position + length];
+			if (isDelimiter(c) || !isLabel && isSpace(c))
+				return length;
+			length++;
+		}
+	}
+
+	/**
+	 * Read more input after what is left in the buffer, moving it to the
+	 * start of the buffer, or growing the buffer if it is full.
+	 * @return number of characters read; 0 at the end of the input
+	 */
+	private int fill() {
+		if (isEnd)
+			return 0;
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			offset += position;
+			limit -= position;
+			position = 0;
+		}
+		if (limit == buffer.length) {
+			char[] larger = new char[2 * buffer.length];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			buffer = larger;
+		}
+		try {
+			int count;
+			do {
+				count = reader.read(buffer, limit, buffer.length - limit);
+			} while (count == 0);
+			if (count < 0) {
+				isEnd = true;
+				return 0;
+			}
+			limit += count;
+			return count;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parse a decimal number in the buffer, as ByteParser does. Numbers that
+	 * are not plain decimals are left to Double.parseDouble().
+	 * @throws NumberFormatException if it is not a number
+	 */
+	private double parseNumber(int from, int to) {
+		while (from < to && isSpace(buffer[from]))
+			from++;
+		while (to > from && isSpace(buffer[to - 1]))
+			to--;
+
+		int i = from;
+		boolean isNegative = false;
+		if (i < to && (buffer[i] == '-' || buffer[i] == '+'))
+			isNegative = buffer[i++] == '-';
+		long mantissa = 0;
+		int digits = 0; // significant digits in the mantissa
+		int exponent = 0;
+		boolean hasDigits = false;
+		char c;
+		for (; i < to && (c = buffer[i]) >= '0' && c <= '9'; i++) {
+			hasDigits = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0)
+					digits++;
+			} else {
+				exponent++;
+			}
+		}
+		if (i < to && buffer[i] == '.') {
+			for (i++; i < to && (c = buffer[i]) >= '0' && c <= '9'; i++) {
+				hasDigits = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				}
+			}
+		}
+		if (hasDigits && i < to && (buffer[i] == 'e' || buffer[i] == 'E')) {
+			i++;
+			boolean isNegativeExponent = false;
+			if (i < to && (buffer[i] == '-' || buffer[i] == '+'))
+				isNegativeExponent = buffer[i++] == '-';
+			int power = 0;
+			boolean hasPower = false;
+			for (; i < to && (c = buffer[i]) >= '0' && c <= '9'; i++) {
+				hasPower = true;
+				if (power < 10000)
+					power = power * 10 + (c - '0');
+			}
+			if (!hasPower)
+				hasDigits = false;
+			exponent += isNegativeExponent ? -power : power;
+		}
+
+		// Exact, and so correctly rounded, only when the mantissa and the
+		// power of ten are both exact doubles; otherwise, as for up to 17
+		// significant digits, the slow way
+		if (!hasDigits || i != to || mantissa > 1L << 53 || exponent < -22
+				|| exponent > 22)
+			return Double.parseDouble(new String(buffer, from, to - from));
+		double value = mantissa;
+		if (exponent < 0)
+			value /= ByteParser.POWERS_OF_TEN[-exponent];
+		else
+			value *= ByteParser.POWERS_OF_TEN[exponent];
+		return isNegative ? -value : value;
+	}
+
+	/**
+	 * A syntax error at the position.
+	 */
+	IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at character "
+				+ (offset + position + 1));
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	private static boolean isDelimiter(char c) {
+		return c == '(' || c == ')' || c == ',' || c == ':' || c == ';'
+			|| c == '[';
+	}
+}
@@ -1,203 +1,291 @@
 package com.sugen.io;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.swing.tree.DefaultTreeModel;
 
 import com.sugen.util.Clade;
+import com.sugen.util.ParallelLoop;
 
 /**
- * Parse Phylip treefiles.
+ * Parse Phylip treefiles, in Newick format. Files may hold any number of
+ * trees, each ending with a semicolon, such as the bootstrap replicates
+ * or posterior sample of a phylogenetic analysis. Trees are read one at a
+ * time, as the iterator advances, so only one is in memory at once.
+ * Given an executor, trees are parsed in parallel, a few trees ahead of
+ * the iterator.
  *
  * @author Jonathan Bingham
  */
 public class PhylipReader extends TreeReader {
+    private NewickTokenizer tokenizer;
+    private ExecutorService executor;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    //Trees being parsed on the executor, in file order
+    private LinkedList<Future<Object>> parsing = new LinkedList<Future<Object>>();
+
     public PhylipReader() {}
 
-    public boolean hasNext() {
-        String line = readLine();
-        if(line != null)
-            unreadLine();
-        return(line != null);
+    public void setInput(InputStream is) {
+        super.setInput(is);
+        reset();
+    }
+
+    public void setInput(File file) throws FileNotFoundException {
+        super.setInput(file);
+        reset();
+    }
+
+    public void setInput(String in) {
+        super.setInput(in);
+        reset();
+    }
+
+    private void reset() {
+        tokenizer = null;
+        while(!parsing.isEmpty())
+            parsing.removeFirst().cancel(false);
+    }
+
+    private NewickTokenizer tokenizer() {
+        if(tokenizer == null) {
+            tokenizer = new NewickTokenizer(reader, lineUnread);
+            lineUnread = null;
+        }
+        return tokenizer;
     }
 
     /**
-     * @return a TreeModel
+     * True if there is another tree: anything but blanks, comments and
+     * semicolons before the end of the input.
      */
-    public Object next() {
-        //Read a line at a time, appending nodes
-        StringBuffer completeTree = new StringBuffer();
-        String line;
-        while((line = readLine()) != null)
-            completeTree.append(line);
+    public boolean hasNext() {
+        return !parsing.isEmpty() || hasMoreText();
+    }
 
-        Clade root = new Clade();
-        root.setBranchLength(0);
-        parseTree(completeTree.toString(), 0, root);
+    private boolean hasMoreText() {
+        NewickTokenizer tokenizer = tokenizer();
+        while(true) {
+            skipComments(tokenizer);
+            if(tokenizer.peek() != ';')
+                return tokenizer.peek() != NewickTokenizer.END;
+            tokenizer.skip();
+        }
+    }
 
-        //No tree...
-        if(root.isLeaf() && root.getUserObject() == null
-           && root.getBranchLength() == 0)
+    /**
+     * Parse the next tree in a single pass over its text.
+     * @return a TreeModel, or null if there are no more trees
+     * @throws IllegalArgumentException if the tree is not valid Newick;
+     * the reader then moves on to the tree after it
+     */
+    public Object next() {
+        if(executor != null || !parsing.isEmpty())
+            return nextParsed();
+        if(!hasMoreText())
             return null;
-        else
-            return new DefaultTreeModel(root);
+        try {
+            return parse(tokenizer);
+        }
+        catch(IllegalArgumentException e) {
+            tokenizer.skipTree();
+            throw e;
+        }
     }
 
     /**
-     * Parses the subtree starting at the specified node.
-     *
-     * @param root - parse all children, or all info if the node is a leaf
-     * @param input - input String to parse
-     * @param index - current index in the input String
-     * @return index of character after the end of the subtree
+     * The next tree parsed on the executor. The calling thread only cuts
+     * the text of each tree from the input, which is much faster than
+     * parsing it, and keeps the executor busy with up to twice as many
+     * trees as it may parse at once. Trees come back in file order, and no
+     * more than that many are held in memory, read or not.
      */
-    protected int parseTree(String input, int index, Clade root) {
-        //root has children
-        if(input.charAt(index) == '(') {
-            //parse children of node, recursively parsing each child's subtree
-            int retval = index;
-            do {
-                //add child node to root
-                Clade node = new Clade();
-                root.insert(node, root.getChildCount());
-                retval = parseTree(input, retval + 1, node);
-            }
-            //recursion terminates when there are no more children
-            while(input.charAt(retval) == ',');
-            
-            //determine branch length of node
-            if (input.charAt(retval) == ')' 
-            	  && Character.isDigit(input.charAt(retval + 1))) {
-            	retval = parseNodeLabel(input, retval + 1, root);
-                retval = parseBranchLength(input, retval + 1, root);
-            } else if(input.charAt(retval + 1) == ':') {
-                retval = parseBranchLength(input, retval + 2, root);
-            } else {
-                ++retval;
-            }
+    private Object nextParsed() {
+        submit();
+        if(parsing.isEmpty())
+            return null;
+        Future<Object> tree = parsing.removeFirst();
+        submit();
+        return ParallelLoop.await(tree);
+    }
 
-            return retval;
-        }
-        //root is a leaf
-        else {
-            return parseLeaf(input, index, root);
+    private void submit() {
+        while(executor != null && parsing.size() < 2 * parallelism
+              && hasMoreText()) {
+            final NewickTokenizer text = tokenizer.readTree();
+            parsing.addLast(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    return parse(text);
+                }
+            }));
         }
     }
 
     /**
-     * @param leaf - Object to be customized with label and branch length
-     * @return index of character after leaf
+     * Parse one tree, and the ';' after it.
+     * @return a TreeModel
      */
-    protected int parseLeaf(String input, int leafLabelStart,
-                            Clade leaf) {
-        int branchLengthStart = parseLeafLabel(input, leafLabelStart, leaf);
-        int end = branchLengthStart;
-//        System.err.println("leaf: " + leaf.getUserObject());
-        
-        //Parse branch length
-        if(input.charAt(branchLengthStart) == ':')
-            end = parseBranchLength(input, ++branchLengthStart, leaf);
-            
-        return end;
+    private Object parse(NewickTokenizer tokenizer) {
+        Clade root = new Clade();
+        root.setBranchLength(0);
+        parseTree(tokenizer, root);
+        if(tokenizer.peek() == ';')
+            tokenizer.skip();
+        else if(tokenizer.peek() != NewickTokenizer.END)
+            throw tokenizer.error("Expected ';'");
+        return new DefaultTreeModel(root);
     }
 
     /**
-     * The leaf label is terminated by a colon, usually.
-     * A close parenthesis or comma will also terminate it, so 
-     * no colon, comma or parenthesis characters can be in the label.    
-     * @param leaf - its userObject is set to the parsed label String
-     * @return index of character after leaf
+     * Skip trees, such as the burn-in of a Bayesian sample, only looking
+     * for the semicolons that end them, without creating any nodes.
+     * @return number of trees skipped; fewer than count only if the input
+     * ends first
      */
-    protected int parseLeafLabel(String input, int start,
-                                 Clade leaf) {
-        int nextColon = input.indexOf(':', start);
-        int nextComma = input.indexOf(',', start);
-        int nextParen = input.indexOf(')', start);
-        int end = nextColon;
-        if(end == -1) {
-            if(nextComma != -1 && nextParen != -1)
-                end = Math.min(nextComma, nextParen);
-            else
-                end = Math.max(nextComma, nextParen);
+    public int skip(int count) {
+        int skipped = 0;
+        while(skipped < count && !parsing.isEmpty()) {
+            parsing.removeFirst().cancel(false);
+            skipped++;
         }
-        if(end == -1) {
-            System.err.println("eof");
-            return input.length();
+        while(skipped < count && hasMoreText()) {
+            tokenizer.skipTree();
+            skipped++;
         }
-        String label = input.substring(start, end);
-        leaf.setUserObject(label);
-        
-        return end;
+        return skipped;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
     }
 
     /**
-     * @param leaf - its branchLength is set from parsed input
-     * @return index of character after leaf
+     * Parse trees in parallel on this executor, for files of many trees.
+     * If null, the default, everything runs in the calling thread.
      */
-    protected int parseBranchLength(
-    		String input, 
-    		int start,
-            Clade leaf) {
-        int nextComma = input.indexOf(',', start);
-        int closeParen = input.indexOf(')', start);
-        int end;
-
-        //If both characters were found, use the first occurring
-        if(nextComma != -1 && closeParen != -1)
-            end = Math.min(nextComma, closeParen);
-        //otherwise use the one that was found
-        else
-            end = Math.max(nextComma, closeParen);
-        
-        // For bootstrap replicates, skip past the replicate count
-        int openBracket = input.indexOf('[', start);
-        int closeBracket = input.indexOf(']', start);
-        if(openBracket != -1 && openBracket < end && closeBracket != -1) {
-            String replicates = input.substring(openBracket + 1, closeBracket);
-            leaf.setConfidence(Double.parseDouble(replicates));
-//            System.err.println("Replicates: " + replicates);
-            end = openBracket;
-        }
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
 
-        String lengthString = input.substring(start, end);
-        double length = Double.valueOf(lengthString).doubleValue();
-        if(length < 0)
-        	length = 0;
-        leaf.setBranchLength(length);
-//        System.err.println("length=" + length);
+    /**
+     * Maximum number of trees parsed at once. Defaults to the number of
+     * processors.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.parallelism = parallelism;
+    }
 
-        if(end == openBracket && closeBracket != -1)
-            end = closeBracket + 1;
-        
-        return end;
+    /**
+     * @return all the remaining trees, as TreeModels
+     */
+    public Collection<?> readAll() {
+        List<Object> trees = new ArrayList<Object>();
+        while(hasNext())
+            trees.add(next());
+        return trees;
     }
 
     /**
-    * @param leaf - its branchLength is set from parsed input
-    * @return index of character after leaf
-    */
-    private int parseNodeLabel(String input, int end, Clade leaf) {
-//    	System.err.println("checkBootstrap: "
-//    			+ input.substring(Math.max(0, end-40), end)
-//    			+ input.charAt(end));
-    	
-    	int colon = input.indexOf(':', end);
-    	if (colon < 0 || colon > input.length())
-    		return end;
-    	
-    	String nodeLabel = input.substring(end, colon);
-//    	System.err.println("bootstrap=" + bootstrap);
-    	
-    	try {
-    		leaf.setUserObject(nodeLabel);
-    	} catch(NumberFormatException e) {
-    		e.printStackTrace();
-    	}
-    	
-		return colon + 1;
-	}
-
-	public Collection<?> readAll() {
-        throw new UnsupportedOperationException();
+     * Parses the subtree starting at the specified node, without
+     * recursion, so that depth is limited only by memory.
+     * <p>
+     * Nodes whose children are still being parsed are kept on a stack,
+     * not yet added to their parents, and each node is added to its parent
+     * when it is complete. Adding a node to a parent that is in a tree
+     * searches all its ancestors, which for deep trees would take time
+     * proportional to the square of the depth.
+     *
+     * @param root - parse all children, or all info if the node is a leaf
+     */
+    private void parseTree(NewickTokenizer tokenizer, Clade root) {
+        Clade[] open = new Clade[64];
+        int depth = 0;
+        Clade node = root;
+        while(true) {
+            //node has children: parse the first
+            if(tokenizer.peek() == '(') {
+                tokenizer.skip();
+                skipComments(tokenizer);
+                if(depth == open.length) {
+                    Clade[] larger = new Clade[2 * depth];
+                    System.arraycopy(open, 0, larger, 0, depth);
+                    open = larger;
+                }
+                open[depth++] = node;
+                node = new Clade();
+                continue;
+            }
+
+            //node is a leaf: complete it, and the parents that it completes
+            parseNode(tokenizer, node);
+            while(depth > 0) {
+                Clade parent = open[depth - 1];
+                parent.insert(node, parent.getChildCount());
+                if(tokenizer.peek() == ',') {
+                    tokenizer.skip();
+                    skipComments(tokenizer);
+                    node = new Clade();
+                    break;
+                }
+                if(tokenizer.peek() != ')')
+                    throw tokenizer.error("Expected ')'");
+                tokenizer.skip();
+                open[--depth] = null;
+                node = parent;
+                parseNode(tokenizer, node);
+            }
+            if(depth == 0)
+                return;
+        }
+    }
+
+    /**
+     * Parse the label, branch length and replicate count of a node, each
+     * of which may be missing. Negative branch lengths are set to zero.
+     * @param node - its userObject is set to the label
+     */
+    private void parseNode(NewickTokenizer tokenizer, Clade node) {
+        String label = tokenizer.readLabel();
+        if(label != null)
+            node.setUserObject(label);
+        parseComments(tokenizer, node);
+
+        if(tokenizer.peek() == ':') {
+            tokenizer.skip();
+            double length = tokenizer.readNumber();
+            if(length < 0)
+                length = 0;
+            node.setBranchLength(length);
+            // For bootstrap replicates, the replicate count
+            parseComments(tokenizer, node);
+        }
+    }
+
+    private void parseComments(NewickTokenizer tokenizer, Clade node) {
+        while(tokenizer.peek() == '[') {
+            double replicates = tokenizer.readComment();
+            if(!Double.isNaN(replicates))
+                node.setConfidence(replicates);
+        }
+    }
+
+    private void skipComments(NewickTokenizer tokenizer) {
+        while(tokenizer.peek() == '[')
+            tokenizer.readComment();
     }
 }
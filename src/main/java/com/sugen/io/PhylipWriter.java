@@ -42,21 +42,48 @@ public class PhylipWriter
     }
 
     /**
-     * Recursively write tree nodes.
+     * Write tree nodes, without recursion, so that depth is limited only
+     * by memory.
      */
-    protected void writeTree(DefaultMutableTreeNode node) throws IOException {
-        if(!node.isLeaf())
-            writer.write("(\n");
+    protected void writeTree(DefaultMutableTreeNode root) throws IOException {
+        //Nodes being written, and the next child of each to write
+        DefaultMutableTreeNode[] path = new DefaultMutableTreeNode[64];
+        int[] nextChild = new int[64];
+        int depth = 0;
+        path[0] = root;
+        while(depth >= 0) {
+            DefaultMutableTreeNode node = path[depth];
+            int i = nextChild[depth];
+            int numChildren = node.getChildCount();
 
-        //Children
-        for(int i = 0, numChildren = node.getChildCount(); i < numChildren; i++) {
-            writeTree((Clade)node.getChildAt(i));
-            if(i < numChildren - 1)
-                writer.write(",\n");
+            //Children
+            if(i < numChildren) {
+                writer.write(i == 0 ? "(\n" : ",\n");
+                nextChild[depth]++;
+                if(++depth == path.length) {
+                    DefaultMutableTreeNode[] largerPath =
+                        new DefaultMutableTreeNode[2 * depth];
+                    System.arraycopy(path, 0, largerPath, 0, depth);
+                    path = largerPath;
+                    int[] largerNextChild = new int[2 * depth];
+                    System.arraycopy(nextChild, 0, largerNextChild, 0, depth);
+                    nextChild = largerNextChild;
+                }
+                path[depth] = (Clade)node.getChildAt(i);
+                nextChild[depth] = 0;
+                continue;
+            }
+            if(!node.isLeaf())
+                writer.write(")\n");
+            writeNode(node);
+            path[depth--] = null;
         }
-        if(!node.isLeaf())
-            writer.write(")\n");
+    }
 
+    /**
+     * Write the label and branch length of a node, after its children.
+     */
+    protected void writeNode(DefaultMutableTreeNode node) throws IOException {
         //Label
         if(!node.isRoot() && node.getUserObject() != null)
             writer.write(node.toString());
@@ -1,15 +1,20 @@
 package com.sugen.io;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.tree.DefaultTreeModel;
-import javax.swing.tree.TreeModel;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import com.sugen.util.Clade;
 import com.sugen.util.Clade.Confidence;
@@ -21,385 +26,437 @@ import com.sugen.util.Clade.Sequence.DomainArchitecture;
 import com.sugen.util.Clade.Sequence.DomainArchitecture.Domain;
 import com.sugen.util.Clade.Taxonomy;
 
-/** 
+/**
  * Read phyloxml format from http://www.phyloxml.org.
+ * <p>
+ * The document is pulled through a StAX parser, one phylogeny at a time:
+ * each phylogeny in the document is a separate tree, parsed when the
+ * iterator reaches it, so only one is in memory at once. Elements are
+ * told apart by a code looked up from their name; the text of an element
+ * is collected in a reused buffer, and only turned into a String if it is
+ * kept.
  */
 public class PhyloXmlReader extends TreeReader {
-	private TreeModel tree;
-	private boolean isRead;
-	
+	private final static String NAMESPACE = "http://www.phyloxml.org";
+
+	// Element codes
+	private final static int OTHER = 0;
+	private final static int PHYLOGENY = 1;
+	private final static int CLADE = 2;
+	private final static int NAME = 3;
+	private final static int BRANCH_LENGTH = 4;
+	private final static int CONFIDENCE = 5;
+	private final static int TAXONOMY = 6;
+	private final static int ID = 7;
+	private final static int CODE = 8;
+	private final static int SCIENTIFIC_NAME = 9;
+	private final static int COMMON_NAME = 10;
+	private final static int RANK = 11;
+	private final static int URI = 12;
+	private final static int SEQUENCE = 13;
+	private final static int SYMBOL = 14;
+	private final static int ACCESSION = 15;
+	private final static int LOCATION = 16;
+	private final static int DOMAIN_ARCHITECTURE = 17;
+	private final static int DOMAIN = 18;
+	private final static int EVENTS = 19;
+	private final static int ANNOTATION = 20;
+	private final static int DISTRIBUTION = 21;
+	private final static int DESC = 22;
+	private final static int REFERENCE = 23;
+	private final static int COLOR = 24;
+	private final static int RED = 25;
+	private final static int GREEN = 26;
+	private final static int BLUE = 27;
+	private final static String[] NAMES = { null, "phylogeny", "clade",
+		"name", "branch_length", "confidence", "taxonomy", "id", "code",
+		"scientific_name", "common_name", "rank", "uri", "sequence", "symbol",
+		"accession", "location", "domain_architecture", "domain", "events",
+		"annotation", "distribution", "desc", "reference", "color", "red",
+		"green", "blue" };
+	private final static Map<String, Integer> CODES = new HashMap<String, Integer>();
+	// Elements whose text is kept
+	private final static boolean[] HAS_TEXT = new boolean[NAMES.length];
+	static {
+		for (int i = 1; i < NAMES.length; i++)
+			CODES.put(NAMES[i], Integer.valueOf(i));
+		int[] withText = { NAME, BRANCH_LENGTH, CONFIDENCE, ID, CODE,
+			SCIENTIFIC_NAME, COMMON_NAME, RANK, URI, SYMBOL, ACCESSION,
+			LOCATION, DOMAIN, DESC, RED, GREEN, BLUE };
+		for (int i = 0; i < withText.length; i++)
+			HAS_TEXT[withText[i]] = true;
+	}
+
+	private XMLStreamReader xml;
+	private boolean isAtPhylogeny;
+
+	// The phylogeny being parsed
+	private Clade root;
+	private Clade[] clades = new Clade[64]; // open, not yet added to parents
+	private int cladeDepth;
+	private int[] elements = new int[64]; // codes of the open elements
+	private int elementDepth;
+	private int[] openCount = new int[NAMES.length]; // by code
+	private StringBuilder text = new StringBuilder();
+	private Confidence confidence;
+	private int red;
+	private int green;
+	private int blue;
+
 	public PhyloXmlReader() {
-//		System.err.println("PhyloXmlReader");
 	}
 
+	public void setInput(InputStream is) {
+		super.setInput(is);
+		xml = null;
+	}
+
+	public void setInput(File file) throws FileNotFoundException {
+		super.setInput(file);
+		xml = null;
+	}
+
+	public void setInput(String in) {
+		super.setInput(in);
+		xml = null;
+	}
+
+	/**
+	 * True if there is another phylogeny in the document.
+	 */
 	public boolean hasNext() {
-		if (tree == null && !isRead)
-			init();		
-		return tree != null;
+		try {
+			if (xml == null) {
+				XMLInputFactory factory = XMLInputFactory.newInstance();
+				factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+				xml = input instanceof String ? factory.createXMLStreamReader(reader)
+						: factory.createXMLStreamReader(inputStream);
+			}
+			while (!isAtPhylogeny && xml.hasNext())
+				isAtPhylogeny = xml.next() == XMLStreamConstants.START_ELEMENT
+					&& code() == PHYLOGENY;
+			return isAtPhylogeny;
+		} catch (XMLStreamException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
 	}
 
+	/**
+	 * @return the next phylogeny as a TreeModel, or null if there are no
+	 * more
+	 * @throws IllegalArgumentException if the document is not valid XML
+	 */
 	public Object next() {
-		if (tree == null && !isRead)
-			init();	
-		TreeModel next = tree;
-		tree = null;
-		return next;
-	}
-	
-	private void init() {
-		isRead = true;
+		if (!hasNext())
+			return null;
+		isAtPhylogeny = false;
 		try {
-			SAXParserFactory.newInstance().newSAXParser()
-				.parse(inputStream, new PhyloHandler());
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new RuntimeException(e);
+			return parsePhylogeny();
+		} catch (XMLStreamException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		} finally {
+			root = null;
+			for (int i = 0; i < cladeDepth; i++)
+				clades[i] = null;
+			cladeDepth = 0;
+			elementDepth = 0;
+			for (int i = 0; i < openCount.length; i++)
+				openCount[i] = 0;
+			confidence = null;
 		}
 	}
-	
-	class PhyloHandler extends DefaultHandler {
-		private int depth = 0;
-		private Clade parent;
-		private Clade node;
-		
-		private boolean isClade;
-		
-		private boolean isName;
-		private boolean isLength;
-		private boolean isConfidence;
-		
-		private boolean isTaxonomy;
-		private boolean isId;
-		private boolean isCode;
-		private boolean isScientificName;
-		private boolean isCommonName;
-		private boolean isRank;
-		private boolean isUri;
-		
-		private boolean isDistribution;
-		private boolean isDescription;
-		
-		private boolean isSequence;
-		private boolean isSymbol;
-		private boolean isAccession;
-		private boolean isLocation;
-		private boolean isDomain;
-		
-		private boolean isEvents;
-		private boolean isAnnotation;
-		
-		private boolean isRed;
-		private boolean isGreen;
-		private boolean isBlue;
-
-		public void startElement(String uri, String localName, 
-				String qName, Attributes attributes) {
-			
-			// Abort after parsing the first tree
-			if (depth < 0)
-				return;
-			
-			if (qName.equals("phylogeny")) {
-//				System.err.println("phylogeny: ");
-				parent = new Clade();
-	        	parent.setBranchLength(0.0f); // not a real clade
-				tree = new DefaultTreeModel(parent);
-				
-			} else if (qName.equals("clade")) {
-				isClade = true;
-				++depth;
-//				System.err.println("clade: " + depth);
-				if (node != null) {
-					parent = node;
-				}				
-				
-		        node = new Clade();
-		        if (depth == 1)
-		        	node.setBranchLength(0);
-		        parent.add(node);
-		        
-		        if (attributes != null && attributes.getLength() > 0) {
-		        	for (int i = 0; i < attributes.getLength(); ++i) {
-		        		if (attributes.getQName(i).equals("branch_length")) {
-		        			node.setBranchLength(
-		        					Double.parseDouble(attributes.getValue(i)));
-		        		}
-		        	}
-		        }
-		        
-			} else if (qName.equals("name")) {
-				isName = true;				
-			} else if (qName.equals("branch_length")) {
-				isLength = true;				
-			} else if (qName.equals("confidence")) {
-				isConfidence = true;
-
-				if (isClade && !isEvents && !isAnnotation) {
-					Clade c = node == null ? parent : node;
-					Confidence conf = new Confidence();
-	    			c.getConfidences().add(conf);
-					
-			        if (attributes != null && attributes.getLength() > 0) {
-			        	for (int i = 0; i < attributes.getLength(); ++i) {
-			        		if (attributes.getQName(i).equals("type")) {
-			        			conf.setType(attributes.getValue(i));
-			        		}
-			        	}
-			        }
+
+	/**
+	 * @return all the remaining phylogenies, as TreeModels
+	 */
+	public Collection<?> readAll() {
+		List<Object> trees = new ArrayList<Object>();
+		while (hasNext())
+			trees.add(next());
+		return trees;
+	}
+
+	/**
+	 * The code of the current element, or OTHER if it is not a phyloxml
+	 * element, in the phyloxml namespace or none.
+	 */
+	private int code() {
+		String namespace = xml.getNamespaceURI();
+		if (namespace != null && namespace.length() > 0
+				&& !namespace.equals(NAMESPACE))
+			return OTHER;
+		Integer code = CODES.get(xml.getLocalName());
+		return code == null ? OTHER : code.intValue();
+	}
+
+	/**
+	 * Parse from just after the start of a phylogeny to its end.
+	 */
+	private DefaultTreeModel parsePhylogeny() throws XMLStreamException {
+		root = new Clade();
+		root.setBranchLength(0.0f); // not a real clade
+		while (true) {
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				int code = code();
+				if (elementDepth == elements.length) {
+					int[] larger = new int[2 * elementDepth];
+					System.arraycopy(elements, 0, larger, 0, elementDepth);
+					elements = larger;
 				}
-		        				
-			} else if (qName.equals("taxonomy")) {
-				isTaxonomy = true;
-				Clade c = node == null ? parent : node;
-				c.setTaxonomy(new Taxonomy());
-				
-			} else if (qName.equals("id") && isTaxonomy) {
-				isId = true;
-				
-				Clade c = node == null ? parent : node;				
-		        if (attributes != null && attributes.getLength() > 0) {
-		        	for (int i = 0; i < attributes.getLength(); ++i) {
-		        		if (attributes.getQName(i).equals("provider")) {
-		        			c.getTaxonomy().setProvider(attributes.getValue(i));
-		        		}
-		        	}
-		        }
-				
-			} else if (qName.equals("code")) {
-				isCode = true;
-			} else if (qName.equals("scientific_name")) {
-				isScientificName = true;
-			} else if (qName.equals("common_name")) {
-				isCommonName = true;
-			} else if (qName.equals("rank")) {
-				isRank = true;
-			} else if (qName.equals("uri")) {
-				isUri = true;
-				
-			} else if (qName.equals("sequence")) {
-				isSequence = true;
-				Clade c = node == null ? parent : node;
-				c.setSequence(new Sequence());
-
-			} else if (qName.equals("accession")) {
-				isAccession = true;
-			} else if (qName.equals("location")) {
-				isLocation = true;
-			} else if (qName.equals("domain_architecture")) {
-				Clade c = node == null ? parent : node;
+				elements[elementDepth++] = code;
+				openCount[code]++;
+				text.setLength(0);
+				startElement(code);
+				break;
+
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (elementDepth > 0 && HAS_TEXT[elements[elementDepth - 1]])
+					text.append(xml.getTextCharacters(), xml.getTextStart(),
+							xml.getTextLength());
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				if (elementDepth == 0) // the phylogeny
+					return new DefaultTreeModel(root);
+				code = elements[--elementDepth];
+				endElement(code);
+				openCount[code]--;
+				break;
+
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("Unexpected end of document");
+			}
+		}
+	}
+
+	/**
+	 * The innermost clade, or the root before the first clade.
+	 */
+	private Clade clade() {
+		return cladeDepth == 0 ? root : clades[cladeDepth - 1];
+	}
+
+	private String attribute(String name) {
+		for (int i = 0, count = xml.getAttributeCount(); i < count; i++)
+			if (xml.getAttributeLocalName(i).equals(name))
+				return xml.getAttributeValue(i);
+		return null;
+	}
+
+	private void startElement(int code) {
+		Clade c = clade();
+		String value;
+		switch (code) {
+		case CLADE:
+			Clade node = new Clade();
+			if (cladeDepth == 0)
+				node.setBranchLength(0);
+			if ((value = attribute("branch_length")) != null)
+				node.setBranchLength(Double.parseDouble(value));
+			if (cladeDepth == clades.length) {
+				Clade[] larger = new Clade[2 * cladeDepth];
+				System.arraycopy(clades, 0, larger, 0, cladeDepth);
+				clades = larger;
+			}
+			clades[cladeDepth++] = node;
+			break;
+
+		case CONFIDENCE:
+			if (cladeDepth > 0 && openCount[EVENTS] == 0
+					&& openCount[ANNOTATION] == 0) {
+				confidence = new Confidence();
+				c.getConfidences().add(confidence);
+				if ((value = attribute("type")) != null)
+					confidence.setType(value);
+			}
+			break;
+
+		case TAXONOMY:
+			c.setTaxonomy(new Taxonomy());
+			break;
+
+		case ID:
+			if (openCount[TAXONOMY] > 0 && c.getTaxonomy() != null
+					&& (value = attribute("provider")) != null)
+				c.getTaxonomy().setProvider(value);
+			break;
+
+		case SEQUENCE:
+			c.setSequence(new Sequence());
+			break;
+
+		case DOMAIN_ARCHITECTURE:
+			if (c.getSequence() != null) {
 				DomainArchitecture da = new DomainArchitecture();
 				c.getSequence().setDomainArchitecture(da);
+				if ((value = attribute("length")) != null)
+					da.setLength(Integer.parseInt(value));
+			}
+			break;
 
-				if (attributes != null && attributes.getLength() > 0) {
-		        	for (int i = 0; i < attributes.getLength(); ++i) {
-		        		if (attributes.getQName(i).equals("length")) {
-		        			da.setLength(Integer.parseInt(attributes.getValue(i)));
-		        		}
-		        	}
-				}
-				
-			} else if (qName.equals("domain")) {
-				isDomain = true;
-				Clade c = node == null ? parent : node;
+		case DOMAIN:
+			if (c.getSequence() != null
+					&& c.getSequence().getDomainArchitecture() != null) {
 				Domain d = new Domain();
 				c.getSequence().getDomainArchitecture().getDomains().add(d);
-
-				if (attributes != null && attributes.getLength() > 0) {
-		        	for (int i = 0; i < attributes.getLength(); ++i) {
-		        		if (attributes.getQName(i).equals("from")) {
-		        			d.setFrom(Integer.parseInt(attributes.getValue(i)));
-		        		} else if (attributes.getQName(i).equals("to")) {
-			        		d.setTo(Integer.parseInt(attributes.getValue(i)));
-		        		} else if (attributes.getQName(i).equals("confidence")) {
-			        		d.setConfidence(Double.parseDouble(attributes.getValue(i)));
-		        		}
-		        	}
-		        }
-				
-			} else if (qName.equals("events")) {
-				isEvents = true;
-
-			} else if (qName.equals("annotation")) {
-				isAnnotation = true;
-				Clade c = node == null ? parent : node;
-				
-				if (isSequence) {
-					c.getSequence().getAnnotations().add(new Annotation());
-				} 
-				
-			} else if (qName.equals("distribution")) {
-				isDistribution = true;
-				Clade c = node == null ? parent : node;
-				Distribution d = new Distribution();
-				c.getDistributions().add(d);
-
-			} else if (qName.equals("desc")) {
-				isDescription = true;
-
-			} else if (qName.equals("reference")) {
-				Clade c = node == null ? parent : node;
-				Reference ref = new Reference();
-				c.getReferences().add(ref);
-		        if (attributes != null && attributes.getLength() > 0) {
-		        	for (int i = 0; i < attributes.getLength(); ++i) {
-		        		if (attributes.getQName(i).equals("doi")) {
-		        			ref.setDoi(attributes.getValue(i));
-		        		}
-		        	}
-		        }
-
-			} else if (qName.equals("red")) {
-				isRed = true;
-			} else if (qName.equals("green")) {
-				isGreen = true;
-			} else if (qName.equals("blue")) {
-				isBlue = true;
+				if ((value = attribute("from")) != null)
+					d.setFrom(Integer.parseInt(value));
+				if ((value = attribute("to")) != null)
+					d.setTo(Integer.parseInt(value));
+				if ((value = attribute("confidence")) != null)
+					d.setConfidence(Double.parseDouble(value));
 			}
+			break;
+
+		case ANNOTATION:
+			if (openCount[SEQUENCE] > 0 && c.getSequence() != null)
+				c.getSequence().getAnnotations().add(new Annotation());
+			break;
+
+		case DISTRIBUTION:
+			c.getDistributions().add(new Distribution());
+			break;
+
+		case REFERENCE:
+			Reference ref = new Reference();
+			c.getReferences().add(ref);
+			if ((value = attribute("doi")) != null)
+				ref.setDoi(value);
+			break;
+
+		case COLOR:
+			red = 0;
+			green = 0;
+			blue = 0;
+			break;
 		}
-		
-		public void endElement(String uri, String localName, String qName) {
-			// Abort after parsing the first tree
-			if (depth < 0)
-				return;
-
-			if (qName.equals("clade")) {
-				isClade = false;
-				--depth;
-				
-				// Abort after parsing the first tree
-				if (depth == 0)
-					depth = -1; 
-				
-				node = parent;
-				parent = (Clade)node.getParent();
-				
-			} else if (qName.equals("name")) {
-				isName = false;				
-			} else if (qName.equals("branch_length")) {
-				isLength = false;				
-			} else if (qName.equals("confidence")) {
-				isConfidence = false;
-				
-			} else if (qName.equals("taxonomy")) {
-				isTaxonomy = false;
-			} else if (qName.equals("id")) {
-				isId = false;
-			} else if (qName.equals("code")) {
-				isCode = false;
-			} else if (qName.equals("scientific_name")) {
-				isScientificName = false;
-			} else if (qName.equals("common_name")) {
-				isCommonName = false;
-			} else if (qName.equals("rank")) {
-				isRank = false;
-			} else if (qName.equals("uri")) {
-				isUri = false;
-				
-			} else if (qName.equals("sequence")) {
-				isSequence = false;
-			} else if (qName.equals("symbol")) {
-				isSymbol = false;
-			} else if (qName.equals("accession")) {
-				isAccession = false;
-			} else if (qName.equals("location")) {
-				isLocation = false;
-			} else if (qName.equals("domain")) {
-				isDomain = false;
-				
-			} else if (qName.equals("events")) {
-				isEvents = false;
-
-			} else if (qName.equals("annotation")) {
-				isAnnotation = false;
-
-			} else if (qName.equals("distribution")) {
-				isDistribution = false;
-			} else if (qName.equals("desc")) {
-				isDescription = false;
-
-			} else if (qName.equals("red")) {
-				isRed = false;
-			} else if (qName.equals("green")) {
-				isGreen = false;
-			} else if (qName.equals("blue")) {
-				isBlue = false;
-			}
+	}
+
+	private void endElement(int code) {
+		Clade c = clade();
+		if (code == CLADE) {
+			// Added to its parent only now, while the parent is not yet in
+			// a tree, so adding never searches ancestors
+			clades[--cladeDepth] = null;
+			clade().add(c);
+			return;
 		}
-		
-		public void characters(char ch[], int start, int length)
-        	  throws SAXException {
-			String s = new String(ch, start, length).trim();
-			if (s.length() <= 0)
-				return;
-						
-			if (isName && !isSequence) {
-				Clade clade = node == null ? parent : node;
-				clade.setUserObject(s);
-			
-			} else if (isLength) {
-				node.setBranchLength(Double.parseDouble(s));
-				
-			} else if (isConfidence && isClade && !isEvents && !isAnnotation) {
-//				System.err.println("confidence: " + s);
-				
-				Clade c = node == null ? parent : node;
-				c.getConfidences().get(c.getConfidences().size() - 1)
-					.setValue(Double.parseDouble(s));
-
-			} else if (isTaxonomy) {
-				if (isId) {
-					node.getTaxonomy().setId(s);
-				} else if (isCode) {
-					node.getTaxonomy().setCode(s);							
-				} else if (isScientificName) {
-					node.getTaxonomy().setScientificName(s);				
-				} else if (isCommonName) {
-					node.getTaxonomy().setCommonName(s);				
-				} else if (isRank) {
-					node.getTaxonomy().setRank(s);				
-				} else if (isUri) {
-					node.getTaxonomy().setUri(s);
-				}
-				
-			} else if (isSequence) {
-				if (isSymbol) {
-					node.getSequence().setSymbol(s);
-				} else if (isAccession) {
-					node.getSequence().setAccession(s);
-				} else if (isName) {
-					node.getSequence().setName(s);
-				} else if (isLocation) {
-					node.getSequence().setLocation(s);					
-				} else if (isUri) {
-					node.getSequence().setUri(s);
-				} else if (isDomain) {
-					List<Domain> dlist = node.getSequence().getDomainArchitecture().getDomains();
-					Domain d = dlist.get(dlist.size() - 1);
-					d.setValue(s);				
-				} else if (isAnnotation) {
-					if (isDescription) {
-						Annotation annot = node.getSequence().getAnnotations().get(
-								node.getSequence().getAnnotations().size()-1);
-						annot.setDescription(s);
-					}
-				}
-			} else if (isDistribution) {
-				if (isDescription) {
-					Distribution d = node.getDistributions().get(
-							node.getDistributions().size() - 1);
-					d.setDescription(s);
-				}
-				
-			} else if (isRed) {
-				Color c = node.getColor() == null ? new Color(0,0,0) : node.getColor();
-				node.setColor(new Color(Integer.parseInt(s), c.getGreen(), c.getBlue()));				
-			} else if (isGreen) {
-				Color c = node.getColor() == null ? new Color(0,0,0) : node.getColor();
-				node.setColor(new Color(c.getRed(), Integer.parseInt(s),  c.getBlue()));				
-			} else if (isBlue) {
-				Color c = node.getColor() == null ? new Color(0,0,0) : node.getColor();
-				node.setColor(new Color(c.getRed(), c.getGreen(), Integer.parseInt(s)));
+		if (code == COLOR) {
+			c.setColor(new Color(red, green, blue));
+			return;
+		}
+		if (!HAS_TEXT[code])
+			return;
+		String s = text();
+		if (s == null)
+			return;
+
+		Taxonomy taxonomy = openCount[TAXONOMY] > 0 ? c.getTaxonomy() : null;
+		Sequence sequence = openCount[SEQUENCE] > 0 ? c.getSequence() : null;
+		switch (code) {
+		case NAME:
+			if (sequence != null)
+				sequence.setName(s);
+			else if (openCount[SEQUENCE] == 0)
+				c.setUserObject(s);
+			break;
+
+		case BRANCH_LENGTH:
+			c.setBranchLength(Double.parseDouble(s));
+			break;
+
+		case CONFIDENCE:
+			if (confidence != null) {
+				confidence.setValue(Double.parseDouble(s));
+				confidence = null;
 			}
+			break;
+
+		case ID:
+			if (taxonomy != null)
+				taxonomy.setId(s);
+			break;
+		case CODE:
+			if (taxonomy != null)
+				taxonomy.setCode(s);
+			break;
+		case SCIENTIFIC_NAME:
+			if (taxonomy != null)
+				taxonomy.setScientificName(s);
+			break;
+		case COMMON_NAME:
+			if (taxonomy != null)
+				taxonomy.setCommonName(s);
+			break;
+		case RANK:
+			if (taxonomy != null)
+				taxonomy.setRank(s);
+			break;
+		case URI:
+			if (taxonomy != null)
+				taxonomy.setUri(s);
+			else if (sequence != null)
+				sequence.setUri(s);
+			break;
+
+		case SYMBOL:
+			if (sequence != null)
+				sequence.setSymbol(s);
+			break;
+		case ACCESSION:
+			if (sequence != null)
+				sequence.setAccession(s);
+			break;
+		case LOCATION:
+			if (sequence != null)
+				sequence.setLocation(s);
+			break;
+		case DOMAIN:
+			if (sequence != null && sequence.getDomainArchitecture() != null) {
+				List<Domain> domains = sequence.getDomainArchitecture().getDomains();
+				if (domains.size() > 0)
+					domains.get(domains.size() - 1).setValue(s);
+			}
+			break;
+
+		case DESC:
+			if (sequence != null && openCount[ANNOTATION] > 0) {
+				List<Annotation> annotations = sequence.getAnnotations();
+				if (annotations.size() > 0)
+					annotations.get(annotations.size() - 1).setDescription(s);
+			} else if (openCount[DISTRIBUTION] > 0) {
+				List<Distribution> distributions = c.getDistributions();
+				if (distributions.size() > 0)
+					distributions.get(distributions.size() - 1).setDescription(s);
+			}
+			break;
+
+		case RED:
+			red = Integer.parseInt(s);
+			break;
+		case GREEN:
+			green = Integer.parseInt(s);
+			break;
+		case BLUE:
+			blue = Integer.parseInt(s);
+			break;
 		}
 	}
+
+	/**
+	 * @return the text of the element that just ended, trimmed, or null if
+	 * it is blank
+	 */
+	private String text() {
+		int start = 0;
+		int end = text.length();
+		while (start < end && text.charAt(start) <= ' ')
+			start++;
+		while (end > start && text.charAt(end - 1) <= ' ')
+			end--;
+		return start == end ? null : text.substring(start, end);
+	}
 }
@@ -0,0 +1,135 @@
+package com.sugen.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read a stream ahead on a thread of its own, a large chunk at a time, so
+ * that decompressing it overlaps with parsing it. At most a few chunks are
+ * held at once. The thread stops at the end of the stream, at an error,
+ * which is thrown to the reader, unchecked or not, or when this is closed.
+ *
+ * @see Decompressor
+ */
+class ReadAheadInputStream extends InputStream {
+	private final static int CHUNK = 1 << 20;
+	private final static int CHUNKS = 4;
+	private final static byte[] END = new byte[0];
+
+	private BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(CHUNKS);
+	private volatile Throwable error; // IOException or unchecked
+	private volatile boolean isClosed;
+	private Thread thread;
+	private byte[] chunk = new byte[0];
+	private int position;
+
+	/**
+	 * Start reading.
+	 * @param in read and closed by the thread
+	 */
+	ReadAheadInputStream(final InputStream in) {
+		thread = new Thread("Read ahead") {
+			public void run() {
+				try {
+					readAhead(in);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable e) {
+					error = e; // even unchecked, or the reader would wait forever
+				} finally {
+					try {
+						in.close();
+					} catch (IOException ignored) {}
+				}
+				try {
+					chunks.put(END);
+				} catch (InterruptedException ignored) {}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void readAhead(InputStream in) throws IOException,
+			InterruptedException {
+		while (!isClosed) {
+			byte[] bytes = new byte[CHUNK];
+			int length = 0;
+			int count = 0;
+			while (length < CHUNK
+					&& (count = in.read(bytes, length, CHUNK - length)) >= 0)
+				length += count;
+			if (length < CHUNK) {
+				byte[] shorter = new byte[length];
+				System.arraycopy(bytes, 0, shorter, 0, length);
+				bytes = shorter;
+			}
+			if (length > 0)
+				chunks.put(bytes);
+			if (count < 0)
+				return;
+		}
+	}
+
+	public int read() throws IOException {
+		if (position == chunk.length && !next())
+			return -1;
+		return chunk[position++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position == chunk.length && !next())
+			return -1;
+		int count = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	public int available() {
+		return chunk.length - position;
+	}
+
+	/**
+	 * Wait for the next chunk.
+	 * @return false at the end
+	 */
+	private boolean next() throws IOException {
+		if (chunk == END)
+			return false;
+		if (isClosed)
+			throw new IOException("Stream closed");
+		try {
+			chunk = chunks.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while reading");
+		}
+		position = 0;
+		if (chunk == END) {
+			if (error instanceof IOException)
+				throw (IOException)error;
+			if (error instanceof RuntimeException)
+				throw (RuntimeException)error;
+			if (error instanceof Error)
+				throw (Error)error;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the thread, which closes the stream read from.
+	 */
+	public void close() {
+		isClosed = true;
+		thread.interrupt();
+		chunks.clear();
+		chunk = END;
+		position = 0;
+	}
+}
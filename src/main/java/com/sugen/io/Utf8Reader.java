@@ -0,0 +1,189 @@
+package com.sugen.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decode UTF-8, and so ASCII, straight from the bytes of a file or stream,
+ * without the platform default encoding. Files are memory-mapped a window
+ * at a time, so files larger than memory, or than a single mapping, are
+ * read without copying them onto the heap; streams are read through a
+ * small buffer. Runs of ASCII, as in tree and matrix files, are copied a
+ * byte to a character; other characters are decoded by hand, and
+ * malformed bytes become U+FFFD.
+ *
+ * @see AbstractReader
+ */
+class Utf8Reader extends Reader {
+	// Bytes mapped at once
+	private final static int WINDOW = 1 << 26;
+	private final static char REPLACEMENT = '\ufffd';
+
+	private final int window;
+	private ReadableByteChannel channel;
+	private FileChannel file; // if mapped
+	private long size;
+	private long windowStart;
+	private ByteBuffer bytes;
+	private boolean isEnd;
+	private int pendingLowSurrogate = -1;
+
+	/**
+	 * @param file read from its start
+	 * @param isMapped if true, map the file; otherwise read it through a
+	 * buffer
+	 */
+	Utf8Reader(FileChannel file, boolean isMapped) throws IOException {
+		this(file, isMapped, isMapped ? WINDOW : 1 << 16);
+	}
+
+	/**
+	 * For tests, so that windows and buffers end inside characters.
+	 * @param window bytes mapped, or buffered, at once; at least 4
+	 */
+	Utf8Reader(FileChannel file, boolean isMapped, int window)
+			throws IOException {
+		this.window = window;
+		channel = file;
+		if (isMapped) {
+			this.file = file;
+			size = file.size();
+			bytes = ByteBuffer.allocate(0);
+		} else {
+			bytes = ByteBuffer.allocate(window);
+			bytes.flip();
+		}
+	}
+
+	Utf8Reader(InputStream is) {
+		this(is, 1 << 16);
+	}
+
+	/**
+	 * For tests, so that buffers end inside characters.
+	 * @param window bytes buffered at once; at least 4
+	 */
+	Utf8Reader(InputStream is, int window) {
+		this.window = window;
+		channel = Channels.newChannel(is);
+		bytes = ByteBuffer.allocate(window);
+		bytes.flip();
+	}
+
+	public int read(char[] chars, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		int end = off + len;
+		int k = off;
+		if (pendingLowSurrogate >= 0) {
+			chars[k++] = (char)pendingLowSurrogate;
+			pendingLowSurrogate = -1;
+		}
+		while (k < end) {
+			if (!bytes.hasRemaining() && !fill(1))
+				break;
+
+			// ASCII
+			int p = bytes.position();
+			int stop = p + Math.min(end - k, bytes.limit() - p);
+			byte b = 0;
+			while (p < stop && (b = bytes.get(p)) >= 0) {
+				chars[k++] = (char)b;
+				p++;
+			}
+			bytes.position(p);
+			if (p == stop)
+				continue;
+
+			// A sequence of two to four bytes
+			int lead = b & 0xff;
+			int count = lead >= 0xc2 && lead <= 0xdf ? 1
+				: lead >= 0xe0 && lead <= 0xef ? 2
+				: lead >= 0xf0 && lead <= 0xf4 ? 3 : 0;
+			if (count == 0 || bytes.remaining() <= count && !fill(count + 1)) {
+				bytes.get();
+				chars[k++] = REPLACEMENT;
+				continue;
+			}
+			p = bytes.position();
+			int c = lead & (0x3f >> count);
+			int i = 1;
+			for (; i <= count; i++) {
+				int next = bytes.get(p + i) & 0xff;
+				if ((next & 0xc0) != 0x80)
+					break;
+				c = c << 6 | next & 0x3f;
+			}
+			if (i <= count || count == 2 && (c < 0x800 || c >= 0xd800 && c <= 0xdfff)
+					|| count == 3 && (c < 0x10000 || c > 0x10ffff)) {
+				bytes.position(p + 1);
+				chars[k++] = REPLACEMENT;
+				continue;
+			}
+			bytes.position(p + count + 1);
+			if (c < 0x10000) {
+				chars[k++] = (char)c;
+			} else {
+				c -= 0x10000;
+				chars[k++] = (char)(0xd800 + (c >> 10));
+				char low = (char)(0xdc00 + (c & 0x3ff));
+				if (k < end)
+					chars[k++] = low;
+				else
+					pendingLowSurrogate = low;
+			}
+		}
+		return k == off ? -1 : k - off;
+	}
+
+	/**
+	 * Make at least some bytes available after the position, keeping the
+	 * ones that are left.
+	 * @return true if there are as many as needed, false at the end
+	 */
+	private boolean fill(int needed) throws IOException {
+		if (bytes.remaining() >= needed)
+			return true;
+		if (isEnd)
+			return false;
+		if (file != null) {
+			windowStart += bytes.position();
+			long length = Math.min(window, size - windowStart);
+			if (length <= 0) {
+				isEnd = true;
+				return false;
+			}
+			bytes = file.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+			isEnd = windowStart + length == size;
+			return bytes.remaining() >= needed;
+		}
+
+		bytes.compact();
+		try {
+			while (bytes.position() < needed) {
+				if (channel.read(bytes) < 0) {
+					isEnd = true;
+					break;
+				}
+			}
+		} finally {
+			bytes.flip();
+		}
+		return bytes.remaining() >= needed;
+	}
+
+	public boolean ready() {
+		return bytes.hasRemaining() || pendingLowSurrogate >= 0;
+	}
+
+	public void close() throws IOException {
+		bytes = ByteBuffer.allocate(0);
+		isEnd = true;
+		channel.close();
+	}
+}
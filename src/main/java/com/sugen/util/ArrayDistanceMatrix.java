@@ -0,0 +1,55 @@
+package com.sugen.util;
+
+/**
+ * A distance matrix backed by a square double[][] array.
+ * The array is not copied, and need not be symmetric.
+ */
+public class ArrayDistanceMatrix implements DistanceMatrix {
+	private double[][] data;
+	private String[] labels;
+
+	/**
+	 * Constructor.
+	 * @param data a square matrix
+	 * @throws IllegalArgumentException if the matrix is not square
+	 */
+	public ArrayDistanceMatrix(double[][] data) {
+		this(data, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param data a square matrix
+	 * @param labels a label for each row/column, or null
+	 * @throws IllegalArgumentException if the matrix is not square
+	 */
+	public ArrayDistanceMatrix(double[][] data, String[] labels) {
+		if (data.length > 0 && data.length != data[0].length)
+			throw new IllegalArgumentException("Distance matrix must be square");
+		this.data = data;
+		this.labels = labels;
+	}
+
+	public int size() {
+		return data.length;
+	}
+
+	public double get(int row, int col) {
+		return data[row][col];
+	}
+
+	public void set(int row, int col, double value) {
+		data[row][col] = value;
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the underlying array
+	 */
+	public double[][] getArray() {
+		return data;
+	}
+}
@@ -0,0 +1,344 @@
+package com.sugen.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bootstrap support for the clusters of a tree built from a feature
+ * matrix. The columns of the matrix are resampled with replacement many
+ * times, a tree is built from each replicate, and each cluster of the
+ * reference tree is given the number of replicate trees that have a
+ * cluster with exactly the same leaves, as its confidence. That is the
+ * replicate count of PHYLIP bootstrap trees, written by PhylipWriter.
+ * <p>
+ * Given an executor, replicates run in parallel, one per task. Each task
+ * claims the next replicate as soon as it is done with the last, so tasks
+ * that are slowed down take on fewer replicates. Each task reuses its own
+ * resampled matrix and distance matrix, which it clusters in place, so
+ * memory does not grow with the number of replicates. Each replicate has
+ * its own random number generator, seeded from the seed and its number, so
+ * the results do not depend on the number of threads.
+ * <p>
+ * Clusters are compared by a hash of their leaves: a sum of random 64-bit
+ * numbers, one per leaf. Different clusters collide with negligible
+ * probability.
+ *
+ * @see Clade#setConfidence(double)
+ */
+public class Bootstrap {
+	private FeatureMatrix features;
+	private String[] labels;
+	private String metric;
+	private String linkageMethod;
+	private int replicates = 100;
+	private long seed = 1;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private volatile boolean isCancelled;
+	private volatile HierarchicalCluster reference;
+	private volatile HierarchicalCluster[] running; // by task
+
+	/**
+	 * Constructor.
+	 * @param features one row per leaf and one column per sample, with row
+	 * labels
+	 * @param metric one of DistanceCalculator.METRICS
+	 * @param linkageMethod one of HierarchicalCluster.LINKAGE_METHODS; with
+	 * neighbor joining, clusters depend on where the trees are rooted
+	 * @throws IllegalArgumentException if the rows have no labels
+	 */
+	public Bootstrap(FeatureMatrix features, String metric, String linkageMethod) {
+		if (features.getRowLabels() == null)
+			throw new IllegalArgumentException("Rows must have labels");
+		this.features = features;
+		this.labels = features.getRowLabels();
+		this.metric = metric;
+		this.linkageMethod = linkageMethod;
+	}
+
+	/**
+	 * Build the reference tree from all the columns, and assess it.
+	 * @return the tree, with the support of each cluster as its confidence
+	 * @throws CancellationException if cancelled
+	 */
+	public Clade cluster() {
+		try {
+			DistanceCalculator calculator = new DistanceCalculator(features, metric);
+			calculator.setExecutor(executor);
+			calculator.setParallelism(parallelism);
+			HierarchicalCluster hc = new HierarchicalCluster(distances(calculator,
+					null), labels, linkageMethod);
+			hc.setExecutor(executor);
+			hc.setParallelism(parallelism);
+			hc.setInPlace(true);
+			reference = hc;
+			if (isCancelled)
+				throw new CancellationException("Clustering cancelled");
+			Clade root = hc.cluster();
+			reference = null;
+			assess(root);
+			return root;
+		} finally {
+			reference = null;
+			isCancelled = false;
+		}
+	}
+
+	/**
+	 * Set the confidence of every cluster of a tree to the number of
+	 * replicate trees with the same cluster. Leaves are not changed.
+	 * @param root a tree whose leaves are labeled with the row labels of the
+	 * features, the same String objects, as from cluster()
+	 * @throws IllegalArgumentException if a leaf label is not a row label
+	 * @throws CancellationException if cancelled
+	 */
+	public void assess(Clade root) {
+		final int n = labels.length;
+		final Map<String, Integer> index = new IdentityHashMap<String, Integer>();
+		for (int i = 0; i < n; i++)
+			index.put(labels[i], Integer.valueOf(i));
+		final long[] leafKeys = new long[n];
+		Random random = new Random(seed);
+		for (int i = 0; i < n; i++)
+			leafKeys[i] = random.nextLong();
+
+		// The clusters of the reference tree, by hash
+		int capacity = Math.max(1, 2 * n);
+		long[] hashes = new long[capacity];
+		int[] sizes = new int[capacity];
+		Clade[] clusters = new Clade[capacity];
+		int clusterCount = hashClusters(root, index, leafKeys, hashes, sizes,
+				clusters);
+		final Map<Long, Integer> ids = new HashMap<Long, Integer>();
+		final int[] clusterSizes = new int[clusterCount];
+		for (int k = 0; k < clusterCount; k++) {
+			ids.put(Long.valueOf(hashes[k]), Integer.valueOf(k));
+			clusterSizes[k] = sizes[k];
+		}
+
+		int tasks = executor == null ? 1 : Math.max(1, Math.min(parallelism,
+				replicates));
+		final int[][] counts = new int[tasks][clusterCount];
+		final AtomicInteger next = new AtomicInteger();
+		running = new HierarchicalCluster[tasks];
+		try {
+			ParallelLoop.run(executor, ParallelLoop.split(0, tasks, tasks),
+					new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					runReplicates(chunk, next, index, leafKeys, ids,
+							clusterSizes, counts[chunk]);
+				}
+			});
+		} finally {
+			running = null;
+			isCancelled = false;
+		}
+
+		for (int k = 0; k < clusterCount; k++) {
+			int count = 0;
+			for (int t = 0; t < tasks; t++)
+				count += counts[t][k];
+			clusters[k].setConfidence(count);
+		}
+	}
+
+	/**
+	 * Run replicates until there are none left, counting the clusters of
+	 * the reference tree that they have.
+	 */
+	private void runReplicates(int task, AtomicInteger next,
+			Map<String, Integer> index, long[] leafKeys, Map<Long, Integer> ids,
+			int[] clusterSizes, int[] counts) {
+		int n = labels.length;
+		int m = features.getColumnCount();
+		float[] data = features.getData();
+		FeatureMatrix sample = new FeatureMatrix(n, m);
+		sample.setRowLabels(labels);
+		float[] sampleData = sample.getData();
+		DistanceCalculator calculator = new DistanceCalculator(sample, metric);
+		FloatDistanceMatrix scratch = null;
+		int[] columns = new int[m];
+		int capacity = Math.max(1, 2 * n);
+		long[] hashes = new long[capacity];
+		int[] sizes = new int[capacity];
+
+		for (int r = next.getAndIncrement(); r < replicates;
+				r = next.getAndIncrement()) {
+			if (isCancelled)
+				throw new CancellationException("Clustering cancelled");
+			Random random = new Random(seed + 0x9E3779B97F4A7C15L * (r + 1));
+			for (int k = 0; k < m; k++)
+				columns[k] = random.nextInt(m);
+			for (int i = 0; i < n; i++) {
+				int x = i * m;
+				for (int k = 0; k < m; k++)
+					sampleData[x + k] = data[x + columns[k]];
+			}
+
+			DistanceMatrix distances = distances(calculator, scratch);
+			if (distances instanceof FloatDistanceMatrix)
+				scratch = (FloatDistanceMatrix)distances;
+			HierarchicalCluster hc = new HierarchicalCluster(distances, labels,
+					linkageMethod);
+			hc.setInPlace(true);
+			HierarchicalCluster[] jobs = running;
+			if (jobs != null)
+				jobs[task] = hc;
+			if (isCancelled)
+				throw new CancellationException("Clustering cancelled");
+			Clade tree = hc.cluster();
+
+			int count = hashClusters(tree, index, leafKeys, hashes, sizes, null);
+			for (int k = 0; k < count; k++) {
+				Integer id = ids.get(Long.valueOf(hashes[k]));
+				if (id != null && clusterSizes[id.intValue()] == sizes[k])
+					counts[id.intValue()]++;
+			}
+		}
+	}
+
+	/**
+	 * The distances between the rows, computed on the fly if they are
+	 * clustered from the features, otherwise into the scratch matrix, if
+	 * any.
+	 */
+	private DistanceMatrix distances(DistanceCalculator calculator,
+			FloatDistanceMatrix scratch) {
+		if (DistanceCalculator.EUCLIDEAN.equals(metric)
+				&& FeatureLinkage.isSupported(linkageMethod))
+			return calculator.createView();
+		return scratch == null ? calculator.compute() : calculator.compute(scratch);
+	}
+
+	/**
+	 * Hash the leaves of every internal node of a tree, children first,
+	 * without recursion, since clustering trees can be very deep.
+	 * @param hashes receives the hash of each internal node
+	 * @param sizes receives the number of leaves of each internal node
+	 * @param nodes receives each internal node, or null
+	 * @return number of internal nodes
+	 */
+	private static int hashClusters(Clade root, Map<String, Integer> index,
+			long[] leafKeys, long[] hashes, int[] sizes, Clade[] nodes) {
+		int capacity = hashes.length;
+		Clade[] stack = new Clade[capacity];
+		int[] nextChild = new int[capacity];
+		long[] stackHash = new long[capacity];
+		int[] stackSize = new int[capacity];
+		int count = 0;
+		int depth = 0;
+		stack[0] = root;
+		while (depth >= 0) {
+			Clade node = stack[depth];
+			if (nextChild[depth] < node.getChildCount()) {
+				if (depth + 1 == capacity)
+					throw new IllegalArgumentException("Too many internal nodes");
+				stack[depth + 1] = (Clade)node.getChildAt(nextChild[depth]++);
+				++depth;
+				nextChild[depth] = 0;
+				stackHash[depth] = 0;
+				stackSize[depth] = 0;
+				continue;
+			}
+
+			long hash;
+			int size;
+			if (node.isLeaf()) {
+				Integer i = node.getUserObject() == null ? null
+						: index.get(node.toString());
+				if (i == null)
+					throw new IllegalArgumentException("Unknown leaf: " + node);
+				hash = leafKeys[i.intValue()];
+				size = 1;
+			} else {
+				if (count == capacity)
+					throw new IllegalArgumentException("Too many internal nodes");
+				hash = stackHash[depth];
+				size = stackSize[depth];
+				hashes[count] = hash;
+				sizes[count] = size;
+				if (nodes != null)
+					nodes[count] = node;
+				++count;
+			}
+			if (--depth >= 0) {
+				stackHash[depth] += hash;
+				stackSize[depth] += size;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stop. May be called from any thread; cluster() or assess() then
+	 * throws a CancellationException soon after.
+	 */
+	public void cancel() {
+		isCancelled = true;
+		HierarchicalCluster hc = reference;
+		if (hc != null)
+			hc.cancel();
+		HierarchicalCluster[] jobs = running;
+		if (jobs != null)
+			for (int t = 0; t < jobs.length; t++)
+				if (jobs[t] != null)
+					jobs[t].cancel();
+	}
+
+	public int getReplicates() {
+		return replicates;
+	}
+
+	/**
+	 * @param replicates number of resamplings; 100 by default
+	 */
+	public void setReplicates(int replicates) {
+		if (replicates < 1)
+			throw new IllegalArgumentException("Invalid number of replicates: "
+					+ replicates);
+		this.replicates = replicates;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @param seed for the random resampling; the same seed gives the same
+	 * support
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Run replicates on this executor. If null, the default, everything
+	 * runs in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Maximum number of replicates run at once. Defaults to the number of
+	 * processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+}
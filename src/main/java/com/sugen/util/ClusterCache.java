@@ -0,0 +1,290 @@
+package com.sugen.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A bounded cache of clustering results, so that clustering the same
+ * matrix again with the same linkage method, for example to switch back
+ * and forth between linkages or to view a heatmap of the tree on display,
+ * costs a lookup instead of minutes.
+ * <p>
+ * Results are kept as Dendrograms, keyed by the linkage method and a
+ * fingerprint of the contents of the distance matrix, so equal matrices
+ * share results whatever their type or labels. The least recently used
+ * results are evicted once the cache holds more than a given number of
+ * leaves in all. Given a spill directory, evicted results are written
+ * there instead of being dropped, and read back when next needed. The
+ * files are deleted when the VM exits.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @see HierarchicalCluster#setCache(ClusterCache)
+ */
+public class ClusterCache {
+	/**
+	 * The fingerprint is computed over this many row ranges, in parallel
+	 * given an executor. The number is fixed so that fingerprints do not
+	 * depend on the number of threads.
+	 */
+	private final static int FINGERPRINT_BLOCKS = 64;
+	private final static String SPILL_EXTENSION = ".dendrogram";
+
+	private int capacity;
+	private long leafCount; // in memory
+	private File spillDirectory;
+	private Map<String, File> spilled = new LinkedHashMap<String, File>();
+	private LinkedHashMap<String, Dendrogram> results
+		= new LinkedHashMap<String, Dendrogram>(16, 0.75f, true);
+
+	/**
+	 * Constructor.
+	 * @param capacity maximum total number of leaves of the results kept
+	 * in memory
+	 */
+	public ClusterCache(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Write evicted results to files in this directory instead of dropping
+	 * them.
+	 * @param directory null, the default, to drop them
+	 */
+	public synchronized void setSpillDirectory(File directory) {
+		spillDirectory = directory;
+	}
+
+	public synchronized File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * The key for the results of clustering a matrix.
+	 * @param executor computes the fingerprint in parallel; may be null
+	 * @param method linkage method, or any other name for how the matrix
+	 * was clustered
+	 */
+	public static String key(DistanceMatrix matrix, String method,
+			ExecutorService executor) {
+		return key(fingerprint(matrix, executor), method);
+	}
+
+	/**
+	 * The key for the results of clustering a matrix with this
+	 * fingerprint, when clustering it several ways.
+	 */
+	public static String key(String fingerprint, String method) {
+		return method + ":" + fingerprint;
+	}
+
+	/**
+	 * A SHA-1 digest of the size and the lower triangle of a matrix, as a
+	 * hexadecimal string. Reads every distance, so it takes O(n^2) time,
+	 * but that is much less than clustering. For a SparseDistanceGraph,
+	 * a digest of its edges, in time proportional to their number, and for
+	 * a DistanceCalculator view, of the rows it computes distances from.
+	 */
+	public static String fingerprint(final DistanceMatrix matrix,
+			ExecutorService executor) {
+		int n = matrix.size();
+		if (matrix instanceof SparseDistanceGraph)
+			return fingerprint((SparseDistanceGraph)matrix);
+		if (matrix instanceof DistanceCalculator.DistanceView)
+			return fingerprint((DistanceCalculator.DistanceView)matrix);
+		int[] bounds = ParallelLoop.splitTriangle(0, n, FINGERPRINT_BLOCKS);
+		final byte[][] digests = new byte[bounds.length - 1][];
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				MessageDigest digest = newDigest();
+				double[] row = new double[to];
+				ByteBuffer bytes = ByteBuffer.allocate(8 * to);
+				for (int i = from; i < to; i++) {
+					if (matrix instanceof PackedDistanceMatrix) {
+						((PackedDistanceMatrix)matrix).getRow(i, row, 0, i + 1);
+					} else {
+						for (int j = 0; j <= i; j++)
+							row[j] = matrix.get(i, j);
+					}
+					bytes.clear();
+					for (int j = 0; j <= i; j++)
+						bytes.putLong(Double.doubleToLongBits(row[j]));
+					digest.update(bytes.array(), 0, bytes.position());
+				}
+				digests[chunk] = digest.digest();
+			}
+		});
+
+		MessageDigest digest = newDigest();
+		digest.update(ByteBuffer.allocate(4).putInt(n).array());
+		for (int c = 0; c < digests.length; c++)
+			digest.update(digests[c]);
+		return toHex(digest.digest());
+	}
+
+	private static String fingerprint(SparseDistanceGraph graph) {
+		int[] rowStart = graph.getRowStart();
+		int[] columns = graph.getColumns();
+		float[] distances = graph.getDistances();
+		MessageDigest digest = newDigest();
+		ByteBuffer bytes = ByteBuffer.allocate(8 * 1024);
+		bytes.putInt(-graph.size()); // unlike any full matrix
+		for (int i = 0; i < rowStart.length; i++) {
+			if (bytes.remaining() < 4) {
+				digest.update(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			}
+			bytes.putInt(rowStart[i]);
+		}
+		for (int e = 0; e < columns.length; e++) {
+			if (bytes.remaining() < 8) {
+				digest.update(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			}
+			bytes.putInt(columns[e]);
+			bytes.putFloat(distances[e]);
+		}
+		digest.update(bytes.array(), 0, bytes.position());
+		return toHex(digest.digest());
+	}
+
+	private static String fingerprint(DistanceCalculator.DistanceView view) {
+		float[] data = view.getData();
+		MessageDigest digest = newDigest();
+		ByteBuffer bytes = ByteBuffer.allocate(8 * 1024);
+		bytes.putInt(Integer.MIN_VALUE); // unlike any matrix or graph
+		bytes.putInt(view.size());
+		bytes.putInt(view.getColumnCount());
+		bytes.put((byte)(view.isEuclidean() ? 1 : 0));
+		for (int i = 0; i < data.length; i++) {
+			if (bytes.remaining() < 4) {
+				digest.update(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			}
+			bytes.putFloat(data[i]);
+		}
+		digest.update(bytes.array(), 0, bytes.position());
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer(2 * bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	/**
+	 * @return the result for a key, or null if there is none
+	 */
+	public synchronized Dendrogram get(String key) {
+		Dendrogram result = results.get(key);
+		if (result != null)
+			return result;
+		File file = spilled.remove(key);
+		if (file == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				result = Dendrogram.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null; // as if it had been dropped
+		} finally {
+			file.delete();
+		}
+		put(key, result);
+		return result;
+	}
+
+	public synchronized void put(String key, Dendrogram result) {
+		Dendrogram old = results.put(key, result);
+		if (old != null)
+			leafCount -= old.size();
+		leafCount += result.size();
+		File file = spilled.remove(key);
+		if (file != null)
+			file.delete();
+
+		// Evict the least recently used, but never the newest
+		Iterator<Map.Entry<String, Dendrogram>> i = results.entrySet().iterator();
+		while (leafCount > capacity && results.size() > 1) {
+			Map.Entry<String, Dendrogram> eldest = i.next();
+			leafCount -= eldest.getValue().size();
+			i.remove();
+			spill(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	/**
+	 * Write a result to the spill directory, if any. Results that cannot
+	 * be written are dropped.
+	 */
+	private void spill(String key, Dendrogram result) {
+		if (spillDirectory == null)
+			return;
+		File file = null;
+		try {
+			file = File.createTempFile("cluster", SPILL_EXTENSION, spillDirectory);
+			file.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			try {
+				result.write(out);
+			} finally {
+				out.close();
+			}
+			spilled.put(key, file);
+		} catch (IOException e) {
+			if (file != null)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Remove all results, in memory and spilled.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		leafCount = 0;
+		for (Iterator<File> i = spilled.values().iterator(); i.hasNext(); )
+			i.next().delete();
+		spilled.clear();
+	}
+
+	/**
+	 * @return number of results, in memory and spilled
+	 */
+	public synchronized int size() {
+		return results.size() + spilled.size();
+	}
+}
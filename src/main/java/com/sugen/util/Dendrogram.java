@@ -0,0 +1,236 @@
+package com.sugen.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A compact, label-free copy of a clustering tree: the merges in order, the
+ * height of each merge, the branch lengths and the order of the leaves.
+ * It takes a few arrays instead of a Clade per node, and can be written to
+ * a stream, so results can be kept and turned back into trees later.
+ * <p>
+ * Nodes are numbered as follows. Leaf i is row i of the distance matrix.
+ * Merge k creates node size() + k from two or more nodes created before
+ * it, so the last merge is the root. A tree with a single leaf has no
+ * merges.
+ *
+ * @see ClusterCache
+ */
+public class Dendrogram {
+	private int size; // number of leaves
+	private int[] childStart; // children of merge k are [childStart[k], childStart[k + 1])
+	private int[] children;
+	private double[] heights; // by merge
+	private double[] branchLengths; // by node
+	private int[] permutation; // leaves in depth-first order
+
+	private Dendrogram() {}
+
+	/**
+	 * Copy a tree.
+	 * @param root a tree whose leaves are labeled with the labels of a
+	 * distance matrix, the same String objects
+	 * @param labels leaf labels for each row/column in the distance matrix
+	 * @throws IllegalArgumentException if a leaf label is not one of the
+	 * labels, or appears twice
+	 */
+	public static Dendrogram fromTree(Clade root, String[] labels) {
+		Map<String, Integer> index = new IdentityHashMap<String, Integer>();
+		for (int i = 0; i < labels.length; i++)
+			index.put(labels[i], Integer.valueOf(i));
+
+		int n = labels.length;
+		Dendrogram d = new Dendrogram();
+		d.size = n;
+		double[] branchLengths = new double[Math.max(1, 2 * n - 1)];
+		d.permutation = new int[n];
+		int[] childStart = new int[n];
+		int[] children = new int[Math.max(0, 2 * n - 2)];
+		double[] heights = new double[n];
+		boolean[] isSeen = new boolean[n];
+		int leafCount = 0;
+		int merges = 0;
+		int edges = 0;
+
+		// Children come before their parents. Clustering trees can be as
+		// deep as they have leaves, too deep for a recursive enumeration.
+		Map<Clade, Integer> ids = new IdentityHashMap<Clade, Integer>();
+		Clade[] stack = new Clade[Math.max(1, 2 * n - 1)];
+		int[] nextChild = new int[stack.length];
+		int depth = 0;
+		stack[0] = root;
+		while (depth >= 0) {
+			Clade node = stack[depth];
+			if (nextChild[depth] < node.getChildCount()) {
+				if (depth + 1 == stack.length)
+					throw new IllegalArgumentException("Too many internal nodes");
+				stack[depth + 1] = (Clade)node.getChildAt(nextChild[depth]++);
+				nextChild[++depth] = 0;
+				continue;
+			}
+			--depth;
+			int id;
+			if (node.isLeaf()) {
+				Integer i = node.getUserObject() == null ? null
+						: index.get(node.toString());
+				if (i == null || isSeen[i.intValue()])
+					throw new IllegalArgumentException("Unknown leaf: " + node);
+				id = i.intValue();
+				isSeen[id] = true;
+				d.permutation[leafCount++] = id;
+			} else {
+				if (merges == childStart.length - 1 
+						|| edges + node.getChildCount() > children.length)
+					throw new IllegalArgumentException("Too many internal nodes");
+				childStart[merges] = edges;
+				double height = 0;
+				for (int c = 0; c < node.getChildCount(); c++) {
+					int child = ids.get(node.getChildAt(c)).intValue();
+					children[edges++] = child;
+					height = Math.max(height, d.height(child, heights)
+							+ branchLengths[child]);
+				}
+				heights[merges] = height;
+				id = n + merges++;
+			}
+			branchLengths[id] = node.getBranchLength();
+			ids.put(node, Integer.valueOf(id));
+		}
+		if (leafCount != n)
+			throw new IllegalArgumentException("Tree has " + leafCount
+					+ " leaves but there are " + n + " labels");
+
+		d.childStart = new int[merges + 1];
+		System.arraycopy(childStart, 0, d.childStart, 0, merges);
+		d.childStart[merges] = edges;
+		d.children = new int[edges];
+		System.arraycopy(children, 0, d.children, 0, edges);
+		d.heights = new double[merges];
+		System.arraycopy(heights, 0, d.heights, 0, merges);
+		d.branchLengths = new double[n + merges];
+		System.arraycopy(branchLengths, 0, d.branchLengths, 0, n + merges);
+		return d;
+	}
+
+	private double height(int node, double[] heights) {
+		return node < size ? 0 : heights[node - size];
+	}
+
+	/**
+	 * Build the tree. Each call makes a new tree.
+	 * @param labels leaf labels for each row/column in the distance matrix
+	 */
+	public Clade toTree(String[] labels) {
+		if (labels.length != size)
+			throw new IllegalArgumentException("Expected " + size + " labels");
+		int merges = getMergeCount();
+		Clade[] nodes = new Clade[size + merges];
+		for (int i = 0; i < size; i++)
+			nodes[i] = new Clade(labels[i], branchLengths[i]);
+		for (int k = 0; k < merges; k++) {
+			Clade node = new Clade();
+			node.setBranchLength(branchLengths[size + k]);
+			for (int c = childStart[k]; c < childStart[k + 1]; c++)
+				node.add(nodes[children[c]]);
+			nodes[size + k] = node;
+		}
+		return nodes.length == 0 ? null : nodes[nodes.length - 1];
+	}
+
+	/**
+	 * @return number of leaves
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getMergeCount() {
+		return heights.length;
+	}
+
+	/**
+	 * @return the nodes joined by merge k
+	 */
+	public int[] getChildren(int k) {
+		int[] result = new int[childStart[k + 1] - childStart[k]];
+		System.arraycopy(children, childStart[k], result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return height of merge k above its deepest leaf; for clustering
+	 * trees, the distance at which the clusters were joined
+	 */
+	public double getHeight(int k) {
+		return heights[k];
+	}
+
+	public double getBranchLength(int node) {
+		return branchLengths[node];
+	}
+
+	/**
+	 * @return the rows of the distance matrix in the order of the leaves
+	 * of the tree
+	 */
+	public int[] getPermutation() {
+		return permutation;
+	}
+
+	/**
+	 * Approximate memory use in bytes.
+	 */
+	public long getMemorySize() {
+		return 4L * (childStart.length + children.length + permutation.length)
+			+ 8L * (heights.length + branchLengths.length);
+	}
+
+	public void write(DataOutput out) throws IOException {
+		int merges = getMergeCount();
+		out.writeInt(size);
+		out.writeInt(merges);
+		for (int k = 0; k <= merges; k++)
+			out.writeInt(childStart[k]);
+		for (int c = 0; c < children.length; c++)
+			out.writeInt(children[c]);
+		for (int k = 0; k < merges; k++)
+			out.writeDouble(heights[k]);
+		for (int i = 0; i < branchLengths.length; i++)
+			out.writeDouble(branchLengths[i]);
+		for (int i = 0; i < size; i++)
+			out.writeInt(permutation[i]);
+	}
+
+	/**
+	 * Read a dendrogram written by write().
+	 */
+	public static Dendrogram read(DataInput in) throws IOException {
+		Dendrogram d = new Dendrogram();
+		d.size = in.readInt();
+		int merges = in.readInt();
+		if (d.size < 0 || merges < 0 || merges >= Math.max(1, d.size))
+			throw new IOException("Invalid dendrogram");
+		d.childStart = new int[merges + 1];
+		for (int k = 0; k <= merges; k++)
+			d.childStart[k] = in.readInt();
+		int edges = d.childStart[merges];
+		if (edges < 0 || edges > 2 * d.size)
+			throw new IOException("Invalid dendrogram");
+		d.children = new int[edges];
+		for (int c = 0; c < edges; c++)
+			d.children[c] = in.readInt();
+		d.heights = new double[merges];
+		for (int k = 0; k < merges; k++)
+			d.heights[k] = in.readDouble();
+		d.branchLengths = new double[d.size + merges];
+		for (int i = 0; i < d.branchLengths.length; i++)
+			d.branchLengths[i] = in.readDouble();
+		d.permutation = new int[d.size];
+		for (int i = 0; i < d.size; i++)
+			d.permutation[i] = in.readInt();
+		return d;
+	}
+}
@@ -0,0 +1,320 @@
+package com.sugen.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compute the distances between the rows of a feature matrix, such as
+ * gene expression profiles, straight into packed storage for clustering.
+ * <ul>
+ * <li>Pearson: 1 - r, where r is the correlation coefficient.
+ * <li>Spearman: 1 - r on the ranks of the values, with ties given their
+ * average rank.
+ * <li>Euclidean: square root of the sum of squared differences.
+ * <li>Cosine: 1 - cos, the cosine of the angle between the rows.
+ * </ul>
+ * Correlation and cosine distances are computed as dot products, after
+ * the rows are centered and scaled to unit length.
+ * <p>
+ * The lower triangle is computed in square tiles of rows, and the columns
+ * of each tile in slices, so that both rows of every pair are in cache.
+ * Rows of tiles are computed in parallel when an executor is set.
+ */
+public class DistanceCalculator {
+	public final static String PEARSON = "Pearson";
+	public final static String SPEARMAN = "Spearman";
+	public final static String EUCLIDEAN = "Euclidean";
+	public final static String COSINE = "Cosine";
+	public final static String[] METRICS = { PEARSON, SPEARMAN, EUCLIDEAN,
+		COSINE };
+
+	private final static int TILE = 64; // rows per tile
+	private final static int SLICE = 512; // columns per pass over a tile
+	// Minimum multiply-adds per parallel task
+	private final static int PARALLEL_GRAIN = 1 << 22;
+
+	private FeatureMatrix features;
+	private String metric;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Constructor.
+	 * @param metric one of METRICS
+	 */
+	public DistanceCalculator(FeatureMatrix features, String metric) {
+		if (!Arrays.asList(METRICS).contains(metric))
+			throw new IllegalArgumentException("Unknown distance metric: " + metric);
+		this.features = features;
+		this.metric = metric;
+	}
+
+	/**
+	 * Compute tiles on this executor. If null, the default, everything runs
+	 * in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	public String getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Compute the distance between every pair of rows.
+	 * @return a matrix labeled with the row labels
+	 */
+	public FloatDistanceMatrix compute() {
+		return compute(new FloatDistanceMatrix(features.getRowCount()));
+	}
+
+	/**
+	 * Compute the distance between every pair of rows into an existing
+	 * matrix, such as one reused for many resamplings of the features.
+	 * @return the matrix, labeled with the row labels
+	 * @throws IllegalArgumentException if the matrix is not the size of the
+	 * number of rows
+	 */
+	public FloatDistanceMatrix compute(final FloatDistanceMatrix matrix) {
+		final int n = features.getRowCount();
+		final int m = features.getColumnCount();
+		if (matrix.size() != n)
+			throw new IllegalArgumentException("Expected a matrix of size " + n);
+		matrix.setLabels(features.getRowLabels());
+		final boolean isEuclidean = EUCLIDEAN.equals(metric);
+		final float[] data = isEuclidean ? features.getData() : normalize();
+
+		int tiles = (n + TILE - 1) / TILE;
+		long work = (long)n * n / 2 * Math.max(1, m);
+		ParallelLoop.run(executor, ParallelLoop.splitTriangle(0, tiles, chunks(work)),
+				new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double[] sums = new double[TILE * TILE];
+				double[] values = new double[n];
+				for (int tile = from; tile < to; tile++) {
+					int rowFrom = tile * TILE;
+					int rowTo = Math.min(n, rowFrom + TILE);
+					for (int colFrom = 0; colFrom <= rowFrom; colFrom += TILE) {
+						int colTo = Math.min(rowTo, colFrom + TILE);
+						computeTile(data, m, isEuclidean, rowFrom, rowTo, colFrom,
+								colTo, sums);
+						for (int i = rowFrom; i < rowTo; i++) {
+							int end = Math.min(colTo, i + 1);
+							for (int j = colFrom; j < end; j++) {
+								double sum = sums[(i - rowFrom) * TILE + j - colFrom];
+								// Rounding must not give a negative, missing, distance
+								values[j] = isEuclidean ? Math.sqrt(sum)
+										: Math.max(0, 1 - sum);
+							}
+							if (i < end)
+								values[i] = 0;
+							matrix.setRow(i, values, colFrom, end);
+						}
+					}
+				}
+			}
+		});
+		return matrix;
+	}
+
+	/**
+	 * A read-only matrix that computes each distance from the features when
+	 * it is read. It needs no memory beyond a copy of the features, so it
+	 * can stand in for a matrix too large to store, for algorithms that
+	 * read each distance only once or twice, such as SingleLinkage.
+	 */
+	public DistanceMatrix createView() {
+		boolean isEuclidean = EUCLIDEAN.equals(metric);
+		return new DistanceView(isEuclidean ? features : null,
+				isEuclidean ? features.getData() : normalize(),
+				features.getRowCount(), features.getColumnCount(), isEuclidean, 
+				features.getRowLabels());
+	}
+
+	/**
+	 * Sum of products, or of squared differences, for every pair of rows in
+	 * a tile, one slice of columns at a time.
+	 */
+	private static void computeTile(float[] data, int m, boolean isEuclidean,
+			int rowFrom, int rowTo, int colFrom, int colTo, double[] sums) {
+		Arrays.fill(sums, 0);
+		for (int sliceFrom = 0; sliceFrom < m; sliceFrom += SLICE) {
+			int sliceTo = Math.min(m, sliceFrom + SLICE);
+			for (int i = rowFrom; i < rowTo; i++) {
+				int end = Math.min(colTo, i + 1);
+				int x = i * m;
+				for (int j = colFrom; j < end; j++) {
+					int y = j * m;
+					double sum = 0;
+					if (isEuclidean) {
+						for (int k = sliceFrom; k < sliceTo; k++) {
+							float d = data[x + k] - data[y + k];
+							sum += d * d;
+						}
+					} else {
+						for (int k = sliceFrom; k < sliceTo; k++)
+							sum += data[x + k] * data[y + k];
+					}
+					sums[(i - rowFrom) * TILE + j - colFrom] += sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the rows, ranked for Spearman, centered for Pearson and
+	 * Spearman, and scaled to unit length.
+	 */
+	private float[] normalize() {
+		final int m = features.getColumnCount();
+		final float[] data = features.getData();
+		final float[] normalized = new float[data.length];
+		final boolean isRanked = SPEARMAN.equals(metric);
+		final boolean isCentered = isRanked || PEARSON.equals(metric);
+		int n = features.getRowCount();
+		ParallelLoop.run(executor, ParallelLoop.split(0, n,
+				chunks((long)n * m * 8)), new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double[] row = new double[m];
+				double[] sorted = new double[m];
+				double[] ranks = new double[m];
+				for (int i = from; i < to; i++) {
+					for (int k = 0; k < m; k++)
+						row[k] = data[i * m + k];
+					if (isRanked)
+						rank(row, sorted, ranks);
+					double mean = 0;
+					if (isCentered) {
+						for (int k = 0; k < m; k++)
+							mean += row[k];
+						mean /= m;
+					}
+					double norm = 0;
+					for (int k = 0; k < m; k++)
+						norm += (row[k] - mean) * (row[k] - mean);
+					// A constant row is uncorrelated with everything
+					norm = norm > 0 ? 1 / Math.sqrt(norm) : 0;
+					for (int k = 0; k < m; k++)
+						normalized[i * m + k] = (float)((row[k] - mean) * norm);
+				}
+			}
+		});
+		return normalized;
+	}
+
+	/**
+	 * Replace values by their ranks, averaging the ranks of ties.
+	 * @param sorted scratch space as long as the row
+	 * @param ranks scratch space as long as the row
+	 */
+	private static void rank(double[] row, double[] sorted, double[] ranks) {
+		int m = row.length;
+		System.arraycopy(row, 0, sorted, 0, m);
+		Arrays.sort(sorted);
+		for (int first = 0; first < m; ) {
+			int last = first;
+			while (last + 1 < m && sorted[last + 1] == sorted[first])
+				last++;
+			for (int k = first; k <= last; k++)
+				ranks[k] = (first + last) / 2.0;
+			first = last + 1;
+		}
+		for (int k = 0; k < m; k++)
+			row[k] = ranks[Arrays.binarySearch(sorted, row[k])];
+	}
+
+	private int chunks(long work) {
+		if (executor == null)
+			return 1;
+		return (int)Math.max(1, Math.min(parallelism, work / PARALLEL_GRAIN));
+	}
+
+	/**
+	 * Distances computed on demand; see createView().
+	 */
+	static class DistanceView implements DistanceMatrix {
+		private FeatureMatrix features;
+		private float[] data;
+		private int size;
+		private int m;
+		private boolean isEuclidean;
+		private String[] labels;
+
+		public DistanceView(FeatureMatrix features, float[] data, int size, 
+				int m, boolean isEuclidean, String[] labels) {
+			this.features = features;
+			this.data = data;
+			this.size = size;
+			this.m = m;
+			this.isEuclidean = isEuclidean;
+			this.labels = labels;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public double get(int row, int col) {
+			if (row == col)
+				return 0;
+			int x = row * m;
+			int y = col * m;
+			double sum = 0;
+			if (isEuclidean) {
+				for (int k = 0; k < m; k++) {
+					float d = data[x + k] - data[y + k];
+					sum += d * d;
+				}
+				return Math.sqrt(sum);
+			} else {
+				for (int k = 0; k < m; k++)
+					sum += data[x + k] * data[y + k];
+				return Math.max(0, 1 - sum);
+			}
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always
+		 */
+		public void set(int row, int col, double value) {
+			throw new UnsupportedOperationException("Matrix is read-only");
+		}
+
+		public String[] getLabels() {
+			return labels;
+		}
+
+		/**
+		 * @return the features, for Euclidean distances; otherwise null
+		 */
+		FeatureMatrix getFeatures() {
+			return features;
+		}
+
+		/**
+		 * The rows the distances are computed from: the features for
+		 * Euclidean distances, normalized copies for the others.
+		 */
+		float[] getData() {
+			return data;
+		}
+
+		int getColumnCount() {
+			return m;
+		}
+
+		boolean isEuclidean() {
+			return isEuclidean;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.sugen.util;
+
+/**
+ * A square matrix of pairwise distances between labeled items.
+ * Implementations may store the full matrix or, for symmetric
+ * distances, only one triangle of it.
+ * 
+ * @see HierarchicalCluster
+ */
+public interface DistanceMatrix {
+	/**
+	 * @return number of rows, which is also the number of columns
+	 */
+	public int size();
+
+	/**
+	 * @return the distance between two items
+	 */
+	public double get(int row, int col);
+
+	/**
+	 * Set the distance between two items. Symmetric implementations
+	 * set both get(row, col) and get(col, row).
+	 */
+	public void set(int row, int col, double value);
+
+	/**
+	 * @return a label for each row/column, or null if there are none
+	 */
+	public String[] getLabels();
+}
@@ -0,0 +1,57 @@
+package com.sugen.util;
+
+/**
+ * A packed symmetric distance matrix with double-precision values,
+ * using half of the memory of a double[n][n].
+ */
+public class DoubleDistanceMatrix extends PackedDistanceMatrix {
+	private double[] data;
+
+	/**
+	 * Constructor. All distances are initially zero.
+	 * @param size number of rows and columns
+	 */
+	public DoubleDistanceMatrix(int size) {
+		super(size);
+		data = new double[length(size)];
+	}
+
+	/**
+	 * Constructor. Copy the lower triangle of another matrix.
+	 */
+	public DoubleDistanceMatrix(DistanceMatrix matrix) {
+		this(matrix.size());
+		for (int row = 0, k = 0; row < size; row++)
+			for (int col = 0; col <= row; col++)
+				data[k++] = matrix.get(row, col);
+		setLabels(matrix.getLabels());
+	}
+
+	public double get(int row, int col) {
+		return data[index(row, col)];
+	}
+
+	public void set(int row, int col, double value) {
+		data[index(row, col)] = value;
+	}
+
+	public void getRow(int row, double[] values, int from, int to) {
+		int col = from;
+		for (int i = (row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			values[col] = data[i++];
+		for (int i = (col * (col + 1) >>> 1) + row; col < to; col++) {
+			values[col] = data[i];
+			i += col + 1;
+		}
+	}
+
+	public void setRow(int row, double[] values, int from, int to) {
+		int col = from;
+		for (int i = (row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			data[i++] = values[col];
+		for (int i = (col * (col + 1) >>> 1) + row; col < to; col++) {
+			data[i] = values[col];
+			i += col + 1;
+		}
+	}
+}
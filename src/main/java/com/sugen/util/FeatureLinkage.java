@@ -0,0 +1,414 @@
+package com.sugen.util;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Ward, centroid and median linkage clustering straight from feature
+ * vectors with Euclidean distances, without a distance matrix. These
+ * linkages only depend on the centroid and size of each cluster: the
+ * squared distance between clusters A and B is |a - b|^2 for centroid and
+ * median linkage, and 2 |A| |B| / (|A| + |B|) |a - b|^2 for Ward, where a
+ * and b are the centroids. So memory is O(n d) for n rows of d features,
+ * not O(n^2), and hundreds of thousands of rows can be clustered.
+ * <p>
+ * Distances are computed when needed, from a copy of the features that
+ * holds the centroid of each cluster in the row of the cluster. Ward
+ * linkage is reducible, so it uses the nearest-neighbor chain algorithm,
+ * with each nearest neighbor found by a scan of all clusters. Centroid
+ * and median linkage are not, so the nearest neighbor of each cluster is
+ * kept, and after a merge only the clusters whose nearest neighbor was one
+ * of the merged clusters are scanned again. Either way the scans take
+ * O(n d) time, and O(n^2 d) in all.
+ * <p>
+ * Clusters are merged as in HierarchicalCluster, and the heights are the
+ * same as those computed from Euclidean distances with the Lance-Williams
+ * recurrence, up to rounding. With the median, the centroid of a merged
+ * cluster is the midpoint of the centroids of its parts.
+ * <p>
+ * Given an executor, the scans are split into ranges of clusters that run
+ * in parallel. Per-range minima are combined in order, so the trees are
+ * the same.
+ *
+ * @see DistanceCalculator#createView()
+ * @see HierarchicalCluster
+ */
+public class FeatureLinkage {
+	/**
+	 * Minimum number of feature values read per parallel task.
+	 */
+	private final static int PARALLEL_GRAIN = 1 << 16;
+
+	private FeatureMatrix features;
+	private String[] leafLabels;
+	private String linkageMethod;
+	private boolean isWard;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private HierarchicalCluster monitor; // progress and cancellation
+
+	// By cluster, named after an item in it, as in HierarchicalCluster
+	private float[] centroids;
+	private int m;
+	private Clade[] nodes;
+	private int[] leafCount;
+	private double[] joinDistance;
+	private int[] active; // ascending
+	private int activeCount;
+	private int mergeCount;
+
+	// Centroid and median linkage: the nearest neighbor of each cluster
+	private int[] nearest;
+	private double[] nearestDistance;
+
+	// Per-range minima of parallel scans
+	private int[] chunkNearest;
+	private double[] chunkDistance;
+
+	/**
+	 * Constructor.
+	 * @param features one row per item
+	 * @param labels leaf labels for each row of the features
+	 * @param linkageMethod HierarchicalCluster.WARD, CENTROID or MEDIAN
+	 */
+	public FeatureLinkage(FeatureMatrix features, String[] labels,
+			String linkageMethod) {
+		if (!isSupported(linkageMethod))
+			throw new IllegalArgumentException("Unsupported linkage method: "
+					+ linkageMethod);
+		if (labels.length != features.getRowCount())
+			throw new IllegalArgumentException(
+					"Matrix and labels must have same number of rows");
+		this.features = features;
+		this.leafLabels = labels;
+		this.linkageMethod = linkageMethod;
+		isWard = HierarchicalCluster.WARD.equals(linkageMethod);
+	}
+
+	/**
+	 * Whether a linkage method can be clustered from feature vectors.
+	 */
+	public static boolean isSupported(String linkageMethod) {
+		return HierarchicalCluster.WARD.equals(linkageMethod)
+			|| HierarchicalCluster.CENTROID.equals(linkageMethod)
+			|| HierarchicalCluster.MEDIAN.equals(linkageMethod);
+	}
+
+	/**
+	 * Scan for nearest neighbors on this executor. If null, the default,
+	 * everything runs in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Report progress to, and check for cancellation by, the clustering
+	 * that this was delegated from.
+	 */
+	void setMonitor(HierarchicalCluster monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Build the tree.
+	 * @return root of a binary tree
+	 */
+	public Clade cluster() {
+		int n = features.getRowCount();
+		if (n == 0)
+			return null;
+		m = features.getColumnCount();
+		centroids = new float[n * m];
+		System.arraycopy(features.getData(), 0, centroids, 0, n * m);
+		nodes = new Clade[n];
+		leafCount = new int[n];
+		joinDistance = new double[n];
+		active = new int[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Clade(leafLabels[i], 0);
+			leafCount[i] = 1;
+			active[i] = i;
+		}
+		activeCount = n;
+		mergeCount = 0;
+		chunkNearest = new int[parallelism];
+		chunkDistance = new double[parallelism];
+		try {
+			int root = isWard ? nearestNeighborChain() : nearestNeighborIndex();
+			return nodes[root];
+		} finally {
+			centroids = null;
+			nearest = null;
+			nearestDistance = null;
+		}
+	}
+
+	/**
+	 * Ward linkage, as in HierarchicalCluster.
+	 * @return the cluster that holds the root
+	 */
+	private int nearestNeighborChain() {
+		int n = nodes.length;
+		int[] chain = new int[n];
+		int chainSize = 0;
+		int root = 0;
+		for (int merges = 0; merges < n - 1; merges++) {
+			if (chainSize == 0)
+				chain[chainSize++] = active[0];
+
+			int a, b;
+			while (true) {
+				a = chain[chainSize - 1];
+
+				// Prefer the previous chain element on ties, so the chain
+				// cannot cycle
+				int previous = chainSize > 1 ? chain[chainSize - 2] : -1;
+				b = scan(a, previous);
+				if (b == previous)
+					break;
+				chain[chainSize++] = b;
+			}
+
+			// a and b are reciprocal nearest neighbors
+			chainSize -= 2;
+			root = join(a, b, distance(a, b));
+		}
+		return root;
+	}
+
+	/**
+	 * Centroid and median linkage: merge the closest pair, found from the
+	 * nearest neighbor of each cluster.
+	 * @return the cluster that holds the root
+	 */
+	private int nearestNeighborIndex() {
+		int n = nodes.length;
+		nearest = new int[n];
+		nearestDistance = new double[n];
+		ParallelLoop.run(executor, ParallelLoop.split(0, n, chunks(n)),
+				new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				for (int k = from; k < to; k++)
+					updateNearest(active[k]);
+			}
+		});
+
+		int root = 0;
+		for (int merges = 0; merges < n - 1; merges++) {
+			// First closest pair in cluster order
+			int one = -1;
+			for (int k = 0; k < activeCount; k++) {
+				int i = active[k];
+				if (one < 0 || nearestDistance[i] < nearestDistance[one])
+					one = i;
+			}
+			int two = nearest[one];
+			final int merged = join(one, two, nearestDistance[one]);
+			final int other = merged == one ? two : one;
+			root = merged;
+
+			// Only the distances to the merged cluster have changed
+			ParallelLoop.run(executor, ParallelLoop.split(0, activeCount,
+					chunks(activeCount)), new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					for (int k = from; k < to; k++) {
+						int c = active[k];
+						if (c == merged)
+							continue;
+						double d = distance(c, merged);
+						if (nearest[c] == other || nearest[c] == merged) {
+							if (d <= nearestDistance[c]) {
+								nearest[c] = merged;
+								nearestDistance[c] = d;
+							} else {
+								updateNearest(c);
+							}
+						} else if (d < nearestDistance[c] || (d == nearestDistance[c]
+								&& merged < nearest[c])) {
+							nearest[c] = merged;
+							nearestDistance[c] = d;
+						}
+					}
+				}
+			});
+			if (activeCount > 1)
+				updateNearest(merged);
+		}
+		return root;
+	}
+
+	/**
+	 * Scan all clusters for the nearest neighbor of a cluster, in the
+	 * calling thread.
+	 */
+	private void updateNearest(int a) {
+		double best = Double.POSITIVE_INFINITY;
+		int b = -1;
+		for (int k = 0; k < activeCount; k++) {
+			int c = active[k];
+			if (c == a)
+				continue;
+			double d = distance(a, c);
+			if (b < 0 || d < best) {
+				best = d;
+				b = c;
+			}
+		}
+		nearest[a] = b;
+		nearestDistance[a] = best;
+	}
+
+	/**
+	 * Find the nearest neighbor of a cluster, in parallel given an executor.
+	 * @param preferred wins ties, if not -1
+	 * @return the first nearest neighbor in cluster order, or preferred
+	 */
+	private int scan(final int a, int preferred) {
+		int[] bounds = ParallelLoop.split(0, activeCount, chunks(activeCount));
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double best = Double.POSITIVE_INFINITY;
+				int b = -1;
+				for (int k = from; k < to; k++) {
+					int c = active[k];
+					if (c == a)
+						continue;
+					double d = distance(a, c);
+					if (b < 0 || d < best) {
+						best = d;
+						b = c;
+					}
+				}
+				chunkNearest[chunk] = b;
+				chunkDistance[chunk] = best;
+			}
+		});
+
+		int b = preferred;
+		double best = preferred >= 0 ? distance(a, preferred) : 0;
+		for (int chunk = 0; chunk < bounds.length - 1; chunk++) {
+			int c = chunkNearest[chunk];
+			if (c >= 0 && (b < 0 || chunkDistance[chunk] < best)) {
+				best = chunkDistance[chunk];
+				b = c;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * The squared distance between two clusters, scaled for Ward linkage.
+	 */
+	private double distance(int a, int b) {
+		double d = squaredDistance(centroids, a * m, b * m, m);
+		if (isWard) {
+			double na = leafCount[a];
+			double nb = leafCount[b];
+			d *= 2 * na * nb / (na + nb);
+		}
+		return d;
+	}
+
+	/**
+	 * Sum of squared differences of two rows of a flat array, in four
+	 * independent float sums that the compiler can keep in registers and
+	 * pipeline, added up in double precision every few hundred values.
+	 */
+	static double squaredDistance(float[] data, int x, int y, int m) {
+		double sum = 0;
+		for (int from = 0; from < m; from += 256) {
+			int to = Math.min(m, from + 256);
+			float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int k = from;
+			for (; k + 3 < to; k += 4) {
+				float d0 = data[x + k] - data[y + k];
+				float d1 = data[x + k + 1] - data[y + k + 1];
+				float d2 = data[x + k + 2] - data[y + k + 2];
+				float d3 = data[x + k + 3] - data[y + k + 3];
+				s0 += d0 * d0;
+				s1 += d1 * d1;
+				s2 += d2 * d2;
+				s3 += d3 * d3;
+			}
+			for (; k < to; k++) {
+				float d = data[x + k] - data[y + k];
+				s0 += d * d;
+			}
+			sum += (s0 + s1) + (s2 + s3);
+		}
+		return sum;
+	}
+
+	/**
+	 * Merge two clusters, oriented as in HierarchicalCluster.join().
+	 * @param closeness squared distance between the clusters
+	 * @return the cluster that holds the merged cluster
+	 */
+	private int join(int a, int b, double closeness) {
+		int one = Math.max(a, b);
+		int two = Math.min(a, b);
+		if (leafCount[one] > leafCount[two]) {
+			int i = two;
+			two = one;
+			one = i;
+		}
+
+		// Inversions are possible with centroid and median linkage
+		double height = Math.sqrt(Math.max(0, closeness));
+		nodes[one].setBranchLength(Math.max(0, height - joinDistance[one]));
+		nodes[two].setBranchLength(Math.max(0, height - joinDistance[two]));
+		Clade joinedNode = new Clade();
+		joinedNode.add(nodes[two]);
+		joinedNode.add(nodes[one]);
+		nodes[two] = joinedNode;
+		nodes[one] = null;
+
+		double weight = HierarchicalCluster.MEDIAN.equals(linkageMethod) ? 0.5
+				: (double)leafCount[one] / (leafCount[one] + leafCount[two]);
+		int x = two * m;
+		int y = one * m;
+		for (int k = 0; k < m; k++)
+			centroids[x + k] += (float)(weight * (centroids[y + k] - centroids[x + k]));
+		leafCount[two] += leafCount[one];
+		joinDistance[two] = height;
+
+		int k = 0;
+		while (active[k] != one)
+			++k;
+		System.arraycopy(active, k + 1, active, k, --activeCount - k);
+
+		int n = nodes.length;
+		++mergeCount;
+		if (monitor != null) {
+			// Each merge scans the remaining clusters
+			double remaining = (double)(activeCount - 1) / (n - 1);
+			monitor.reportProgress(1 - remaining * remaining);
+			if (monitor.isPartialTreeDue()) {
+				Clade[] clusters = new Clade[activeCount];
+				for (int c = 0; c < activeCount; c++)
+					clusters[c] = nodes[active[c]];
+				monitor.publishPartialTree(clusters, activeCount);
+			}
+		}
+		return two;
+	}
+
+	/**
+	 * Number of parallel tasks to scan this many clusters.
+	 */
+	private int chunks(int count) {
+		if (executor == null)
+			return 1;
+		long work = (long)count * Math.max(1, m);
+		return (int)Math.max(1, Math.min(parallelism, work / PARALLEL_GRAIN));
+	}
+}
@@ -0,0 +1,94 @@
+package com.sugen.util;
+
+/**
+ * A matrix of raw feature values, such as gene expression profiles:
+ * one row per object to be clustered and one column per sample.
+ * Values are stored row by row in a single float array.
+ */
+public class FeatureMatrix {
+	private int rows;
+	private int columns;
+	private float[] data;
+	private String[] rowLabels;
+	private String[] columnLabels;
+
+	/**
+	 * Constructor. All values are initially zero.
+	 */
+	public FeatureMatrix(int rows, int columns) {
+		if (rows < 0 || columns < 0 || (long)rows * columns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid matrix size: " + rows
+					+ " x " + columns);
+		this.rows = rows;
+		this.columns = columns;
+		data = new float[rows * columns];
+	}
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public int getColumnCount() {
+		return columns;
+	}
+
+	public double get(int row, int col) {
+		return data[row * columns + col];
+	}
+
+	public void set(int row, int col, double value) {
+		data[row * columns + col] = (float)value;
+	}
+
+	/**
+	 * The values, row by row. Row i starts at index i * getColumnCount().
+	 * Changes to the array change the matrix.
+	 */
+	public float[] getData() {
+		return data;
+	}
+
+	/**
+	 * A copy with rows and columns swapped, and their labels, so that the
+	 * columns can be clustered like rows. Copied in square blocks, so that
+	 * both the rows read and the rows written stay in cache.
+	 */
+	public FeatureMatrix transpose() {
+		final int block = 64;
+		FeatureMatrix t = new FeatureMatrix(columns, rows);
+		for (int rowFrom = 0; rowFrom < rows; rowFrom += block) {
+			int rowTo = Math.min(rows, rowFrom + block);
+			for (int colFrom = 0; colFrom < columns; colFrom += block) {
+				int colTo = Math.min(columns, colFrom + block);
+				for (int i = rowFrom; i < rowTo; i++)
+					for (int j = colFrom; j < colTo; j++)
+						t.data[j * rows + i] = data[i * columns + j];
+			}
+		}
+		t.rowLabels = columnLabels;
+		t.columnLabels = rowLabels;
+		return t;
+	}
+
+	public String[] getRowLabels() {
+		return rowLabels;
+	}
+
+	public void setRowLabels(String[] labels) {
+		if (labels != null && labels.length != rows)
+			throw new IllegalArgumentException(
+					"Matrix and labels must have same number of rows");
+		rowLabels = labels;
+	}
+
+	public String[] getColumnLabels() {
+		return columnLabels;
+	}
+
+	public void setColumnLabels(String[] labels) {
+		if (labels != null && labels.length != columns)
+			throw new IllegalArgumentException(
+					"Matrix and labels must have same number of columns");
+		columnLabels = labels;
+	}
+}
@@ -0,0 +1,57 @@
+package com.sugen.util;
+
+/**
+ * A packed symmetric distance matrix with single-precision values,
+ * using a quarter of the memory of a double[n][n].
+ */
+public class FloatDistanceMatrix extends PackedDistanceMatrix {
+	private float[] data;
+
+	/**
+	 * Constructor. All distances are initially zero.
+	 * @param size number of rows and columns
+	 */
+	public FloatDistanceMatrix(int size) {
+		super(size);
+		data = new float[length(size)];
+	}
+
+	/**
+	 * Constructor. Copy the lower triangle of another matrix.
+	 */
+	public FloatDistanceMatrix(DistanceMatrix matrix) {
+		this(matrix.size());
+		for (int row = 0, k = 0; row < size; row++)
+			for (int col = 0; col <= row; col++)
+				data[k++] = (float)matrix.get(row, col);
+		setLabels(matrix.getLabels());
+	}
+
+	public double get(int row, int col) {
+		return data[index(row, col)];
+	}
+
+	public void set(int row, int col, double value) {
+		data[index(row, col)] = (float)value;
+	}
+
+	public void getRow(int row, double[] values, int from, int to) {
+		int col = from;
+		for (int i = (row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			values[col] = data[i++];
+		for (int i = (col * (col + 1) >>> 1) + row; col < to; col++) {
+			values[col] = data[i];
+			i += col + 1;
+		}
+	}
+
+	public void setRow(int row, double[] values, int from, int to) {
+		int col = from;
+		for (int i = (row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			data[i++] = (float)values[col];
+		for (int i = (col * (col + 1) >>> 1) + row; col < to; col++) {
+			data[i] = (float)values[col];
+			i += col + 1;
+		}
+	}
+}
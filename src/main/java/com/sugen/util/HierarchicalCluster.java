@@ -1,8 +1,14 @@
 package com.sugen.util;
 
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
 
 import javax.swing.tree.DefaultTreeModel;
 
@@ -10,8 +16,57 @@ import com.sugen.io.PhylipWriter;
 
 /**
  * Simple clustering algorithm, starting from distance matrix, 
- * single/complete/average linkage.
+ * single/complete/average/WPGMA/Ward/centroid/median linkage.
  * Creates a Phylip tree that can be plotted by programs such as HyperTree.
+ * Cluster-cluster distances are updated with the Lance-Williams recurrence,
+ * one row per merge.
+ * Neighbor joining and BIONJ are delegated to NeighborJoining, and give
+ * unrooted trees.
+ * <p>
+ * By default the reducible linkages are clustered with the nearest-neighbor
+ * chain algorithm, which needs O(n^2) time. The original exhaustive search
+ * rescans the whole matrix for every merge, O(n^3) time, and can be selected
+ * with setAlgorithm(EXHAUSTIVE_SEARCH) to verify results. Centroid and median
+ * linkage are not reducible, so they always use the exhaustive search. So
+ * do average, WPGMA and Ward linkage of a matrix with missing distances,
+ * since the distance between two clusters then depends on the order in
+ * which their parts were merged.
+ * Single linkage is delegated to SingleLinkage, which reads the distances
+ * without copying them, unless the exhaustive search is selected.
+ * A SparseDistanceGraph is clustered by SparseLinkage, in time and memory
+ * proportional to its edges; only single and average linkage are supported.
+ * Ward, centroid and median linkage of a Euclidean DistanceCalculator view
+ * are delegated to FeatureLinkage, which works from the feature vectors in
+ * O(n d) memory, unless the exhaustive search is selected.
+ * <p>
+ * Matrices too large for the heap can be clustered out of core, by setting
+ * a scratch directory. The cluster-cluster distances are then kept in a
+ * memory-mapped file, and the closest pair is found through an index of
+ * the minimum of each row, kept on the heap. Only the rows whose minimum 
+ * may have changed are read again after a merge, but each merge still
+ * touches O(n) pages of the file; see updateDistances(). Single linkage
+ * needs no scratch file, since SingleLinkage reads the distances where
+ * they are in O(n) memory, so it ignores the scratch directory unless the
+ * exhaustive search is selected.
+ * <p>
+ * Progress is reported as PROPERTY_PROGRESS events, and clustering can be
+ * stopped from another thread with cancel(). Given a partial tree interval,
+ * a copy of the forest of clusters merged so far is published as a
+ * PROPERTY_PARTIAL_TREE event every so often, so the top-level structure
+ * can be explored before clustering is done.
+ * <p>
+ * Given a ClusterCache, results are reused when the same matrix is
+ * clustered again with the same linkage method.
+ * <p>
+ * Negative distances are missing. No algorithm merges two clusters with a
+ * missing distance between them, and LanceWilliams keeps a merged distance
+ * from depending on a missing one. Clusters with no distance left between
+ * any of them are joined at the greatest height, as in SingleLinkage.
+ * <p>
+ * Given an executor, the minimum search and the distance updates are split 
+ * into row ranges that run in parallel. Per-range minima are combined in row
+ * order, so ties resolve exactly as in the sequential scan and the trees are
+ * the same.
  * 
  * @author David Patterson
  */
@@ -19,21 +74,80 @@ public class HierarchicalCluster {
 	public final static String AVERAGE = "Average";
 	public final static String COMPLETE = "Complete";
 	public final static String SINGLE = "Single";
-	public final static String[] LINKAGE_METHODS = { AVERAGE, COMPLETE, SINGLE }; 
+	public final static String WPGMA = "WPGMA";
+	public final static String WARD = "Ward";
+	public final static String CENTROID = "Centroid";
+	public final static String MEDIAN = "Median";
+	public final static String NEIGHBOR_JOINING = "Neighbor Joining";
+	public final static String BIONJ = "BIONJ";
+	public final static String[] LINKAGE_METHODS = { AVERAGE, COMPLETE, SINGLE, 
+		WPGMA, WARD, CENTROID, MEDIAN, NEIGHBOR_JOINING, BIONJ }; 
 	
-	private double[][] distanceMatrix; // modified during clustering
+	// Distance update for each linkage method; null if not agglomerative
+	private final static LanceWilliams[] RECURRENCES = { LanceWilliams.AVERAGE, 
+		LanceWilliams.COMPLETE, LanceWilliams.SINGLE, LanceWilliams.WPGMA, 
+		LanceWilliams.WARD_LINKAGE, LanceWilliams.CENTROID, LanceWilliams.MEDIAN, 
+		null, null };
+	
+	public final static String NEAREST_NEIGHBOR_CHAIN = "Nearest-neighbor chain";
+	public final static String EXHAUSTIVE_SEARCH = "Exhaustive search";
+	public final static String[] ALGORITHMS = { NEAREST_NEIGHBOR_CHAIN, EXHAUSTIVE_SEARCH };
+	
+	/**
+	 * Percentage of the work done, as an Integer.
+	 */
+	public final static String PROPERTY_PROGRESS = "progress";
+	
+	/**
+	 * A copy of the clusters merged so far, as the children of a new root
+	 * Clade.
+	 */
+	public final static String PROPERTY_PARTIAL_TREE = "partialTree";
+	
+	private DistanceMatrix distanceMatrix; // not modified during clustering
+	private PackedDistanceMatrix distances; // cluster-cluster distances
 	private int linkageMethod;	
+	private String algorithm = NEAREST_NEIGHBOR_CHAIN;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Minimum number of matrix elements per parallel task. Smaller tasks cost
+	 * more to schedule than to run.
+	 */
+	private final static int PARALLEL_GRAIN = 65536;
+	private final static int UPDATE_BLOCK = 4096; // columns per read and write
 	private String[] leafLabels;  
 	
 	private int[] leafCount; // # leaves under each node
 	private double joinDistance[]; // Inter-cluster distance; NOT branch length
 	private Clade[] nodes;
+	private boolean[] active; // false once merged into another cluster
+	private double[] rowOne, rowTwo; // distances from the clusters being merged
+	private double[][] scanRows; // one row buffer per parallel task
+	private File scratchDirectory; // null to keep distances on the heap
+	private boolean isInPlace;
+	private double[] rowMinimum; // out of core only
+	private int[] rowMinimumColumn; // -1 if none
+	private int mergeCount;
+	private double maxHeight; // of the merges so far
+	private boolean isExhaustive; // whether each merge scans the matrix
+	private int progress;
+	private volatile double workDone; // fraction
+	private volatile long startTime;
+	private volatile boolean isCancelled;
+	private long partialTreeInterval; // milliseconds, 0 for none
+	private ClusterCache cache;
+	private boolean isLeafOrderOptimized;
+	private volatile HierarchicalCluster[] batch; // running cluster(String[])
+	private long lastPartialTree;
+	private PropertyChangeSupport propertySupport = new PropertyChangeSupport(this);
 
 	/**
 	 * Constructor using default linkage method.
 	 */
 	public HierarchicalCluster() {
-		this(null, null, AVERAGE);
+		this((DistanceMatrix)null, null, AVERAGE);
 	}
 	
 	/**
@@ -49,9 +163,29 @@ public class HierarchicalCluster {
 	 * Constructor.
 	 * @param distanceMatrix a square matrix with values in [0..1]
 	 * @param labels leaf labels for each row/column in the distance matrix
-	 * @param linkageMethod either AVERAGE, COMPLETE or SINGLE
+	 * @param linkageMethod one of LINKAGE_METHODS
 	 */
 	public HierarchicalCluster(double[][] distanceMatrix, String[] labels, String linkageMethod) {
+		this(distanceMatrix == null ? null : new ArrayDistanceMatrix(distanceMatrix), 
+				labels, linkageMethod);
+	}
+
+	/**
+	 * Constructor.
+	 * @param distanceMatrix a matrix with values in [0..1], and labels
+	 * @param linkageMethod one of LINKAGE_METHODS
+	 */
+	public HierarchicalCluster(DistanceMatrix distanceMatrix, String linkageMethod) {
+		this(distanceMatrix, distanceMatrix.getLabels(), linkageMethod);
+	}
+
+	/**
+	 * Constructor.
+	 * @param distanceMatrix a matrix with values in [0..1]
+	 * @param labels leaf labels for each row/column in the distance matrix
+	 * @param linkageMethod one of LINKAGE_METHODS
+	 */
+	public HierarchicalCluster(DistanceMatrix distanceMatrix, String[] labels, String linkageMethod) {
 		setDistanceMatrix(distanceMatrix);
 		setLeafLabels(labels);
 		setLinkageMethod(linkageMethod);
@@ -63,17 +197,296 @@ public class HierarchicalCluster {
 	 * branch lengths for each node
 	 */
 	public Clade cluster() {
-		init();
+		startTime = lastPartialTree = System.currentTimeMillis();
+		workDone = 0;
+		progress = 0;
+		try {
+			if (cache == null)
+				return orderLeaves(build(), null);
+			String fingerprint = ClusterCache.fingerprint(distanceMatrix, executor);
+			if (isLeafOrderOptimized) {
+				Dendrogram ordered = cache.get(ClusterCache.key(fingerprint, 
+						getCacheMethod(true)));
+				if (ordered != null)
+					return ordered.toTree(leafLabels);
+			}
+			String key = ClusterCache.key(fingerprint, getCacheMethod(false));
+			Dendrogram result = cache.get(key);
+			Clade root;
+			if (result != null) {
+				root = result.toTree(leafLabels);
+			} else {
+				root = build();
+				cache.put(key, Dendrogram.fromTree(root, leafLabels));
+			}
+			return orderLeaves(root, fingerprint);
+		} finally {
+			isCancelled = false;
+		}
+	}
+	
+	/**
+	 * Cluster the data in the distance matrix with several linkage methods
+	 * at once, sharing the work they have in common. The distance matrix is
+	 * fingerprinted for the cache only once, and read only once to fill the
+	 * scratch buffers of all the linkages that need one. Given an executor,
+	 * the linkages are then clustered side by side, each in a thread of its 
+	 * own, so the time taken is close to that of the slowest. 
+	 * <p>
+	 * Each Lance-Williams linkage still needs its own scratch buffer, so 
+	 * memory use is that of the separate runs together. No progress is 
+	 * reported, but cancel() stops all the linkages.
+	 * @param linkageMethods some of LINKAGE_METHODS
+	 * @return a tree for each linkage method, in the same order
+	 */
+	public Clade[] cluster(String[] linkageMethods) {
+		final HierarchicalCluster[] jobs = new HierarchicalCluster[linkageMethods.length];
+		final Clade[] roots = new Clade[jobs.length];
+		String[] keys = new String[jobs.length];
+		boolean[] isOrdered = new boolean[jobs.length];
+		String fingerprint = cache == null ? null 
+				: ClusterCache.fingerprint(distanceMatrix, executor);
+		final int[] pending = new int[jobs.length];
+		int count = 0;
+		for (int k = 0; k < jobs.length; k++) {
+			jobs[k] = new HierarchicalCluster(distanceMatrix, leafLabels, 
+					linkageMethods[k]);
+			jobs[k].setAlgorithm(algorithm);
+			jobs[k].setScratchDirectory(scratchDirectory);
+			jobs[k].setLeafOrderOptimized(isLeafOrderOptimized);
+			jobs[k].setCache(cache); // for the ordered trees
+			if (cache != null) {
+				if (isLeafOrderOptimized) {
+					Dendrogram ordered = cache.get(ClusterCache.key(fingerprint, 
+							jobs[k].getCacheMethod(true)));
+					if (ordered != null) {
+						roots[k] = ordered.toTree(leafLabels);
+						isOrdered[k] = true;
+						continue;
+					}
+				}
+				keys[k] = ClusterCache.key(fingerprint, jobs[k].getCacheMethod(false));
+				Dendrogram result = cache.get(keys[k]);
+				if (result != null) {
+					roots[k] = result.toTree(leafLabels);
+					continue;
+				}
+			}
+			pending[count++] = k;
+		}
 		
-		int rootIndex = -1; // catch bugs
-		for (int i = 0; i < distanceMatrix.length - 1; i++)
-			rootIndex = iterate();
+		// Nested parallel loops on one executor could wait on each other, so
+		// linkages that run side by side run their loops sequentially
+		boolean isConcurrent = executor != null && count > 1;
+		final boolean[] isInitialized = new boolean[jobs.length];
+		HierarchicalCluster[] agglomerative = new HierarchicalCluster[count];
+		int agglomerativeCount = 0;
+		for (int p = 0; p < count; p++) {
+			HierarchicalCluster job = jobs[pending[p]];
+			job.setExecutor(isConcurrent ? null : executor);
+			job.setParallelism(parallelism);
+			if (!job.isNeighborJoining() && !job.isSparse() && !job.isMatrixFree()
+					&& !(SINGLE.equals(job.getLinkageMethod()) 
+					&& !EXHAUSTIVE_SEARCH.equals(algorithm)))
+				agglomerative[agglomerativeCount++] = job;
+		}
 		
-		Clade root = nodes[rootIndex];
-		restore(distanceMatrix);
+		batch = jobs;
+		if (isCancelled)
+			cancel();
+		try {
+			if (agglomerativeCount > 0) {
+				HierarchicalCluster[] targets = new HierarchicalCluster[agglomerativeCount];
+				for (int t = 0; t < agglomerativeCount; t++) {
+					targets[t] = agglomerative[t];
+					targets[t].init();
+				}
+				copyDistances(targets);
+				for (int k = 0; k < jobs.length; k++)
+					isInitialized[k] = jobs[k].distances != null;
+			}
+			
+			ParallelLoop.run(isConcurrent ? executor : null, 
+					ParallelLoop.split(0, count, count), new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					for (int p = from; p < to; p++) {
+						int k = pending[p];
+						roots[k] = isInitialized[k] ? jobs[k].agglomerate(true) 
+								: jobs[k].build();
+					}
+				}
+			});
+		} finally {
+			batch = null;
+			isCancelled = false;
+			for (int t = 0; t < agglomerativeCount; t++)
+				agglomerative[t].release();
+		}
+		
+		if (cache != null)
+			for (int p = 0; p < count; p++)
+				cache.put(keys[pending[p]], Dendrogram.fromTree(roots[pending[p]], 
+						leafLabels));
+		if (isLeafOrderOptimized) {
+			for (int k = 0; k < jobs.length; k++) {
+				if (!isOrdered[k]) {
+					jobs[k].setExecutor(executor);
+					jobs[k].setParallelism(parallelism);
+					roots[k] = jobs[k].orderLeaves(roots[k], fingerprint);
+				}
+			}
+		}
+		return roots;
+	}
+	
+	/**
+	 * How the matrix is clustered, for cache keys. The algorithm is part of
+	 * it, since the exhaustive search may break ties differently.
+	 * @param isOrdered whether the tree's leaf order is optimized
+	 */
+	private String getCacheMethod(boolean isOrdered) {
+		String method = getLinkageMethod() + ", " + algorithm;
+		return isOrdered ? method + ", ordered" : method;
+	}
+	
+	/**
+	 * Optimize the leaf order of a new tree, if set to, and cache the result.
+	 * @param fingerprint of the distance matrix, or null if not cached
+	 */
+	private Clade orderLeaves(Clade root, String fingerprint) {
+		if (!isLeafOrderOptimized)
+			return root;
+		optimizeLeafOrder(root);
+		if (cache != null)
+			cache.put(ClusterCache.key(fingerprint, getCacheMethod(true)),
+					Dendrogram.fromTree(root, leafLabels));
 		return root;
 	}
 	
+	/**
+	 * Cluster, delegating if need be.
+	 */
+	private Clade build() {
+		if (isSparse()) {
+			boolean isAverage = AVERAGE.equals(getLinkageMethod());
+			if (!isAverage && !SINGLE.equals(getLinkageMethod()))
+				throw new IllegalArgumentException("Sparse graphs support single "
+						+ "and average linkage only, not " + getLinkageMethod());
+			SparseLinkage sparse = new SparseLinkage(
+					(SparseDistanceGraph)distanceMatrix, leafLabels, isAverage);
+			sparse.setMonitor(this);
+			return sparse.cluster();
+		}
+		if (isMatrixFree()) {
+			FeatureLinkage features = new FeatureLinkage(getEuclideanFeatures(),
+					leafLabels, getLinkageMethod());
+			features.setExecutor(executor);
+			features.setParallelism(parallelism);
+			features.setMonitor(this);
+			return features.cluster();
+		}
+		if (isNeighborJoining()) {
+			NeighborJoining nj = new NeighborJoining(distanceMatrix, leafLabels, 
+				BIONJ.equals(getLinkageMethod()));
+			nj.setExecutor(executor);
+			nj.setParallelism(parallelism);
+			nj.setMonitor(this);
+			return nj.cluster();
+		}
+		// SLINK needs neither a copy of the distances nor a scratch file
+		if (SINGLE.equals(getLinkageMethod()) && !EXHAUSTIVE_SEARCH.equals(algorithm)) {
+			SingleLinkage slink = new SingleLinkage(distanceMatrix, leafLabels);
+			slink.setExecutor(executor);
+			slink.setParallelism(parallelism);
+			slink.setMonitor(this);
+			return slink.cluster();
+		}
+		return agglomerate();
+	}
+	
+	private boolean isSparse() {
+		return distanceMatrix instanceof SparseDistanceGraph;
+	}
+	
+	/**
+	 * Whether to cluster from the feature vectors behind the distances.
+	 */
+	private boolean isMatrixFree() {
+		return getEuclideanFeatures() != null 
+			&& FeatureLinkage.isSupported(getLinkageMethod())
+			&& !EXHAUSTIVE_SEARCH.equals(algorithm);
+	}
+	
+	/**
+	 * @return the features, if the distances are computed on the fly from
+	 * them by DistanceCalculator.createView() with Euclidean distances;
+	 * otherwise null
+	 */
+	private FeatureMatrix getEuclideanFeatures() {
+		return distanceMatrix instanceof DistanceCalculator.DistanceView
+			? ((DistanceCalculator.DistanceView)distanceMatrix).getFeatures()
+			: null;
+	}
+	
+	/**
+	 * Cluster with the Lance-Williams recurrence.
+	 */
+	private Clade agglomerate() {
+		return agglomerate(false);
+	}
+	
+	/**
+	 * Cluster with the Lance-Williams recurrence.
+	 * @param isInitialized whether init() has been called and the distances
+	 * copied, as by cluster(String[])
+	 */
+	private Clade agglomerate(boolean isInitialized) {
+		int rootIndex = -1; // catch bugs
+		try {
+			if (!isInitialized) {
+				init();
+				if (distances != distanceMatrix || getRecurrence().isSquared())
+					copyDistances(new HierarchicalCluster[] { this });
+			}
+			boolean isChain = scratchDirectory == null 
+				&& NEAREST_NEIGHBOR_CHAIN.equals(algorithm) 
+				&& getRecurrence().isReducible()
+				&& (getRecurrence().isOrderIndependent() || !hasMissingDistances());
+			isExhaustive = scratchDirectory == null && !isChain;
+			if (isExhaustive && scanRows == null)
+				scanRows = new double[executor == null ? 1 : parallelism][distances.size()];
+			if (scratchDirectory != null)
+				rowMinimumSearch();
+			else if (isChain)
+				nearestNeighborChain();
+			else
+				while (iterate() >= 0);
+			rootIndex = joinUnconnected();
+		} finally {
+			release();
+		}
+		
+		return nodes[rootIndex];
+	}
+	
+	/**
+	 * Free the scratch space of init().
+	 */
+	private void release() {
+		if (distances instanceof MappedDistanceMatrix && distances != distanceMatrix)
+			((MappedDistanceMatrix)distances).delete();
+		distances = null;
+		rowOne = rowTwo = null;
+		scanRows = null;
+		rowMinimum = null;
+		rowMinimumColumn = null;
+	}
+	
+	private boolean isNeighborJoining() {
+		return NEIGHBOR_JOINING.equals(getLinkageMethod()) 
+			|| BIONJ.equals(getLinkageMethod());
+	}
+	
 	/**
 	 * perform optional conversion of a similarity matrix to a distance form (it
 	 * overwrites the matrix - hope that's OK!) Must do before iterations, after
@@ -82,9 +495,14 @@ public class HierarchicalCluster {
 	 * PS. Could do it again to get back to the original sim form...
 	 */
 	public void similarityToDistance() {
-		for (int i = 0; i < distanceMatrix.length; i++) {
-			for (int j = 0; j < distanceMatrix[0].length; j++) {
-				distanceMatrix[i][j] = 1.0 - distanceMatrix[i][j];
+		// Symmetric matrices store (i, j) and (j, i) together, so read 
+		// both before writing either
+		for (int i = 0; i < distanceMatrix.size(); i++) {
+			for (int j = 0; j <= i; j++) {
+				double lower = distanceMatrix.get(i, j);
+				double upper = distanceMatrix.get(j, i);
+				distanceMatrix.set(i, j, 1.0 - lower);
+				distanceMatrix.set(j, i, 1.0 - upper);
 			}
 		}
 	}
@@ -93,103 +511,343 @@ public class HierarchicalCluster {
 	 * Perform necessary initialization. 
 	 */
 	private void init() {
-		leafCount = new int[distanceMatrix.length];
-		joinDistance = new double[distanceMatrix.length];
-		nodes = new Clade[distanceMatrix.length];
-		for (int i = 0; i < distanceMatrix.length; i++) {
+		int n = distanceMatrix.size();
+		leafCount = new int[n];
+		joinDistance = new double[n];
+		nodes = new Clade[n];
+		for (int i = 0; i < n; i++) {
 			joinDistance[i] = 0.0; // not needed but it is clearer this way
 			leafCount[i] = 1;
 			nodes[i] = new Clade(leafLabels[i], 0);
 		}
+		
+		active = new boolean[n];
+		for (int i = 0; i < n; i++)
+			active[i] = true;
+		rowOne = new double[n];
+		rowTwo = new double[n];
+		if (scratchDirectory != null || !NEAREST_NEIGHBOR_CHAIN.equals(algorithm) 
+				|| !getRecurrence().isReducible())
+			scanRows = new double[executor == null ? 1 : parallelism][n];
+		mergeCount = 0;
+		maxHeight = 0;
+		
+		// A scratch buffer of the same precision, for the cluster-cluster 
+		// distances
+		if (scratchDirectory != null) {
+			try {
+				distances = MappedDistanceMatrix.createTemporary(n, 
+						PackedDistanceMatrix.isSinglePrecision(distanceMatrix), 
+						scratchDirectory);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot create scratch file in " 
+						+ scratchDirectory, e);
+			}
+		} else if (isClusteredInPlace()) {
+			distances = (PackedDistanceMatrix)distanceMatrix;
+		} else {
+			distances = PackedDistanceMatrix.create(n, distanceMatrix);
+		}
+	}
+	
+	private boolean isClusteredInPlace() {
+		return isInPlace && scratchDirectory == null
+			&& distanceMatrix instanceof PackedDistanceMatrix
+			&& !(distanceMatrix instanceof MappedDistanceMatrix);
+	}
+	
+	/**
+	 * Copy the lower triangle of the distance matrix, which they share, 
+	 * into the scratch buffers of initialized instances, reading it only 
+	 * once. Rows are written in order, which is sequential in a file.
+	 */
+	private static void copyDistances(HierarchicalCluster[] targets) {
+		DistanceMatrix matrix = targets[0].distanceMatrix;
+		int n = matrix.size();
+		double[] row = new double[n];
+		for (int i = 1; i < n; i++) {
+			if (matrix instanceof PackedDistanceMatrix) {
+				((PackedDistanceMatrix)matrix).getRow(i, row, 0, i);
+			} else {
+				for (int j = 0; j < i; j++)
+					row[j] = matrix.get(i, j);
+			}
+			for (int t = 0; t < targets.length; t++) {
+				HierarchicalCluster target = targets[t];
+				if (target.getRecurrence().isSquared()) {
+					// Missing distances stay negative
+					for (int j = 0; j < i; j++)
+						target.rowOne[j] = row[j] < 0 ? row[j] : row[j] * row[j];
+					target.distances.setRow(i, target.rowOne, 0, i);
+				} else {
+					target.distances.setRow(i, row, 0, i);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Whether any of the cluster-cluster distances is negative.
+	 */
+	private boolean hasMissingDistances() {
+		int n = distances.size();
+		for (int i = 1; i < n; i++) {
+			distances.getRow(i, rowOne, 0, i);
+			for (int j = 0; j < i; j++)
+				if (rowOne[j] < 0)
+					return true;
+		}
+		return false;
+	}
+	
+	private LanceWilliams getRecurrence() {
+		return RECURRENCES[linkageMethod];
 	}
 
 	/**
-	 * Compute distance between clusters.
-	 * @param oneJoin index of first node
-	 * @param twoJoin index of second node
-	 * @param fixrow ???
-	 * @return new distance between clusters
+	 * Iterate the clustering algorithm.
+	 * @return index of the newest node, or -1 if no two clusters have a 
+	 * distance between them
 	 */
-	private double newDistance(int oneJoin, int twoJoin, int fixrow) {
-		double newD = -1111.; // catch bugs
+	private int iterate() {
+		int n = distances.size();
+		int[] bounds = ParallelLoop.splitTriangle(1, n, chunks((long)n * n / 2));
+		final double[] closeness = new double[bounds.length - 1];
+		final int[] ones = new int[bounds.length - 1];
+		final int[] twos = new int[bounds.length - 1];
 		
-		// Half of the distance matrix is overwritten to store 
-		// the cluster-cluster distances.  The other half keeps
-		// the original data.
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double currentCloseness;
+				int one, two;
+				one = two = -1; // catch bugs
+				double[] row = scanRows[chunk];
+
+				currentCloseness = Double.MAX_VALUE; // some big number!
+				for (int i = from; i < to; i++) {
+					if (!active[i])
+						continue;
+					distances.getRow(i, row, 0, i);
+					for (int j = 0; j < i; j++) {
+						double d = row[j];
+						if (d >= 0 && d < currentCloseness) {
+							currentCloseness = d;
+							one = i;
+							two = j;
+						}
+					}
+				}
+				closeness[chunk] = currentCloseness;
+				ones[chunk] = one;
+				twos[chunk] = two;
+			}
+		});
 		
-		switch (linkageMethod) {
-		// Average
-		case 0:
-			int oneN = leafCount[oneJoin];
-			int twoN = leafCount[twoJoin];
-			newD = (distanceMatrix[Math.max(oneJoin, fixrow)][Math.min(oneJoin, fixrow)]
-					* oneN + distanceMatrix[Math.max(twoJoin, fixrow)][Math.min(twoJoin,
-					fixrow)]
-					* twoN)
-					/ (oneN + twoN);
-			break;
-		// Complete
-		case 1:
-			newD = Math.max(distanceMatrix[Math.max(oneJoin, fixrow)][Math.min(oneJoin,
-					fixrow)], distanceMatrix[Math.max(twoJoin, fixrow)][Math.min(twoJoin,
-					fixrow)]);
-			break;
-		// Single
-		case 2:
-			newD = Math.min(distanceMatrix[Math.max(oneJoin, fixrow)][Math.min(oneJoin,
-					fixrow)], distanceMatrix[Math.max(twoJoin, fixrow)][Math.min(twoJoin,
-					fixrow)]);
-			break;
+		// Combine in row order, so the first minimum wins as it would 
+		// in a sequential scan
+		int chunk = -1;
+		for (int c = 0; c < closeness.length; c++) {
+			if (ones[c] >= 0 && (chunk < 0 || closeness[c] < closeness[chunk]))
+				chunk = c;
+		}
+		if (chunk < 0)
+			return -1;
+		return join(ones[chunk], twos[chunk], closeness[chunk]);
+	}
+	
+	/**
+	 * @param work number of matrix elements to process
+	 * @return number of parallel tasks to split the work into
+	 */
+	private int chunks(long work) {
+		if (executor == null)
+			return 1;
+		return (int)Math.max(1, Math.min(parallelism, work / PARALLEL_GRAIN));
+	}
+
+	/**
+	 * Cluster with the nearest-neighbor chain algorithm. Follow a chain of
+	 * nearest neighbors until two clusters are each other's nearest
+	 * neighbor, then merge them. For reducible linkages this gives the same
+	 * tree as the exhaustive search, in O(n^2) time.
+	 * <p>
+	 * A cluster with no distance to any other is set aside for good, since
+	 * merging others cannot give it one. Stops when every cluster left has
+	 * been set aside.
+	 */
+	private void nearestNeighborChain() {
+		int n = distances.size();
+		int[] chain = new int[n];
+		boolean[] isUnconnected = new boolean[n];
+		int chainSize = 0;
+		int firstActive = 0;
 
+		for (int clusters = n; clusters > 1; ) {
+			if (chainSize == 0) {
+				while (firstActive < n 
+						&& (!active[firstActive] || isUnconnected[firstActive]))
+					++firstActive;
+				if (firstActive == n)
+					return;
+				chain[chainSize++] = firstActive;
+			}
+
+			int a, b;
+			double closeness;
+			while (true) {
+				a = chain[chainSize - 1];
+				
+				// Prefer the previous chain element on ties, so the chain
+				// cannot cycle
+				b = chainSize > 1 ? chain[chainSize - 2] : -1;
+				distances.getRow(a, rowOne, 0, n);
+				closeness = b >= 0 ? rowOne[b] : Double.MAX_VALUE;
+				int previous = b;
+				for (int k = 0; k < n; k++) {
+					if (k == a || !active[k])
+						continue;
+					double d = rowOne[k];
+					if (d >= 0 && (b < 0 || d < closeness)) {
+						closeness = d;
+						b = k;
+					}
+				}
+				if (b == previous)
+					break;
+				chain[chainSize++] = b;
+			}
+			if (b < 0) {
+				isUnconnected[a] = true;
+				chainSize = 0;
+				continue;
+			}
+
+			// a and b are reciprocal nearest neighbors
+			chainSize -= 2;
+			join(a, b, closeness);
+			--clusters;
 		}
-		return newD;
 	}
 
 	/**
-	 * Iterate the clustering algorithm.
-	 * @return index of the newest node.
+	 * Cluster with an index of the minimum of each row of the lower
+	 * triangle. Finding the closest pair only scans the index. After a
+	 * merge, only the rows whose minimum was one of the merged clusters are
+	 * read again, from the left of the diagonal, which is contiguous. Gives
+	 * the same tree as the exhaustive search, for any linkage it is used
+	 * for; single linkage only gets here when the exhaustive search is
+	 * selected, and otherwise goes to SingleLinkage. Stops when no two
+	 * clusters have a distance between them.
 	 */
-	private int iterate() {
-		double currentCloseness, newDistance = Double.MIN_VALUE; // catch bugs
-		int one, two;
-		one = two = -1; // catch bugs
-
-		currentCloseness = Double.MAX_VALUE; // some big number!
-		for (int i = 1; i < distanceMatrix.length; i++) {
-			for (int j = 0; j < i; j++) {
-				if (distanceMatrix[i][j] >= 0 && distanceMatrix[i][j] < currentCloseness) {
-					currentCloseness = distanceMatrix[i][j];
+	private void rowMinimumSearch() {
+		int n = distances.size();
+		rowMinimum = new double[n];
+		rowMinimumColumn = new int[n];
+		ParallelLoop.run(executor, ParallelLoop.splitTriangle(0, n, 
+				chunks((long)n * n / 2)), new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++)
+					scanRow(i, scanRows[chunk]);
+			}
+		});
+		
+		boolean isSinglePrecision = PackedDistanceMatrix.isSinglePrecision(distances);
+		for (int merges = 0; merges < n - 1; merges++) {
+			// First minimum in row order, as in the exhaustive search
+			int one = -1;
+			for (int i = 1; i < n; i++) {
+				if (rowMinimumColumn[i] >= 0 
+						&& (one < 0 || rowMinimum[i] < rowMinimum[one]))
 					one = i;
-					two = j;
+			}
+			if (one < 0)
+				return;
+			int two = rowMinimumColumn[one];
+			int rootIndex = join(one, two, rowMinimum[one]);
+			int removed = rootIndex == one ? two : one;
+			
+			// rowTwo holds the new distances from the merged cluster
+			rowMinimumColumn[removed] = -1;
+			scanRow(rootIndex, scanRows[0]);
+			for (int k = Math.min(one, two) + 1; k < n; k++) {
+				if (!active[k] || k == rootIndex)
+					continue;
+				int col = rowMinimumColumn[k];
+				double d = isSinglePrecision ? (float)rowTwo[k] : rowTwo[k];
+				if (col == removed || (col == rootIndex && d > rowMinimum[k])) {
+					scanRow(k, scanRows[0]);
+				} else if (k > rootIndex && d >= 0 && (col < 0 || d < rowMinimum[k] 
+						|| (d == rowMinimum[k] && rootIndex < col))) {
+					rowMinimum[k] = d;
+					rowMinimumColumn[k] = rootIndex;
 				}
 			}
 		}
-		// now do the merge and some bookkeeping.
-		// above assures j<i ==> one > two
+	}
+	
+	/**
+	 * Find the first minimum of row i, left of the diagonal.
+	 */
+	private void scanRow(int i, double[] row) {
+		distances.getRow(i, row, 0, i);
+		double min = Double.MAX_VALUE;
+		int col = -1;
+		for (int j = 0; j < i; j++) {
+			double d = row[j];
+			if (d >= 0 && d < min) {
+				min = d;
+				col = j;
+			}
+		}
+		rowMinimum[i] = min;
+		rowMinimumColumn[i] = col;
+	}
+
+	/**
+	 * Join the clusters that are left, which have no distance between any
+	 * two of them, at the greatest height so far, as SingleLinkage does.
+	 * @return index of the root node.
+	 */
+	private int joinUnconnected() {
+		double closeness = getRecurrence().isSquared() ? maxHeight * maxHeight 
+			: maxHeight;
+		int rootIndex = -1;
+		for (int i = 0; i < active.length; i++)
+			if (active[i])
+				rootIndex = rootIndex < 0 ? i : join(rootIndex, i, closeness);
+		return rootIndex;
+	}
+
+	/**
+	 * Merge two clusters and update the cluster-cluster distances.
+	 * @param one index of a cluster
+	 * @param two index of another cluster
+	 * @param currentCloseness distance between the two clusters
+	 * @return index of the merged node.
+	 */
+	private int join(int one, int two, double currentCloseness) {
 		// We write into d[big][little] only and retain the larger member
 		// reference ...
-
+		if (one < two) {
+			int i = two;
+			two = one;
+			one = i;
+		}
 		if (leafCount[one] > leafCount[two]) {
 			int i = two;
 			two = one;
 			one = i;
 		}
 		
-		// Update the distance matrix with new cluster-cluster distances
-		for (int i = 0; i < distanceMatrix.length; i++) {
-			if (one == i || two == i)
-				continue;
-			
-			newDistance = newDistance(one, two, i);
-			distanceMatrix[Math.max(two, i)][Math.min(two, i)] = newDistance; // merged distance
-		}
-		for (int i = 0; i < distanceMatrix.length; i++) {
-			if (i != one)
-				distanceMatrix[Math.max(one, i)][Math.min(one, i)] = -9999.; // it's gone now!
-		}
-			
-		nodes[one].setBranchLength(currentCloseness - joinDistance[one]);
-		nodes[two].setBranchLength(currentCloseness - joinDistance[two]);
+		updateDistances(one, two);
+		active[one] = false;
+		
+		// Inversions are possible with centroid and median linkage
+		double height = currentCloseness;
+		if (getRecurrence().isSquared())
+			height = Math.sqrt(Math.max(0, height));
+		nodes[one].setBranchLength(Math.max(0, height - joinDistance[one]));
+		nodes[two].setBranchLength(Math.max(0, height - joinDistance[two]));
 		
 		Clade joinedNode = new Clade();
 		joinedNode.add(nodes[two]);
@@ -198,23 +856,76 @@ public class HierarchicalCluster {
 		nodes[one] = null; 
 		
 		mergeMembers(leafCount, two, one); // Maybe only used for debugging
-		joinDistance[two] = currentCloseness;
+		joinDistance[two] = height;
+		maxHeight = Math.max(maxHeight, height);
+		
+		// The exhaustive search scans the whole triangle for each merge,
+		// the other algorithms about a row per cluster
+		int n = leafCount.length;
+		reportProgress(1 - Math.pow((double)(n - 1 - ++mergeCount) / (n - 1), 
+				isExhaustive ? 3 : 2));
+		if (isPartialTreeDue()) {
+			Clade[] clusters = new Clade[n - mergeCount];
+			int count = 0;
+			for (int i = 0; i < n; i++)
+				if (nodes[i] != null)
+					clusters[count++] = nodes[i];
+			publishPartialTree(clusters, count);
+		}
 		return two;
 	}
 
+	/**
+	 * Update the distance matrix with new cluster-cluster distances.
+	 * Both rows are copied out of the packed matrix a block of columns at a
+	 * time, updated in one pass of the Lance-Williams recurrence, and
+	 * written back before the next block is read. Row ranges are
+	 * independent, so they can be updated in parallel.
+	 * <p>
+	 * In the packed lower triangle, the columns of a row past the diagonal
+	 * are one element in each later row, so out of core every merge touches
+	 * O(n) pages of the scratch file, and clustering touches O(n^2) pages in
+	 * all. Reading and writing a block at a time visits those pages once
+	 * each per merge, in file order, rather than once per row read or
+	 * written; the elements of both rows usually share a page. A matrix
+	 * whose rows past the diagonal do not fit in memory is still limited by
+	 * the speed of the disk.
+	 * @param one index of the cluster that is removed
+	 * @param two index of the cluster that holds the merged cluster
+	 */
+	private void updateDistances(final int one, final int two) {
+		int n = distances.size();
+		final double oneTwo = distances.get(one, two);
+		final double diagonal = distances.get(two, two);
+		
+		ParallelLoop.run(executor, ParallelLoop.split(0, n, chunks(n)), 
+				new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				for (int start = from; start < to; start += UPDATE_BLOCK) {
+					int end = Math.min(to, start + UPDATE_BLOCK);
+					distances.getRow(one, rowOne, start, end);
+					distances.getRow(two, rowTwo, start, end);
+					getRecurrence().update(rowOne, rowTwo, oneTwo, leafCount[one], 
+							leafCount[two], leafCount, rowTwo, start, end);
+					for (int i = start; i < end; i++) {
+						if (!active[i] || i == one)
+							rowTwo[i] = -9999.; // it's gone now!
+						if (i != one)
+							rowOne[i] = -9999.;
+					}
+					if (start <= two && two < end)
+						rowTwo[two] = diagonal;
+					distances.setRow(two, rowTwo, start, end); // merged distance
+					distances.setRow(one, rowOne, start, end);
+				}
+			}
+		});
+	}
+
 	private void mergeMembers(int[] numMember, int joinedNodeIndex, int oldNodeIndex) {
 		numMember[joinedNodeIndex] += numMember[oldNodeIndex];
 	}
 
-    /**
-     * Perform optional completion - repair the dm
-     */
-    private void restore(double[][] distanceMatrix) {
-        for (int i=1;i<distanceMatrix.length;i++)
-            for (int j=0; j<i;j++)
-                  distanceMatrix[i][j] = distanceMatrix[j][i];
-    }
-
 	/**
 	 * Test.
 	 * @param args none used
@@ -235,82 +946,111 @@ public class HierarchicalCluster {
 
 		String[] labels = new String[] {"one", "two", "three", "four", "five"};
 
-		for (String method : LINKAGE_METHODS) {
-			HierarchicalCluster hc = new HierarchicalCluster(data, labels);
-			hc.setLinkageMethod(method);
-			if (isPearson)
-				hc.similarityToDistance();
-			Clade root = hc.cluster();
-			if (isPearson)
-				hc.similarityToDistance();
-			
-			PhylipWriter writer = new PhylipWriter();
-			StringWriter sw = new StringWriter();
-			writer.setOutput(sw);
-			try {
-				writer.write(new DefaultTreeModel(root));
-			} catch(IOException ex) {
-				ex.printStackTrace();
-			}
-			System.out.println(sw.toString().replace("\n", ""));
-			
-			System.out.println();
-			String[] relabeled = hc.getReorderedLabels(root);
-			double[][] reordered = hc.getReorderedMatrix(relabeled);	
-			for(int i = 0; i < relabeled.length; ++i) {
-				System.out.print(relabeled[i] + "\t");
-				for(int j = 0; j < relabeled.length; ++j) {
-					System.out.print(reordered[i][j] + "\t");
+		ExecutorService executor = ParallelLoop.newExecutor(LINKAGE_METHODS.length);
+		try {
+			for (String algorithm : ALGORITHMS) {
+				HierarchicalCluster hc = new HierarchicalCluster(data, labels);
+				hc.setAlgorithm(algorithm);
+				hc.setExecutor(executor);
+				if (isPearson)
+					hc.similarityToDistance();
+				Clade[] roots = hc.cluster(LINKAGE_METHODS);
+				if (isPearson)
+					hc.similarityToDistance();
+
+				for (int m = 0; m < LINKAGE_METHODS.length; m++) {
+					System.out.println(LINKAGE_METHODS[m] + " linkage, " + algorithm);
+					Clade root = roots[m];
+
+					PhylipWriter writer = new PhylipWriter();
+					StringWriter sw = new StringWriter();
+					writer.setOutput(sw);
+					try {
+						writer.write(new DefaultTreeModel(root));
+					} catch(IOException ex) {
+						ex.printStackTrace();
+					}
+					System.out.println(sw.toString().replace("\n", ""));
+
+					System.out.println();
+					String[] relabeled = hc.getReorderedLabels(root);
+					DistanceMatrix reordered = hc.getReorderedMatrix(relabeled);
+					for(int i = 0; i < relabeled.length; ++i) {
+						System.out.print(relabeled[i] + "\t");
+						for(int j = 0; j < relabeled.length; ++j) {
+							System.out.print(reordered.get(i, j) + "\t");
+						}
+						System.out.println();
+					}
 				}
-				System.out.println();
 			}
+		} finally {
+			executor.shutdown();
 		}
 	}
 
-	public double[][] getDistanceMatrix() {
+	public DistanceMatrix getDistanceMatrix() {
 		return distanceMatrix;
 	}
 	
 	/**
 	 * The distance matrix reordered based on the clustering order.
 	 */
-	public double[][] getReorderedMatrix(Clade root) {		
+	public DistanceMatrix getReorderedMatrix(Clade root) {		
 		return getReorderedMatrix(getReorderedLabels(root));
 	}
 	
 	/**
-	 * The distance matrix reordered based on the clustering order.
+	 * The distance matrix reordered based on the clustering order. This is
+	 * a view of the original matrix, not a copy, so it takes O(n) time and
+	 * memory.
+	 * @param reorderedLabels the leaf labels, the same String objects, in 
+	 * the new order
+	 * @throws IllegalArgumentException if a label is not a leaf label
 	 */
-	public double[][] getReorderedMatrix(String[] reorderedLabels) {
+	public DistanceMatrix getReorderedMatrix(String[] reorderedLabels) {
 		// find the index of the original label
-		int[] indexes = new int[leafLabels.length];
-		for(int i = 0; i < reorderedLabels.length; ++i) {
-			for(int j = 0; j < reorderedLabels.length; ++j) {
-				if(reorderedLabels[i] == leafLabels[j]) {
-					indexes[i] = j;
-					break;
-				}
-			}
-		}
-		
-		// Create reordered matrix
-		double[][] d = new double[distanceMatrix.length][distanceMatrix.length];
-		for(int i = 0; i < d.length; ++i) {
-			for(int j = 0; j < d.length; ++j) {
-				d[i][j] = distanceMatrix[indexes[i]][indexes[j]];
-			}
+		Map<String, Integer> index = new IdentityHashMap<String, Integer>();
+		for (int i = 0; i < leafLabels.length; i++)
+			index.put(leafLabels[i], Integer.valueOf(i));
+		int[] indexes = new int[reorderedLabels.length];
+		for (int i = 0; i < reorderedLabels.length; i++) {
+			Integer j = index.get(reorderedLabels[i]);
+			if (j == null)
+				throw new IllegalArgumentException("Unknown label: " + reorderedLabels[i]);
+			indexes[i] = j.intValue();
 		}
-		return d;
+		return new PermutedDistanceMatrix(distanceMatrix, indexes, reorderedLabels);
+	}
+	
+	/**
+	 * Flip the children of the nodes of a tree from cluster() so that the 
+	 * sum of distances between adjacent leaves is as small as possible. 
+	 * The tree is otherwise unchanged; getReorderedLabels() then gives the
+	 * optimal order, for a smoother heatmap.
+	 * @return sum of distances between adjacent leaves
+	 * @see LeafOrdering
+	 */
+	public double optimizeLeafOrder(Clade root) {
+		// The ordering reads each distance many times, and already takes
+		// O(n^2) memory, so distances computed on the fly are stored first
+		DistanceMatrix distances = distanceMatrix;
+		if (distances instanceof DistanceCalculator.DistanceView)
+			distances = new FloatDistanceMatrix(distances);
+		LeafOrdering ordering = new LeafOrdering(distances, leafLabels);
+		ordering.setExecutor(executor);
+		ordering.setParallelism(parallelism);
+		return ordering.order(root);
 	}
 	
 	public String[] getReorderedLabels(Clade root) {
 		String[] labels = new String[leafLabels.length];
 		int k = 0;
 
-		// iterate the tree, depth first
-		Enumeration e = root.depthFirstEnumeration();
-		while(e.hasMoreElements()) {
-			Clade node = (Clade)e.nextElement();
+		// iterate the tree, depth first, without recursion
+		Clade[] clades = LeafOrdering.postorder(root);
+		for (int i = 0; i < clades.length; i++) {
+			Clade node = clades[i];
 			if(node.isLeaf() && node.getUserObject() != null)
 				labels[k++] = node.toString();			
 		}
@@ -318,8 +1058,14 @@ public class HierarchicalCluster {
 	}
 
 	public void setDistanceMatrix(double[][] distanceMatrix) {
-		if(distanceMatrix.length != distanceMatrix[0].length)
-			throw new IllegalArgumentException("Distance matrix must be square");
+		setDistanceMatrix(new ArrayDistanceMatrix(distanceMatrix));
+	}
+
+	/**
+	 * The matrix is only read during clustering. Cluster-cluster distances
+	 * are kept in a separate scratch buffer.
+	 */
+	public void setDistanceMatrix(DistanceMatrix distanceMatrix) {
 		this.distanceMatrix = distanceMatrix;
 	}
 
@@ -346,4 +1092,239 @@ public class HierarchicalCluster {
 		if(this.linkageMethod == -1)
 			throw new IllegalArgumentException("Invalid linkage method: " + linkageMethod);
 	}
-}
\ No newline at end of file
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor pool for parallel clustering, or null to cluster in 
+	 * the calling thread only
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of row ranges to process in parallel;
+	 * defaults to the number of processors
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Cluster in the distance matrix itself rather than in a copy, if it is
+	 * a PackedDistanceMatrix on the heap, which halves the memory needed.
+	 * The matrix is overwritten, so it cannot be used afterwards, for
+	 * example for a heatmap. Ignored when clustering several linkages at
+	 * once, or out of core.
+	 * @param isInPlace false by default
+	 */
+	public void setInPlace(boolean isInPlace) {
+		this.isInPlace = isInPlace;
+	}
+	
+	public boolean isInPlace() {
+		return isInPlace;
+	}
+
+	/**
+	 * Cluster out of core, keeping the cluster-cluster distances in a
+	 * temporary memory-mapped file in this directory. The file is deleted
+	 * when clustering is done. Single linkage uses no scratch file unless
+	 * the exhaustive search is selected, since SingleLinkage already reads
+	 * the distances where they are.
+	 * @param directory null, the default, to keep the distances on the heap
+	 */
+	public void setScratchDirectory(File directory) {
+		scratchDirectory = directory;
+	}
+
+	public File getScratchDirectory() {
+		return scratchDirectory;
+	}
+	
+	/**
+	 * Look up results in this cache before clustering, and add them after.
+	 * Cached results are found by the contents of the distance matrix, 
+	 * whatever object holds it, so they can be shared between instances.
+	 * @param cache null, the default, for none
+	 */
+	public void setCache(ClusterCache cache) {
+		this.cache = cache;
+	}
+	
+	public ClusterCache getCache() {
+		return cache;
+	}
+	
+	public boolean isLeafOrderOptimized() {
+		return isLeafOrderOptimized;
+	}
+	
+	/**
+	 * Whether cluster() returns trees with their leaf order optimized, as
+	 * by optimizeLeafOrder(). The ordered trees are cached too, so a cache
+	 * hit skips the ordering as well as the clustering.
+	 */
+	public void setLeafOrderOptimized(boolean isOptimized) {
+		isLeafOrderOptimized = isOptimized;
+	}
+
+	/**
+	 * Stop clustering. May be called from any thread; cluster() then throws
+	 * a CancellationException soon after. Interrupting the clustering 
+	 * thread has the same effect.
+	 */
+	public void cancel() {
+		isCancelled = true;
+		HierarchicalCluster[] jobs = batch;
+		if (jobs != null)
+			for (int k = 0; k < jobs.length; k++)
+				jobs[k].cancel();
+	}
+	
+	/**
+	 * Record the progress of cluster(), and stop if cancelled. Also called
+	 * by the classes that clustering is delegated to.
+	 * @param work fraction of the work done, in [0, 1]
+	 * @throws CancellationException if cancelled
+	 */
+	void reportProgress(double work) {
+		if (isCancelled || Thread.currentThread().isInterrupted())
+			throw new CancellationException("Clustering cancelled");
+		workDone = work;
+		int percent = (int)(100 * work);
+		if (percent != progress) {
+			int oldProgress = progress;
+			progress = percent;
+			propertySupport.firePropertyChange(PROPERTY_PROGRESS, oldProgress, 
+					percent);
+		}
+	}
+	
+	/**
+	 * Estimated time until clustering is done, extrapolated from the time
+	 * taken so far. May be called from any thread.
+	 * @return milliseconds, or -1 if not known yet
+	 */
+	public long getTimeRemaining() {
+		double work = workDone;
+		if (work <= 0)
+			return -1;
+		long elapsed = System.currentTimeMillis() - startTime;
+		return (long)(elapsed * (1 - work) / work);
+	}
+	
+	/**
+	 * Publish a copy of the forest merged so far every so many 
+	 * milliseconds, as a PROPERTY_PARTIAL_TREE event.
+	 * @param interval milliseconds; 0, the default, to publish none
+	 */
+	public void setPartialTreeInterval(long interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("Invalid interval: " + interval);
+		partialTreeInterval = interval;
+	}
+	
+	public long getPartialTreeInterval() {
+		return partialTreeInterval;
+	}
+	
+	/**
+	 * Whether it is time to publish a partial tree.
+	 */
+	boolean isPartialTreeDue() {
+		return partialTreeInterval > 0 
+			&& System.currentTimeMillis() - lastPartialTree >= partialTreeInterval;
+	}
+	
+	/**
+	 * Publish copies of the current clusters, under a new root. The 
+	 * clusters themselves are still being merged, so listeners must not
+	 * see them.
+	 * @param clusters roots of the clusters merged so far
+	 * @param count number of clusters
+	 */
+	void publishPartialTree(Clade[] clusters, int count) {
+		Clade root = new Clade();
+		for (int i = 0; i < count; i++)
+			root.add(copy(clusters[i]));
+		propertySupport.firePropertyChange(PROPERTY_PARTIAL_TREE, null, root);
+		lastPartialTree = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Copy a tree without recursion, since trees can be very deep. Leaves
+	 * keep the same label objects.
+	 */
+	private static Clade copy(Clade node) {
+		Clade root = copyNode(node);
+		Clade[] originals = new Clade[16];
+		Clade[] copies = new Clade[16];
+		originals[0] = node;
+		copies[0] = root;
+		int top = 1;
+		while (top > 0) {
+			Clade original = originals[--top];
+			Clade parent = copies[top];
+			for (int c = 0; c < original.getChildCount(); c++) {
+				Clade child = (Clade)original.getChildAt(c);
+				Clade childCopy = copyNode(child);
+				parent.add(childCopy);
+				if (child.getChildCount() == 0)
+					continue;
+				if (top == originals.length) {
+					Clade[] grown = new Clade[2 * top];
+					System.arraycopy(originals, 0, grown, 0, top);
+					originals = grown;
+					grown = new Clade[2 * top];
+					System.arraycopy(copies, 0, grown, 0, top);
+					copies = grown;
+				}
+				originals[top] = child;
+				copies[top++] = childCopy;
+			}
+		}
+		return root;
+	}
+	
+	private static Clade copyNode(Clade node) {
+		Clade copy = node.isLeaf() ? new Clade((String)node.getUserObject(), 0) 
+				: new Clade();
+		copy.setBranchLength(node.getBranchLength());
+		return copy;
+	}
+	
+	public void addPropertyChangeListener(PropertyChangeListener listener) {
+		propertySupport.addPropertyChangeListener(listener);
+	}
+
+	public void removePropertyChangeListener(PropertyChangeListener listener) {
+		propertySupport.removePropertyChangeListener(listener);
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @param algorithm either NEAREST_NEIGHBOR_CHAIN or EXHAUSTIVE_SEARCH
+	 */
+	public void setAlgorithm(String algorithm) {
+		for (int i = 0; i < ALGORITHMS.length; i++) {
+			if (ALGORITHMS[i].equals(algorithm)) {
+				this.algorithm = ALGORITHMS[i];
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Invalid algorithm: " + algorithm);
+	}
+}
@@ -0,0 +1,153 @@
+package com.sugen.util;
+
+/**
+ * Lance-Williams recurrence for the distance from a cluster k to the union
+ * of clusters i and j, given the distances before the merge:
+ * <pre>
+ * d(k, i+j) = ai d(k, i) + aj d(k, j) + b d(i, j) + g |d(k, i) - d(k, j)|
+ * </pre>
+ * Each linkage method is one row of coefficients. The coefficients depend
+ * at most on the cluster sizes ni, nj and nk:
+ * <pre>
+ *             ai                   b                  g
+ * Single      1/2                  0                 -1/2
+ * Complete    1/2                  0                  1/2
+ * Average     ni/(ni+nj)           0                  0
+ * WPGMA       1/2                  0                  0
+ * Centroid    ni/(ni+nj)           -ai aj             0
+ * Median      1/2                  -1/4               0
+ * Ward        (ni+nk)/(ni+nj+nk)   -nk/(ni+nj+nk)     0
+ * </pre>
+ * Centroid, median and Ward linkage are defined on squared Euclidean
+ * distances. The input distances are squared before clustering, and the
+ * square root of each merge distance is reported.
+ * <p>
+ * Negative distances are missing, as in HierarchicalCluster. If one of
+ * d(k, i) and d(k, j) is missing, d(k, i+j) is the other one; if both are,
+ * it is missing too. So merging never brings clusters closer than the
+ * nearer part, and reducible linkages stay reducible.
+ *
+ * @see HierarchicalCluster
+ */
+public class LanceWilliams {
+	private final static int EQUAL = 0;
+	private final static int SIZE = 1;
+	private final static int WARD = 2;
+
+	public final static LanceWilliams SINGLE =
+		new LanceWilliams(EQUAL, false, -0.5, false, true);
+	public final static LanceWilliams COMPLETE =
+		new LanceWilliams(EQUAL, false, 0.5, false, true);
+	public final static LanceWilliams AVERAGE =
+		new LanceWilliams(SIZE, false, 0, false, true);
+	public final static LanceWilliams WPGMA =
+		new LanceWilliams(EQUAL, false, 0, false, true);
+	public final static LanceWilliams CENTROID =
+		new LanceWilliams(SIZE, true, 0, true, false);
+	public final static LanceWilliams MEDIAN =
+		new LanceWilliams(EQUAL, true, 0, true, false);
+	public final static LanceWilliams WARD_LINKAGE =
+		new LanceWilliams(WARD, false, 0, true, true);
+
+	private final int weights;
+	private final boolean isBetaProduct;
+	private final double gamma;
+	private final boolean isSquared;
+	private final boolean isReducible;
+
+	/**
+	 * @param weights how ai and aj are computed
+	 * @param isBetaProduct if true, b = -ai aj; otherwise b = 0, except for
+	 * Ward
+	 * @param gamma coefficient g
+	 * @param isSquared whether the recurrence applies to squared distances
+	 * @param isReducible whether merging two clusters can never bring the
+	 * merged cluster closer to a third cluster than either part was
+	 */
+	private LanceWilliams(int weights, boolean isBetaProduct, double gamma,
+			boolean isSquared, boolean isReducible) {
+		this.weights = weights;
+		this.isBetaProduct = isBetaProduct;
+		this.gamma = gamma;
+		this.isSquared = isSquared;
+		this.isReducible = isReducible;
+	}
+
+	/**
+	 * Whether the recurrence applies to squared distances.
+	 */
+	public boolean isSquared() {
+		return isSquared;
+	}
+
+	/**
+	 * Whether the linkage satisfies the reducibility property, so that the
+	 * nearest-neighbor chain algorithm can be used.
+	 */
+	public boolean isReducible() {
+		return isReducible;
+	}
+
+	/**
+	 * Whether the distance between two clusters is the same whatever the
+	 * order in which their parts were merged, even with missing distances.
+	 * True of single and complete linkage, the least and the greatest of
+	 * the distances between their items that are not missing.
+	 */
+	public boolean isOrderIndependent() {
+		return gamma != 0;
+	}
+
+	/**
+	 * Compute the distances from every cluster k in [from, to) to the union
+	 * of clusters i and j. The loop over k has no branches other than the
+	 * test for missing distances, which compiles to a conditional move, so
+	 * it is easily unrolled by the JIT compiler.
+	 *
+	 * @param di distances from cluster i, indexed by k
+	 * @param dj distances from cluster j, indexed by k
+	 * @param dij distance between clusters i and j
+	 * @param ni number of leaves in cluster i
+	 * @param nj number of leaves in cluster j
+	 * @param sizes number of leaves in each cluster k; only used for Ward
+	 * @param result receives the updated distances, indexed by k; may be
+	 * the same array as di or dj
+	 */
+	public void update(double[] di, double[] dj, double dij, int ni, int nj,
+			int[] sizes, double[] result, int from, int to) {
+		if (weights == WARD) {
+			for (int k = from; k < to; k++) {
+				double a = di[k];
+				double c = dj[k];
+				double nk = sizes[k];
+				result[k] = a < 0 || c < 0 ? Math.max(a, c)
+					: ((ni + nk) * a + (nj + nk) * c - nk * dij) / (ni + nj + nk);
+			}
+		} else if (gamma < 0) {
+			for (int k = from; k < to; k++) {
+				double a = di[k];
+				double c = dj[k];
+				result[k] = a < 0 || c < 0 ? Math.max(a, c) : Math.min(a, c);
+			}
+		} else if (gamma > 0) {
+			for (int k = from; k < to; k++)
+				result[k] = Math.max(di[k], dj[k]);
+		} else if (weights == SIZE && !isBetaProduct) {
+			for (int k = from; k < to; k++) {
+				double a = di[k];
+				double c = dj[k];
+				result[k] = a < 0 || c < 0 ? Math.max(a, c)
+					: (a * ni + c * nj) / (ni + nj);
+			}
+		} else {
+			double ai = weights == SIZE ? (double)ni / (ni + nj) : 0.5;
+			double aj = weights == SIZE ? (double)nj / (ni + nj) : 0.5;
+			double b = isBetaProduct ? -ai * aj * dij : 0;
+			for (int k = from; k < to; k++) {
+				double a = di[k];
+				double c = dj[k];
+				result[k] = a < 0 || c < 0 ? Math.max(a, c) : ai * a + aj * c + b;
+			}
+		}
+	}
+}
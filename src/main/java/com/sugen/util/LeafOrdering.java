@@ -0,0 +1,492 @@
+package com.sugen.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Optimal leaf ordering of a tree, after Bar-Joseph, Gifford and Jaakkola
+ * (2001). The children of each node can be flipped without changing the
+ * tree; this finds the flips that minimize the sum of distances between
+ * adjacent leaves, which makes heatmaps of the reordered matrix much
+ * smoother than the arbitrary order left by clustering.
+ * <p>
+ * For each node and each pair of leaves (i, j) on opposite sides of it,
+ * M(i, j) is the cost of the best ordering of the node's leaves that
+ * starts with i and ends with j. It is built bottom-up from the children:
+ * <pre>
+ * M(i, j) = min over k, l of M(i, k) + D(k, l) + M(l, j)
+ * </pre>
+ * where k is the other end of the left child's ordering and l the other
+ * end of the right child's. Done directly that is O(n^4); splitting it in
+ * two steps through T(i, l) = min over k of M(i, k) + D(k, l) makes it
+ * O(n^3). In practice most of the work is avoided: candidates are tried
+ * in ascending order of M(i, k), or of T(i, l), and the search stops as
+ * soon as no remaining candidate can beat the best so far, given the
+ * smallest possible value of the other term. Rows i are independent, so
+ * given an executor they are computed in parallel.
+ * <p>
+ * Nodes with more than two children are treated as a left-nested series
+ * of binary nodes, so their children are not reordered freely.
+ *
+ * @see HierarchicalCluster#optimizeLeafOrder(Clade)
+ */
+public class LeafOrdering {
+	/**
+	 * Minimum number of candidate evaluations per parallel task.
+	 */
+	private final static int PARALLEL_GRAIN = 1 << 16;
+
+	private DistanceMatrix distanceMatrix;
+	private String[] leafLabels;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	// Leaves are numbered by position, in the original depth-first order
+	private int[] matrixIndex;
+	private Clade[] leaves;
+
+	// Binary nodes, children before parents. A node's leaves are the
+	// positions [lo, hi), those of its left child [lo, mid).
+	private int[] lo;
+	private int[] mid;
+	private int[] hi;
+	private int[] left; // -1 for leaves
+	private int[] right;
+	private int nodeCount;
+
+	// Best ordering costs, indexed by positions
+	private PackedDistanceMatrix costs;
+
+	// Per-chunk scratch space
+	private double[][] keys;
+	private int[][] ids;
+
+	/**
+	 * Constructor.
+	 * @param distanceMatrix distances between the leaves
+	 * @param labels leaf labels for each row/column in the distance matrix,
+	 * the same String objects as in the tree
+	 */
+	public LeafOrdering(DistanceMatrix distanceMatrix, String[] labels) {
+		this.distanceMatrix = distanceMatrix;
+		this.leafLabels = labels;
+	}
+
+	/**
+	 * Compute rows on this executor. If null, the default, everything runs
+	 * in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Reorder the children of every node in the tree so that the leaves,
+	 * in depth-first order, are in the optimal order.
+	 * @return sum of the distances between adjacent leaves
+	 * @throws IllegalArgumentException if a leaf label is not one of the
+	 * labels of the matrix
+	 */
+	public double order(Clade root) {
+		try {
+			int top = prepare(root);
+			if (top < 0)
+				return 0;
+			int n = hi[top];
+			costs = PackedDistanceMatrix.create(n, distanceMatrix);
+			int slots = executor == null ? 1 : parallelism;
+			keys = new double[slots][n];
+			ids = new int[slots][n];
+			for (int v = 0; v < nodeCount; v++)
+				if (left[v] >= 0)
+					join(v);
+
+			int[] order = backtrack(top);
+			double cost = 0;
+			for (int p = 1; p < n; p++)
+				cost += distance(order[p - 1], order[p]);
+			apply(root, order);
+			return cost;
+		} finally {
+			costs = null;
+			keys = null;
+			ids = null;
+			leaves = null;
+		}
+	}
+
+	/**
+	 * Number the leaves and build the binary nodes.
+	 * @return the root node, or -1 if there are no leaves
+	 */
+	private int prepare(Clade root) {
+		Map<String, Integer> index = new IdentityHashMap<String, Integer>();
+		for (int i = 0; i < leafLabels.length; i++)
+			index.put(leafLabels[i], Integer.valueOf(i));
+		int capacity = 2 * leafLabels.length;
+		matrixIndex = new int[leafLabels.length];
+		leaves = new Clade[leafLabels.length];
+		lo = new int[capacity];
+		mid = new int[capacity];
+		hi = new int[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		nodeCount = 0;
+
+		int positions = 0;
+		Map<Clade, Integer> nodeIds = new IdentityHashMap<Clade, Integer>();
+		Clade[] clades = postorder(root);
+		for (int v = 0; v < clades.length; v++) {
+			Clade clade = clades[v];
+			int id = -1;
+			if (clade.isLeaf()) {
+				if (clade.getUserObject() == null)
+					continue;
+				Integer i = index.get(clade.toString());
+				if (i == null || positions == leaves.length)
+					throw new IllegalArgumentException("Unknown leaf: " + clade);
+				matrixIndex[positions] = i.intValue();
+				leaves[positions] = clade;
+				id = node(-1, -1, positions, positions, ++positions);
+			} else {
+				for (int c = 0; c < clade.getChildCount(); c++) {
+					Integer child = nodeIds.get(clade.getChildAt(c));
+					if (child == null)
+						continue;
+					int other = child.intValue();
+					id = id < 0 ? other : node(id, other, lo[id], hi[id], hi[other]);
+				}
+			}
+			if (id >= 0)
+				nodeIds.put(clade, Integer.valueOf(id));
+		}
+		return nodeCount == 0 ? -1 : nodeCount - 1;
+	}
+
+	/**
+	 * The clades of a tree, children before parents, left to right.
+	 * Clustering trees can be as deep as they have leaves, too deep for a
+	 * recursive enumeration.
+	 */
+	static Clade[] postorder(Clade root) {
+		Clade[] clades = new Clade[64];
+		int count = 0;
+		Clade[] stack = new Clade[64];
+		int[] nextChild = new int[stack.length];
+		int depth = 0;
+		stack[0] = root;
+		while (depth >= 0) {
+			Clade node = stack[depth];
+			if (nextChild[depth] < node.getChildCount()) {
+				if (depth + 1 == stack.length) {
+					Clade[] larger = new Clade[2 * stack.length];
+					System.arraycopy(stack, 0, larger, 0, stack.length);
+					stack = larger;
+					int[] next = new int[larger.length];
+					System.arraycopy(nextChild, 0, next, 0, nextChild.length);
+					nextChild = next;
+				}
+				stack[depth + 1] = (Clade)node.getChildAt(nextChild[depth]++);
+				nextChild[++depth] = 0;
+				continue;
+			}
+			stack[depth--] = null;
+			if (count == clades.length) {
+				Clade[] larger = new Clade[2 * count];
+				System.arraycopy(clades, 0, larger, 0, count);
+				clades = larger;
+			}
+			clades[count++] = node;
+		}
+		Clade[] result = new Clade[count];
+		System.arraycopy(clades, 0, result, 0, count);
+		return result;
+	}
+
+	private int node(int l, int r, int from, int middle, int to) {
+		left[nodeCount] = l;
+		right[nodeCount] = r;
+		lo[nodeCount] = from;
+		mid[nodeCount] = middle;
+		hi[nodeCount] = to;
+		return nodeCount++;
+	}
+
+	private double distance(int p, int q) {
+		return distanceMatrix.get(matrixIndex[p], matrixIndex[q]);
+	}
+
+	/**
+	 * Best ordering cost from p to q within a node; 0 for a single leaf.
+	 */
+	private double cost(int p, int q) {
+		return p == q ? 0 : costs.get(p, q);
+	}
+
+	/**
+	 * Fill in the ordering costs for all pairs of leaves on opposite sides
+	 * of node v.
+	 */
+	private void join(int v) {
+		final int a = left[v];
+		final int b = right[v];
+		final boolean isLeafA = left[a] < 0;
+		final boolean isLeafB = left[b] < 0;
+		final int bLo = lo[b];
+		final int width = hi[b] - bLo;
+
+		// Lower bounds for pruning. For each leaf l of B, the nearest leaf
+		// in each half of A, and the cheapest ordering of B ending at l.
+		final double[] nearestLeft = new double[width];
+		final double[] nearestRight = new double[width];
+		final double[] cheapest = new double[width];
+		if (!isLeafA) {
+			for (int l = 0; l < width; l++) {
+				nearestLeft[l] = nearest(bLo + l, lo[a], mid[a]);
+				nearestRight[l] = nearest(bLo + l, mid[a], hi[a]);
+			}
+		}
+		if (!isLeafB) {
+			for (int j = bLo; j < hi[b]; j++) {
+				double min = Double.POSITIVE_INFINITY;
+				int from = j < mid[b] ? mid[b] : bLo;
+				int to = j < mid[b] ? hi[b] : mid[b];
+				for (int l = from; l < to; l++)
+					min = Math.min(min, costs.get(l, j));
+				cheapest[j - bLo] = min;
+			}
+		}
+
+		int count = hi[a] - lo[a];
+		long work = (long)count * width * (count + width);
+		ParallelLoop.run(executor, ParallelLoop.split(lo[a], hi[a], chunks(work)),
+				new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double[] key = keys[chunk];
+				int[] id = ids[chunk];
+				double[] t = new double[width];
+				int[] tIds = new int[width];
+				for (int i = from; i < to; i++) {
+					// T(i, l): best ordering of A from i, then a step to l
+					int kFrom = i;
+					int kTo = i + 1;
+					double[] bound = null;
+					if (!isLeafA) {
+						kFrom = i < mid[a] ? mid[a] : lo[a];
+						kTo = i < mid[a] ? hi[a] : mid[a];
+						bound = i < mid[a] ? nearestRight : nearestLeft;
+					}
+					int kCount = kTo - kFrom;
+					for (int s = 0; s < kCount; s++) {
+						key[s] = cost(i, kFrom + s);
+						id[s] = kFrom + s;
+					}
+					NeighborJoining.sort(key, id, 0, kCount);
+					for (int l = 0; l < width; l++) {
+						double min = bound == null ? 0 : bound[l];
+						double best = Double.POSITIVE_INFINITY;
+						for (int s = 0; s < kCount && key[s] + min < best; s++) {
+							double c = key[s] + distance(id[s], bLo + l);
+							if (c < best)
+								best = c;
+						}
+						t[l] = best;
+						tIds[l] = bLo + l;
+					}
+
+					// M(i, j): then the best ordering of B from l to j
+					if (isLeafB) {
+						costs.set(i, bLo, t[0]);
+						continue;
+					}
+					NeighborJoining.sort(t, tIds, 0, width);
+					for (int j = bLo; j < hi[b]; j++) {
+						int lFrom = j < mid[b] ? mid[b] : bLo;
+						int lTo = j < mid[b] ? hi[b] : mid[b];
+						double min = cheapest[j - bLo];
+						double best = Double.POSITIVE_INFINITY;
+						for (int s = 0; s < width && t[s] + min < best; s++) {
+							int l = tIds[s];
+							if (l < lFrom || l >= lTo)
+								continue;
+							double c = t[s] + costs.get(l, j);
+							if (c < best)
+								best = c;
+						}
+						costs.set(i, j, best);
+					}
+				}
+			}
+		});
+	}
+
+	private double nearest(int l, int from, int to) {
+		double min = Double.POSITIVE_INFINITY;
+		for (int k = from; k < to; k++)
+			min = Math.min(min, distance(k, l));
+		return min;
+	}
+
+	/**
+	 * Recover the optimal order by retracing the choices made by join(),
+	 * from the root down.
+	 * @return positions in the optimal order
+	 */
+	private int[] backtrack(int root) {
+		int n = hi[root];
+		int[] order = new int[n];
+		int count = 0;
+
+		// Best pair of ends at the root
+		int first = lo[root];
+		int last = first;
+		if (left[root] >= 0) {
+			double best = Double.POSITIVE_INFINITY;
+			for (int i = lo[root]; i < mid[root]; i++) {
+				for (int j = mid[root]; j < hi[root]; j++) {
+					double c = costs.get(i, j);
+					if (c < best) {
+						best = c;
+						first = i;
+						last = j;
+					}
+				}
+			}
+		}
+
+		// Each entry is a node and the leaves it must start and end with
+		int[] stack = new int[3 * nodeCount];
+		int top = 0;
+		stack[top++] = root;
+		stack[top++] = first;
+		stack[top++] = last;
+		while (top > 0) {
+			last = stack[--top];
+			first = stack[--top];
+			int v = stack[--top];
+			if (left[v] < 0) {
+				order[count++] = lo[v];
+				continue;
+			}
+			int a = left[v];
+			int b = right[v];
+			boolean isForward = first < mid[v];
+			int i = isForward ? first : last;
+			int j = isForward ? last : first;
+
+			int kFrom = i, kTo = i + 1, lFrom = j, lTo = j + 1;
+			if (left[a] >= 0) {
+				kFrom = i < mid[a] ? mid[a] : lo[a];
+				kTo = i < mid[a] ? hi[a] : mid[a];
+			}
+			if (left[b] >= 0) {
+				lFrom = j < mid[b] ? mid[b] : lo[b];
+				lTo = j < mid[b] ? hi[b] : mid[b];
+			}
+			int bestK = kFrom;
+			int bestL = lFrom;
+			double best = Double.POSITIVE_INFINITY;
+			for (int k = kFrom; k < kTo; k++) {
+				double ik = cost(i, k);
+				for (int l = lFrom; l < lTo; l++) {
+					double c = ik + distance(k, l) + cost(l, j);
+					if (c < best) {
+						best = c;
+						bestK = k;
+						bestL = l;
+					}
+				}
+			}
+
+			// Push the second half first, so the first half is done first
+			if (isForward) {
+				push(stack, top, b, bestL, j);
+				push(stack, top + 3, a, i, bestK);
+			} else {
+				push(stack, top, a, bestK, i);
+				push(stack, top + 3, b, j, bestL);
+			}
+			top += 6;
+		}
+		return order;
+	}
+
+	private static void push(int[] stack, int top, int v, int first, int last) {
+		stack[top] = v;
+		stack[top + 1] = first;
+		stack[top + 2] = last;
+	}
+
+	/**
+	 * Sort the children of each clade by the rank of their first leaf.
+	 * All the children are taken out first, and each clade gets its sorted
+	 * children back before it goes back into its parent. Inserting a child
+	 * checks the ancestors of the parent, so this keeps the reordering
+	 * linear, whatever the depth.
+	 */
+	private void apply(Clade root, int[] order) {
+		Map<Clade, Integer> ranks = new IdentityHashMap<Clade, Integer>();
+		for (int r = 0; r < order.length; r++)
+			ranks.put(leaves[order[r]], Integer.valueOf(r));
+
+		Clade[] clades = postorder(root);
+		Clade[][] childLists = new Clade[clades.length][];
+		for (int v = 0; v < clades.length; v++) {
+			Clade clade = clades[v];
+			int count = clade.getChildCount();
+			if (count == 0)
+				continue;
+			childLists[v] = new Clade[count];
+			for (int c = 0; c < count; c++)
+				childLists[v][c] = (Clade)clade.getChildAt(c);
+			clade.removeAllChildren();
+		}
+
+		for (int v = 0; v < clades.length; v++) {
+			Clade clade = clades[v];
+			Clade[] children = childLists[v];
+			if (children == null)
+				continue;
+			int count = children.length;
+			int[] childRanks = new int[count];
+			int rank = Integer.MAX_VALUE;
+			for (int c = 0; c < count; c++) {
+				Integer r = ranks.get(children[c]);
+				childRanks[c] = r == null ? Integer.MAX_VALUE : r.intValue();
+				rank = Math.min(rank, childRanks[c]);
+			}
+			ranks.put(clade, Integer.valueOf(rank));
+
+			// Few children, so insertion sort; stable for unlabeled ones
+			for (int c = 1; c < count; c++) {
+				Clade child = children[c];
+				int r = childRanks[c];
+				int d = c - 1;
+				for (; d >= 0 && childRanks[d] > r; d--) {
+					children[d + 1] = children[d];
+					childRanks[d + 1] = childRanks[d];
+				}
+				children[d + 1] = child;
+				childRanks[d + 1] = r;
+			}
+			for (int c = 0; c < count; c++)
+				clade.insert(children[c], c);
+		}
+	}
+
+	private int chunks(long work) {
+		if (executor == null)
+			return 1;
+		return (int)Math.max(1, Math.min(parallelism, work / PARALLEL_GRAIN));
+	}
+}
@@ -0,0 +1,187 @@
+package com.sugen.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A packed distance matrix backed by buffers, typically mapped from a
+ * file, so that the distances are never copied onto the heap. The matrix
+ * is read-only if the buffers are.
+ * <p>
+ * A single buffer can hold at most 2 GB, so the packed triangle is split
+ * into segments of 2^27 elements, each in its own buffer. Element indexes
+ * are longs, so unlike array-backed matrices the size is not limited to
+ * MAX_SIZE.
+ */
+public class MappedDistanceMatrix extends PackedDistanceMatrix {
+	public final static int SEGMENT_SHIFT = 27;
+	public final static int SEGMENT_LENGTH = 1 << SEGMENT_SHIFT;
+	private final static int SEGMENT_MASK = SEGMENT_LENGTH - 1;
+
+	// Exactly one of these is set
+	private FloatBuffer[] floats;
+	private DoubleBuffer[] doubles;
+	private boolean isReadOnly;
+	private File file; // temporary file, if any
+
+	/**
+	 * Constructor.
+	 * @param size number of rows and columns
+	 * @param isSinglePrecision whether the buffers hold floats or doubles
+	 * @param segments consecutive parts of the packed triangle, each
+	 * SEGMENT_LENGTH elements long except the last; byte order is that of
+	 * the buffers
+	 */
+	public MappedDistanceMatrix(int size, boolean isSinglePrecision,
+			ByteBuffer[] segments) {
+		super(size, Integer.MAX_VALUE - 1);
+		int expected = segmentCount(size);
+		if (segments.length != expected)
+			throw new IllegalArgumentException("Expected " + expected
+					+ " segments but found " + segments.length);
+		if (isSinglePrecision) {
+			floats = new FloatBuffer[segments.length];
+			for (int i = 0; i < segments.length; i++)
+				floats[i] = segments[i].asFloatBuffer();
+		} else {
+			doubles = new DoubleBuffer[segments.length];
+			for (int i = 0; i < segments.length; i++)
+				doubles[i] = segments[i].asDoubleBuffer();
+		}
+		for (int i = 0; i < segments.length; i++)
+			isReadOnly |= segments[i].isReadOnly();
+	}
+
+	/**
+	 * A writable matrix in a new temporary file, for matrices too large
+	 * for the heap. All distances are initially zero. Call delete() when
+	 * done with it.
+	 * @param directory where to create the file; null for the default
+	 * temporary directory
+	 */
+	public static MappedDistanceMatrix createTemporary(int size,
+			boolean isSinglePrecision, File directory) throws IOException {
+		int width = isSinglePrecision ? 4 : 8;
+		File file = File.createTempFile("distances", ".tmp", directory);
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(longLength(size) * width);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer[] segments = new ByteBuffer[segmentCount(size)];
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						((long)i << SEGMENT_SHIFT) * width,
+						(long)segmentLength(size, i) * width);
+			MappedDistanceMatrix matrix = new MappedDistanceMatrix(size,
+					isSinglePrecision, segments);
+			matrix.file = file;
+			return matrix;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Delete the temporary file of a matrix from createTemporary(). The
+	 * matrix must not be used afterwards. Some platforms cannot delete a
+	 * file that is still mapped; it is then deleted when the VM exits.
+	 */
+	public void delete() {
+		floats = null;
+		doubles = null;
+		if (file != null)
+			file.delete();
+	}
+
+	/**
+	 * Number of elements in the packed triangle of a matrix of this size.
+	 */
+	public static long longLength(int size) {
+		return (long)size * (size + 1) >>> 1;
+	}
+
+	/**
+	 * Number of segments for a matrix of this size.
+	 */
+	public static int segmentCount(int size) {
+		return (int)((longLength(size) + SEGMENT_LENGTH - 1) >>> SEGMENT_SHIFT);
+	}
+
+	/**
+	 * Number of elements in segment i of a matrix of this size.
+	 */
+	public static int segmentLength(int size, int i) {
+		return (int)Math.min(SEGMENT_LENGTH, longLength(size) - ((long)i << SEGMENT_SHIFT));
+	}
+
+	public boolean isSinglePrecision() {
+		return floats != null;
+	}
+
+	public boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	private double get(long i) {
+		if (floats != null)
+			return floats[(int)(i >>> SEGMENT_SHIFT)].get((int)i & SEGMENT_MASK);
+		else
+			return doubles[(int)(i >>> SEGMENT_SHIFT)].get((int)i & SEGMENT_MASK);
+	}
+
+	private void set(long i, double value) {
+		if (floats != null)
+			floats[(int)(i >>> SEGMENT_SHIFT)].put((int)i & SEGMENT_MASK, (float)value);
+		else
+			doubles[(int)(i >>> SEGMENT_SHIFT)].put((int)i & SEGMENT_MASK, value);
+	}
+
+	private static long longIndex(int row, int col) {
+		return row >= col ? ((long)row * (row + 1) >>> 1) + col
+				: ((long)col * (col + 1) >>> 1) + row;
+	}
+
+	public double get(int row, int col) {
+		return get(longIndex(row, col));
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if the matrix is read-only
+	 */
+	public void set(int row, int col, double value) {
+		if (isReadOnly)
+			throw new UnsupportedOperationException("Matrix is read-only");
+		set(longIndex(row, col), value);
+	}
+
+	public void getRow(int row, double[] values, int from, int to) {
+		int col = from;
+		for (long i = ((long)row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			values[col] = get(i++);
+		for (long i = ((long)col * (col + 1) >>> 1) + row; col < to; col++) {
+			values[col] = get(i);
+			i += col + 1;
+		}
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if the matrix is read-only
+	 */
+	public void setRow(int row, double[] values, int from, int to) {
+		if (isReadOnly)
+			throw new UnsupportedOperationException("Matrix is read-only");
+		int col = from;
+		for (long i = ((long)row * (row + 1) >>> 1) + col; col < to && col <= row; col++)
+			set(i++, values[col]);
+		for (long i = ((long)col * (col + 1) >>> 1) + row; col < to; col++) {
+			set(i, values[col]);
+			i += col + 1;
+		}
+	}
+}
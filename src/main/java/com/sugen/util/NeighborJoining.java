@@ -0,0 +1,441 @@
+package com.sugen.util;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Neighbor-joining tree construction from a distance matrix, following
+ * Saitou and Nei (1987), with the BIONJ distance update of Gascuel (1997)
+ * as an option. Unlike the linkage methods in HierarchicalCluster, the
+ * result is an unrooted tree: the root has three children, and branch
+ * lengths are estimated for every edge.
+ * <p>
+ * The search for the pair minimizing the Q criterion uses the sorted-row
+ * pruning of RapidNJ (Simonsen, Mailund and Pedersen, 2008). Each cluster
+ * keeps its distances to older clusters sorted, and a row is scanned only
+ * until no remaining entry can beat the best pair found. Distances between
+ * existing clusters never change in neighbor joining, so the sorted rows
+ * stay valid; entries for clusters that have been joined are skipped and
+ * eventually removed. Given an executor, the rows are scanned in parallel
+ * and the per-range minima combined in row order, so the tree does not
+ * depend on the number of threads.
+ * <p>
+ * Negative branch length estimates are set to zero, as PhylipReader does.
+ *
+ * @see HierarchicalCluster#NEIGHBOR_JOINING
+ */
+public class NeighborJoining {
+	/**
+	 * Minimum number of rows per parallel task.
+	 */
+	private final static int PARALLEL_GRAIN = 64;
+
+	private DistanceMatrix distanceMatrix;
+	private String[] leafLabels;
+	private boolean isBionj;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private HierarchicalCluster monitor; // progress and cancellation
+
+	// Each active cluster occupies a slot in the scratch matrices.
+	// A joined cluster takes over the slot of one of its children.
+	private PackedDistanceMatrix distances;
+	private PackedDistanceMatrix variances; // BIONJ only
+	private double[] rowSums;
+	private Clade[] nodes;
+	private int[] slots; // active slots
+	private int activeCount;
+	private int[] clusterOfSlot;
+	private int[] slotOfCluster; // -1 once a cluster has been joined
+
+	// Sorted distances from the cluster in each slot to older clusters
+	private double[][] rowDistances;
+	private int[][] rowClusters;
+	private int[] rowLength;
+
+	/**
+	 * Constructor.
+	 * @param distanceMatrix a square matrix; only the lower triangle is read
+	 * @param labels leaf labels for each row/column in the distance matrix
+	 * @param isBionj if true, use the BIONJ variance-weighted distance update
+	 */
+	public NeighborJoining(DistanceMatrix distanceMatrix, String[] labels,
+			boolean isBionj) {
+		this.distanceMatrix = distanceMatrix;
+		this.leafLabels = labels;
+		this.isBionj = isBionj;
+	}
+
+	/**
+	 * Build the tree.
+	 * @return root of an unrooted tree, with three children unless there
+	 * are fewer than three leaves
+	 */
+	public Clade cluster() {
+		int n = distanceMatrix.size();
+		init();
+
+		int nextCluster = n;
+		final double[] best = new double[1];
+		final int[] pair = new int[2];
+		while (activeCount > 3) {
+			findPair(best, pair);
+			join(pair[0], pair[1], nextCluster++);
+			if (monitor != null) {
+				// Each step scans all pairs of the remaining clusters
+				double remaining = (double)(activeCount - 3) / Math.max(1, n - 3);
+				monitor.reportProgress(1 - remaining * remaining * remaining);
+				if (monitor.isPartialTreeDue()) {
+					Clade[] clusters = new Clade[activeCount];
+					for (int k = 0; k < activeCount; k++)
+						clusters[k] = nodes[slots[k]];
+					monitor.publishPartialTree(clusters, activeCount);
+				}
+			}
+		}
+		Clade root = finish();
+
+		distances = variances = null;
+		rowDistances = null;
+		rowClusters = null;
+		return root;
+	}
+
+	private void init() {
+		int n = distanceMatrix.size();
+		distances = PackedDistanceMatrix.create(n, distanceMatrix);
+		for (int i = 1; i < n; i++)
+			for (int j = 0; j < i; j++)
+				distances.set(i, j, distanceMatrix.get(i, j));
+		if (isBionj)
+			variances = new DoubleDistanceMatrix(distances);
+
+		nodes = new Clade[n];
+		slots = new int[n];
+		clusterOfSlot = new int[n];
+		slotOfCluster = new int[Math.max(2 * n - 2, n)];
+		rowSums = new double[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Clade(leafLabels[i], 0);
+			slots[i] = i;
+			clusterOfSlot[i] = i;
+			slotOfCluster[i] = i;
+			for (int j = 0; j < n; j++)
+				if (i != j)
+					rowSums[i] += distances.get(i, j);
+		}
+		for (int i = n; i < slotOfCluster.length; i++)
+			slotOfCluster[i] = -1;
+		activeCount = n;
+
+		// Leaf i starts with its distances to leaves 0..i-1, so every
+		// pair appears in exactly one row
+		rowDistances = new double[n][];
+		rowClusters = new int[n][];
+		rowLength = new int[n];
+		ParallelLoop.run(executor, ParallelLoop.splitTriangle(0, n, chunks(n)),
+				new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					double[] d = new double[i];
+					int[] c = new int[i];
+					for (int j = 0; j < i; j++) {
+						d[j] = distances.get(i, j);
+						c[j] = j;
+					}
+					sort(d, c, 0, i);
+					rowDistances[i] = d;
+					rowClusters[i] = c;
+					rowLength[i] = i;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Find the pair of active clusters with the smallest Q criterion,
+	 * Q(i, j) = (r - 2) d(i, j) - R(i) - R(j).
+	 * @param best receives the minimum Q
+	 * @param pair receives the two slots
+	 */
+	private void findPair(double[] best, int[] pair) {
+		final double scale = activeCount - 2;
+		double max = -Double.MAX_VALUE;
+		for (int k = 0; k < activeCount; k++)
+			max = Math.max(max, rowSums[slots[k]]);
+		final double maxRowSum = max;
+
+		int[] bounds = ParallelLoop.split(0, activeCount, chunks(activeCount));
+		final double[] q = new double[bounds.length - 1];
+		final int[] ones = new int[bounds.length - 1];
+		final int[] twos = new int[bounds.length - 1];
+		ParallelLoop.run(executor, bounds, new ParallelLoop.Body() {
+			public void run(int chunk, int from, int to) {
+				double bestQ = Double.MAX_VALUE;
+				int one = -1, two = -1;
+				for (int k = from; k < to; k++) {
+					int slot = slots[k];
+					double[] d = rowDistances[slot];
+					int[] c = rowClusters[slot];
+					int length = rowLength[slot];
+					double rowSum = rowSums[slot];
+					int removed = 0;
+					int e = 0;
+					for (; e < length; e++) {
+						// No later entry in this row can do better
+						if (scale * d[e] - rowSum - maxRowSum > bestQ)
+							break;
+						int other = slotOfCluster[c[e]];
+						if (other < 0) {
+							++removed;
+							continue;
+						}
+						double value = scale * d[e] - rowSum - rowSums[other];
+						if (value < bestQ || one < 0) {
+							bestQ = value;
+							one = slot;
+							two = other;
+						}
+					}
+					if (removed > 32 && 2 * removed > e)
+						compactRow(slot);
+				}
+				q[chunk] = bestQ;
+				ones[chunk] = one;
+				twos[chunk] = two;
+			}
+		});
+
+		// Combine in row order, so the tree does not depend on the
+		// number of chunks
+		int chunk = -1;
+		for (int c = 0; c < q.length; c++) {
+			if (ones[c] >= 0 && (chunk < 0 || q[c] < q[chunk]))
+				chunk = c;
+		}
+		best[0] = q[chunk];
+		pair[0] = ones[chunk];
+		pair[1] = twos[chunk];
+	}
+
+	/**
+	 * Drop entries for clusters that have been joined.
+	 */
+	private void compactRow(int slot) {
+		double[] d = rowDistances[slot];
+		int[] c = rowClusters[slot];
+		int length = 0;
+		for (int e = 0; e < rowLength[slot]; e++) {
+			if (slotOfCluster[c[e]] >= 0) {
+				d[length] = d[e];
+				c[length] = c[e];
+				++length;
+			}
+		}
+		rowLength[slot] = length;
+	}
+
+	/**
+	 * Join the clusters in two slots into a new cluster, which takes
+	 * over the first slot.
+	 */
+	private void join(int a, int b, int cluster) {
+		int r = activeCount;
+		double dab = distances.get(a, b);
+		double la = 0.5 * dab + (rowSums[a] - rowSums[b]) / (2 * (r - 2));
+		double lb = dab - la;
+
+		double lambda = 0.5;
+		double vab = 0;
+		if (isBionj) {
+			vab = variances.get(a, b);
+			if (vab > 0) {
+				double sum = 0;
+				for (int k = 0; k < r; k++) {
+					int slot = slots[k];
+					if (slot != a && slot != b)
+						sum += variances.get(b, slot) - variances.get(a, slot);
+				}
+				lambda = 0.5 + sum / (2 * (r - 2) * vab);
+				lambda = Math.max(0, Math.min(1, lambda));
+			}
+		}
+
+		Clade joined = new Clade();
+		joined.add(attach(a, la));
+		joined.add(attach(b, lb));
+		nodes[a] = joined;
+		nodes[b] = null;
+
+		// Remove b from the active slots
+		for (int k = 0; k < r; k++) {
+			if (slots[k] == b) {
+				System.arraycopy(slots, k + 1, slots, k, r - k - 1);
+				break;
+			}
+		}
+		--activeCount;
+		slotOfCluster[clusterOfSlot[a]] = -1;
+		slotOfCluster[clusterOfSlot[b]] = -1;
+		clusterOfSlot[a] = cluster;
+		slotOfCluster[cluster] = a;
+
+		// Distances from the new cluster, which never change hereafter
+		double[] row = new double[activeCount - 1];
+		int[] rowCluster = new int[activeCount - 1];
+		double sum = 0;
+		for (int k = 0, e = 0; k < activeCount; k++) {
+			int slot = slots[k];
+			if (slot == a)
+				continue;
+			double dak = distances.get(a, slot);
+			double dbk = distances.get(b, slot);
+			double d;
+			if (isBionj) {
+				d = lambda * (dak - la) + (1 - lambda) * (dbk - lb);
+				variances.set(a, slot, lambda * variances.get(a, slot)
+						+ (1 - lambda) * variances.get(b, slot)
+						- lambda * (1 - lambda) * vab);
+			} else {
+				d = 0.5 * (dak + dbk - dab);
+			}
+			distances.set(a, slot, d);
+			rowSums[slot] += d - dak - dbk;
+			sum += d;
+			row[e] = d;
+			rowCluster[e] = clusterOfSlot[slot];
+			++e;
+		}
+		rowSums[a] = sum;
+		rowSums[b] = 0;
+		sort(row, rowCluster, 0, row.length);
+		rowDistances[a] = row;
+		rowClusters[a] = rowCluster;
+		rowLength[a] = row.length;
+		rowDistances[b] = null;
+		rowClusters[b] = null;
+		rowLength[b] = 0;
+	}
+
+	/**
+	 * Join the last three clusters, or fewer, at the root.
+	 */
+	private Clade finish() {
+		Clade root = new Clade();
+		root.setBranchLength(0);
+		if (activeCount == 1)
+			return nodes[slots[0]];
+		if (activeCount == 2) {
+			double d = distances.get(slots[0], slots[1]);
+			root.add(attach(slots[0], d / 2));
+			root.add(attach(slots[1], d / 2));
+			return root;
+		}
+		int a = slots[0], b = slots[1], c = slots[2];
+		double dab = distances.get(a, b);
+		double dac = distances.get(a, c);
+		double dbc = distances.get(b, c);
+		root.add(attach(a, (dab + dac - dbc) / 2));
+		root.add(attach(b, (dab + dbc - dac) / 2));
+		root.add(attach(c, (dac + dbc - dab) / 2));
+		return root;
+	}
+
+	private Clade attach(int slot, double branchLength) {
+		Clade node = nodes[slot];
+		node.setBranchLength(Math.max(0, branchLength));
+		return node;
+	}
+
+	/**
+	 * Sort distances in ascending order, keeping clusters alongside.
+	 */
+	static void sort(double[] d, int[] c, int from, int to) {
+		while (to - from > 16) {
+			// Median of three pivot
+			int mid = (from + to) >>> 1;
+			if (d[mid] < d[from])
+				swap(d, c, mid, from);
+			if (d[to - 1] < d[from])
+				swap(d, c, to - 1, from);
+			if (d[to - 1] < d[mid])
+				swap(d, c, to - 1, mid);
+			double pivot = d[mid];
+
+			int i = from, j = to - 1;
+			while (i <= j) {
+				while (d[i] < pivot)
+					++i;
+				while (d[j] > pivot)
+					--j;
+				if (i <= j)
+					swap(d, c, i++, j--);
+			}
+
+			// Recurse into the smaller part
+			if (j - from < to - i) {
+				sort(d, c, from, j + 1);
+				from = i;
+			} else {
+				sort(d, c, i, to);
+				to = j + 1;
+			}
+		}
+		for (int i = from + 1; i < to; i++) {
+			for (int j = i; j > from && d[j] < d[j - 1]; j--)
+				swap(d, c, j, j - 1);
+		}
+	}
+
+	private static void swap(double[] d, int[] c, int i, int j) {
+		double td = d[i];
+		d[i] = d[j];
+		d[j] = td;
+		int tc = c[i];
+		c[i] = c[j];
+		c[j] = tc;
+	}
+
+	/**
+	 * @param rows number of rows to scan
+	 * @return number of parallel tasks to split the rows into
+	 */
+	private int chunks(int rows) {
+		if (executor == null)
+			return 1;
+		return Math.max(1, Math.min(parallelism, rows / PARALLEL_GRAIN));
+	}
+
+	/**
+	 * Report progress to, and check for cancellation by, the clustering
+	 * that this was delegated from.
+	 */
+	void setMonitor(HierarchicalCluster monitor) {
+		this.monitor = monitor;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor pool for evaluating rows of the Q criterion in
+	 * parallel, or null to use the calling thread only
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism maximum number of row ranges to scan in parallel;
+	 * defaults to the number of processors
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+}
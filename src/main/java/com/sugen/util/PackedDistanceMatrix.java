@@ -0,0 +1,106 @@
+package com.sugen.util;
+
+/**
+ * A symmetric distance matrix that stores only the lower triangle,
+ * including the diagonal, packed row by row into a flat array.
+ * Element (row, col) with row >= col is at index row * (row + 1) / 2 + col,
+ * computed with an unsigned shift so that it cannot overflow.
+ * <p>
+ * Since array indexes are ints, a matrix stored in one array can have at
+ * most 65535 rows.
+ */
+public abstract class PackedDistanceMatrix implements DistanceMatrix {
+	public final static int MAX_SIZE = 65535;
+	
+	protected int size;
+	protected String[] labels;
+
+	/**
+	 * Constructor.
+	 * @param size number of rows and columns
+	 * @throws IllegalArgumentException if size is negative or greater than
+	 * MAX_SIZE
+	 */
+	protected PackedDistanceMatrix(int size) {
+		this(size, MAX_SIZE);
+	}
+
+	/**
+	 * Constructor, for storage that is not indexed by int.
+	 * @param size number of rows and columns
+	 * @param maxSize the largest size the storage can hold
+	 * @throws IllegalArgumentException if size is negative or greater than
+	 * maxSize
+	 */
+	protected PackedDistanceMatrix(int size, int maxSize) {
+		if (size < 0 || size > maxSize)
+			throw new IllegalArgumentException("Invalid matrix size: " + size);
+		this.size = size;
+	}
+
+	/**
+	 * @return number of array elements needed to store a matrix of this size
+	 */
+	public static int length(int size) {
+		return size * (size + 1) >>> 1;
+	}
+
+	/**
+	 * @return array index of element (row, col), in either order
+	 */
+	public static int index(int row, int col) {
+		return row >= col ? (row * (row + 1) >>> 1) + col : (col * (col + 1) >>> 1) + row;
+	}
+
+	/**
+	 * A matrix of the same precision as another matrix.
+	 * @param size number of rows and columns
+	 * @param prototype single-precision matrices give a FloatDistanceMatrix,
+	 * and all others a DoubleDistanceMatrix
+	 */
+	public static PackedDistanceMatrix create(int size, DistanceMatrix prototype) {
+		if (isSinglePrecision(prototype))
+			return new FloatDistanceMatrix(size);
+		else
+			return new DoubleDistanceMatrix(size);
+	}
+
+	/**
+	 * Whether a matrix stores floats rather than doubles.
+	 */
+	public static boolean isSinglePrecision(DistanceMatrix matrix) {
+		return matrix instanceof FloatDistanceMatrix
+			|| (matrix instanceof MappedDistanceMatrix 
+					&& ((MappedDistanceMatrix)matrix).isSinglePrecision());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copy part of a row into an array. Elements left of the diagonal
+	 * are contiguous in the packed array; those right of it are strided.
+	 * @param values receives get(row, col) at index col, for col in [from, to)
+	 */
+	public abstract void getRow(int row, double[] values, int from, int to);
+
+	/**
+	 * Set part of a row from an array. Since the matrix is symmetric, 
+	 * the matching part of the column is set too.
+	 * @param values holds the new value for (row, col) at index col, for col
+	 * in [from, to)
+	 */
+	public abstract void setRow(int row, double[] values, int from, int to);
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	public void setLabels(String[] labels) {
+		if (labels != null && labels.length != size)
+			throw new IllegalArgumentException(
+					"Matrix and labels must have same number of elements");
+		this.labels = labels;
+	}
+}
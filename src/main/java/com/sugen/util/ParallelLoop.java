@@ -0,0 +1,172 @@
+package com.sugen.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Run a loop over a range of indexes in parallel, split into contiguous
+ * chunks. The calling thread runs the last chunk itself and waits for the 
+ * others, so results written by every chunk are visible when run() returns.
+ * <p>
+ * Chunks are numbered in index order. Callers that need a deterministic 
+ * result, such as the first minimum in a scan, can keep one partial result
+ * per chunk and combine them in chunk order.
+ */
+public class ParallelLoop {
+	/**
+	 * The body of the loop.
+	 */
+	public interface Body {
+		/**
+		 * Run the loop for indexes in [from, to).
+		 * @param chunk number of this chunk, starting from 0
+		 */
+		public void run(int chunk, int from, int to);
+	}
+
+	private ParallelLoop() {}
+
+	/**
+	 * Split [from, to) into chunks of nearly equal length.
+	 * @return chunk boundaries; chunk c is [bounds[c], bounds[c + 1])
+	 */
+	public static int[] split(int from, int to, int chunks) {
+		chunks = Math.max(1, Math.min(chunks, to - from));
+		int[] bounds = new int[chunks + 1];
+		for (int c = 0; c <= chunks; c++)
+			bounds[c] = from + (int)((long)(to - from) * c / chunks);
+		return bounds;
+	}
+
+	/**
+	 * Split the rows [from, to) of a lower-triangular matrix into chunks
+	 * with nearly equal numbers of elements, since row i has i elements.
+	 * @return chunk boundaries; chunk c is [bounds[c], bounds[c + 1])
+	 */
+	public static int[] splitTriangle(int from, int to, int chunks) {
+		chunks = Math.max(1, Math.min(chunks, to - from));
+		int[] bounds = new int[chunks + 1];
+		double first = (double)from * from;
+		double last = (double)to * to;
+		bounds[0] = from;
+		for (int c = 1; c < chunks; c++) {
+			int row = (int)Math.sqrt(first + (last - first) * c / chunks);
+			bounds[c] = Math.max(bounds[c - 1], Math.min(row, to));
+		}
+		bounds[chunks] = to;
+		return bounds;
+	}
+
+	/**
+	 * Run the loop body on each chunk.
+	 * @param executor runs all but the last chunk; if null, all chunks run
+	 * in the calling thread
+	 * @param bounds chunk boundaries, as from split()
+	 * @throws RuntimeException the first failure, in the calling thread's
+	 * chunk and then in chunk order, thrown once every chunk has finished
+	 */
+	public static void run(ExecutorService executor, int[] bounds, final Body body) {
+		int chunks = bounds.length - 1;
+		if (executor == null || chunks == 1) {
+			for (int c = 0; c < chunks; c++)
+				body.run(c, bounds[c], bounds[c + 1]);
+			return;
+		}
+
+		Future<?>[] futures = new Future<?>[chunks - 1];
+		for (int c = 0; c < chunks - 1; c++) {
+			final int chunk = c;
+			final int from = bounds[c];
+			final int to = bounds[c + 1];
+			futures[c] = executor.submit(new Runnable() {
+				public void run() {
+					body.run(chunk, from, to);
+				}
+			});
+		}
+		Throwable failure = null;
+		try {
+			body.run(chunks - 1, bounds[chunks - 1], bounds[chunks]);
+		} catch (Throwable e) {
+			failure = e;
+		}
+
+		// Wait for every chunk, even after a failure, so that none is still
+		// writing to the caller's arrays once this returns or throws
+		InterruptedException interrupted = null;
+		for (int c = 0; c < futures.length; c++) {
+			while (true) {
+				try {
+					futures[c].get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = e;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted != null) {
+			Thread.currentThread().interrupt();
+			if (failure == null)
+				failure = interrupted;
+		}
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if (failure instanceof Error)
+			throw (Error)failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	/**
+	 * Wait for a task, and rethrow what it threw. An interrupt does not stop
+	 * the wait, since the result is needed anyway, but is kept for the
+	 * caller.
+	 * @return the task's result
+	 */
+	public static <T> T await(Future<T> task) {
+		boolean isInterrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A pool of daemon threads, so that an idle pool never keeps the VM
+	 * running.
+	 * @param threads number of threads
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
+			
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ParallelLoop-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
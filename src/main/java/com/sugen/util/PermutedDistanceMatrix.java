@@ -0,0 +1,80 @@
+package com.sugen.util;
+
+/**
+ * A view of another distance matrix with its rows and columns reordered.
+ * Nothing is copied: row i of the view is row order[i] of the underlying
+ * matrix, so creating a view takes O(n) time and memory whatever the size
+ * of the matrix. Changes to either are visible in both.
+ *
+ * @see HierarchicalCluster#getReorderedMatrix(String[])
+ */
+public class PermutedDistanceMatrix implements DistanceMatrix {
+	private DistanceMatrix matrix;
+	private int[] order;
+	private String[] labels;
+
+	/**
+	 * Constructor. Labels, if any, are reordered along with the rows.
+	 * @param matrix the underlying matrix
+	 * @param order for each row of the view, the row of the underlying
+	 * matrix; not copied
+	 */
+	public PermutedDistanceMatrix(DistanceMatrix matrix, int[] order) {
+		this(matrix, order, null);
+		String[] original = matrix.getLabels();
+		if (original != null) {
+			labels = new String[order.length];
+			for (int i = 0; i < order.length; i++)
+				labels[i] = original[order[i]];
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param matrix the underlying matrix
+	 * @param order for each row of the view, the row of the underlying
+	 * matrix; not copied
+	 * @param labels a label for each row of the view, or null
+	 * @throws IllegalArgumentException if an index is out of range
+	 */
+	public PermutedDistanceMatrix(DistanceMatrix matrix, int[] order,
+			String[] labels) {
+		int n = matrix.size();
+		for (int i = 0; i < order.length; i++)
+			if (order[i] < 0 || order[i] >= n)
+				throw new IllegalArgumentException("Invalid row: " + order[i]);
+		this.matrix = matrix;
+		this.order = order;
+		this.labels = labels;
+	}
+
+	public int size() {
+		return order.length;
+	}
+
+	public double get(int row, int col) {
+		return matrix.get(order[row], order[col]);
+	}
+
+	public void set(int row, int col, double value) {
+		matrix.set(order[row], order[col], value);
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the row of the underlying matrix for each row of the view
+	 */
+	public int[] getOrder() {
+		return order;
+	}
+
+	/**
+	 * @return the underlying matrix
+	 */
+	public DistanceMatrix getMatrix() {
+		return matrix;
+	}
+}
@@ -0,0 +1,213 @@
+package com.sugen.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Single-linkage clustering with the SLINK algorithm of Sibson (1973),
+ * which needs O(n^2) time but only O(n) memory besides the distances.
+ * The distances are read, not copied, one row at a time, so they can come
+ * from a read-only or memory-mapped matrix, or be computed on the fly from
+ * feature vectors with DistanceCalculator.createView(). That way even
+ * hundreds of thousands of items can be clustered.
+ * <p>
+ * SLINK builds the pointer representation of the tree: for each item i,
+ * the height at which it stops being the last item of its cluster, and
+ * the last item of the cluster it joins. The tree is then built by
+ * replaying those merges in order of height. Clusters are merged exactly
+ * as in HierarchicalCluster, so the trees are identical except for the
+ * order of merges at equal heights. Negative distances are taken to be
+ * missing, as in HierarchicalCluster; items that are not connected at all
+ * are joined at the greatest height.
+ * <p>
+ * Given an executor, the distances from each new item to the previous
+ * items are read in parallel, which pays off when they are computed on the
+ * fly.
+ *
+ * @see HierarchicalCluster#SINGLE
+ */
+public class SingleLinkage {
+	/**
+	 * Minimum number of distances per parallel task.
+	 */
+	private final static int PARALLEL_GRAIN = 8192;
+
+	private DistanceMatrix distanceMatrix;
+	private String[] leafLabels;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private HierarchicalCluster monitor; // progress and cancellation
+
+	/**
+	 * Constructor.
+	 * @param distanceMatrix a square matrix; only the lower triangle is read
+	 * @param labels leaf labels for each row/column in the distance matrix
+	 */
+	public SingleLinkage(DistanceMatrix distanceMatrix, String[] labels) {
+		this.distanceMatrix = distanceMatrix;
+		this.leafLabels = labels;
+	}
+
+	/**
+	 * Read distances on this executor. If null, the default, everything
+	 * runs in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Report progress to, and check for cancellation by, the clustering
+	 * that this was delegated from. There is no partial tree, since the
+	 * clusters are only known at the end.
+	 */
+	void setMonitor(HierarchicalCluster monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Build the tree.
+	 * @return root of a binary tree
+	 */
+	public Clade cluster() {
+		int n = distanceMatrix.size();
+		int[] pointers = new int[n];
+		double[] heights = new double[n];
+		pointerRepresentation(pointers, heights);
+		return buildTree(pointers, heights);
+	}
+
+	/**
+	 * SLINK. Item j, for j < i, joins the cluster of item pointers[j] at
+	 * heights[j]; the last item has infinite height.
+	 */
+	private void pointerRepresentation(int[] pointers, final double[] heights) {
+		int n = pointers.length;
+		final double[] row = new double[n];
+		for (int i = 0; i < n; i++) {
+			// Row i takes time proportional to i
+			if (monitor != null)
+				monitor.reportProgress((double)i * i / ((double)n * n));
+			pointers[i] = i;
+			heights[i] = Double.POSITIVE_INFINITY;
+			final int item = i;
+			ParallelLoop.run(executor, ParallelLoop.split(0, i, chunks(i)),
+					new ParallelLoop.Body() {
+				public void run(int chunk, int from, int to) {
+					for (int j = from; j < to; j++) {
+						double d = distanceMatrix.get(item, j);
+						row[j] = d >= 0 ? d : Double.POSITIVE_INFINITY;
+					}
+				}
+			});
+
+			for (int j = 0; j < i; j++) {
+				int p = pointers[j];
+				if (heights[j] >= row[j]) {
+					row[p] = Math.min(row[p], heights[j]);
+					heights[j] = row[j];
+					pointers[j] = i;
+				} else {
+					row[p] = Math.min(row[p], row[j]);
+				}
+			}
+			for (int j = 0; j < i; j++)
+				if (heights[j] >= heights[pointers[j]])
+					pointers[j] = i;
+		}
+		if (monitor != null)
+			monitor.reportProgress(1);
+	}
+
+	/**
+	 * Replay the merges in order of height, keeping track of clusters with
+	 * a union-find forest.
+	 */
+	private Clade buildTree(int[] pointers, final double[] heights) {
+		int n = pointers.length;
+		Clade[] nodes = new Clade[n];
+		int[] leafCount = new int[n];
+		double[] joinDistance = new double[n];
+		int[] parent = new int[n];
+		int[] slot = new int[n]; // index of the node for each forest root
+		double maxHeight = 0;
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Clade(leafLabels[i], 0);
+			leafCount[i] = 1;
+			parent[i] = i;
+			slot[i] = i;
+			if (heights[i] != Double.POSITIVE_INFINITY)
+				maxHeight = Math.max(maxHeight, heights[i]);
+		}
+		if (n == 0)
+			return null;
+
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				double ha = heights[a.intValue()];
+				double hb = heights[b.intValue()];
+				return ha < hb ? -1 : ha > hb ? 1 : a.compareTo(b);
+			}
+		});
+
+		int rootSlot = 0;
+		for (int k = 0; k < n; k++) {
+			int j = order[k].intValue();
+			if (pointers[j] == j)
+				continue; // the last item, which joins nothing
+			int a = find(parent, j);
+			int b = find(parent, pointers[j]);
+			double height = Math.min(heights[j], maxHeight);
+
+			// Same orientation as HierarchicalCluster.join()
+			int one = Math.max(slot[a], slot[b]);
+			int two = Math.min(slot[a], slot[b]);
+			if (leafCount[one] > leafCount[two]) {
+				int i = two;
+				two = one;
+				one = i;
+			}
+			nodes[one].setBranchLength(Math.max(0, height - joinDistance[one]));
+			nodes[two].setBranchLength(Math.max(0, height - joinDistance[two]));
+			Clade joinedNode = new Clade();
+			joinedNode.add(nodes[two]);
+			joinedNode.add(nodes[one]);
+			nodes[two] = joinedNode;
+			nodes[one] = null;
+			leafCount[two] += leafCount[one];
+			joinDistance[two] = height;
+
+			parent[a] = b;
+			slot[b] = two;
+			rootSlot = two;
+		}
+		return nodes[rootSlot];
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private int chunks(int count) {
+		if (executor == null)
+			return 1;
+		return Math.max(1, Math.min(parallelism, count / PARALLEL_GRAIN));
+	}
+}
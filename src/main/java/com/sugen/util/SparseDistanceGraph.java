@@ -0,0 +1,229 @@
+package com.sugen.util;
+
+/**
+ * A sparse, symmetric distance matrix, such as a k-nearest-neighbor graph,
+ * stored in compressed sparse row (CSR) form: the neighbors of item i are
+ * columns[rowStart[i]] to columns[rowStart[i + 1] - 1], in ascending
+ * order, with their distances alongside. Memory is proportional to the
+ * number of edges, so graphs of millions of items fit where the full
+ * matrix never would.
+ * <p>
+ * As a DistanceMatrix, the distance between items without an edge is -1,
+ * which clustering takes to be missing. Looking up a distance takes a
+ * binary search of a row. HierarchicalCluster clusters sparse graphs with
+ * SparseLinkage, without reading them as matrices.
+ *
+ * @see SparseLinkage
+ */
+public class SparseDistanceGraph implements DistanceMatrix {
+	/**
+	 * The distance between items without an edge.
+	 */
+	public final static double MISSING = -1;
+
+	private int size;
+	private int[] rowStart;
+	private int[] columns;
+	private float[] distances;
+	private String[] labels;
+
+	private SparseDistanceGraph(int size, int[] rowStart, int[] columns,
+			float[] distances, String[] labels) {
+		this.size = size;
+		this.rowStart = rowStart;
+		this.columns = columns;
+		this.distances = distances;
+		this.labels = labels;
+	}
+
+	/**
+	 * Build a graph from a list of edges. Edges are undirected; if an edge
+	 * is given more than once, in either direction, the shortest distance
+	 * is kept. Edges from an item to itself are ignored.
+	 * @param size number of items
+	 * @param from first item of each edge
+	 * @param to second item of each edge
+	 * @param distances distance of each edge
+	 * @param labels a label for each item, or null
+	 * @throws IllegalArgumentException if an item is out of range or a
+	 * distance is negative or not a number
+	 */
+	public static SparseDistanceGraph fromEdges(int size, int[] from, int[] to,
+			double[] distances, String[] labels) {
+		int count = from.length;
+		if (to.length != count || distances.length != count)
+			throw new IllegalArgumentException("Edge arrays differ in length");
+		if (labels != null && labels.length != size)
+			throw new IllegalArgumentException("Expected " + size + " labels");
+
+		// Both directions of each edge, sorted by row and then column
+		int directed = 0;
+		for (int e = 0; e < count; e++) {
+			if (from[e] < 0 || from[e] >= size || to[e] < 0 || to[e] >= size)
+				throw new IllegalArgumentException("Invalid edge: " + from[e]
+						+ ", " + to[e]);
+			if (!(distances[e] >= 0))
+				throw new IllegalArgumentException("Invalid distance: "
+						+ distances[e]);
+			if (from[e] != to[e])
+				directed += 2;
+		}
+		double[] keys = new double[directed];
+		int[] edges = new int[directed];
+		int k = 0;
+		for (int e = 0; e < count; e++) {
+			if (from[e] == to[e])
+				continue;
+			keys[k] = (double)from[e] * size + to[e];
+			edges[k++] = e;
+			keys[k] = (double)to[e] * size + from[e];
+			edges[k++] = e;
+		}
+		NeighborJoining.sort(keys, edges, 0, directed);
+
+		// Drop duplicates, keeping the shortest
+		int[] rowStart = new int[size + 1];
+		int[] columns = new int[directed];
+		float[] values = new float[directed];
+		int length = 0;
+		for (int i = 0; i < directed; i++) {
+			int e = edges[i];
+			int row = (int)(keys[i] / size);
+			int col = (int)(keys[i] - (double)row * size);
+			if (col < 0) { // rounding
+				row--;
+				col += size;
+			} else if (col >= size) {
+				row++;
+				col -= size;
+			}
+			float d = (float)distances[e];
+			if (i > 0 && keys[i] == keys[i - 1]) {
+				values[length - 1] = Math.min(values[length - 1], d);
+				continue;
+			}
+			columns[length] = col;
+			values[length++] = d;
+			rowStart[row + 1]++;
+		}
+		for (int i = 0; i < size; i++)
+			rowStart[i + 1] += rowStart[i];
+
+		if (length < directed) {
+			int[] c = new int[length];
+			float[] v = new float[length];
+			System.arraycopy(columns, 0, c, 0, length);
+			System.arraycopy(values, 0, v, 0, length);
+			columns = c;
+			values = v;
+		}
+		return new SparseDistanceGraph(size, rowStart, columns, values, labels);
+	}
+
+	/**
+	 * Build a graph from compressed sparse rows. Rows need not be sorted
+	 * or symmetric; an edge in one row is an edge in both directions.
+	 * @param size number of items
+	 * @param rowStart the neighbors of item i are at [rowStart[i],
+	 * rowStart[i + 1]) in columns and distances; size + 1 elements
+	 * @param labels a label for each item, or null
+	 * @throws IllegalArgumentException as for fromEdges()
+	 */
+	public static SparseDistanceGraph fromRows(int size, int[] rowStart,
+			int[] columns, double[] distances, String[] labels) {
+		if (rowStart.length != size + 1)
+			throw new IllegalArgumentException("Expected " + (size + 1)
+					+ " row offsets");
+		int count = rowStart[size];
+		int[] from = new int[count];
+		for (int i = 0; i < size; i++) {
+			if (rowStart[i] > rowStart[i + 1])
+				throw new IllegalArgumentException("Invalid row offset: "
+						+ rowStart[i + 1]);
+			for (int e = rowStart[i]; e < rowStart[i + 1]; e++)
+				from[e] = i;
+		}
+		int[] to = new int[count];
+		double[] d = new double[count];
+		System.arraycopy(columns, 0, to, 0, count);
+		System.arraycopy(distances, 0, d, 0, count);
+		return fromEdges(size, from, to, d, labels);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of undirected edges
+	 */
+	public int getEdgeCount() {
+		return columns.length / 2;
+	}
+
+	/**
+	 * @return the distance, 0 on the diagonal, or MISSING if there is no
+	 * edge
+	 */
+	public double get(int row, int col) {
+		if (row == col)
+			return 0;
+		int e = find(row, col);
+		return e < 0 ? MISSING : distances[e];
+	}
+
+	/**
+	 * Change the distance of an existing edge, in both directions.
+	 * @throws UnsupportedOperationException if there is no edge
+	 */
+	public void set(int row, int col, double value) {
+		int e = find(row, col);
+		int f = find(col, row);
+		if (e < 0 || f < 0)
+			throw new UnsupportedOperationException("No edge between "
+					+ row + " and " + col);
+		distances[e] = (float)value;
+		distances[f] = (float)value;
+	}
+
+	private int find(int row, int col) {
+		int low = rowStart[row];
+		int high = rowStart[row + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (columns[mid] < col)
+				low = mid + 1;
+			else if (columns[mid] > col)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * The neighbors of item i are columns[rowStart[i]] to
+	 * columns[rowStart[i + 1] - 1]. Not a copy.
+	 */
+	public int[] getRowStart() {
+		return rowStart;
+	}
+
+	/**
+	 * Not a copy.
+	 */
+	public int[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Not a copy.
+	 */
+	public float[] getDistances() {
+		return distances;
+	}
+}
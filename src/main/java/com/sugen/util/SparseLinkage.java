@@ -0,0 +1,344 @@
+package com.sugen.util;
+
+/**
+ * Single and average linkage clustering of a sparse distance graph, in time
+ * close to proportional to the number of edges rather than the square of
+ * the number of items, and memory proportional to the number of edges.
+ * <p>
+ * Single linkage is Kruskal's algorithm: the edges are sorted by distance
+ * and clusters are merged along them, keeping track of clusters with a
+ * union-find forest.
+ * <p>
+ * For average linkage, the distance between two clusters is the average of
+ * the edges between them, so on a complete graph the tree is the same as
+ * with a full matrix. Each cluster keeps the sum and count of its edges to
+ * each neighboring cluster. Merging two clusters just concatenates their
+ * lists, the shorter onto the longer; a list is only tidied up, renaming
+ * merged clusters and adding up their sums and counts, when it is next
+ * searched. That average is reducible, so the merges are found with the
+ * nearest-neighbor chain algorithm, as in HierarchicalCluster.
+ * <p>
+ * Clusters with no edges between them are never merged by either method;
+ * what is left at the end is joined at the greatest height, as in
+ * SingleLinkage.
+ *
+ * @see SparseDistanceGraph
+ * @see HierarchicalCluster
+ */
+public class SparseLinkage {
+	private SparseDistanceGraph graph;
+	private String[] leafLabels;
+	private boolean isAverage;
+	private HierarchicalCluster monitor; // progress and cancellation
+
+	// By cluster, named after an item in it, as in HierarchicalCluster
+	private Clade[] nodes;
+	private int[] leafCount;
+	private double[] joinDistance;
+	private int[] parent; // union-find forest
+	private int mergeCount;
+	private double maxHeight;
+
+	// Average linkage: the edges from each cluster
+	private int[][] neighbors;
+	private double[][] sums;
+	private int[][] counts;
+	private int[] degree;
+	private double[] sortKeys = new double[0];
+	private int[] sortIndexes = new int[0];
+
+	/**
+	 * Constructor.
+	 * @param graph distances between items
+	 * @param labels leaf labels for each item in the graph
+	 * @param isAverage average linkage if true, otherwise single linkage
+	 */
+	public SparseLinkage(SparseDistanceGraph graph, String[] labels,
+			boolean isAverage) {
+		this.graph = graph;
+		this.leafLabels = labels;
+		this.isAverage = isAverage;
+	}
+
+	/**
+	 * Report progress to, and check for cancellation by, the clustering
+	 * that this was delegated from.
+	 */
+	void setMonitor(HierarchicalCluster monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Build the tree.
+	 * @return root of a binary tree
+	 */
+	public Clade cluster() {
+		int n = graph.size();
+		if (n == 0)
+			return null;
+		nodes = new Clade[n];
+		leafCount = new int[n];
+		joinDistance = new double[n];
+		parent = new int[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Clade(leafLabels[i], 0);
+			leafCount[i] = 1;
+			parent[i] = i;
+		}
+		mergeCount = 0;
+		maxHeight = 0;
+		try {
+			if (isAverage)
+				averageLinkage();
+			else
+				singleLinkage();
+
+			// Join what is not connected
+			int root = -1;
+			for (int i = 0; i < n; i++)
+				if (parent[i] == i)
+					root = root < 0 ? i : join(root, i, maxHeight);
+			return nodes[root];
+		} finally {
+			neighbors = null;
+			sums = null;
+			counts = null;
+		}
+	}
+
+	private void singleLinkage() {
+		int n = graph.size();
+		int[] rowStart = graph.getRowStart();
+		int[] columns = graph.getColumns();
+		float[] distances = graph.getDistances();
+
+		// Each edge once, sorted by distance
+		int m = graph.getEdgeCount();
+		double[] keys = new double[m];
+		int[] edges = new int[m];
+		int[] first = new int[m];
+		int[] second = new int[m];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			for (int e = rowStart[i]; e < rowStart[i + 1] && columns[e] < i; e++) {
+				keys[k] = distances[e];
+				edges[k] = k;
+				first[k] = i;
+				second[k++] = columns[e];
+			}
+		}
+		NeighborJoining.sort(keys, edges, 0, m);
+
+		for (int s = 0; s < m && mergeCount < n - 1; s++) {
+			int a = find(first[edges[s]]);
+			int b = find(second[edges[s]]);
+			if (a != b)
+				join(a, b, keys[s]);
+		}
+	}
+
+	private void averageLinkage() {
+		int n = graph.size();
+		int[] rowStart = graph.getRowStart();
+		int[] columns = graph.getColumns();
+		float[] distances = graph.getDistances();
+		neighbors = new int[n][];
+		sums = new double[n][];
+		counts = new int[n][];
+		degree = new int[n];
+		for (int i = 0; i < n; i++) {
+			int length = rowStart[i + 1] - rowStart[i];
+			neighbors[i] = new int[length];
+			sums[i] = new double[length];
+			counts[i] = new int[length];
+			System.arraycopy(columns, rowStart[i], neighbors[i], 0, length);
+			for (int e = 0; e < length; e++) {
+				sums[i][e] = distances[rowStart[i] + e];
+				counts[i][e] = 1;
+			}
+			degree[i] = length;
+		}
+
+		// Clusters with no neighbors left are done
+		boolean[] isDone = new boolean[n];
+		int[] chain = new int[n];
+		int chainSize = 0;
+		int first = 0;
+		while (true) {
+			if (chainSize == 0) {
+				while (first < n && (parent[first] != first || isDone[first]))
+					++first;
+				if (first == n)
+					break;
+				chain[chainSize++] = first;
+			}
+
+			// Prefer the previous chain element on ties, so the chain
+			// cannot cycle, and then the first cluster
+			int a = chain[chainSize - 1];
+			int previous = chainSize > 1 ? chain[chainSize - 2] : -1;
+			tidy(a);
+			int[] nb = neighbors[a];
+			double[] sum = sums[a];
+			int[] count = counts[a];
+			int b = -1;
+			double closeness = 0;
+			for (int e = 0; e < degree[a]; e++) {
+				int c = nb[e];
+				double d = sum[e] / count[e];
+				if (b < 0 || d < closeness || (d == closeness && b != previous
+						&& (c == previous || c < b))) {
+					closeness = d;
+					b = c;
+				}
+			}
+
+			if (b < 0) {
+				isDone[a] = true;
+				chainSize = 0;
+			} else if (b == previous) {
+				chainSize -= 2;
+				merge(a, b, closeness);
+			} else {
+				chain[chainSize++] = b;
+			}
+		}
+	}
+
+	/**
+	 * Merge two clusters and their lists of edges.
+	 */
+	private void merge(int a, int b, double closeness) {
+		int merged = join(a, b, closeness);
+		int big = degree[a] >= degree[b] ? a : b;
+		int small = big == a ? b : a;
+		int length = degree[big] + degree[small];
+		if (length > neighbors[big].length) {
+			int capacity = Math.max(length, 2 * neighbors[big].length);
+			neighbors[big] = grow(neighbors[big], capacity, degree[big]);
+			counts[big] = grow(counts[big], capacity, degree[big]);
+			double[] s = new double[capacity];
+			System.arraycopy(sums[big], 0, s, 0, degree[big]);
+			sums[big] = s;
+		}
+		System.arraycopy(neighbors[small], 0, neighbors[big], degree[big], degree[small]);
+		System.arraycopy(sums[small], 0, sums[big], degree[big], degree[small]);
+		System.arraycopy(counts[small], 0, counts[big], degree[big], degree[small]);
+
+		int removed = merged == a ? b : a;
+		neighbors[merged] = neighbors[big];
+		sums[merged] = sums[big];
+		counts[merged] = counts[big];
+		degree[merged] = length;
+		neighbors[removed] = null;
+		sums[removed] = null;
+		counts[removed] = null;
+		degree[removed] = 0;
+	}
+
+	private static int[] grow(int[] values, int capacity, int length) {
+		int[] grown = new int[capacity];
+		System.arraycopy(values, 0, grown, 0, length);
+		return grown;
+	}
+
+	/**
+	 * Rename the neighbors of a cluster that have since been merged, drop
+	 * edges within the cluster, and add up the edges to the same cluster.
+	 */
+	private void tidy(int a) {
+		int length = degree[a];
+		int[] nb = neighbors[a];
+		boolean isStale = false;
+		for (int e = 0; e < length; e++) {
+			int c = find(nb[e]);
+			if (c != nb[e] || c == a) {
+				nb[e] = c;
+				isStale = true;
+			}
+		}
+		if (!isStale)
+			return;
+
+		if (sortKeys.length < length) {
+			sortKeys = new double[Math.max(length, 2 * sortKeys.length)];
+			sortIndexes = new int[sortKeys.length];
+		}
+		for (int e = 0; e < length; e++) {
+			sortKeys[e] = nb[e];
+			sortIndexes[e] = e;
+		}
+		NeighborJoining.sort(sortKeys, sortIndexes, 0, length);
+
+		int distinct = 0;
+		for (int e = 0; e < length; e++)
+			if (nb[sortIndexes[e]] != a && (e == 0 || sortKeys[e] != sortKeys[e - 1]))
+				++distinct;
+		int[] newNeighbors = new int[distinct];
+		double[] newSums = new double[distinct];
+		int[] newCounts = new int[distinct];
+		int k = -1;
+		for (int e = 0; e < length; e++) {
+			int i = sortIndexes[e];
+			if (nb[i] == a)
+				continue;
+			if (k < 0 || newNeighbors[k] != nb[i])
+				newNeighbors[++k] = nb[i];
+			newSums[k] += sums[a][i];
+			newCounts[k] += counts[a][i];
+		}
+		neighbors[a] = newNeighbors;
+		sums[a] = newSums;
+		counts[a] = newCounts;
+		degree[a] = distinct;
+	}
+
+	/**
+	 * Merge two clusters, oriented as in HierarchicalCluster.join().
+	 * @return the cluster that holds the merged cluster
+	 */
+	private int join(int a, int b, double height) {
+		int one = Math.max(a, b);
+		int two = Math.min(a, b);
+		if (leafCount[one] > leafCount[two]) {
+			int i = two;
+			two = one;
+			one = i;
+		}
+		nodes[one].setBranchLength(Math.max(0, height - joinDistance[one]));
+		nodes[two].setBranchLength(Math.max(0, height - joinDistance[two]));
+		Clade joinedNode = new Clade();
+		joinedNode.add(nodes[two]);
+		joinedNode.add(nodes[one]);
+		nodes[two] = joinedNode;
+		nodes[one] = null;
+		leafCount[two] += leafCount[one];
+		joinDistance[two] = height;
+		parent[one] = two;
+		maxHeight = Math.max(maxHeight, height);
+
+		int n = nodes.length;
+		if (monitor != null) {
+			monitor.reportProgress((double)++mergeCount / (n - 1));
+			if (monitor.isPartialTreeDue()) {
+				Clade[] clusters = new Clade[n - mergeCount];
+				int count = 0;
+				for (int i = 0; i < n; i++)
+					if (nodes[i] != null)
+						clusters[count++] = nodes[i];
+				monitor.publishPartialTree(clusters, count);
+			}
+		} else {
+			++mergeCount;
+		}
+		return two;
+	}
+
+	private int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+}
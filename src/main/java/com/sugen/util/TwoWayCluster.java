@@ -0,0 +1,296 @@
+package com.sugen.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Two-way clustering of a feature matrix, such as genes by conditions: the
+ * rows are clustered by the distances between rows, and the columns by the
+ * distances between columns, so that a heatmap of the matrix can show both
+ * orders at once.
+ * <p>
+ * The two axes are independent, so given an executor they are done at the
+ * same time: the axis with fewer items, usually the columns, is computed
+ * and clustered in a task on the executor, sequentially, while the other
+ * is done in the calling thread, in parallel on the executor. Nothing
+ * waits for a task queued behind it, so the executor may have any number
+ * of threads, but cluster() must not be called from one of them.
+ * <p>
+ * The orders are permutations of the rows and columns of the matrix, which
+ * is not copied; see HeatMap.
+ *
+ * @see HierarchicalCluster
+ * @see com.sugen.gui.plot.HeatMap
+ */
+public class TwoWayCluster {
+	private FeatureMatrix features;
+	private String rowMetric = DistanceCalculator.PEARSON;
+	private String columnMetric = DistanceCalculator.PEARSON;
+	private String linkageMethod = HierarchicalCluster.AVERAGE;
+	private boolean isLeafOrderOptimized;
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private ClusterCache cache;
+	private volatile boolean isCancelled;
+	private Axis rows;
+	private Axis columns;
+
+	/**
+	 * Constructor.
+	 * @param features one row per item and one column per sample; rows and
+	 * columns without labels are numbered from 1
+	 */
+	public TwoWayCluster(FeatureMatrix features) {
+		this.features = features;
+	}
+
+	/**
+	 * Cluster both axes.
+	 * @throws CancellationException if cancelled
+	 */
+	public void cluster() {
+		FeatureMatrix transposed = features.transpose();
+		rows = new Axis(features, labels(features.getRowLabels(),
+				features.getRowCount()), rowMetric);
+		columns = new Axis(transposed, labels(transposed.getRowLabels(),
+				transposed.getRowCount()), columnMetric);
+		if (isCancelled)
+			cancel();
+		try {
+			if (executor == null) {
+				rows.run(null);
+				columns.run(null);
+				return;
+			}
+
+			final Axis small = columns.size() <= rows.size() ? columns : rows;
+			Axis large = small == columns ? rows : columns;
+			Future<?> task = executor.submit(new Runnable() {
+				public void run() {
+					small.run(null);
+				}
+			});
+			try {
+				large.run(executor);
+			} catch (RuntimeException e) {
+				// The small axis then fails with a cancellation, which would
+				// hide why
+				small.cancel();
+				try {
+					ParallelLoop.await(task);
+				} catch (RuntimeException ignored) {
+				}
+				throw e;
+			}
+			ParallelLoop.await(task);
+		} finally {
+			isCancelled = false;
+		}
+	}
+
+	private static String[] labels(String[] labels, int count) {
+		if (labels != null)
+			return labels;
+		labels = new String[count];
+		for (int i = 0; i < count; i++)
+			labels[i] = String.valueOf(i + 1);
+		return labels;
+	}
+
+	/**
+	 * Stop clustering. May be called from any thread; cluster() then throws
+	 * a CancellationException soon after.
+	 */
+	public void cancel() {
+		isCancelled = true;
+		Axis r = rows;
+		Axis c = columns;
+		if (r != null)
+			r.cancel();
+		if (c != null)
+			c.cancel();
+	}
+
+	public Clade getRowTree() {
+		return rows == null ? null : rows.tree;
+	}
+
+	public Clade getColumnTree() {
+		return columns == null ? null : columns.tree;
+	}
+
+	/**
+	 * @return the rows of the matrix in the order of the leaves of the row
+	 * tree
+	 */
+	public int[] getRowOrder() {
+		return rows == null ? null : rows.order;
+	}
+
+	/**
+	 * @return the columns of the matrix in the order of the leaves of the
+	 * column tree
+	 */
+	public int[] getColumnOrder() {
+		return columns == null ? null : columns.order;
+	}
+
+	/**
+	 * @return labels of the rows, generated if the matrix has none
+	 */
+	public String[] getRowLabels() {
+		return rows == null ? features.getRowLabels() : rows.labels;
+	}
+
+	/**
+	 * @return labels of the columns, generated if the matrix has none
+	 */
+	public String[] getColumnLabels() {
+		return columns == null ? features.getColumnLabels() : columns.labels;
+	}
+
+	public FeatureMatrix getFeatures() {
+		return features;
+	}
+
+	public String getRowMetric() {
+		return rowMetric;
+	}
+
+	/**
+	 * @param metric one of DistanceCalculator.METRICS; Pearson by default
+	 */
+	public void setRowMetric(String metric) {
+		rowMetric = metric;
+	}
+
+	public String getColumnMetric() {
+		return columnMetric;
+	}
+
+	/**
+	 * @param metric one of DistanceCalculator.METRICS; Pearson by default
+	 */
+	public void setColumnMetric(String metric) {
+		columnMetric = metric;
+	}
+
+	public String getLinkageMethod() {
+		return linkageMethod;
+	}
+
+	/**
+	 * @param linkageMethod one of HierarchicalCluster.LINKAGE_METHODS, for
+	 * both axes; average linkage by default
+	 */
+	public void setLinkageMethod(String linkageMethod) {
+		this.linkageMethod = linkageMethod;
+	}
+
+	public boolean isLeafOrderOptimized() {
+		return isLeafOrderOptimized;
+	}
+
+	/**
+	 * Whether to order the leaves of both trees with
+	 * HierarchicalCluster.optimizeLeafOrder(), for a smoother heatmap.
+	 */
+	public void setLeafOrderOptimized(boolean isOptimized) {
+		isLeafOrderOptimized = isOptimized;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Do both axes at the same time, and each in parallel, on this executor.
+	 * If null, the default, everything runs in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Maximum number of parallel tasks. Defaults to the number of processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Reuse the results of clustering the same distances before.
+	 * @param cache null, the default, for no cache
+	 */
+	public void setCache(ClusterCache cache) {
+		this.cache = cache;
+	}
+
+	public ClusterCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * One of the two axes: the distances between the rows of a matrix and
+	 * their tree.
+	 */
+	private class Axis {
+		private FeatureMatrix values;
+		private String[] labels;
+		private String metric;
+		private volatile HierarchicalCluster cluster;
+		private volatile boolean isCancelled;
+		private Clade tree;
+		private int[] order;
+
+		public Axis(FeatureMatrix values, String[] labels, String metric) {
+			this.values = values;
+			this.labels = labels;
+			this.metric = metric;
+		}
+
+		public int size() {
+			return labels.length;
+		}
+
+		public void run(ExecutorService executor) {
+			DistanceCalculator calculator = new DistanceCalculator(values, metric);
+			calculator.setExecutor(executor);
+			calculator.setParallelism(parallelism);
+
+			// Only the view is needed to cluster from the features
+			DistanceMatrix distances;
+			if (DistanceCalculator.EUCLIDEAN.equals(metric)
+					&& FeatureLinkage.isSupported(linkageMethod))
+				distances = calculator.createView();
+			else
+				distances = calculator.compute();
+
+			HierarchicalCluster hc = new HierarchicalCluster(distances, labels,
+					linkageMethod);
+			hc.setExecutor(executor);
+			hc.setParallelism(parallelism);
+			hc.setCache(cache);
+			hc.setLeafOrderOptimized(isLeafOrderOptimized);
+			cluster = hc;
+			if (isCancelled)
+				throw new CancellationException("Clustering cancelled");
+			tree = hc.cluster();
+			order = Dendrogram.fromTree(tree, labels).getPermutation();
+		}
+
+		public void cancel() {
+			isCancelled = true;
+			HierarchicalCluster hc = cluster;
+			if (hc != null)
+				hc.cancel();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.sugen.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import com.sugen.util.ArrayDistanceMatrix;
+import com.sugen.util.DistanceMatrix;
+import com.sugen.util.DoubleDistanceMatrix;
+import com.sugen.util.MappedDistanceMatrix;
+
+/**
+ * Write matrices in the binary format, map them and read them back, as
+ * floats and as doubles, with and without labels, from packed and from
+ * plain matrices. Runs as a POJO test, or from main(), which exits with a
+ * failure status if a check fails.
+ */
+public class BinaryMatrixReaderTest {
+	// The largest spans several of the writer's buffers
+	private final static int[] SIZES = { 0, 1, 2, 9, 300 };
+
+	public void testRoundTrips() throws IOException {
+		Random random = new Random(7);
+		File file = File.createTempFile("matrix", BinaryMatrixReader.EXTENSION);
+		file.deleteOnExit();
+		try {
+			for(int s = 0; s < SIZES.length; s++) {
+				int n = SIZES[s];
+				double[][] data = new double[n][n];
+				String[] labels = new String[n];
+				for(int i = 0; i < n; i++) {
+					// Multibyte, empty and missing labels too
+					labels[i] = i % 5 == 1 ? "αβ " + i : i % 5 == 2 ? ""
+						: i % 5 == 3 ? null : "row " + i;
+					for(int j = 0; j < i; j++)
+						data[i][j] = data[j][i] = random.nextDouble();
+				}
+				DistanceMatrix packed = new DoubleDistanceMatrix(
+						new ArrayDistanceMatrix(data));
+				for(int k = 0; k < 8; k++) {
+					boolean isSinglePrecision = (k & 1) != 0;
+					boolean hasLabels = (k & 2) != 0;
+					boolean isPacked = (k & 4) != 0;
+					String name = n + " rows as "
+						+ (isSinglePrecision ? "floats" : "doubles")
+						+ (hasLabels ? ", with labels" : "")
+						+ (isPacked ? ", from a packed matrix" : "");
+					DistanceMatrix matrix = isPacked ? packed
+						: new ArrayDistanceMatrix(data, hasLabels ? labels : null);
+					if(isPacked)
+						((DoubleDistanceMatrix)packed).setLabels(hasLabels ? labels
+							: null);
+
+					BinaryMatrixWriter writer = new BinaryMatrixWriter();
+					writer.setSinglePrecision(isSinglePrecision);
+					writer.write(matrix, file);
+					if(!BinaryMatrixReader.isBinaryMatrix(file))
+						throw new AssertionError(name + ": not recognized");
+					MappedDistanceMatrix copy = new BinaryMatrixReader().read(file);
+					if(copy.isSinglePrecision() != isSinglePrecision)
+						throw new AssertionError(name + ": read with the wrong width");
+					compare(name, data, hasLabels ? labels : null, copy,
+						isSinglePrecision);
+				}
+			}
+
+			// Cut off in the distances
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(raf.length() / 2);
+			} finally {
+				raf.close();
+			}
+			try {
+				new BinaryMatrixReader().read(file);
+				throw new AssertionError("Truncated matrix read");
+			} catch(IOException e) {
+				// expected
+			}
+
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write("\t a\n".getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			if(BinaryMatrixReader.isBinaryMatrix(file))
+				throw new AssertionError("Text recognized as a binary matrix");
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void compare(String name, double[][] data, String[] labels,
+			DistanceMatrix copy, boolean isSinglePrecision) {
+		int n = data.length;
+		if(copy.size() != n)
+			throw new AssertionError(name + ": size " + copy.size());
+		String[] copyLabels = copy.getLabels();
+		// No labels at all are the same as none
+		if(labels == null || n == 0 ? copyLabels != null
+				: copyLabels == null || copyLabels.length != n)
+			throw new AssertionError(name + ": wrong number of labels");
+		for(int i = 0; i < n; i++) {
+			// A missing label is written as an empty one
+			if(labels != null && !(labels[i] == null ? ""
+					: labels[i]).equals(copyLabels[i]))
+				throw new AssertionError(name + ": label \"" + copyLabels[i]
+					+ "\", not \"" + labels[i] + "\"");
+			for(int j = 0; j < n; j++) {
+				double expected = isSinglePrecision ? (float)data[i][j] : data[i][j];
+				if(copy.get(i, j) != expected)
+					throw new AssertionError(name + ": distance " + copy.get(i, j)
+						+ ", not " + expected + ", between " + i + " and " + j);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new BinaryMatrixReaderTest().testRoundTrips();
+			System.out.println("Round trips: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
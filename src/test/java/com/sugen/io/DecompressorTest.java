@@ -0,0 +1,324 @@
+package com.sugen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.swing.tree.DefaultTreeModel;
+
+import com.sugen.util.Clade;
+import com.sugen.util.DistanceMatrix;
+
+/**
+ * Decompress small gzip, zip and bzip2 inputs and check that the bytes
+ * come back unchanged, and read compressed files through the tree and
+ * matrix readers. Java cannot write bzip2, so the bzip2 inputs are fixtures
+ * written by bzip2 -9 from the text of tree() and matrix(). Runs as a POJO
+ * test, or from main(), which exits with a failure status if a check fails.
+ */
+public class DecompressorTest {
+	private final static String EMPTY_BZIP2 = "425a683917724538509000000000";
+	private final static String TREE_BZIP2 = "425a68393141592653598cac0d26"
+		+ "0000015b80801004657ff8010a2304004000083000ada15a9ea69faa3fd52343d4"
+		+ "000d54d37feaa808c0131305528d3d44d37aa0681844dee666949db88298e55cf4"
+		+ "d6302c0000bc1c0004924b1cf310f46a21a7faaac4c1099be7192c84ccdb02e7a8"
+		+ "294940a5202404809012502c2c58b191451451467aefa7dda086f0437821b207eb"
+		+ "919470e2f1c8bb9229c2848465606930";
+	private final static String MATRIX_BZIP2 = "425a68393141592653592293175e"
+		+ "00034d5880001040017fe00400400237011502000009126a13db4aa08000015294"
+		+ "f53ca9fbd4528cb1f732b2b2b0afab6b6bb5de5f2aeaed1e23d47c0ff0751b385a"
+		+ "60a59ae452967cc7d371b8dcf986a366e36b86229639bc4a58a733a2c64a6a9629"
+		+ "c98a68a59ca60b2cd63852c59f31a8a58ab860a539bc4a529ccea58c94d58b1638"
+		+ "62c6a294e53114b358e452c59f31a8a52ae18294e6f0a594e6752992cd5909137f"
+		+ "eddcff47f1b8ec6a3474b1d29fa4244ff0922bdfa2228881be2f439a1a8bd4607d"
+		+ "006d0c603686340da1b6d15710e222311c08881d8103dc511e306db43681b06db4"
+		+ "0d836d857e878dfa307d8f1e3d1e8a7bfdfa24679f8fc7e3fb43c07a8d0e6a3431"
+		+ "440877110223116b0245e35e8e9fde8918ce7c6bc78de4c1e8ec74a7bb3d248e73"
+		+ "5f7c6fb1b8d9d31d3a529d491f3fb3be94fa6677a74fbd8a6e9d246759fbf3a74c"
+		+ "e63052c53b4b3a49f924ff8bb9229c284811498baf00";
+	private final static int CRC = 10; // offset of the first checksum
+
+	public void testRoundTrips() throws IOException {
+		byte[] tree = tree().getBytes("UTF-8");
+		byte[] matrix = matrix().getBytes("UTF-8");
+		check("plain", tree, tree);
+		check("plain, shorter than a signature", "BZ".getBytes("UTF-8"),
+				"BZ".getBytes("UTF-8"));
+		check("empty", new byte[0], new byte[0]);
+
+		check("gzip", gzip(tree), tree);
+		check("gzip, empty", gzip(new byte[0]), new byte[0]);
+		check("zip", zip(tree), tree);
+		check("zip, empty", zip(new byte[0]), new byte[0]);
+
+		check("bzip2", hex(TREE_BZIP2), tree);
+		check("bzip2, several Huffman tables", hex(MATRIX_BZIP2), matrix);
+		check("bzip2, empty", hex(EMPTY_BZIP2), new byte[0]);
+		check("bzip2, concatenated",
+				hex(EMPTY_BZIP2 + TREE_BZIP2 + EMPTY_BZIP2 + MATRIX_BZIP2),
+				concat(tree, matrix));
+	}
+
+	/**
+	 * A wrong block checksum, and a wrong stream checksum, which follows
+	 * the end-of-stream marker and so is byte-aligned in an empty stream.
+	 */
+	public void testCorruptCrc() throws IOException {
+		byte[] block = hex(TREE_BZIP2);
+		block[CRC] ^= 1;
+		checkCorrupt("block", block);
+		byte[] stream = hex(EMPTY_BZIP2);
+		stream[CRC] ^= 1;
+		checkCorrupt("stream", stream);
+	}
+
+	private static void checkCorrupt(String name, byte[] input) {
+		try {
+			decompress(input);
+		} catch(IOException e) {
+			if(e.getMessage().indexOf("checksum") < 0)
+				throw new AssertionError(name + " CRC: " + e);
+			return;
+		}
+		throw new AssertionError(name + " CRC: wrong checksum not found");
+	}
+
+	/**
+	 * Chunks larger than one read ahead, and failures after the first,
+	 * which must reach the reader as they were thrown.
+	 */
+	public void testReadAhead() throws IOException {
+		byte[] bytes = new byte[(5 << 20) + 3];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte)(i * 31 >> 3);
+		InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(bytes));
+		compare("read ahead", bytes, readAll(in));
+
+		try {
+			readAll(new ReadAheadInputStream(new Failing(bytes,
+					new IOException("Failed"))));
+			throw new AssertionError("read ahead: IOException lost");
+		} catch(IOException e) {
+			if(!"Failed".equals(e.getMessage()))
+				throw new AssertionError("read ahead: " + e);
+		}
+		try {
+			readAll(new ReadAheadInputStream(new Failing(bytes,
+					new IllegalStateException("Failed"))));
+			throw new AssertionError("read ahead: unchecked exception lost");
+		} catch(IllegalStateException e) {
+			if(!"Failed".equals(e.getMessage()))
+				throw new AssertionError("read ahead: " + e);
+		}
+	}
+
+	/**
+	 * A stream that fails past its second megabyte.
+	 */
+	private static class Failing extends InputStream {
+		private ByteArrayInputStream in;
+		private int count;
+		private Exception failure;
+
+		Failing(byte[] bytes, Exception failure) {
+			in = new ByteArrayInputStream(bytes);
+			this.failure = failure;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(count > 1 << 21) {
+				if(failure instanceof IOException)
+					throw (IOException)failure;
+				throw (RuntimeException)failure;
+			}
+			int read = in.read(b, off, len);
+			count += Math.max(read, 0);
+			return read;
+		}
+	}
+
+	public void testReaders() throws IOException {
+		File bzip2 = write(hex(TREE_BZIP2), ".nwk.bz2");
+		File gzip = write(gzip(concat(tree().getBytes("UTF-8"),
+				tree().getBytes("UTF-8"))), ".nwk.gz");
+		File matrix = write(hex(MATRIX_BZIP2), ".phy.bz2");
+		try {
+			MultiTreeReader trees = new MultiTreeReader();
+			trees.setInput(bzip2);
+			checkTree("bzip2 tree", trees);
+			if(trees.hasNext())
+				throw new AssertionError("bzip2 tree: more than one tree");
+			trees.close();
+
+			trees.setInput(gzip);
+			checkTree("gzip trees, first", trees);
+			checkTree("gzip trees, second", trees);
+			trees.close();
+
+			DistanceMatrix distances = new DistanceMatrixReader().read(matrix);
+			if(distances.size() != 30)
+				throw new AssertionError("bzip2 matrix: size " + distances.size());
+			for(int i = 0; i < 30; i++) {
+				if(!("t" + i).equals(distances.getLabels()[i]))
+					throw new AssertionError("bzip2 matrix: label " + i);
+				for(int j = 0; j < i; j++) {
+					double expected = (i * 31 + j * 17) % 97 / 100.0;
+					if(Math.abs(distances.get(i, j) - expected) > 1e-6)
+						throw new AssertionError("bzip2 matrix: distance " + i
+							+ ", " + j + " is " + distances.get(i, j));
+				}
+			}
+		} finally {
+			bzip2.delete();
+			gzip.delete();
+			matrix.delete();
+		}
+	}
+
+	private static void checkTree(String name, MultiTreeReader trees) {
+		if(!trees.hasNext())
+			throw new AssertionError(name + ": no tree");
+		Clade root = (Clade)((DefaultTreeModel)trees.next()).getRoot();
+		if(root.getLeafCount() != 41 || root.getDepth() != 40)
+			throw new AssertionError(name + ": " + root.getLeafCount()
+				+ " leaves, depth " + root.getDepth());
+	}
+
+	/**
+	 * A caterpillar tree, with a run of 600 bytes in a comment.
+	 */
+	private static String tree() {
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < 40; i++)
+			s.append("(leaf").append(i).append(":0.").append(i % 10).append(',');
+		s.append("leaf40:1[");
+		for(int i = 0; i < 600; i++)
+			s.append('x');
+		s.append(']');
+		for(int i = 0; i < 40; i++)
+			s.append(')');
+		return s.append(";\n").toString();
+	}
+
+	/**
+	 * A PHYLIP lower-triangular matrix of 30 taxa, without the diagonal.
+	 */
+	private static String matrix() {
+		StringBuilder s = new StringBuilder("30\n");
+		for(int i = 0; i < 30; i++) {
+			s.append('t').append(i);
+			for(int j = 0; j < i; j++) {
+				int d = (i * 31 + j * 17) % 97;
+				s.append(d < 10 ? " 0.0" : " 0.").append(d);
+			}
+			s.append('\n');
+		}
+		return s.toString();
+	}
+
+	private static void check(String name, byte[] input, byte[] expected)
+			throws IOException {
+		compare(name, expected, decompress(input));
+	}
+
+	private static void compare(String name, byte[] expected, byte[] actual) {
+		if(!Arrays.equals(expected, actual))
+			throw new AssertionError(name + ": " + actual.length
+				+ " bytes differ from the " + expected.length + " expected");
+	}
+
+	private static byte[] decompress(byte[] input) throws IOException {
+		InputStream in = Decompressor.open(new ByteArrayInputStream(input));
+		try {
+			return readAll(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8191];
+		int count;
+		while((count = in.read(buffer)) >= 0)
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * A zip archive of a directory and then a file.
+	 */
+	private static byte[] zip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(out);
+		zip.putNextEntry(new ZipEntry("trees/"));
+		zip.closeEntry();
+		zip.putNextEntry(new ZipEntry("trees/tree.nwk"));
+		zip.write(bytes);
+		zip.closeEntry();
+		zip.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = new byte[a.length + b.length];
+		System.arraycopy(a, 0, bytes, 0, a.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	private static File write(byte[] bytes, String suffix) throws IOException {
+		File file = File.createTempFile("decompressor", suffix);
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	public static void main(String[] args) {
+		try {
+			new DecompressorTest().testRoundTrips();
+			System.out.println("Round trips: OK");
+			new DecompressorTest().testCorruptCrc();
+			System.out.println("Corrupt CRC: OK");
+			new DecompressorTest().testReadAhead();
+			System.out.println("Read ahead: OK");
+			new DecompressorTest().testReaders();
+			System.out.println("Readers: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.sugen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import com.sugen.util.DistanceMatrix;
+import com.sugen.util.ParallelLoop;
+
+/**
+ * Write random matrices in every layout and read them back, from a mapped
+ * file and from a stream, serially and in parallel: tab-separated, PHYLIP
+ * square, and PHYLIP lower-triangular with and without the diagonal, with
+ * PHYLIP rows on one line each or wrapped across lines. Runs as a POJO
+ * test, or from main(), which exits with a failure status if a check
+ * fails.
+ */
+public class DistanceMatrixReaderTest {
+	// The largest is parsed in several parallel chunks
+	private final static int[] SIZES = { 1, 2, 3, 7, 40, 700 };
+	private final static int SQUARE = 0;
+	private final static int LOWER = 1;
+	private final static int LOWER_WITH_DIAGONAL = 2;
+
+	public void testTabSeparated() throws IOException {
+		Random random = new Random(6);
+		for(int s = 0; s < SIZES.length; s++) {
+			String[][] values = randomMatrix(SIZES[s], random);
+			int n = values.length;
+			StringBuilder text = new StringBuilder();
+			for(int j = 0; j < n; j++)
+				text.append("\trow ").append(j);
+			text.append("\n");
+			for(int i = 0; i < n; i++) {
+				text.append("row ").append(i);
+				for(int j = 0; j < n; j++)
+					text.append('\t').append(values[i][j]);
+				// Windows line endings on every other row
+				text.append(i % 2 == 0 ? "\r\n" : "\n");
+			}
+			check("Tab-separated, " + n + " rows", text.toString(), "row ",
+					values, DistanceMatrixReader.TAB_SEPARATED);
+		}
+	}
+
+	public void testPhylip() throws IOException {
+		Random random = new Random(6);
+		String[] layouts = { "square", "lower-triangular",
+			"lower-triangular with diagonal" };
+		for(int s = 0; s < SIZES.length; s++) {
+			String[][] values = randomMatrix(SIZES[s], random);
+			int n = values.length;
+			for(int layout = SQUARE; layout <= LOWER_WITH_DIAGONAL; layout++) {
+				// One row per line, then at most 5 distances per line
+				for(int wrap = 0; wrap < 2; wrap++) {
+					int width = wrap == 0 ? Integer.MAX_VALUE : 5;
+					String text = phylip(values, layout, width);
+					String name = "PHYLIP " + layouts[layout] + ", " + n + " taxa"
+						+ (wrap == 1 ? ", wrapped" : "");
+					// One taxon and its diagonal is a square matrix too
+					boolean isSquare = layout == SQUARE
+						|| layout == LOWER_WITH_DIAGONAL && n == 1;
+					check(name, text, "taxon", values, isSquare
+						? DistanceMatrixReader.PHYLIP_SQUARE
+						: DistanceMatrixReader.PHYLIP_LOWER_TRIANGLE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Symmetric distances as text, with a zero diagonal, in plain and
+	 * exponent notation.
+	 */
+	private static String[][] randomMatrix(int n, Random random) {
+		String[][] values = new String[n][n];
+		for(int i = 0; i < n; i++) {
+			values[i][i] = "0";
+			for(int j = 0; j < i; j++) {
+				double value = random.nextInt(1000000) / Math.pow(10,
+						random.nextInt(8));
+				values[i][j] = values[j][i] = Double.toString(value);
+			}
+		}
+		return values;
+	}
+
+	private static String phylip(String[][] values, int layout, int width) {
+		int n = values.length;
+		StringBuilder text = new StringBuilder();
+		text.append("   ").append(n).append('\n');
+		for(int i = 0; i < n; i++) {
+			text.append("taxon").append(i);
+			int count = layout == SQUARE ? n
+				: layout == LOWER_WITH_DIAGONAL ? i + 1 : i;
+			for(int j = 0; j < count; j++) {
+				text.append(j > 0 && j % width == 0 ? "\n  " : "  ");
+				text.append(values[i][j]);
+			}
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void check(String name, String text, String prefix,
+			String[][] values, String layout) throws IOException {
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		byte[] bytes = text.getBytes("UTF-8");
+		File file = File.createTempFile("matrix", ".txt");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		try {
+			for(int e = 0; e < 2; e++) {
+				DistanceMatrixReader reader = new DistanceMatrixReader();
+				if(e == 1) {
+					reader.setExecutor(executor);
+					reader.setParallelism(4);
+				}
+				String suffix = e == 1 ? ", in parallel" : "";
+				compare(name + suffix, prefix, values, reader.read(file));
+				if(!layout.equals(reader.getLayout()))
+					throw new AssertionError(name + ": read as "
+						+ reader.getLayout() + ", not " + layout);
+				compare(name + ", from a stream" + suffix, prefix, values,
+					reader.read(new ByteArrayInputStream(bytes)));
+			}
+		} finally {
+			executor.shutdown();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Distances are stored as float, so each must be its text rounded
+	 * once to float.
+	 */
+	private static void compare(String name, String prefix, String[][] values,
+			DistanceMatrix matrix) {
+		int n = values.length;
+		if(matrix.size() != n)
+			throw new AssertionError(name + ": size " + matrix.size()
+				+ ", not " + n);
+		for(int i = 0; i < n; i++) {
+			if(!(prefix + i).equals(matrix.getLabels()[i]))
+				throw new AssertionError(name + ": label \""
+					+ matrix.getLabels()[i] + "\", not \"" + prefix + i + "\"");
+			for(int j = 0; j <= i; j++) {
+				double expected = (float)Double.parseDouble(values[i][j]);
+				if(matrix.get(i, j) != expected || matrix.get(j, i) != expected)
+					throw new AssertionError(name + ": distance " + matrix.get(i, j)
+						+ ", not " + values[i][j] + ", between " + i + " and " + j);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new DistanceMatrixReaderTest().testTabSeparated();
+			System.out.println("Tab-separated: OK");
+			new DistanceMatrixReaderTest().testPhylip();
+			System.out.println("PHYLIP: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
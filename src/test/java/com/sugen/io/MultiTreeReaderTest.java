@@ -0,0 +1,121 @@
+package com.sugen.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Skip trees and read the tree after them, from Newick text, from a mapped
+ * and a compressed Newick file, and from a phyloXML file of several
+ * phylogenies, against reading every tree. Runs as a POJO test, or from
+ * main(), which exits with a failure status if a check fails.
+ */
+public class MultiTreeReaderTest {
+	private final static int TREES = 10;
+	private final static File PHYLOXML =
+		new File("doc/phyloxml_example_files/phyloxml_examples.xml");
+
+	public void testSkip() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(int t = 0; t < TREES; t++)
+			text.append("[tree ").append(t).append("](a").append(t).append(":1,'b;")
+				.append(t).append("':2)[").append(t).append("];\n");
+		File plain = write(text.toString(), ".nwk", false);
+		File gzip = write(text.toString(), ".nwk.gz", true);
+		try {
+			MultiTreeReader reader = new MultiTreeReader();
+			reader.setInput(text.toString());
+			List<String> expected = readAll(reader);
+			if(expected.size() != TREES)
+				throw new AssertionError("Newick text: " + expected.size() + " trees");
+			reader.setInput(text.toString());
+			check("Newick text", reader, expected);
+
+			reader.setInput(plain);
+			check("Newick file", reader, expected);
+			reader.close();
+			reader.setInput(gzip);
+			check("gzip Newick file", reader, expected);
+			reader.close();
+
+			reader.setInput(PHYLOXML);
+			expected = readAll(reader);
+			reader.close();
+			if(expected.size() < 3)
+				throw new AssertionError("phyloXML file: " + expected.size() + " trees");
+			reader.setInput(PHYLOXML);
+			check("phyloXML file", reader, expected);
+			reader.close();
+		} finally {
+			plain.delete();
+			gzip.delete();
+		}
+	}
+
+	/**
+	 * Skip 0, 1, 2... trees before each tree read, then past the end.
+	 */
+	private static void check(String name, MultiTreeReader reader,
+			List<String> expected) throws IOException {
+		int next = 0;
+		for(int skip = 0; next + skip < expected.size(); skip++) {
+			if(reader.skip(skip) != skip)
+				throw new AssertionError(name + ": fewer than " + skip
+					+ " trees skipped after " + next);
+			next += skip;
+			if(!reader.hasNext() || !expected.get(next).equals(write(reader.next())))
+				throw new AssertionError(name + ": wrong tree after skipping "
+					+ skip + " to tree " + next);
+			next++;
+		}
+		int left = expected.size() - next;
+		if(reader.skip(left + 5) != left)
+			throw new AssertionError(name + ": not " + left + " trees left");
+		if(reader.hasNext() || reader.next() != null)
+			throw new AssertionError(name + ": trees after the end");
+	}
+
+	private static List<String> readAll(MultiTreeReader reader)
+			throws IOException {
+		List<String> trees = new ArrayList<String>();
+		while(reader.hasNext())
+			trees.add(write(reader.next()));
+		return trees;
+	}
+
+	private static String write(Object tree) throws IOException {
+		PhylipWriter writer = new PhylipWriter();
+		writer.setOutput(new StringWriter());
+		return (String)writer.write(tree);
+	}
+
+	private static File write(String text, String suffix, boolean isGzip)
+			throws IOException {
+		File file = File.createTempFile("trees", suffix);
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			if(isGzip)
+				out = new GZIPOutputStream(out);
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	public static void main(String[] args) {
+		try {
+			new MultiTreeReaderTest().testSkip();
+			System.out.println("Skip: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.sugen.io;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import javax.swing.tree.DefaultTreeModel;
+
+import com.sugen.util.Clade;
+import com.sugen.util.ParallelLoop;
+
+/**
+ * Write trees in Newick format and read them back: a caterpillar tree, the
+ * deepest kind, and a balanced tree with as many leaves. Read quoted
+ * labels and comments, and many trees in parallel. Runs as a POJO test, or
+ * from main(), which exits with a failure status if a check fails.
+ */
+public class PhylipReaderTest {
+    private final static int DEPTH = 1000000;
+
+    public void testCaterpillar() throws IOException {
+        //Built from the leaves up, so adding a child never searches ancestors
+        Clade caterpillar = new Clade("leaf" + DEPTH, 1);
+        for(int i = DEPTH - 1; i >= 0; i--) {
+            Clade parent = new Clade();
+            parent.setBranchLength(0.5);
+            parent.setConfidence(i % 100);
+            parent.add(new Clade("leaf" + i, 1));
+            parent.add(caterpillar);
+            caterpillar = parent;
+        }
+        roundTrip("caterpillar", caterpillar);
+    }
+
+    public void testBalanced() throws IOException {
+        Clade[] level = new Clade[DEPTH + 1];
+        for(int i = 0; i <= DEPTH; i++)
+            level[i] = new Clade("leaf" + i, 1);
+        for(int count = level.length; count > 1; count = (count + 1) / 2) {
+            for(int i = 0; i < count; i += 2) {
+                if(i + 1 == count) {
+                    level[i / 2] = level[i];
+                    continue;
+                }
+                Clade parent = new Clade();
+                parent.setBranchLength(0.25);
+                parent.add(level[i]);
+                parent.add(level[i + 1]);
+                level[i / 2] = parent;
+            }
+        }
+        roundTrip("balanced", level[0]);
+    }
+
+    public void testQuotedLabels() {
+        //Quotes escaped across the boundaries of the tokenizer's buffer
+        StringBuilder quoted = new StringBuilder("'");
+        StringBuilder longLabel = new StringBuilder();
+        for(int i = 0; i < 100000; i++) {
+            quoted.append(i % 7 == 0 ? "''" : "x");
+            longLabel.append(i % 7 == 0 ? '\'' : 'x');
+        }
+        quoted.append("'");
+        String text = "('it''s [not] a comment':1.5[&rate=0.5],'(a,b);':2[100],"
+            + "[&&NHX:S=x] c d :0.25[&length=1],'':1," + quoted + ":3)"
+            + "'root''s'[&R][it's; here];\n(x,y);";
+        String[] labels = { "it's [not] a comment", "(a,b);", "c d", "",
+            longLabel.toString() };
+        double[] lengths = { 1.5, 2, 0.25, 1, 3 };
+        double[] confidences = { 0, 100, 0, 0, 0 };
+
+        PhylipReader reader = new PhylipReader();
+        reader.setInput(text);
+        Clade root = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+        if(!"root's".equals(root.getUserObject()))
+            throw new AssertionError("Root label " + root.getUserObject());
+        if(root.getChildCount() != labels.length)
+            throw new AssertionError(root.getChildCount() + " children");
+        for(int i = 0; i < labels.length; i++) {
+            Clade child = (Clade)root.getChildAt(i);
+            if(!labels[i].equals(child.getUserObject())
+                    || child.getBranchLength() != lengths[i]
+                    || child.getConfidence() != confidences[i])
+                throw new AssertionError("Child " + i + ": "
+                    + (i < 4 ? child.getUserObject() : "long label") + ":"
+                    + child.getBranchLength() + "[" + child.getConfidence() + "]");
+        }
+        //Neither the quoted nor the commented ';' ends the first tree
+        Clade next = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+        if(next.getChildCount() != 2 || reader.hasNext())
+            throw new AssertionError("Second tree not read after the first");
+
+        reader.setInput(text);
+        if(reader.skip(1) != 1)
+            throw new AssertionError("First tree not skipped");
+        next = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+        if(next.getChildCount() != 2 || !"x".equals(((Clade)next.getChildAt(0))
+                .getUserObject()))
+            throw new AssertionError("Second tree not read after skipping the first");
+    }
+
+    public void testParallel() throws IOException {
+        Random random = new Random(22);
+        StringBuilder text = new StringBuilder();
+        for(int t = 0; t < 500; t++) {
+            //A few trees are not valid Newick
+            if(t % 97 == 50)
+                text.append("(a:x,b);\n");
+            else
+                text.append(randomTree(random)).append(";\n");
+        }
+        List<String> expected = readAll(text.toString(), null, 0);
+        if(expected.size() != 500)
+            throw new AssertionError(expected.size() + " trees read");
+        ExecutorService executor = ParallelLoop.newExecutor(4);
+        try {
+            for(int parallelism = 1; parallelism <= 4; parallelism += 3) {
+                if(!expected.equals(readAll(text.toString(), executor,
+                        parallelism)))
+                    throw new AssertionError("Different trees with a parallelism of "
+                        + parallelism);
+                //Skipped trees that are already being parsed
+                PhylipReader reader = new PhylipReader();
+                reader.setExecutor(executor);
+                reader.setParallelism(parallelism);
+                reader.setInput(text.toString());
+                reader.next();
+                if(reader.skip(200) != 200
+                        || !expected.get(201).equals(write(reader.next())))
+                    throw new AssertionError("Wrong tree after skipping, with a "
+                        + "parallelism of " + parallelism);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Each tree as written back, or as the error that it gave.
+     */
+    private static List<String> readAll(String text, ExecutorService executor,
+            int parallelism) throws IOException {
+        PhylipReader reader = new PhylipReader();
+        if(executor != null) {
+            reader.setExecutor(executor);
+            reader.setParallelism(parallelism);
+        }
+        reader.setInput(text);
+        List<String> trees = new ArrayList<String>();
+        while(reader.hasNext()) {
+            try {
+                trees.add(write(reader.next()));
+            } catch(IllegalArgumentException e) {
+                trees.add(e.getMessage());
+            }
+        }
+        return trees;
+    }
+
+    private static String randomTree(Random random) {
+        int leaves = 1 + random.nextInt(30);
+        List<String> subtrees = new ArrayList<String>();
+        for(int i = 0; i < leaves; i++)
+            subtrees.add((i % 5 == 0 ? "'t ''" + i + "'" : "t" + i) + ":"
+                + random.nextInt(1000) / 100.0);
+        while(subtrees.size() > 1) {
+            String a = subtrees.remove(random.nextInt(subtrees.size()));
+            String b = subtrees.remove(random.nextInt(subtrees.size()));
+            subtrees.add("(" + a + "," + b + "):" + random.nextInt(100) / 10.0
+                + "[" + random.nextInt(101) + "]");
+        }
+        return subtrees.get(0);
+    }
+
+    private static void roundTrip(String name, Clade root) throws IOException {
+        String text = write(root);
+        PhylipReader reader = new PhylipReader();
+        reader.setInput(text);
+        Clade copy = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+        if(copy.getDepth() != root.getDepth())
+            throw new AssertionError(name + ": depth " + copy.getDepth()
+                + " read back, not " + root.getDepth());
+        if(!text.equals(write(copy)))
+            throw new AssertionError(name + ": different tree when written again");
+        if(reader.hasNext())
+            throw new AssertionError(name + ": more than one tree read back");
+    }
+
+    private static String write(Clade root) throws IOException {
+        return write(new DefaultTreeModel(root));
+    }
+
+    private static String write(Object tree) throws IOException {
+        PhylipWriter writer = new PhylipWriter();
+        writer.setOutput(new StringWriter());
+        return (String)writer.write(tree);
+    }
+
+    public static void main(String[] args) {
+        try {
+            new PhylipReaderTest().testCaterpillar();
+            System.out.println("Caterpillar: OK");
+            new PhylipReaderTest().testBalanced();
+            System.out.println("Balanced: OK");
+            new PhylipReaderTest().testQuotedLabels();
+            System.out.println("Quoted labels: OK");
+            new PhylipReaderTest().testParallel();
+            System.out.println("Parallel: OK");
+        } catch(Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sugen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.swing.tree.DefaultTreeModel;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sugen.util.Clade;
+
+/**
+ * Read a document of several phylogenies one at a time, and check each
+ * against the document as parsed whole by DOM. Check that a phylogeny is
+ * read without reading much further into the document. Runs as a POJO
+ * test, or from main(), which exits with a failure status if a check
+ * fails.
+ */
+public class PhyloXmlReaderTest {
+	private final static File EXAMPLES =
+		new File("doc/phyloxml_example_files/phyloxml_examples.xml");
+
+	public void testPhylogenies() throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document document = factory.newDocumentBuilder().parse(EXAMPLES);
+		List<Element> phylogenies = children(document.getDocumentElement(),
+				"phylogeny");
+		if(phylogenies.size() < 2)
+			throw new AssertionError(phylogenies.size() + " phylogenies");
+
+		PhyloXmlReader reader = new PhyloXmlReader();
+		reader.setInput(EXAMPLES);
+		try {
+			for(int p = 0; p < phylogenies.size(); p++) {
+				if(!reader.hasNext())
+					throw new AssertionError("Only " + p + " phylogenies read");
+				Clade root = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+				check("Phylogeny " + (p + 1), phylogenies.get(p), root);
+			}
+			if(reader.hasNext() || reader.next() != null)
+				throw new AssertionError("More phylogenies than in the document");
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testOnePhylogenyAtATime() throws IOException {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n"
+			+ "<phyloxml xmlns=\"http://www.phyloxml.org\">\n");
+		for(int p = 0; p < 20; p++) {
+			xml.append("<phylogeny rooted=\"true\"><name>p").append(p)
+				.append("</name><clade>");
+			for(int i = 0; i < 2000; i++)
+				xml.append("<clade><name>leaf").append(i)
+					.append("</name><branch_length>0.5</branch_length></clade>");
+			xml.append("</clade></phylogeny>\n");
+		}
+		xml.append("</phyloxml>\n");
+		byte[] bytes = xml.toString().getBytes("UTF-8");
+		Counting counting = new Counting(new ByteArrayInputStream(bytes));
+
+		PhyloXmlReader reader = new PhyloXmlReader();
+		reader.setInput(counting);
+		Clade first = (Clade)((DefaultTreeModel)reader.next()).getRoot();
+		if(!"p0".equals(first.getUserObject())
+				|| first.getChildAt(0).getChildCount() != 2000)
+			throw new AssertionError("First phylogeny not read");
+		// Each phylogeny is 5% of the document
+		if(counting.count > bytes.length / 5)
+			throw new AssertionError(counting.count + " of " + bytes.length
+				+ " bytes read for the first phylogeny");
+		for(int p = 1; p < 20; p++)
+			if(!("p" + p).equals(((Clade)((DefaultTreeModel)reader.next())
+					.getRoot()).getUserObject()))
+				throw new AssertionError("Phylogeny " + (p + 1) + " not read");
+		if(reader.hasNext())
+			throw new AssertionError("More phylogenies than in the document");
+	}
+
+	/**
+	 * Compare the clades of a tree and of a phylogeny element in preorder:
+	 * their names, branch lengths and numbers of children.
+	 */
+	private static void check(String name, Element phylogeny, Clade root) {
+		String phylogenyName = text(phylogeny, "name");
+		if(phylogenyName == null ? root.getUserObject() != null
+				: !phylogenyName.equals(root.getUserObject()))
+			throw new AssertionError(name + ": named " + root.getUserObject()
+				+ ", not " + phylogenyName);
+		List<Element> expected = new ArrayList<Element>();
+		preorder(phylogeny, expected);
+		List<Clade> actual = new ArrayList<Clade>();
+		Enumeration<?> e = root.preorderEnumeration();
+		e.nextElement(); // the root holds the phylogeny, not a clade
+		while(e.hasMoreElements())
+			actual.add((Clade)e.nextElement());
+		if(expected.size() != actual.size())
+			throw new AssertionError(name + ": " + actual.size()
+				+ " clades, not " + expected.size());
+
+		for(int i = 0; i < expected.size(); i++) {
+			Element element = expected.get(i);
+			Clade clade = actual.get(i);
+			String where = name + ", clade " + (i + 1);
+			String cladeName = text(element, "name");
+			if(cladeName == null ? clade.getUserObject() != null
+					: !cladeName.equals(clade.getUserObject()))
+				throw new AssertionError(where + ": named " + clade.getUserObject()
+					+ ", not " + cladeName);
+			if(clade.getChildCount() != children(element, "clade").size())
+				throw new AssertionError(where + ": " + clade.getChildCount()
+					+ " children");
+			String length = element.hasAttribute("branch_length")
+				? element.getAttribute("branch_length")
+				: text(element, "branch_length");
+			if(length != null
+					&& clade.getBranchLength() != Double.parseDouble(length))
+				throw new AssertionError(where + ": branch length "
+					+ clade.getBranchLength() + ", not " + length);
+		}
+	}
+
+	private static void preorder(Element parent, List<Element> clades) {
+		List<Element> children = children(parent, "clade");
+		for(int i = 0; i < children.size(); i++) {
+			clades.add(children.get(i));
+			preorder(children.get(i), clades);
+		}
+	}
+
+	private static List<Element> children(Element parent, String name) {
+		List<Element> children = new ArrayList<Element>();
+		for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+			if(n instanceof Element && name.equals(n.getLocalName()))
+				children.add((Element)n);
+		return children;
+	}
+
+	/**
+	 * The trimmed text of the first child element of that name, or null.
+	 */
+	private static String text(Element parent, String name) {
+		List<Element> children = children(parent, name);
+		if(children.isEmpty())
+			return null;
+		String text = children.get(0).getTextContent().trim();
+		return text.length() == 0 ? null : text;
+	}
+
+	private static class Counting extends FilterInputStream {
+		long count;
+
+		Counting(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0)
+				count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0)
+				count += n;
+			return n;
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new PhyloXmlReaderTest().testPhylogenies();
+			System.out.println("Phylogenies: OK");
+			new PhyloXmlReaderTest().testOnePhylogenyAtATime();
+			System.out.println("One phylogeny at a time: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
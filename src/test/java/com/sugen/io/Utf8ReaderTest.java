@@ -0,0 +1,114 @@
+package com.sugen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Decode text of one- to four-byte characters, mapped, buffered and from a
+ * stream, through windows and buffers so small that characters straddle
+ * their ends, into arrays so small that surrogate pairs are split between
+ * reads, against the platform decoder. Runs as a POJO test, or from
+ * main(), which exits with a failure status if a check fails.
+ */
+public class Utf8ReaderTest {
+	// A byte that is never UTF-8, then characters of every length
+	private final static String[] PIECES = { null, "a", "Tree;",
+		"é", "αβ", "中", "€", "🌳",
+		"𐀀" };
+	private final static int[] WINDOWS = { 4, 5, 6, 7, 11, 64, 4096, 1 << 16 };
+	// The text that spans full-sized buffers is not mapped in tiny windows
+	private final static int LARGE = 4096;
+	private final static int[] LENGTHS = { 1, 2, 3, 1000 };
+
+	public void testStraddling() throws IOException {
+		Random random = new Random(23);
+		File file = File.createTempFile("text", ".txt");
+		file.deleteOnExit();
+		try {
+			for(int trial = 0; trial < 20; trial++) {
+				boolean isLarge = trial == 19;
+				byte[] bytes = randomText(random, isLarge ? 100000 : 200);
+				String expected = new String(bytes, "UTF-8");
+				FileOutputStream out = new FileOutputStream(file);
+				try {
+					out.write(bytes);
+				} finally {
+					out.close();
+				}
+				for(int w = 0; w < WINDOWS.length; w++) {
+					int window = WINDOWS[w];
+					if(isLarge && window < LARGE)
+						continue;
+					for(int l = 0; l < LENGTHS.length; l++) {
+						int length = LENGTHS[l];
+						String where = bytes.length + " bytes in windows of " + window
+							+ ", " + length + " characters at a time";
+						for(int mode = 0; mode < 2; mode++) {
+							FileChannel channel = new FileInputStream(file).getChannel();
+							check((mode == 0 ? "Mapped " : "Buffered ") + where, expected,
+								new Utf8Reader(channel, mode == 0, window), length);
+						}
+						check("Stream of " + where, expected, new Utf8Reader(
+							new ByteArrayInputStream(bytes), window), length);
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static byte[] randomText(Random random, int pieces)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(int i = 0; i < pieces; i++) {
+			String piece = PIECES[random.nextInt(PIECES.length)];
+			if(piece == null)
+				bytes.write(0xff);
+			else
+				bytes.write(piece.getBytes("UTF-8"));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void check(String name, String expected, Reader reader,
+			int length) throws IOException {
+		StringBuilder actual = new StringBuilder();
+		char[] chars = new char[length];
+		try {
+			int n;
+			while((n = reader.read(chars, 0, length)) >= 0) {
+				if(n == 0)
+					throw new AssertionError(name + ": nothing read");
+				actual.append(chars, 0, n);
+			}
+		} finally {
+			reader.close();
+		}
+		if(!expected.equals(actual.toString())) {
+			int i = 0;
+			while(i < Math.min(expected.length(), actual.length())
+					&& expected.charAt(i) == actual.charAt(i))
+				i++;
+			throw new AssertionError(name + ": differs at character " + i
+				+ " of " + expected.length());
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new Utf8ReaderTest().testStraddling();
+			System.out.println("Straddling: OK");
+		} catch(Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
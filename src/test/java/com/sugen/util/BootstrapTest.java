@@ -0,0 +1,100 @@
+package com.sugen.util;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Check bootstrap support at both ends: when every column is the same,
+ * every replicate is the same tree and every cluster has full support;
+ * a cluster that no replicate can have gets none. Runs as a POJO test, or
+ * from main(), which exits with a failure status if a check fails.
+ */
+public class BootstrapTest {
+	private final static int REPLICATES = 50;
+	// The computed matrix, and the features for Ward linkage
+	private final static String[] METHODS = { HierarchicalCluster.AVERAGE,
+		HierarchicalCluster.WARD };
+
+	public void testIdenticalColumns() {
+		Random random = new Random(18);
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		int n = 30;
+		int m = 20;
+		FeatureMatrix features = new FeatureMatrix(n, m);
+		String[] labels = new String[n];
+		for (int i = 0; i < n; i++) {
+			labels[i] = "row" + i;
+			double value = random.nextDouble();
+			for (int k = 0; k < m; k++)
+				features.set(i, k, value);
+		}
+		features.setRowLabels(labels);
+
+		for (int k = 0; k < METHODS.length; k++) {
+			for (int e = 0; e < 2; e++) {
+				Bootstrap bootstrap = new Bootstrap(features,
+						DistanceCalculator.EUCLIDEAN, METHODS[k]);
+				bootstrap.setReplicates(REPLICATES);
+				if (e == 1) {
+					bootstrap.setExecutor(executor);
+					bootstrap.setParallelism(4);
+				}
+				String name = METHODS[k] + " linkage"
+					+ (e == 1 ? ", in parallel" : "");
+				Clade[] nodes = LeafOrdering.postorder(bootstrap.cluster());
+				for (int v = 0; v < nodes.length; v++) {
+					if (!nodes[v].isLeaf() && nodes[v].getConfidence() != REPLICATES)
+						throw new AssertionError(name + ": support "
+								+ nodes[v].getConfidence() + ", not " + REPLICATES);
+				}
+			}
+		}
+	}
+
+	public void testImpossibleCluster() {
+		// Two tight pairs far apart, whatever columns are drawn
+		Random random = new Random(18);
+		double[] centers = { 0, 1, 10, 11 };
+		FeatureMatrix features = new FeatureMatrix(4, 20);
+		String[] labels = { "a", "b", "c", "d" };
+		for (int i = 0; i < 4; i++)
+			for (int k = 0; k < 20; k++)
+				features.set(i, k, centers[i / 2 * 2] + (i % 2) * 0.1
+						+ 0.01 * random.nextGaussian());
+		features.setRowLabels(labels);
+
+		// ((a,c),(b,d)), against ((a,b),(c,d)) in every replicate
+		Clade ac = new Clade();
+		ac.add(new Clade(labels[0], 1));
+		ac.add(new Clade(labels[2], 1));
+		Clade bd = new Clade();
+		bd.add(new Clade(labels[1], 1));
+		bd.add(new Clade(labels[3], 1));
+		Clade root = new Clade();
+		root.add(ac);
+		root.add(bd);
+
+		Bootstrap bootstrap = new Bootstrap(features,
+				DistanceCalculator.EUCLIDEAN, HierarchicalCluster.AVERAGE);
+		bootstrap.setReplicates(REPLICATES);
+		bootstrap.assess(root);
+		if (ac.getConfidence() != 0 || bd.getConfidence() != 0)
+			throw new AssertionError("Support " + ac.getConfidence() + " and "
+					+ bd.getConfidence() + " for impossible clusters, not 0");
+		if (root.getConfidence() != REPLICATES)
+			throw new AssertionError("Support " + root.getConfidence()
+					+ " for the root, not " + REPLICATES);
+	}
+
+	public static void main(String[] args) {
+		try {
+			new BootstrapTest().testIdenticalColumns();
+			System.out.println("Identical columns: OK");
+			new BootstrapTest().testImpossibleCluster();
+			System.out.println("Impossible cluster: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.sugen.util;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Check every metric, as computed into a matrix, serially and in parallel,
+ * and as a view, against the textbook formulas in double precision. Rows
+ * are split into several tiles and columns into several slices. Runs as a
+ * POJO test, or from main(), which exits with a failure status if a check
+ * fails.
+ */
+public class DistanceCalculatorTest {
+	public void testMetrics() {
+		Random random = new Random(8);
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		int[][] shapes = { { 1, 1 }, { 5, 1 }, { 7, 3 }, { 150, 700 } };
+		for (int s = 0; s < shapes.length; s++) {
+			int n = shapes[s][0];
+			int m = shapes[s][1];
+			FeatureMatrix features = new FeatureMatrix(n, m);
+			for (int i = 0; i < n; i++) {
+				// Ties for Spearman, and a constant row
+				boolean isWhole = i % 3 == 0;
+				for (int k = 0; k < m; k++)
+					features.set(i, k, i == 1 ? 2 : isWhole ? random.nextInt(5)
+							: random.nextGaussian());
+			}
+			double[][] rows = new double[n][m];
+			for (int i = 0; i < n; i++)
+				for (int k = 0; k < m; k++)
+					rows[i][k] = features.get(i, k);
+
+			for (int t = 0; t < DistanceCalculator.METRICS.length; t++) {
+				String metric = DistanceCalculator.METRICS[t];
+				String name = metric + " distances between " + n + " rows of "
+					+ m + " features";
+				double[][] expected = distances(rows, metric);
+				DistanceCalculator calculator = new DistanceCalculator(features,
+						metric);
+				compare(name, expected, calculator.compute());
+				compare(name + ", as a view", expected, calculator.createView());
+				calculator.setExecutor(executor);
+				calculator.setParallelism(4);
+				compare(name + ", in parallel", expected, calculator.compute());
+			}
+		}
+	}
+
+	private static double[][] distances(double[][] rows, String metric) {
+		int n = rows.length;
+		if (DistanceCalculator.SPEARMAN.equals(metric)) {
+			double[][] ranked = new double[n][];
+			for (int i = 0; i < n; i++)
+				ranked[i] = ranks(rows[i]);
+			rows = ranked;
+		}
+		double[][] distances = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double[] x = rows[i];
+				double[] y = rows[j];
+				double d;
+				if (i == j) {
+					d = 0;
+				} else if (DistanceCalculator.EUCLIDEAN.equals(metric)) {
+					double sum = 0;
+					for (int k = 0; k < x.length; k++)
+						sum += (x[k] - y[k]) * (x[k] - y[k]);
+					d = Math.sqrt(sum);
+				} else {
+					boolean isCentered = !DistanceCalculator.COSINE.equals(metric);
+					double mx = isCentered ? mean(x) : 0;
+					double my = isCentered ? mean(y) : 0;
+					double xy = 0, xx = 0, yy = 0;
+					for (int k = 0; k < x.length; k++) {
+						xy += (x[k] - mx) * (y[k] - my);
+						xx += (x[k] - mx) * (x[k] - mx);
+						yy += (y[k] - my) * (y[k] - my);
+					}
+					// A constant row is uncorrelated with everything
+					d = xx == 0 || yy == 0 ? 1 : 1 - xy / Math.sqrt(xx * yy);
+				}
+				distances[i][j] = d;
+			}
+		}
+		return distances;
+	}
+
+	private static double mean(double[] x) {
+		double sum = 0;
+		for (int k = 0; k < x.length; k++)
+			sum += x[k];
+		return sum / x.length;
+	}
+
+	/**
+	 * Ranks from 0, ties given their average rank.
+	 */
+	private static double[] ranks(double[] x) {
+		double[] ranks = new double[x.length];
+		for (int k = 0; k < x.length; k++) {
+			int less = 0;
+			int equal = 0;
+			for (int l = 0; l < x.length; l++) {
+				if (x[l] < x[k])
+					less++;
+				else if (x[l] == x[k])
+					equal++;
+			}
+			ranks[k] = less + (equal - 1) / 2.0;
+		}
+		return ranks;
+	}
+
+	/**
+	 * The features and distances are rounded to float, so they agree only
+	 * so far.
+	 */
+	private static void compare(String name, double[][] expected,
+			DistanceMatrix actual) {
+		if (actual.size() != expected.length)
+			throw new AssertionError(name + ": size " + actual.size());
+		for (int i = 0; i < expected.length; i++) {
+			for (int j = 0; j < expected.length; j++) {
+				double e = expected[i][j];
+				double a = actual.get(i, j);
+				if (!(Math.abs(e - a) <= 1e-5 * Math.max(1, e)))
+					throw new AssertionError(name + ": " + a + ", not " + e
+							+ ", between rows " + i + " and " + j);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new DistanceCalculatorTest().testMetrics();
+			System.out.println("Metrics: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
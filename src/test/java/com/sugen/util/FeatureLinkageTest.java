@@ -0,0 +1,119 @@
+package com.sugen.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Check that Ward, centroid and median linkage from feature vectors merge
+ * the same clusters at the same heights as the Lance-Williams recurrence
+ * on the Euclidean distances computed by DistanceCalculator, serially and
+ * in parallel. Runs as a POJO test, or from main(), which exits with a
+ * failure status if a check fails.
+ */
+public class FeatureLinkageTest {
+	private final static int TRIALS = 20;
+	private final static String[] METHODS = { HierarchicalCluster.WARD,
+		HierarchicalCluster.CENTROID, HierarchicalCluster.MEDIAN };
+
+	public void testHeights() {
+		Random random = new Random(16);
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		for (int t = 0; t < TRIALS; t++) {
+			// The last few large enough for the scans to be split between tasks
+			int n = t < TRIALS - 3 ? 2 + random.nextInt(80)
+				: 200 + random.nextInt(100);
+			int m = t < TRIALS - 3 ? 1 + random.nextInt(8)
+				: 800 + random.nextInt(400);
+			FeatureMatrix features = new FeatureMatrix(n, m);
+			String[] labels = new String[n];
+			for (int i = 0; i < n; i++) {
+				labels[i] = "row" + i;
+				for (int k = 0; k < m; k++)
+					features.set(i, k, random.nextGaussian());
+			}
+			features.setRowLabels(labels);
+			DistanceCalculator calculator = new DistanceCalculator(features,
+					DistanceCalculator.EUCLIDEAN);
+			DistanceMatrix distances = calculator.compute();
+
+			for (int k = 0; k < METHODS.length; k++) {
+				String name = METHODS[k] + " linkage of " + n + " rows of " + m
+					+ " features";
+				Map<String, Double> expected = heights(new HierarchicalCluster(
+						distances, labels, METHODS[k]).cluster());
+				// Delegated to FeatureLinkage by HierarchicalCluster
+				compare(name, expected, heights(new HierarchicalCluster(
+						calculator.createView(), labels, METHODS[k]).cluster()));
+				FeatureLinkage parallel = new FeatureLinkage(features, labels,
+						METHODS[k]);
+				parallel.setExecutor(executor);
+				parallel.setParallelism(4);
+				compare(name + ", in parallel", expected,
+						heights(parallel.cluster()));
+			}
+		}
+	}
+
+	/**
+	 * The height of each cluster, by its sorted leaves.
+	 */
+	private static Map<String, Double> heights(Clade root) {
+		Map<String, Double> heights = new TreeMap<String, Double>();
+		height(root, new ArrayList<String>(), heights);
+		return heights;
+	}
+
+	private static double height(Clade node, List<String> leaves,
+			Map<String, Double> heights) {
+		if (node.isLeaf()) {
+			leaves.add(node.toString());
+			return 0;
+		}
+		List<String> own = new ArrayList<String>();
+		double height = 0;
+		for (int i = 0; i < node.getChildCount(); i++) {
+			Clade child = (Clade)node.getChildAt(i);
+			height = Math.max(height, height(child, own, heights)
+					+ child.getBranchLength());
+		}
+		leaves.addAll(own);
+		Collections.sort(own);
+		heights.put(own.toString(), Double.valueOf(height));
+		return height;
+	}
+
+	/**
+	 * Distances are rounded to float, so heights agree only so far.
+	 */
+	private static void compare(String name, Map<String, Double> expected,
+			Map<String, Double> actual) {
+		if (!expected.keySet().equals(actual.keySet()))
+			throw new AssertionError(name + ": different clusters\n"
+					+ expected.keySet() + "\n" + actual.keySet());
+		Iterator<Map.Entry<String, Double>> i = expected.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, Double> entry = i.next();
+			double e = entry.getValue().doubleValue();
+			double a = actual.get(entry.getKey()).doubleValue();
+			if (Math.abs(e - a) > 1e-4 * Math.max(1, e))
+				throw new AssertionError(name + ": " + entry.getKey() + " at "
+						+ a + ", not " + e);
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new FeatureLinkageTest().testHeights();
+			System.out.println("Heights: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
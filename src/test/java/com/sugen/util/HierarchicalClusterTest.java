@@ -0,0 +1,345 @@
+package com.sugen.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Check that every clustering algorithm gives the same tree when some
+ * distances are missing, that is negative, and that cached trees are found
+ * again. Runs as a POJO test, or from main(), which exits with a failure
+ * status if a check fails.
+ */
+public class HierarchicalClusterTest {
+	private final static String[] REDUCIBLE = { HierarchicalCluster.AVERAGE,
+		HierarchicalCluster.COMPLETE, HierarchicalCluster.WPGMA,
+		HierarchicalCluster.WARD };
+	private final static String[] OUT_OF_CORE = { HierarchicalCluster.AVERAGE,
+		HierarchicalCluster.COMPLETE, HierarchicalCluster.SINGLE,
+		HierarchicalCluster.CENTROID };
+
+	public void testMissingDistances() {
+		double[][] scattered = randomMatrix(30, 0.25, new Random(1));
+		check("scattered", scattered, true);
+
+		// Two blocks with no distances between them, and an item with none
+		// at all
+		double[][] unconnected = randomMatrix(21, 0, new Random(2));
+		for (int i = 0; i < 21; i++) {
+			for (int j = 0; j < 21; j++) {
+				if (i != j && (i < 10 != j < 10 || i == 20 || j == 20))
+					unconnected[i][j] = -1;
+			}
+		}
+		check("unconnected", unconnected, false);
+
+		double[][] none = new double[5][5];
+		for (int i = 0; i < 5; i++)
+			for (int j = 0; j < 5; j++)
+				none[i][j] = i == j ? 0 : -1;
+		check("all missing", none, false);
+	}
+
+	/**
+	 * Check that cached trees are kept apart by algorithm and by leaf order,
+	 * and that an ordered tree comes back from the cache in the same order.
+	 */
+	public void testCache() {
+		double[][] data = randomMatrix(40, 0, new Random(3));
+		String[] labels = new String[data.length];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = "item" + i;
+		ClusterCache cache = new ClusterCache(1000);
+		HierarchicalCluster hc = new HierarchicalCluster(data, labels,
+				HierarchicalCluster.AVERAGE);
+		hc.setCache(cache);
+		hc.cluster();
+		hc.setAlgorithm(HierarchicalCluster.EXHAUSTIVE_SEARCH);
+		hc.cluster();
+		if (cache.size() != 2)
+			throw new AssertionError("Algorithms share a cache entry");
+
+		HierarchicalCluster uncached = new HierarchicalCluster(data, labels,
+				HierarchicalCluster.AVERAGE);
+		uncached.setAlgorithm(HierarchicalCluster.EXHAUSTIVE_SEARCH);
+		Clade root = uncached.cluster();
+		uncached.optimizeLeafOrder(root);
+		List<String> expected = Arrays.asList(uncached.getReorderedLabels(root));
+		hc.setLeafOrderOptimized(true);
+		for (int i = 0; i < 2; i++) {
+			List<String> order = Arrays.asList(hc.getReorderedLabels(hc.cluster()));
+			compare("ordered leaves, run " + (i + 1), expected, order);
+		}
+		if (cache.size() != 3)
+			throw new AssertionError("Ordered tree not cached apart");
+
+		Clade[] roots = hc.cluster(new String[] { HierarchicalCluster.AVERAGE,
+				HierarchicalCluster.COMPLETE });
+		compare("ordered leaves, batch", expected,
+				Arrays.asList(hc.getReorderedLabels(roots[0])));
+		if (cache.size() != 5)
+			throw new AssertionError("Batch trees not cached with their order");
+	}
+
+	/**
+	 * Check optimal leaf ordering against every combination of flips on
+	 * small random trees, half of them with few distinct distances, so that
+	 * the early exits meet ties; then check that the parallel ordering of
+	 * large trees, where rows are split between tasks, is the serial one.
+	 */
+	public void testLeafOrdering() {
+		Random random = new Random(5);
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		for (int t = 0; t < 300; t++) {
+			int n = 2 + random.nextInt(10);
+			double[][] data = t % 2 == 0 ? randomMatrix(n, 0, random)
+				: randomIntegerMatrix(n, 4, random);
+			String[] labels = new String[n];
+			for (int i = 0; i < n; i++)
+				labels[i] = "item" + i;
+			Clade root = randomTree(labels, random);
+			double best = Double.POSITIVE_INFINITY;
+			List<List<String>> orders = orders(root);
+			for (int o = 0; o < orders.size(); o++)
+				best = Math.min(best, cost(orders.get(o), data));
+			List<String> clusters = clusters(root);
+			for (int e = 0; e < 2; e++) {
+				String name = "tree " + t + " of " + n + " leaves"
+					+ (e == 1 ? ", with an executor" : "");
+				LeafOrdering ordering = new LeafOrdering(matrix(data), labels);
+				if (e == 1) {
+					ordering.setExecutor(executor);
+					ordering.setParallelism(4);
+				}
+				double cost = ordering.order(root);
+				if (Math.abs(cost - best) > 1e-9)
+					throw new AssertionError(name + ": cost " + cost
+							+ ", not the best " + best);
+				if (Math.abs(cost(leaves(root), data) - cost) > 1e-9)
+					throw new AssertionError(name + ": tree not in the order found");
+				compare(name + ", clusters", clusters, clusters(root));
+			}
+		}
+
+		for (int t = 0; t < 4; t++) {
+			int n = 200 + random.nextInt(200);
+			double[][] data = t % 2 == 0 ? randomMatrix(n, 0, random)
+				: randomIntegerMatrix(n, 4, random);
+			String[] labels = new String[n];
+			for (int i = 0; i < n; i++)
+				labels[i] = "item" + i;
+			Clade serial = cluster(data, labels, HierarchicalCluster.AVERAGE,
+					HierarchicalCluster.NEAREST_NEIGHBOR_CHAIN, false);
+			Clade parallel = cluster(data, labels, HierarchicalCluster.AVERAGE,
+					HierarchicalCluster.NEAREST_NEIGHBOR_CHAIN, false);
+			new LeafOrdering(matrix(data), labels).order(serial);
+			LeafOrdering ordering = new LeafOrdering(matrix(data), labels);
+			ordering.setExecutor(executor);
+			ordering.setParallelism(4);
+			ordering.order(parallel);
+			compare("large tree " + t + ", in parallel", leaves(serial),
+					leaves(parallel));
+		}
+	}
+
+	/**
+	 * A random binary tree, joining random pairs of clusters.
+	 */
+	private static Clade randomTree(String[] labels, Random random) {
+		List<Clade> clusters = new ArrayList<Clade>();
+		for (int i = 0; i < labels.length; i++)
+			clusters.add(new Clade(labels[i], 0));
+		while (clusters.size() > 1) {
+			Clade one = clusters.remove(random.nextInt(clusters.size()));
+			Clade two = clusters.remove(random.nextInt(clusters.size()));
+			Clade parent = new Clade();
+			parent.add(one);
+			parent.add(two);
+			clusters.add(parent);
+		}
+		return clusters.get(0);
+	}
+
+	/**
+	 * The leaf orders of every combination of flips.
+	 */
+	private static List<List<String>> orders(Clade node) {
+		List<List<String>> orders = new ArrayList<List<String>>();
+		if (node.isLeaf()) {
+			orders.add(Collections.singletonList(node.toString()));
+			return orders;
+		}
+		List<List<String>> left = orders((Clade)node.getChildAt(0));
+		List<List<String>> right = orders((Clade)node.getChildAt(1));
+		for (int l = 0; l < left.size(); l++) {
+			for (int r = 0; r < right.size(); r++) {
+				List<String> order = new ArrayList<String>(left.get(l));
+				order.addAll(right.get(r));
+				orders.add(order);
+				order = new ArrayList<String>(right.get(r));
+				order.addAll(left.get(l));
+				orders.add(order);
+			}
+		}
+		return orders;
+	}
+
+	/**
+	 * Sum of the distances between adjacent leaves.
+	 */
+	private static double cost(List<String> order, double[][] data) {
+		double cost = 0;
+		for (int p = 1; p < order.size(); p++)
+			cost += data[index(order.get(p - 1))][index(order.get(p))];
+		return cost;
+	}
+
+	private static int index(String label) {
+		return Integer.parseInt(label.substring("item".length()));
+	}
+
+	private static DistanceMatrix matrix(double[][] data) {
+		DistanceMatrix matrix = new DoubleDistanceMatrix(data.length);
+		for (int i = 0; i < data.length; i++)
+			for (int j = 0; j < i; j++)
+				matrix.set(i, j, data[i][j]);
+		return matrix;
+	}
+
+	/**
+	 * @param isConnected whether to compare single linkage too, which
+	 * joins unconnected clusters in another order
+	 */
+	private static void check(String name, double[][] data, boolean isConnected) {
+		String[] labels = new String[data.length];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = "item" + i;
+		for (int m = 0; m < REDUCIBLE.length; m++) {
+			List<String> exhaustive = clusters(cluster(data, labels, REDUCIBLE[m],
+					HierarchicalCluster.EXHAUSTIVE_SEARCH, false));
+			List<String> chain = clusters(cluster(data, labels, REDUCIBLE[m],
+					HierarchicalCluster.NEAREST_NEIGHBOR_CHAIN, false));
+			compare(name + ", " + REDUCIBLE[m] + " linkage, chain", exhaustive, chain);
+		}
+		for (int m = 0; m < OUT_OF_CORE.length; m++) {
+			List<String> exhaustive = clusters(cluster(data, labels, OUT_OF_CORE[m],
+					HierarchicalCluster.EXHAUSTIVE_SEARCH, false));
+			List<String> outOfCore = clusters(cluster(data, labels, OUT_OF_CORE[m],
+					HierarchicalCluster.EXHAUSTIVE_SEARCH, true));
+			compare(name + ", " + OUT_OF_CORE[m] + " linkage, out of core",
+					exhaustive, outOfCore);
+		}
+		if (isConnected) {
+			List<String> exhaustive = clusters(cluster(data, labels,
+					HierarchicalCluster.SINGLE, HierarchicalCluster.EXHAUSTIVE_SEARCH,
+					false));
+			List<String> slink = clusters(cluster(data, labels,
+					HierarchicalCluster.SINGLE, HierarchicalCluster.NEAREST_NEIGHBOR_CHAIN,
+					false));
+			compare(name + ", Single linkage, SLINK", exhaustive, slink);
+		}
+	}
+
+	private static Clade cluster(double[][] data, String[] labels,
+			String linkageMethod, String algorithm, boolean isOutOfCore) {
+		double[][] copy = new double[data.length][];
+		for (int i = 0; i < data.length; i++)
+			copy[i] = (double[])data[i].clone();
+		HierarchicalCluster hc = new HierarchicalCluster(copy, labels, linkageMethod);
+		hc.setAlgorithm(algorithm);
+		if (isOutOfCore)
+			hc.setScratchDirectory(new File(System.getProperty("java.io.tmpdir")));
+		Clade root = hc.cluster();
+		if (root == null || leaves(root).size() != data.length)
+			throw new AssertionError(linkageMethod + ", " + algorithm
+					+ ": not every item is in the tree");
+		return root;
+	}
+
+	static void compare(String name, List<String> expected,
+			List<String> actual) {
+		if (!expected.equals(actual))
+			throw new AssertionError(name + ": different tree\n" + expected
+					+ "\n" + actual);
+	}
+
+	/**
+	 * A symmetric matrix of random distances, some of them missing.
+	 */
+	private static double[][] randomMatrix(int n, double missing, Random random) {
+		double[][] data = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < i; j++) {
+				double d = random.nextDouble() < missing ? -1 : random.nextDouble();
+				data[i][j] = data[j][i] = d;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * A symmetric matrix of small whole distances, with many ties.
+	 */
+	private static double[][] randomIntegerMatrix(int n, int values,
+			Random random) {
+		double[][] data = new double[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < i; j++)
+				data[i][j] = data[j][i] = 1 + random.nextInt(values);
+		return data;
+	}
+
+	/**
+	 * Each cluster as its sorted leaves and its height, sorted.
+	 */
+	static List<String> clusters(Clade root) {
+		List<String> clusters = new ArrayList<String>();
+		height(root, clusters);
+		Collections.sort(clusters);
+		return clusters;
+	}
+
+	private static double height(Clade node, List<String> clusters) {
+		if (node.isLeaf())
+			return 0;
+		double height = 0;
+		for (int i = 0; i < node.getChildCount(); i++) {
+			Clade child = (Clade)node.getChildAt(i);
+			height = Math.max(height, height(child, clusters)
+					+ child.getBranchLength());
+		}
+		List<String> leaves = leaves(node);
+		Collections.sort(leaves);
+		clusters.add(leaves + String.format(" at %.6g", height));
+		return height;
+	}
+
+	private static List<String> leaves(Clade node) {
+		List<String> leaves = new ArrayList<String>();
+		if (node.isLeaf()) {
+			leaves.add(node.toString());
+		} else {
+			for (int i = 0; i < node.getChildCount(); i++)
+				leaves.addAll(leaves((Clade)node.getChildAt(i)));
+		}
+		return leaves;
+	}
+
+	public static void main(String[] args) {
+		try {
+			new HierarchicalClusterTest().testMissingDistances();
+			System.out.println("Missing distances: OK");
+			new HierarchicalClusterTest().testCache();
+			System.out.println("Cache: OK");
+			new HierarchicalClusterTest().testLeafOrdering();
+			System.out.println("Leaf ordering: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.sugen.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Check that neighbor joining and BIONJ recover random additive trees:
+ * given the path lengths between the leaves of a tree, both must build a
+ * tree with the same path lengths, whether the pair search runs serially
+ * or in parallel. Runs as a POJO test, or from main(), which exits with a
+ * failure status if a check fails.
+ */
+public class NeighborJoiningTest {
+	private final static int TREES = 200;
+
+	public void testAdditiveTrees() {
+		Random random = new Random(4);
+		ExecutorService executor = ParallelLoop.newExecutor(4);
+		for (int t = 0; t < TREES; t++) {
+			// Large enough trees for the rows to be split between tasks
+			int n = t < TREES / 2 ? 3 + random.nextInt(60)
+				: 130 + random.nextInt(130);
+			double[][] expected = randomAdditive(n, random);
+			DistanceMatrix distances = new DoubleDistanceMatrix(n);
+			String[] labels = new String[n];
+			for (int i = 0; i < n; i++) {
+				labels[i] = "leaf" + i;
+				for (int j = 0; j < i; j++)
+					distances.set(i, j, expected[i][j]);
+			}
+			for (int b = 0; b < 2; b++) {
+				boolean isBionj = b == 1;
+				for (int e = 0; e < 2; e++) {
+					NeighborJoining nj = new NeighborJoining(distances, labels,
+							isBionj);
+					if (e == 1) {
+						nj.setExecutor(executor);
+						nj.setParallelism(4);
+					}
+					compare("tree " + t + " of " + n + " leaves"
+							+ (isBionj ? ", BIONJ" : ", NJ")
+							+ (e == 1 ? ", in parallel" : ""),
+							expected, pathLengths(nj.cluster(), labels));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Path lengths between the leaves of a random unrooted binary tree,
+	 * grown by attaching each new leaf to the middle of a random edge.
+	 */
+	private static double[][] randomAdditive(int n, Random random) {
+		// Edges as node pairs with lengths; nodes 0..n-1 are the leaves
+		List<int[]> edges = new ArrayList<int[]>();
+		List<Double> lengths = new ArrayList<Double>();
+		int center = n;
+		int nodeCount = n + 1;
+		for (int i = 0; i < Math.min(n, 3); i++) {
+			edges.add(new int[] { i, center });
+			lengths.add(Double.valueOf(0.1 + random.nextDouble()));
+		}
+		for (int leaf = 3; leaf < n; leaf++) {
+			int e = random.nextInt(edges.size());
+			int[] edge = edges.get(e);
+			double length = lengths.get(e).doubleValue();
+			double split = length * (0.1 + 0.8 * random.nextDouble());
+			int middle = nodeCount++;
+			edges.set(e, new int[] { edge[0], middle });
+			lengths.set(e, Double.valueOf(split));
+			edges.add(new int[] { middle, edge[1] });
+			lengths.add(Double.valueOf(length - split));
+			edges.add(new int[] { leaf, middle });
+			lengths.add(Double.valueOf(0.1 + random.nextDouble()));
+		}
+
+		List<List<Integer>> adjacent = new ArrayList<List<Integer>>();
+		List<List<Double>> adjacentLengths = new ArrayList<List<Double>>();
+		for (int v = 0; v < nodeCount; v++) {
+			adjacent.add(new ArrayList<Integer>());
+			adjacentLengths.add(new ArrayList<Double>());
+		}
+		for (int e = 0; e < edges.size(); e++) {
+			int[] edge = edges.get(e);
+			adjacent.get(edge[0]).add(Integer.valueOf(edge[1]));
+			adjacentLengths.get(edge[0]).add(lengths.get(e));
+			adjacent.get(edge[1]).add(Integer.valueOf(edge[0]));
+			adjacentLengths.get(edge[1]).add(lengths.get(e));
+		}
+		double[][] paths = new double[n][];
+		for (int i = 0; i < n; i++)
+			paths[i] = walk(i, adjacent, adjacentLengths, n);
+		return paths;
+	}
+
+	/**
+	 * Path lengths from one node to the leaves, 0..leafCount-1.
+	 */
+	private static double[] walk(int from, List<List<Integer>> adjacent,
+			List<List<Double>> lengths, int leafCount) {
+		double[] distance = new double[adjacent.size()];
+		boolean[] isSeen = new boolean[adjacent.size()];
+		int[] stack = new int[adjacent.size()];
+		int top = 0;
+		stack[top++] = from;
+		isSeen[from] = true;
+		while (top > 0) {
+			int v = stack[--top];
+			for (int k = 0; k < adjacent.get(v).size(); k++) {
+				int w = adjacent.get(v).get(k).intValue();
+				if (!isSeen[w]) {
+					isSeen[w] = true;
+					distance[w] = distance[v] + lengths.get(v).get(k).doubleValue();
+					stack[top++] = w;
+				}
+			}
+		}
+		double[] leaves = new double[leafCount];
+		System.arraycopy(distance, 0, leaves, 0, leafCount);
+		return leaves;
+	}
+
+	/**
+	 * Path lengths between the leaves of a built tree, in label order.
+	 */
+	private static double[][] pathLengths(Clade root, String[] labels) {
+		Map<String, Integer> leafIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < labels.length; i++)
+			leafIndex.put(labels[i], Integer.valueOf(i));
+		Clade[] nodes = LeafOrdering.postorder(root);
+		Map<Clade, Integer> nodeIndex = new HashMap<Clade, Integer>();
+		for (int v = 0; v < nodes.length; v++)
+			nodeIndex.put(nodes[v], Integer.valueOf(v));
+
+		List<List<Integer>> adjacent = new ArrayList<List<Integer>>();
+		List<List<Double>> lengths = new ArrayList<List<Double>>();
+		for (int v = 0; v < nodes.length; v++) {
+			adjacent.add(new ArrayList<Integer>());
+			lengths.add(new ArrayList<Double>());
+		}
+		// Leaves first, in label order, as walk() expects
+		int[] order = new int[nodes.length];
+		int next = labels.length;
+		for (int v = 0; v < nodes.length; v++) {
+			if (nodes[v].isLeaf()) {
+				Integer leaf = leafIndex.get(nodes[v].toString());
+				if (leaf == null)
+					throw new AssertionError("Unknown leaf " + nodes[v]);
+				order[v] = leaf.intValue();
+			} else {
+				order[v] = next++;
+			}
+		}
+		if (next != nodes.length)
+			throw new AssertionError("Expected " + labels.length + " leaves");
+		for (int v = 0; v < nodes.length; v++) {
+			Clade parent = (Clade)nodes[v].getParent();
+			if (parent == null)
+				continue;
+			int a = order[v];
+			int b = order[nodeIndex.get(parent).intValue()];
+			Double length = Double.valueOf(nodes[v].getBranchLength());
+			adjacent.get(a).add(Integer.valueOf(b));
+			lengths.get(a).add(length);
+			adjacent.get(b).add(Integer.valueOf(a));
+			lengths.get(b).add(length);
+		}
+		double[][] paths = new double[labels.length][];
+		for (int i = 0; i < labels.length; i++)
+			paths[i] = walk(i, adjacent, lengths, labels.length);
+		return paths;
+	}
+
+	private static void compare(String name, double[][] expected,
+			double[][] actual) {
+		for (int i = 0; i < expected.length; i++) {
+			for (int j = 0; j < i; j++) {
+				if (Math.abs(expected[i][j] - actual[i][j]) > 1e-9 * (1 + expected[i][j]))
+					throw new AssertionError(name + ": path from leaf" + i
+							+ " to leaf" + j + " is " + actual[i][j] + ", not "
+							+ expected[i][j]);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			new NeighborJoiningTest().testAdditiveTrees();
+			System.out.println("Additive trees: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.sugen.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Check sparse single and average linkage: on a complete graph they must
+ * build the same trees as HierarchicalCluster does from a full matrix, and
+ * on a sparse graph average linkage must average over the edges that exist.
+ * Runs as a POJO test, or from main(), which exits with a failure status if
+ * a check fails.
+ */
+public class SparseLinkageTest {
+	private final static int TRIALS = 20;
+
+	public void testCompleteGraph() {
+		Random random = new Random(15);
+		for (int t = 0; t < TRIALS; t++) {
+			int n = 2 + random.nextInt(60);
+			String[] labels = labels(n);
+			// Distances exact in float, as the graph stores them, and distinct
+			double[][] data = new double[n][n];
+			List<int[]> edges = new ArrayList<int[]>();
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < i; j++) {
+					data[i][j] = data[j][i] = (float)random.nextDouble();
+					// Both directions, in random order, of some of the edges
+					edges.add(random.nextBoolean() ? new int[] { i, j }
+						: new int[] { j, i });
+					if (random.nextInt(4) == 0)
+						edges.add(new int[] { j, i });
+				}
+			}
+			int[] from = new int[edges.size()];
+			int[] to = new int[edges.size()];
+			double[] distances = new double[edges.size()];
+			for (int e = 0; e < edges.size(); e++) {
+				from[e] = edges.get(e)[0];
+				to[e] = edges.get(e)[1];
+				distances[e] = data[from[e]][to[e]];
+			}
+			SparseDistanceGraph graph = SparseDistanceGraph.fromEdges(n, from,
+					to, distances, labels);
+
+			for (int m = 0; m < 2; m++) {
+				String method = m == 0 ? HierarchicalCluster.SINGLE
+					: HierarchicalCluster.AVERAGE;
+				String name = method + " linkage of " + n + " items";
+				HierarchicalCluster full = new HierarchicalCluster(data, labels,
+						method);
+				List<String> expected = HierarchicalClusterTest.clusters(
+						full.cluster());
+				HierarchicalClusterTest.compare(name, expected,
+						HierarchicalClusterTest.clusters(new SparseLinkage(graph,
+								labels, m == 1).cluster()));
+				HierarchicalClusterTest.compare(name + " through HierarchicalCluster",
+						expected, HierarchicalClusterTest.clusters(
+								new HierarchicalCluster(graph, labels, method)
+										.cluster()));
+			}
+		}
+	}
+
+	public void testSparseAverage() {
+		// No edge between a and d, nor between b and c; e has no edges
+		String[] labels = { "a", "b", "c", "d", "e" };
+		SparseDistanceGraph graph = SparseDistanceGraph.fromEdges(5,
+				new int[] { 0, 2, 0, 1 }, new int[] { 1, 3, 2, 3 },
+				new double[] { 1, 2, 4, 8 }, labels);
+		// Over all four pairs, with the missing ones as 0 or left out of
+		// the count, {a,b} and {c,d} would join at 3 or 12 instead
+		List<String> expected = Arrays.asList(new String[] {
+				"[a, b, c, d, e] at 6.00000",
+				"[a, b, c, d] at 6.00000",
+				"[a, b] at 1.00000",
+				"[c, d] at 2.00000" });
+		HierarchicalClusterTest.compare("Sparse average linkage", expected,
+				HierarchicalClusterTest.clusters(new SparseLinkage(graph, labels,
+						true).cluster()));
+	}
+
+	public void testInvalidDistances() {
+		double[] invalid = { -1, -Double.MIN_VALUE, Double.NaN };
+		for (int k = 0; k < invalid.length; k++) {
+			try {
+				SparseDistanceGraph.fromEdges(3, new int[] { 0, 1 },
+						new int[] { 1, 2 }, new double[] { 1, invalid[k] }, null);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			throw new AssertionError("Edge of distance " + invalid[k]
+					+ " accepted");
+		}
+	}
+
+	private static String[] labels(int n) {
+		String[] labels = new String[n];
+		for (int i = 0; i < n; i++)
+			labels[i] = "item" + i;
+		return labels;
+	}
+
+	public static void main(String[] args) {
+		try {
+			new SparseLinkageTest().testCompleteGraph();
+			System.out.println("Complete graph: OK");
+			new SparseLinkageTest().testSparseAverage();
+			System.out.println("Sparse average: OK");
+			new SparseLinkageTest().testInvalidDistances();
+			System.out.println("Invalid distances: OK");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}